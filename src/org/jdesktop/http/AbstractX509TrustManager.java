@@ -0,0 +1,147 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * <p>Base class of the trust managers for each {@link Session.SecurityLevel}.
+ * Client certificates are always checked by the standard trust manager, and
+ * subclasses decide whether to trust the server.</p>
+ *
+ * <p>The host of the server is taken from the handshake, rather than fixed
+ * when the trust manager is created. This allows a single SSLContext (and so
+ * a single TLS session cache) to serve every host. Server certificates are
+ * only checked on a full handshake, so the number of checks made here is
+ * also the number of full handshakes.</p>
+ */
+abstract class AbstractX509TrustManager extends X509ExtendedTrustManager {
+    /**
+     * The trust manager of the platform, which checks certificates against
+     * the given keystore (or the default trust store).
+     */
+    protected final X509ExtendedTrustManager standardTrustManager;
+    private final AtomicLong serverChecks = new AtomicLong();
+    private final AtomicLong socketServerChecks = new AtomicLong();
+
+    protected AbstractX509TrustManager(KeyStore keystore) throws NoSuchAlgorithmException, KeyStoreException {
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(keystore);
+        for (TrustManager tm : factory.getTrustManagers()) {
+            if (tm instanceof X509ExtendedTrustManager) {
+                this.standardTrustManager = (X509ExtendedTrustManager)tm;
+                return;
+            }
+        }
+        throw new NoSuchAlgorithmException("no trust manager found");
+    }
+
+    /**
+     * Decides whether to trust the server. Exactly one of socket and engine
+     * is non null, unless the caller did not supply either.
+     *
+     * @param host the host the client is connecting to. May be null if not known.
+     */
+    protected abstract void checkServer(X509Certificate[] certificates, String authType, String host,
+            Socket socket, SSLEngine engine) throws CertificateException;
+
+    /**
+     * Checks the certificates with the standard trust manager, passing on the
+     * socket or engine so that endpoint identification is applied when
+     * configured.
+     */
+    protected final void checkStandard(X509Certificate[] certificates, String authType,
+            Socket socket, SSLEngine engine) throws CertificateException {
+        if (socket != null) {
+            standardTrustManager.checkServerTrusted(certificates, authType, socket);
+        } else if (engine != null) {
+            standardTrustManager.checkServerTrusted(certificates, authType, engine);
+        } else {
+            standardTrustManager.checkServerTrusted(certificates, authType);
+        }
+    }
+
+    /**
+     * @return the number of server certificate chains trusted, which is the
+     *         number of full handshakes made with this trust manager
+     */
+    final long getServerCheckCount() {
+        return serverChecks.get();
+    }
+
+    /**
+     * @return the number of server certificate chains trusted for
+     *         handshakes over an SSLSocket
+     */
+    final long getSocketServerCheckCount() {
+        return socketServerChecks.get();
+    }
+
+    public void checkClientTrusted(X509Certificate[] certificates, String authType) throws CertificateException {
+        standardTrustManager.checkClientTrusted(certificates, authType);
+    }
+
+    public void checkClientTrusted(X509Certificate[] certificates, String authType, Socket socket) throws CertificateException {
+        standardTrustManager.checkClientTrusted(certificates, authType, socket);
+    }
+
+    public void checkClientTrusted(X509Certificate[] certificates, String authType, SSLEngine engine) throws CertificateException {
+        standardTrustManager.checkClientTrusted(certificates, authType, engine);
+    }
+
+    public final void checkServerTrusted(X509Certificate[] certificates, String authType) throws CertificateException {
+        checkServer(certificates, authType, null, null, null);
+        serverChecks.incrementAndGet();
+    }
+
+    public final void checkServerTrusted(X509Certificate[] certificates, String authType, Socket socket) throws CertificateException {
+        String host = null;
+        if (socket instanceof SSLSocket) {
+            SSLSession session = ((SSLSocket)socket).getHandshakeSession();
+            host = session == null ? null : session.getPeerHost();
+        }
+        checkServer(certificates, authType, host, socket, null);
+        serverChecks.incrementAndGet();
+        socketServerChecks.incrementAndGet();
+    }
+
+    public final void checkServerTrusted(X509Certificate[] certificates, String authType, SSLEngine engine) throws CertificateException {
+        checkServer(certificates, authType, engine == null ? null : engine.getPeerHost(), null, engine);
+        serverChecks.incrementAndGet();
+    }
+
+    public X509Certificate[] getAcceptedIssuers() {
+        return standardTrustManager.getAcceptedIssuers();
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>A {@link Transport} which can perform an exchange without blocking the
+ * calling thread. {@link Session#executeAsync} uses this interface when the
+ * transport of the Session implements it, so that waiting for the server does
+ * not tie up a thread.</p>
+ */
+public interface AsyncTransport extends Transport {
+    /**
+     * <p>Starts the given exchange and returns immediately. The contract is the
+     * same as for {@link Transport#execute}, except that the returned future
+     * completes once {@link Exchange#setResponse} has been called, or
+     * completes exceptionally if the exchange fails.</p>
+     *
+     * <p>By the time the future completes, the response body handed to the
+     * exchange must be readable to the end without blocking (typically
+     * because it has been buffered in memory), as the Session reads it on the
+     * completing thread.</p>
+     *
+     * @param exchange the exchange to perform. This will never be null.
+     * @return a future which completes when the response is available
+     */
+    public CompletableFuture<Void> executeAsync(Exchange exchange);
+}
@@ -0,0 +1,401 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.beans.PropertyChangeEvent;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Stops a {@link Session} from sending requests to a host which is
+ * failing, so that callers fail at once rather than each waiting out a
+ * timeout. Set a breaker on a Session with
+ * {@link Session#setCircuitBreaker}.</p>
+ *
+ * <p>Each host (see {@link ConnectionPool#route}) has its own circuit, which
+ * starts out closed. The outcome of every request is counted over the last
+ * ten seconds. A request fails if it cannot connect, times out or is
+ * answered with a 5xx status, and is slow if its response takes longer than
+ * <code>slowCallDuration</code> to arrive. Once at least
+ * <code>minimumCalls</code> have been counted, the circuit opens if the
+ * share of failures reaches <code>failureRateThreshold</code>, or the share
+ * of slow calls reaches <code>slowCallRateThreshold</code>.</p>
+ *
+ * <p>While a circuit is open, requests to its host throw a
+ * {@link CircuitOpenException} without being sent. After
+ * <code>openDuration</code> the circuit is half open, and lets through up
+ * to <code>probes</code> requests at a time to see whether the host has
+ * recovered. Should one of them fail or be slow, the circuit opens again.
+ * Once <code>probes</code> of them have succeeded, it closes.</p>
+ *
+ * <p>A Session fires a {@link StateChangeEvent}, a property change of
+ * <code>circuitState</code>, whenever one of its requests moves a circuit
+ * from one state to another. A breaker may be shared by several Sessions,
+ * in which case they share the circuits too.</p>
+ */
+public class CircuitBreaker {
+    /**
+     * The states of a circuit.
+     */
+    public enum State {
+        /** Requests are sent, and their outcomes counted. */
+        CLOSED,
+        /** Requests fail without being sent. */
+        OPEN,
+        /** A few requests are sent to see whether the host has recovered. */
+        HALF_OPEN
+    }
+    
+    /** The default share of failed requests which opens a circuit: 50%. */
+    public static final double DEFAULT_FAILURE_RATE_THRESHOLD = 0.5;
+    /** The default share of slow requests which opens a circuit: 100%. */
+    public static final double DEFAULT_SLOW_CALL_RATE_THRESHOLD = 1.0;
+    /** The default time after which a response is slow: 10 seconds. */
+    public static final long DEFAULT_SLOW_CALL_DURATION = 10 * 1000;
+    /** The default number of requests counted before a circuit may open: 10. */
+    public static final int DEFAULT_MINIMUM_CALLS = 10;
+    /** The default time a circuit stays open: 30 seconds. */
+    public static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+    /** The default number of requests let through by a half open circuit: 3. */
+    public static final int DEFAULT_PROBES = 3;
+    
+    /** The number of one second buckets in the window */
+    private static final int WINDOW = 10;
+    
+    private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+    
+    private double failureRateThreshold = DEFAULT_FAILURE_RATE_THRESHOLD;
+    private double slowCallRateThreshold = DEFAULT_SLOW_CALL_RATE_THRESHOLD;
+    private long slowCallDuration = DEFAULT_SLOW_CALL_DURATION;
+    private int minimumCalls = DEFAULT_MINIMUM_CALLS;
+    private long openDuration = DEFAULT_OPEN_DURATION;
+    private int probes = DEFAULT_PROBES;
+    private final Map<String,Circuit> circuits = new HashMap<String,Circuit>();
+    private long rejected = 0;
+    
+    /** Creates a new CircuitBreaker with the default settings. */
+    public CircuitBreaker() {
+    }
+    
+    public synchronized double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+    
+    /**
+     * @param ratio the share of failed requests which opens a circuit,
+     *        above 0 and at most 1
+     */
+    public synchronized void setFailureRateThreshold(double ratio) {
+        if (ratio <= 0 || ratio > 1) {
+            throw new IllegalArgumentException("ratio must be above 0 and at most 1");
+        }
+        this.failureRateThreshold = ratio;
+    }
+    
+    public synchronized double getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+    
+    /**
+     * @param ratio the share of slow requests which opens a circuit, above 0
+     *        and at most 1
+     */
+    public synchronized void setSlowCallRateThreshold(double ratio) {
+        if (ratio <= 0 || ratio > 1) {
+            throw new IllegalArgumentException("ratio must be above 0 and at most 1");
+        }
+        this.slowCallRateThreshold = ratio;
+    }
+    
+    public synchronized long getSlowCallDuration() {
+        return slowCallDuration;
+    }
+    
+    /**
+     * @param millis the time after which a response is slow, above 0
+     */
+    public synchronized void setSlowCallDuration(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("millis must be above 0");
+        }
+        this.slowCallDuration = millis;
+    }
+    
+    public synchronized int getMinimumCalls() {
+        return minimumCalls;
+    }
+    
+    /**
+     * @param calls the number of requests which must have been counted
+     *        before a circuit may open, at least 1
+     */
+    public synchronized void setMinimumCalls(int calls) {
+        if (calls < 1) {
+            throw new IllegalArgumentException("calls must be at least 1");
+        }
+        this.minimumCalls = calls;
+    }
+    
+    public synchronized long getOpenDuration() {
+        return openDuration;
+    }
+    
+    /**
+     * @param millis how long a circuit stays open before letting a request
+     *        through. Must not be negative.
+     */
+    public synchronized void setOpenDuration(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        this.openDuration = millis;
+    }
+    
+    public synchronized int getProbes() {
+        return probes;
+    }
+    
+    /**
+     * @param probes the number of requests a half open circuit lets through
+     *        at a time, and which must succeed for it to close, at least 1
+     */
+    public synchronized void setProbes(int probes) {
+        if (probes < 1) {
+            throw new IllegalArgumentException("probes must be at least 1");
+        }
+        this.probes = probes;
+    }
+    
+    /**
+     * @return the state of the circuit of the given route, see
+     *         {@link ConnectionPool#route}
+     */
+    public synchronized State getState(String route) {
+        Circuit c = circuits.get(route);
+        return c == null ? State.CLOSED : c.state;
+    }
+    
+    /**
+     * @return the number of requests which failed because their circuit was open
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+    
+    /**
+     * Closes every circuit, and forgets the outcomes counted so far.
+     */
+    public synchronized void reset() {
+        circuits.clear();
+    }
+    
+    /**
+     * Lets a request to the given route through, or fails it if its circuit
+     * is open.
+     *
+     * @param session the Session sending the request, which fires the
+     *        change of state, if any
+     * @return the permit to hand back to {@link #record} once the request is
+     *         done
+     * @throws CircuitOpenException if the circuit is open
+     */
+    Permit acquire(Session session, String route) throws CircuitOpenException {
+        StateChangeEvent change = null;
+        Permit permit;
+        synchronized (this) {
+            Circuit c = circuits.get(route);
+            if (c == null) {
+                c = new Circuit();
+                circuits.put(route, c);
+            }
+            long now = System.currentTimeMillis();
+            if (c.state == State.OPEN) {
+                long wait = c.openedAt + openDuration - now;
+                if (wait > 0) {
+                    rejected++;
+                    throw new CircuitOpenException(route, wait);
+                }
+                change = transition(session, route, c, State.HALF_OPEN);
+            }
+            if (c.state == State.HALF_OPEN) {
+                if (c.probing >= probes) {
+                    rejected++;
+                    throw new CircuitOpenException(route, 0);
+                }
+                c.probing++;
+            }
+            permit = new Permit(route, c.state == State.HALF_OPEN, c.epoch);
+        }
+        if (change != null) {
+            session.circuitChanged(change);
+        }
+        return permit;
+    }
+    
+    /**
+     * Counts the outcome of a request let through by {@link #acquire}, which
+     * may move its circuit to another state.
+     *
+     * @param failed whether the request failed to connect, timed out or was
+     *        answered with a 5xx status
+     * @param millis how long the response took to arrive, or -1 if it did
+     *        not or is not to be counted
+     * @param aborted whether the request was abandoned by the caller, in
+     *        which case its outcome says nothing about the host
+     */
+    void record(Session session, Permit permit, boolean failed, long millis, boolean aborted) {
+        StateChangeEvent change = null;
+        synchronized (this) {
+            Circuit c = circuits.get(permit.route);
+            if (c == null || c.epoch != permit.epoch) {
+                //the circuit changed state while the request was out
+                return;
+            }
+            boolean slow = millis >= slowCallDuration;
+            if (permit.probe) {
+                c.probing--;
+                if (aborted) {
+                    return;
+                }
+                if (failed || slow) {
+                    change = transition(session, permit.route, c, State.OPEN);
+                } else if (++c.probed >= probes) {
+                    change = transition(session, permit.route, c, State.CLOSED);
+                }
+            } else if (!aborted && c.state == State.CLOSED) {
+                c.count(failed, slow);
+                if (c.trips(minimumCalls, failureRateThreshold, slowCallRateThreshold)) {
+                    change = transition(session, permit.route, c, State.OPEN);
+                }
+            }
+        }
+        if (change != null) {
+            session.circuitChanged(change);
+        }
+    }
+    
+    private StateChangeEvent transition(Session session, String route, Circuit c, State state) {
+        State old = c.state;
+        c.state = state;
+        c.epoch++;
+        c.probing = 0;
+        c.probed = 0;
+        c.clear();
+        if (state == State.OPEN) {
+            c.openedAt = System.currentTimeMillis();
+        }
+        LOG.log(state == State.OPEN ? Level.WARNING : Level.INFO, "The circuit to {0} is now {1}",
+                new Object[] {route, state});
+        return new StateChangeEvent(session, route, old, state);
+    }
+    
+    /**
+     * The token of a request let through a circuit.
+     */
+    static final class Permit {
+        final String route;
+        final boolean probe;
+        final long epoch;
+        
+        private Permit(String route, boolean probe, long epoch) {
+            this.route = route;
+            this.probe = probe;
+            this.epoch = epoch;
+        }
+    }
+    
+    /**
+     * The circuit of one route, with the outcomes of its requests counted in
+     * one second buckets over a sliding window.
+     */
+    private static final class Circuit {
+        private static final int CALLS = 0;
+        private static final int FAILED = 1;
+        private static final int SLOWED = 2;
+        
+        private State state = State.CLOSED;
+        /** counts the changes of state, so that late outcomes can be ignored */
+        private long epoch = 0;
+        private long openedAt;
+        /** the probes out, and those which have succeeded, while half open */
+        private int probing = 0;
+        private int probed = 0;
+        /** counts the calls, failures and slow calls */
+        private final SlidingWindow window = new SlidingWindow(3, WINDOW);
+        
+        void count(boolean failure, boolean slowCall) {
+            long now = SlidingWindow.currentSecond();
+            window.add(CALLS, 1, now);
+            if (failure) {
+                window.add(FAILED, 1, now);
+            }
+            if (slowCall) {
+                window.add(SLOWED, 1, now);
+            }
+        }
+        
+        /** @return true if the calls in the window are enough to trip the circuit */
+        boolean trips(int minimumCalls, double failureRate, double slowCallRate) {
+            long total = window.total(CALLS);
+            return total >= minimumCalls && (window.total(FAILED) >= failureRate * total
+                    || window.total(SLOWED) >= slowCallRate * total);
+        }
+        
+        void clear() {
+            window.clear();
+        }
+    }
+    
+    /**
+     * Fired by a {@link Session} as a change of its <code>circuitState</code>
+     * property, when one of its requests moves the circuit of a route from
+     * one {@link State} to another.
+     */
+    public static class StateChangeEvent extends PropertyChangeEvent {
+        private static final long serialVersionUID = 1L;
+        
+        private final String route;
+        
+        public StateChangeEvent(Object source, String route, State oldState, State newState) {
+            super(source, "circuitState", oldState, newState);
+            this.route = route;
+        }
+        
+        /**
+         * @return the route, see {@link ConnectionPool#route}, whose circuit
+         *         changed state
+         */
+        public String getRoute() {
+            return route;
+        }
+        
+        public State getOldState() {
+            return (State)getOldValue();
+        }
+        
+        public State getNewState() {
+            return (State)getNewValue();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link Session} in place of sending a request, when the
+ * {@link CircuitBreaker} of the host the request is for is open.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    private final String route;
+    private final long retryAfter;
+    
+    /**
+     * @param route the route whose circuit is open
+     * @param retryAfter how long until requests are let through again, in
+     *        milliseconds
+     */
+    public CircuitOpenException(String route, long retryAfter) {
+        super("The circuit to " + route + " is open, requests are let through again in " + retryAfter + "ms");
+        this.route = route;
+        this.retryAfter = retryAfter;
+    }
+    
+    /**
+     * @return the route, see {@link ConnectionPool#route}, whose circuit is open
+     */
+    public String getRoute() {
+        return route;
+    }
+    
+    /**
+     * @return how long, in milliseconds, until the circuit lets a request
+     *         through to try the host again
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
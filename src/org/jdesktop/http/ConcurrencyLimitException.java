@@ -0,0 +1,51 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a {@link Session} in place of sending a request, when the
+ * {@link ConcurrencyLimiter} of the host the request is for is at its limit,
+ * and the request could not wait its turn.
+ */
+public class ConcurrencyLimitException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    private final String route;
+    
+    /**
+     * @param route the route which is at its limit
+     * @param message the detail message
+     */
+    public ConcurrencyLimitException(String route, String message) {
+        super(message);
+        this.route = route;
+    }
+    
+    /**
+     * @return the route, see {@link ConnectionPool#route}, which is at its limit
+     */
+    public String getRoute() {
+        return route;
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * <p>Limits the number of requests a {@link Session} has in flight to each
+ * host, adapting the limit to how the host copes. Set a limiter on a
+ * Session with {@link Session#setConcurrencyLimiter}.</p>
+ *
+ * <p>Each host (see {@link ConnectionPool#route}) has its own limit, which
+ * starts at <code>initialLimit</code>. The limit is adjusted after every
+ * response in the manner of TCP Vegas: the shortest response time seen
+ * stands for the host without load, and the amount by which a response
+ * took longer is taken as queueing in the host. While the estimated queue
+ * is short the limit grows, and once it grows long the limit shrinks.
+ * Requests which time out, fail to connect or are answered with 429 Too
+ * Many Requests or 503 Service Unavailable cut the limit by a tenth. The
+ * limit only grows while the host is actually being given at least half
+ * of it, and always stays between <code>minLimit</code> and
+ * <code>maxLimit</code>. The shortest response time is measured afresh
+ * every thousand responses, so that the limit follows a host which
+ * changes.</p>
+ *
+ * <p>Requests over the limit wait their turn, in the order they were made,
+ * for up to <code>maxWait</code>. If more than <code>maxQueue</code> are
+ * already waiting, or the wait runs out, the request fails with a
+ * {@link ConcurrencyLimitException} without being sent. The
+ * {@link Stats} of each host give its live limit and queue depth.</p>
+ *
+ * <p>The limit applies on top of the connections the {@link ConnectionPool}
+ * allows per route, so a <code>maxLimit</code> above the
+ * <code>maxPerRoute</code> of the pool only lets requests queue for a
+ * connection there instead. A limiter may be shared by several Sessions,
+ * in which case they share the limits too. The limits of at most
+ * {@link #MAX_ROUTES} hosts are kept.</p>
+ */
+public class ConcurrencyLimiter {
+    /** The default limit of a host before anything is known about it: 20. */
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    /** The default lowest limit: 1. */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    /** The default highest limit: 200. */
+    public static final int DEFAULT_MAX_LIMIT = 200;
+    /** The default longest time a request waits for its turn: 1 second. */
+    public static final long DEFAULT_MAX_WAIT = 1000;
+    /** The default number of requests which may wait for their turn per host: 100. */
+    public static final int DEFAULT_MAX_QUEUE = 100;
+    
+    /**
+     * The most routes whose limits are kept. The limits of the least recently
+     * used routes beyond this are forgotten, once they have nothing in flight.
+     */
+    public static final int MAX_ROUTES = 1000;
+    
+    /** What the limit is multiplied by when a request is dropped */
+    private static final double BACKOFF_RATIO = 0.9;
+    /** The responses after which the response time without load is measured afresh */
+    private static final int PROBE_INTERVAL = 1000;
+    
+    private int initialLimit = DEFAULT_INITIAL_LIMIT;
+    private int minLimit = DEFAULT_MIN_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private long maxWait = DEFAULT_MAX_WAIT;
+    private int maxQueue = DEFAULT_MAX_QUEUE;
+    /** in least recently used order */
+    private final Map<String,Limit> limits = new LinkedHashMap<String,Limit>(16, 0.75f, true);
+    
+    /** Creates a new ConcurrencyLimiter with the default settings. */
+    public ConcurrencyLimiter() {
+    }
+    
+    public synchronized int getInitialLimit() {
+        return initialLimit;
+    }
+    
+    /**
+     * @param limit the limit of a host before anything is known about it,
+     *        at least 1. Hosts already seen keep their limit.
+     */
+    public synchronized void setInitialLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        this.initialLimit = limit;
+    }
+    
+    public synchronized int getMinLimit() {
+        return minLimit;
+    }
+    
+    /**
+     * @param limit the lowest the limit of a host may go, at least 1
+     */
+    public synchronized void setMinLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        this.minLimit = limit;
+    }
+    
+    public synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+    
+    /**
+     * @param limit the highest the limit of a host may go, at least 1
+     */
+    public synchronized void setMaxLimit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        this.maxLimit = limit;
+    }
+    
+    public synchronized long getMaxWait() {
+        return maxWait;
+    }
+    
+    /**
+     * @param millis the longest a request over the limit waits for its turn,
+     *        or 0 to fail such requests at once. Must not be negative.
+     */
+    public synchronized void setMaxWait(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        this.maxWait = millis;
+    }
+    
+    public synchronized int getMaxQueue() {
+        return maxQueue;
+    }
+    
+    /**
+     * @param requests the number of requests over the limit which may wait
+     *        for their turn per host. Must not be negative.
+     */
+    public synchronized void setMaxQueue(int requests) {
+        if (requests < 0) {
+            throw new IllegalArgumentException("requests cannot be negative");
+        }
+        this.maxQueue = requests;
+    }
+    
+    /**
+     * @return a snapshot of the limit of the given route, see
+     *         {@link ConnectionPool#route}, or null if no request has been
+     *         made to it
+     */
+    public synchronized Stats getStats(String route) {
+        Limit l = limits.get(route);
+        return l == null ? null : l.stats();
+    }
+    
+    /**
+     * @return a snapshot of the limits of every route requests have been
+     *         made to, keyed by route
+     */
+    public synchronized Map<String,Stats> getStats() {
+        Map<String,Stats> stats = new HashMap<String,Stats>();
+        for (Map.Entry<String,Limit> e : limits.entrySet()) {
+            stats.put(e.getKey(), e.getValue().stats());
+        }
+        return stats;
+    }
+    
+    /**
+     * Takes a place in flight for a request to the given route. The returned
+     * future completes once the limit allows, which may be immediately, or
+     * fails with a {@link ConcurrencyLimitException} if the queue is full or
+     * the wait runs out. Cancelling the future gives up the place.
+     *
+     * <p>Every permit must be handed back to {@link #release}.</p>
+     */
+    CompletableFuture<Permit> acquire(final String route) {
+        final CompletableFuture<Permit> future = new CompletableFuture<Permit>();
+        Permit permit = null;
+        long wait;
+        synchronized (this) {
+            Limit l = limits.get(route);
+            if (l == null) {
+                l = new Limit(Math.max(minLimit, Math.min(maxLimit, initialLimit)));
+                limits.put(route, l);
+                evictIdle();
+            }
+            wait = maxWait;
+            if (l.inFlight < (int)l.limit && l.queue.isEmpty()) {
+                permit = l.take(route);
+            } else if (wait == 0 || l.queue.size() >= maxQueue) {
+                l.rejected++;
+                future.completeExceptionally(new ConcurrencyLimitException(route, route + " is at its limit of "
+                        + (int)l.limit + " requests in flight, with " + l.queue.size() + " waiting"));
+                return future;
+            } else {
+                l.queue.addLast(future);
+            }
+        }
+        if (permit != null) {
+            future.complete(permit);
+            return future;
+        }
+        final long waited = wait;
+        final ScheduledFuture<?> timeout = Deadline.after(wait).schedule(new Runnable() {
+            public void run() {
+                if (dequeue(route, future)) {
+                    future.completeExceptionally(new ConcurrencyLimitException(route,
+                            "Timed out after " + waited + "ms waiting to send a request to " + route));
+                }
+            }
+        });
+        future.whenComplete(new BiConsumer<Permit,Throwable>() {
+            public void accept(Permit p, Throwable t) {
+                //most requests get their turn long before the wait runs out
+                timeout.cancel(false);
+                if (future.isCancelled()) {
+                    dequeue(route, future);
+                }
+            }
+        });
+        return future;
+    }
+    
+    /**
+     * Forgets the least recently used routes beyond {@link #MAX_ROUTES}
+     * which have nothing in flight or waiting. A route forgotten starts
+     * again from <code>initialLimit</code> if it is used again.
+     */
+    private void evictIdle() {
+        Iterator<Limit> itr = limits.values().iterator();
+        while (limits.size() > MAX_ROUTES && itr.hasNext()) {
+            Limit l = itr.next();
+            if (l.inFlight == 0 && l.queue.isEmpty()) {
+                itr.remove();
+            }
+        }
+    }
+    
+    /**
+     * Takes a request which gave up waiting out of the queue of its route.
+     *
+     * @return true if it was still waiting
+     */
+    private synchronized boolean dequeue(String route, CompletableFuture<Permit> future) {
+        Limit l = limits.get(route);
+        if (l == null || !l.queue.remove(future)) {
+            return false;
+        }
+        l.rejected++;
+        return true;
+    }
+    
+    /**
+     * Hands back a place in flight, and adjusts the limit of its route by
+     * how the request went.
+     *
+     * @param rtt how long the response took to arrive in nanoseconds, or -1
+     *        if it did not or is not to be counted
+     * @param dropped whether the request timed out, failed to connect or was
+     *        answered with a sign of overload
+     */
+    void release(Permit permit, long rtt, boolean dropped) {
+        List<CompletableFuture<Permit>> granted = new ArrayList<CompletableFuture<Permit>>();
+        List<Permit> permits = new ArrayList<Permit>();
+        synchronized (this) {
+            Limit l = limits.get(permit.route);
+            l.inFlight--;
+            l.update(permit.inFlight, rtt, dropped, minLimit, maxLimit);
+            Iterator<CompletableFuture<Permit>> itr = l.queue.iterator();
+            while (itr.hasNext() && l.inFlight < (int)l.limit) {
+                CompletableFuture<Permit> f = itr.next();
+                itr.remove();
+                if (!f.isDone()) {
+                    granted.add(f);
+                    permits.add(l.take(permit.route));
+                }
+            }
+        }
+        for (int i = 0; i < granted.size(); i++) {
+            if (!granted.get(i).complete(permits.get(i))) {
+                //given up in the meantime
+                release(permits.get(i), -1, false);
+            }
+        }
+    }
+    
+    /**
+     * A place in flight for a request.
+     */
+    static final class Permit {
+        final String route;
+        /** the requests in flight to the route, counting this one */
+        final int inFlight;
+        
+        private Permit(String route, int inFlight) {
+            this.route = route;
+            this.inFlight = inFlight;
+        }
+    }
+    
+    /**
+     * The limit of one route, and the requests waiting for it.
+     */
+    private static final class Limit {
+        private double limit;
+        private int inFlight = 0;
+        private final Deque<CompletableFuture<Permit>> queue = new ArrayDeque<CompletableFuture<Permit>>();
+        /** the shortest response time, standing for the host without load, or 0 */
+        private long rttNoLoad = 0;
+        private long lastRtt = 0;
+        private int samples = 0;
+        private long rejected = 0;
+        
+        private Limit(int limit) {
+            this.limit = limit;
+        }
+        
+        Permit take(String route) {
+            return new Permit(route, ++inFlight);
+        }
+        
+        void update(int inFlightAtStart, long rtt, boolean dropped, int min, int max) {
+            if (dropped) {
+                limit = Math.max(min, Math.min(max, limit * BACKOFF_RATIO));
+                return;
+            }
+            if (rtt <= 0) {
+                return;
+            }
+            lastRtt = rtt;
+            if (++samples >= PROBE_INTERVAL) {
+                samples = 0;
+                rttNoLoad = 0;
+            }
+            if (rttNoLoad == 0 || rtt < rttNoLoad) {
+                rttNoLoad = rtt;
+                return;
+            }
+            if (inFlightAtStart * 2 < limit) {
+                //too little traffic to tell whether the host could take more
+                return;
+            }
+            double log = Math.max(1, Math.log10(limit));
+            double queued = Math.ceil(limit * (1 - (double)rttNoLoad / rtt));
+            if (queued <= log) {
+                limit += 6 * log;
+            } else if (queued < 3 * log) {
+                limit += log;
+            } else if (queued > 6 * log) {
+                limit -= log;
+            }
+            limit = Math.max(min, Math.min(max, limit));
+        }
+        
+        Stats stats() {
+            return new Stats((int)limit, inFlight, queue.size(), rejected, rttNoLoad / 1000000.0, lastRtt / 1000000.0);
+        }
+    }
+    
+    /**
+     * A snapshot of the limit of one route.
+     */
+    public static final class Stats {
+        private final int limit;
+        private final int inFlight;
+        private final int queued;
+        private final long rejected;
+        private final double minRtt;
+        private final double lastRtt;
+        
+        private Stats(int limit, int inFlight, int queued, long rejected, double minRtt, double lastRtt) {
+            this.limit = limit;
+            this.inFlight = inFlight;
+            this.queued = queued;
+            this.rejected = rejected;
+            this.minRtt = minRtt;
+            this.lastRtt = lastRtt;
+        }
+        
+        /** @return the current limit of requests in flight */
+        public int getLimit() { return limit; }
+        /** @return the number of requests in flight */
+        public int getInFlight() { return inFlight; }
+        /** @return the number of requests waiting for their turn */
+        public int getQueueDepth() { return queued; }
+        /** @return the number of requests failed for being over the limit */
+        public long getRejectedCount() { return rejected; }
+        /** @return the response time taken to be that of the host without load, in milliseconds */
+        public double getMinRtt() { return minRtt; }
+        /** @return the latest response time, in milliseconds */
+        public double getLastRtt() { return lastRtt; }
+        
+        @Override
+        public String toString() {
+            return String.format("limit=%d, inFlight=%d, queued=%d, rejected=%d, minRtt=%.1fms, lastRtt=%.1fms",
+                    limit, inFlight, queued, rejected, minRtt, lastRtt);
+        }
+    }
+}
@@ -0,0 +1,717 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>A pool of keep-alive connections, keyed by route. A route is the
+ * scheme, host and port of a URL (see {@link #route(URL)}). Every exchange
+ * performed by a {@link Session} first leases a {@link Connection} for its
+ * route, and releases it once the response body has been fully consumed.</p>
+ *
+ * <p>The pool enforces two limits: the maximum number of connections (leased
+ * plus idle) for any one route, and the maximum number of connections overall.
+ * When either limit is reached, {@link #lease} blocks until another exchange
+ * releases its connection, or until <code>maxWait</code> elapses.</p>
+ *
+ * <p>Idle connections are evicted once they have been idle longer than the
+ * <code>idleTimeout</code>, or longer than the keep-alive timeout advertised
+ * by the server, whichever comes first. An idle connection which owns its
+ * socket, such as one of the {@link org.jdesktop.http.nio.NioTransport}, is
+ * validated before it is handed out again, so that a socket closed by the
+ * server is never reused.</p>
+ *
+ * <p>Other transports keep their sockets alive outside of the pool, such as
+ * in the JVM wide keep-alive cache of HttpURLConnection, which validates
+ * them itself. The connections they lease are only permits, so for them the
+ * pool limits concurrency but neither validates sockets nor sees, or counts,
+ * their reuse (see {@link Connection#tracksReuse}).</p>
+ *
+ * <p>A ConnectionPool may be shared between several Sessions. It is thread
+ * safe.</p>
+ */
+public class ConnectionPool {
+    /**
+     * The default maximum number of connections per route. This matches the
+     * default size of the keep-alive cache used by HttpURLConnection
+     * (the <code>http.maxConnections</code> system property).
+     */
+    public static final int DEFAULT_MAX_PER_ROUTE = 5;
+    public static final int DEFAULT_MAX_TOTAL = 50;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+    private int maxTotal = DEFAULT_MAX_TOTAL;
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    /**
+     * The maximum amount of time, in milliseconds, to wait for a connection
+     * to become available. A value <= 0 means wait forever.
+     */
+    private long maxWait = 0;
+
+    private final Map<String,RouteState> routes = new HashMap<String,RouteState>();
+    private final Deque<Waiter> waiters = new ArrayDeque<Waiter>();
+    private int leasedCount = 0;
+    private int idleCount = 0;
+
+    // statistics
+    private long leases = 0;
+    private long reused = 0;
+    private long created = 0;
+    private long evicted = 0;
+    private long waits = 0;
+    private long totalWaitNanos = 0;
+
+    /**
+     * Creates a new ConnectionPool with the default limits.
+     */
+    public ConnectionPool() {
+    }
+
+    /**
+     * Creates a new ConnectionPool with the given limits.
+     *
+     * @param maxPerRoute the maximum number of connections per route. Must be > 0
+     * @param maxTotal the maximum number of connections in total. Must be > 0
+     */
+    public ConnectionPool(int maxPerRoute, int maxTotal) {
+        setMaxPerRoute(maxPerRoute);
+        setMaxTotal(maxTotal);
+    }
+
+    /**
+     * Computes the route for the given url. The route is the lower case
+     * "scheme://host:port" of the url, with the default port filled in if
+     * the url does not specify one.
+     *
+     * @param url the url. Must not be null.
+     * @return the route
+     */
+    public static String route(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return (url.getProtocol() + "://" + url.getHost() + ":" + port).toLowerCase();
+    }
+
+    public synchronized int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public void setMaxPerRoute(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("maxPerRoute must be > 0");
+        }
+        synchronized (this) {
+            this.maxPerRoute = max;
+        }
+        serviceWaiters();
+    }
+
+    public synchronized int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public void setMaxTotal(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("maxTotal must be > 0");
+        }
+        synchronized (this) {
+            this.maxTotal = max;
+        }
+        serviceWaiters();
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the number of milliseconds a connection may sit idle in the pool
+     * before it is evicted.
+     *
+     * @param millis the idle timeout. Must be >= 0
+     */
+    public synchronized void setIdleTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("idleTimeout must be >= 0");
+        }
+        this.idleTimeout = millis;
+    }
+
+    public synchronized long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * Sets the maximum number of milliseconds {@link #lease} will block waiting
+     * for a connection. A value <= 0 means to wait indefinitely.
+     *
+     * @param millis the maximum wait
+     */
+    public synchronized void setMaxWait(long millis) {
+        this.maxWait = millis;
+    }
+
+    /**
+     * <p>Leases a connection for the given route. If a valid idle connection is
+     * available for the route it is reused, otherwise a new one is created
+     * with the given factory. This method blocks if the pool limits have been
+     * reached.</p>
+     *
+     * <p>Every successful call to this method must be matched by exactly one
+     * call to {@link #release}.</p>
+     *
+     * @param route the route, as computed by {@link #route(URL)}
+     * @param factory used to create a new connection if none can be reused
+     * @return the leased connection. This will never be null.
+     * @throws IOException if the factory fails, or no connection became
+     *         available within maxWait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Connection lease(String route, Factory factory) throws IOException, InterruptedException {
+        CompletableFuture<Connection> future = leaseAsync(route, factory);
+        long wait = getMaxWait();
+        try {
+            return wait > 0 ? future.get(wait, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            abandon(future);
+            throw new IOException("Timed out after " + wait +
+                    "ms waiting for a connection to " + route);
+        } catch (InterruptedException e) {
+            abandon(future);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * <p>Leases a connection for the given route without blocking. The
+     * returned future completes once a connection is available, which may be
+     * immediately. Waiting leases are granted in the order they were made, as
+     * connections are released.</p>
+     *
+     * <p>The future may be completed on the thread which released a
+     * connection, so dependent actions should be quick, or run asynchronously.
+     * Cancelling the future gives up the lease, and <code>maxWait</code> does
+     * not apply.</p>
+     *
+     * @param route the route, as computed by {@link #route(URL)}
+     * @param factory used to create a new connection if none can be reused
+     * @return a future for the leased connection
+     */
+    public CompletableFuture<Connection> leaseAsync(String route, Factory factory) {
+        if (route == null || factory == null) {
+            throw new NullPointerException("route and factory cannot be null");
+        }
+
+        CompletableFuture<Connection> future = new CompletableFuture<Connection>();
+        Grant grant;
+        synchronized (this) {
+            leases++;
+            evictExpired(System.currentTimeMillis());
+            grant = tryAcquire(route, factory, future);
+            if (grant == null) {
+                waiters.addLast(new Waiter(route, factory, future));
+            }
+        }
+        if (grant != null) {
+            grant.complete();
+        }
+        return future;
+    }
+
+    /**
+     * Returns a leased connection to the pool. If <code>reusable</code> is
+     * false, or the connection is no longer open, then the connection is closed
+     * rather than kept for reuse.
+     *
+     * @param c the connection previously obtained from {@link #lease}. If null,
+     *        nothing happens.
+     * @param reusable whether the exchange left the connection in a reusable
+     *        state (that is, the response body was fully consumed, and the
+     *        server did not ask for the connection to be closed)
+     */
+    public void release(Connection c, boolean reusable) {
+        if (c == null) return;
+        boolean close = false;
+        synchronized (this) {
+            RouteState rs = routeState(c.getRoute());
+            rs.leased--;
+            leasedCount--;
+            c.lastUsed = System.currentTimeMillis();
+            if (reusable && c.isOpen()) {
+                rs.idle.addFirst(c);
+                idleCount++;
+            } else {
+                close = true;
+            }
+        }
+        if (close) {
+            closeQuietly(c);
+        }
+        serviceWaiters();
+    }
+
+    /**
+     * Closes every idle connection that has exceeded its idle timeout. This
+     * happens automatically whenever a connection is leased, but may be called
+     * periodically to free resources held by a quiet pool.
+     */
+    public synchronized void closeExpired() {
+        evictExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * Closes all idle connections. Leased connections are not affected.
+     */
+    public void closeIdle() {
+        synchronized (this) {
+            for (RouteState rs : routes.values()) {
+                for (Connection c : rs.idle) {
+                    closeQuietly(c);
+                }
+                idleCount -= rs.idle.size();
+                rs.idle.clear();
+            }
+        }
+        serviceWaiters();
+    }
+
+    /**
+     * @return the number of connections currently leased
+     */
+    public synchronized int getLeasedCount() {
+        return leasedCount;
+    }
+
+    /**
+     * @return the number of idle connections kept alive in the pool
+     */
+    public synchronized int getIdleCount() {
+        return idleCount;
+    }
+
+    /**
+     * Returns a snapshot of the statistics of this pool.
+     *
+     * @return the Stats. This will never be null.
+     */
+    public synchronized Stats getStats() {
+        return new Stats(leases, reused, created, evicted, waits, totalWaitNanos,
+                leasedCount, idleCount);
+    }
+
+    private RouteState routeState(String route) {
+        RouteState rs = routes.get(route);
+        if (rs == null) {
+            rs = new RouteState();
+            routes.put(route, rs);
+        }
+        return rs;
+    }
+
+    /**
+     * Attempts to lease a connection for the route. Must be called while
+     * holding the lock on this pool.
+     *
+     * @return a Grant to be completed outside of the lock, or null if the
+     *         limits of the pool have been reached
+     */
+    private Grant tryAcquire(String route, Factory factory, CompletableFuture<Connection> future) {
+        RouteState rs = routeState(route);
+
+        //try to reuse an idle connection first, most recently used first
+        while (!rs.idle.isEmpty()) {
+            Connection c = rs.idle.pollFirst();
+            idleCount--;
+            if (c.isOpen()) {
+                rs.leased++;
+                leasedCount++;
+                if (c.tracksReuse()) reused++;
+                c.useCount++;
+                return new Grant(route, factory, future, c);
+            }
+            evicted++;
+            closeQuietly(c);
+        }
+
+        //make room by closing an idle connection on some other route
+        if (rs.leased < maxPerRoute && leasedCount + idleCount >= maxTotal && idleCount > 0) {
+            closeOldestIdle();
+        }
+
+        if (rs.leased < maxPerRoute && leasedCount + idleCount < maxTotal) {
+            //reserve the slot, the connection is created outside the lock
+            rs.leased++;
+            leasedCount++;
+            return new Grant(route, factory, future, null);
+        }
+        return null;
+    }
+
+    /**
+     * Grants as many waiting leases as the limits of the pool allow.
+     */
+    private void serviceWaiters() {
+        List<Grant> grants = null;
+        synchronized (this) {
+            if (waiters.isEmpty()) return;
+            long now = System.nanoTime();
+            Iterator<Waiter> itr = waiters.iterator();
+            while (itr.hasNext()) {
+                Waiter w = itr.next();
+                if (w.future.isDone()) {
+                    itr.remove();
+                    continue;
+                }
+                Grant g = tryAcquire(w.route, w.factory, w.future);
+                if (g != null) {
+                    itr.remove();
+                    waits++;
+                    totalWaitNanos += now - w.since;
+                    if (grants == null) grants = new ArrayList<Grant>();
+                    grants.add(g);
+                }
+            }
+        }
+        if (grants != null) {
+            for (Grant g : grants) {
+                g.complete();
+            }
+        }
+    }
+
+    /**
+     * Gives up on a lease which is no longer wanted, for example because the
+     * caller timed out. If the lease was granted in the meantime, the
+     * connection is released again.
+     */
+    private void abandon(CompletableFuture<Connection> future) {
+        synchronized (this) {
+            Iterator<Waiter> itr = waiters.iterator();
+            while (itr.hasNext()) {
+                Waiter w = itr.next();
+                if (w.future == future) {
+                    itr.remove();
+                    waits++;
+                    totalWaitNanos += System.nanoTime() - w.since;
+                    break;
+                }
+            }
+        }
+        if (!future.cancel(false)) {
+            Connection c = future.getNow(null);
+            if (c != null) {
+                release(c, true);
+            }
+        }
+    }
+
+    private void giveBack(String route) {
+        synchronized (this) {
+            RouteState rs = routeState(route);
+            rs.leased--;
+            leasedCount--;
+        }
+        serviceWaiters();
+    }
+
+    private void evictExpired(long now) {
+        Iterator<RouteState> itr = routes.values().iterator();
+        while (itr.hasNext()) {
+            RouteState rs = itr.next();
+            Iterator<Connection> conns = rs.idle.iterator();
+            while (conns.hasNext()) {
+                Connection c = conns.next();
+                long timeout = c.keepAlive > 0 ? Math.min(c.keepAlive, idleTimeout) : idleTimeout;
+                if (now - c.lastUsed >= timeout) {
+                    conns.remove();
+                    idleCount--;
+                    evicted++;
+                    closeQuietly(c);
+                }
+            }
+            if (rs.idle.isEmpty() && rs.leased == 0) {
+                itr.remove();
+            }
+        }
+    }
+
+    private void closeOldestIdle() {
+        RouteState oldestRoute = null;
+        Connection oldest = null;
+        for (RouteState rs : routes.values()) {
+            Connection c = rs.idle.peekLast();
+            if (c != null && (oldest == null || c.lastUsed < oldest.lastUsed)) {
+                oldest = c;
+                oldestRoute = rs;
+            }
+        }
+        if (oldest != null) {
+            oldestRoute.idle.removeLast();
+            idleCount--;
+            evicted++;
+            closeQuietly(oldest);
+        }
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (Exception e) {
+            //nothing useful to be done
+        }
+    }
+
+    /**
+     * A lease waiting for the limits of the pool to allow it.
+     */
+    private static final class Waiter {
+        private final String route;
+        private final Factory factory;
+        private final CompletableFuture<Connection> future;
+        private final long since = System.nanoTime();
+
+        private Waiter(String route, Factory factory, CompletableFuture<Connection> future) {
+            this.route = route;
+            this.factory = factory;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A lease which has been granted, either with an idle connection or with
+     * a reserved slot for which a new connection must be created. Grants are
+     * completed outside of the lock of the pool.
+     */
+    private final class Grant {
+        private final String route;
+        private final Factory factory;
+        private final CompletableFuture<Connection> future;
+        private final Connection connection;
+
+        private Grant(String route, Factory factory, CompletableFuture<Connection> future, Connection c) {
+            this.route = route;
+            this.factory = factory;
+            this.future = future;
+            this.connection = c;
+        }
+
+        private void complete() {
+            if (connection != null) {
+                if (!future.complete(connection)) {
+                    //the lease was abandoned in the meantime
+                    release(connection, true);
+                }
+                return;
+            }
+
+            Connection c;
+            try {
+                c = factory.create(route);
+                c.useCount = 1;
+                synchronized (ConnectionPool.this) {
+                    created++;
+                }
+            } catch (Throwable e) {
+                giveBack(route);
+                future.completeExceptionally(e);
+                return;
+            }
+            if (!future.complete(c)) {
+                release(c, true);
+            }
+        }
+    }
+
+    private static final class RouteState {
+        private final Deque<Connection> idle = new ArrayDeque<Connection>();
+        private int leased = 0;
+    }
+
+    /**
+     * Creates new connections for a route on behalf of the pool.
+     */
+    public interface Factory {
+        public Connection create(String route) throws IOException;
+    }
+
+    /**
+     * <p>A connection held by a {@link ConnectionPool}. Subclasses wrap whatever
+     * resource the transport uses to talk to the server, and are responsible for
+     * reporting whether that resource is still usable.</p>
+     */
+    public static abstract class Connection {
+        private final String route;
+        private final long createdAt = System.currentTimeMillis();
+        private long lastUsed = createdAt;
+        private long keepAlive = -1;
+        private int useCount = 0;
+
+        protected Connection(String route) {
+            if (route == null) {
+                throw new NullPointerException("route cannot be null");
+            }
+            this.route = route;
+        }
+
+        public final String getRoute() {
+            return route;
+        }
+
+        public final long getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * @return true if this connection has been used for more than one
+         *         exchange. Always false for connections which do not
+         *         {@link #tracksReuse track reuse}.
+         */
+        public final boolean isReused() {
+            return useCount > 1 && tracksReuse();
+        }
+
+        /**
+         * Indicates whether reusing this connection reuses the underlying
+         * socket. Transports whose sockets are owned elsewhere lease
+         * connections which are only permits, and return false here so that
+         * leasing an idle permit is not counted as reuse in the {@link Stats}.
+         *
+         * @return true by default
+         */
+        protected boolean tracksReuse() {
+            return true;
+        }
+
+        /**
+         * Records the keep-alive timeout advertised by the server (for example
+         * in the <code>Keep-Alive: timeout=5</code> response header). The
+         * connection will be evicted once it has been idle for this long.
+         *
+         * @param millis the keep-alive timeout, or -1 if unknown
+         */
+        public final void setKeepAlive(long millis) {
+            this.keepAlive = millis;
+        }
+
+        /**
+         * Validates this connection. This is called before an idle connection
+         * is reused, and must return false if the underlying resource can no
+         * longer be used (for example, because the server closed the socket).
+         * Connections which do not {@link #tracksReuse track reuse} have no
+         * resource of their own to validate, and return true.
+         */
+        protected abstract boolean isOpen();
+
+        /**
+         * Closes the underlying resource. Called at most once, by the pool.
+         */
+        protected abstract void close() throws IOException;
+    }
+
+    /**
+     * An immutable snapshot of the statistics of a {@link ConnectionPool}.
+     */
+    public static final class Stats {
+        private final long leases;
+        private final long reused;
+        private final long created;
+        private final long evicted;
+        private final long waits;
+        private final long totalWaitNanos;
+        private final int leased;
+        private final int idle;
+
+        private Stats(long leases, long reused, long created, long evicted,
+                long waits, long totalWaitNanos, int leased, int idle) {
+            this.leases = leases;
+            this.reused = reused;
+            this.created = created;
+            this.evicted = evicted;
+            this.waits = waits;
+            this.totalWaitNanos = totalWaitNanos;
+            this.leased = leased;
+            this.idle = idle;
+        }
+
+        /** @return the total number of leases granted */
+        public long getLeaseCount() { return leases; }
+        /**
+         * @return the number of leases satisfied by reusing an idle connection.
+         *         Leases of connections which do not {@link Connection#tracksReuse
+         *         track reuse} are never counted.
+         */
+        public long getReuseCount() { return reused; }
+        /** @return the number of connections created */
+        public long getCreateCount() { return created; }
+        /** @return the number of idle connections closed as expired or stale */
+        public long getEvictionCount() { return evicted; }
+        /** @return the number of leases that had to wait for a connection */
+        public long getWaitCount() { return waits; }
+        /** @return the number of connections leased when the snapshot was taken */
+        public int getLeased() { return leased; }
+        /** @return the number of idle connections when the snapshot was taken */
+        public int getIdle() { return idle; }
+
+        /**
+         * @return the fraction of leases which reused a connection, between 0
+         *         and 1. This only reflects connections which track reuse, and
+         *         is 0 for transports whose sockets are kept alive elsewhere.
+         */
+        public float getReuseRatio() {
+            return leases == 0 ? 0f : (float)reused / (float)leases;
+        }
+
+        /**
+         * @return the average time, in milliseconds, spent waiting by those
+         *         leases which had to wait
+         */
+        public double getAverageWaitTime() {
+            return waits == 0 ? 0d : totalWaitNanos / (double)waits / 1000000d;
+        }
+
+        @Override
+        public String toString() {
+            return "leases=" + leases + ", reused=" + reused + ", created=" + created +
+                    ", evicted=" + evicted + ", waits=" + waits + ", leased=" + leased +
+                    ", idle=" + idle;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A point in time by which an operation must be done. A {@link Request}
+ * with a deadline is aborted, wherever it has got to, once the deadline
+ * passes, and fails with a <code>SocketTimeoutException</code>.</p>
+ *
+ * <p>A deadline may also be propagated from a parent operation to every
+ * request made on its behalf, without passing it around, by running the
+ * operation with {@link #call}. Every request executed by the same thread in
+ * the meantime is then held to the deadline (or its own, if earlier).</p>
+ *
+ * <pre><code>
+ *      Deadline.after(2000).call(new Callable&lt;Order&gt;() {
+ *          public Order call() throws Exception {
+ *              Response customer = session.get(customerUrl);
+ *              Response stock = session.get(stockUrl);
+ *              return new Order(customer, stock);
+ *          }
+ *      });
+ * </code></pre>
+ *
+ * <p>Deadlines are measured with <code>System.nanoTime()</code>, and so are
+ * not affected by changes to the system clock.</p>
+ */
+public final class Deadline implements Comparable<Deadline> {
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<Deadline>();
+    private static ScheduledExecutorService timer;
+    
+    private final long nanos;
+    
+    private Deadline(long nanos) {
+        this.nanos = nanos;
+    }
+    
+    /**
+     * Creates a deadline the given number of milliseconds from now.
+     *
+     * @param millis the time allowed. Must not be negative.
+     */
+    public static Deadline after(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+    
+    /**
+     * @return the deadline the current thread is running under, as set by
+     *         {@link #call}, or null if there is none
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+    
+    /**
+     * @return the earlier of the two deadlines, either of which may be null
+     */
+    public static Deadline earliest(Deadline a, Deadline b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+    
+    /**
+     * @return the number of milliseconds left, rounded up, or 0 if the
+     *         deadline has passed
+     */
+    public long remaining() {
+        long left = nanos - System.nanoTime();
+        return left <= 0 ? 0 : (left + 999999) / 1000000;
+    }
+    
+    /**
+     * @return true if the deadline has passed
+     */
+    public boolean isExpired() {
+        return nanos - System.nanoTime() <= 0;
+    }
+    
+    /**
+     * Runs the given task with this deadline as the current deadline of the
+     * thread, unless the thread already runs under an earlier one.
+     *
+     * @return the result of the task
+     * @throws Exception whatever the task throws
+     */
+    public <T> T call(Callable<T> task) throws Exception {
+        Deadline outer = CURRENT.get();
+        CURRENT.set(earliest(this, outer));
+        try {
+            return task.call();
+        } finally {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+        }
+    }
+    
+    public int compareTo(Deadline other) {
+        //compare the difference, which copes with nanoTime overflowing
+        long diff = nanos - other.nanos;
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof Deadline && ((Deadline)obj).nanos == nanos;
+    }
+    
+    @Override
+    public int hashCode() {
+        return (int)(nanos ^ (nanos >>> 32));
+    }
+    
+    @Override
+    public String toString() {
+        return "Deadline[" + remaining() + "ms left]";
+    }
+    
+    /**
+     * Runs the given task on a shared timer thread once this deadline passes.
+     * The task should be short, and hand anything slow to another thread.
+     * Cancel the returned future once the task is no longer needed, so that
+     * it does not keep what it refers to reachable until then.
+     *
+     * @param task the task to run. This must not be null.
+     * @return the future of the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task) {
+        return getTimer().schedule(task, nanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+    
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Deadline timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            //most deadlines are disarmed long before they pass
+            executor.setRemoveOnCancelPolicy(true);
+            timer = executor;
+        }
+        return timer;
+    }
+}
@@ -41,7 +41,20 @@ import javax.swing.JPanel;
  *
  * @author rbair
  */
-class DefaultSecurityHandler implements SecurityHandler {
+class DefaultSecurityHandler implements TrustDecisionCache.Pinning {
+    private static DefaultSecurityHandler shared;
+    
+    /**
+     * Returns the dialog based handler shared by every Session, so that only
+     * one dialog is shown at a time.
+     */
+    static synchronized DefaultSecurityHandler getShared() {
+        if (shared == null) {
+            shared = new DefaultSecurityHandler();
+        }
+        return shared;
+    }
+    
     private String message = "<html><body><p style=\"text-align:justify\">" +
             "<b>Java can''t verify the identity of the website " +
             "\"{0}\".</b></p>" +
@@ -52,7 +65,7 @@ class DefaultSecurityHandler implements SecurityHandler {
             "put your confidential information at risk. Would you like to connect to " +
             "the website anyway?</p></body></html>";
     
-    private boolean accepted = false;
+    private TrustDecisionCache.Trust decision = TrustDecisionCache.Trust.NEVER;
     
     private JEditorPane messagePane;
     
@@ -69,15 +82,23 @@ class DefaultSecurityHandler implements SecurityHandler {
         
         Action continueAction = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
-                accepted = true;
+                decision = TrustDecisionCache.Trust.ONCE;
                 dlg.setVisible(false);
             }
         };
         continueAction.putValue(Action.NAME, "Continue");
         
+        Action alwaysAction = new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                decision = TrustDecisionCache.Trust.ALWAYS;
+                dlg.setVisible(false);
+            }
+        };
+        alwaysAction.putValue(Action.NAME, "Always Trust");
+        
         Action cancelAction = new AbstractAction() {
             public void actionPerformed(ActionEvent e) {
-                accepted = false;
+                decision = TrustDecisionCache.Trust.NEVER;
                 dlg.setVisible(false);
             }
         };
@@ -95,10 +116,12 @@ class DefaultSecurityHandler implements SecurityHandler {
         
         //add the components to their containers
         JButton continueButton = new JButton(continueAction);
+        JButton alwaysButton = new JButton(alwaysAction);
         JButton cancelButton = new JButton(cancelAction);
         JButton showCertButton = new JButton(showCertAction);
         JPanel buttonPanel = new JPanel();
         buttonPanel.add(continueButton);
+        buttonPanel.add(alwaysButton);
         buttonPanel.add(cancelButton);
         buttonPanel.add(showCertButton);
         
@@ -116,17 +139,29 @@ class DefaultSecurityHandler implements SecurityHandler {
         GridBagLayout panelLayout = new GridBagLayout();
         panelLayout.addLayoutComponent(showCertButton, new GridBagConstraints(0, 0, 1, 1, 1.0, 0.0, GridBagConstraints.LINE_START, GridBagConstraints.NONE, new Insets(0, 0, 0, 0), 0, 0));
         panelLayout.addLayoutComponent(cancelButton, new GridBagConstraints(1, 0, 1, 1, 0.0, 0.0, GridBagConstraints.CENTER, GridBagConstraints.NONE, new Insets(0, 0, 0, 0), 0, 0));
-        panelLayout.addLayoutComponent(continueButton, new GridBagConstraints(2, 0, 1, 1, 0.0, 0.0, GridBagConstraints.CENTER, GridBagConstraints.NONE, new Insets(0, 0, 0, 0), 0, 0));
+        panelLayout.addLayoutComponent(alwaysButton, new GridBagConstraints(2, 0, 1, 1, 0.0, 0.0, GridBagConstraints.CENTER, GridBagConstraints.NONE, new Insets(0, 0, 0, 0), 0, 0));
+        panelLayout.addLayoutComponent(continueButton, new GridBagConstraints(3, 0, 1, 1, 0.0, 0.0, GridBagConstraints.CENTER, GridBagConstraints.NONE, new Insets(0, 0, 0, 0), 0, 0));
         buttonPanel.setLayout(panelLayout);
         
         dlg.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
         
-        dlg.setSize(535, 185);
+        dlg.setSize(620, 185);
         return dlg;
     }
     
+    /**
+     * Asks the user whether to trust the certificate.
+     */
     public boolean isServerTrusted(String host, X509Certificate cert) {
-        accepted = false;
+        return decide(host, cert) != TrustDecisionCache.Trust.NEVER;
+    }
+    
+    /**
+     * Asks the user whether to trust the certificate, this once or always.
+     * Only one dialog is shown at a time.
+     */
+    public synchronized TrustDecisionCache.Trust decide(String host, X509Certificate cert) {
+        decision = TrustDecisionCache.Trust.NEVER;
         
         JDialog dlg = createDialog();
         //populate the fields
@@ -135,6 +170,6 @@ class DefaultSecurityHandler implements SecurityHandler {
         dlg.setLocationRelativeTo(null);
         dlg.setVisible(true);
         
-        return accepted;
+        return decision;
     }
 }
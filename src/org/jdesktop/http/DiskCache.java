@@ -0,0 +1,852 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A persistent store of cached responses, for use as the second level of
+ * an {@link HttpCache}. Entries survive a restart of the JVM, and several
+ * JVMs on the same host may use the same directory at the same time, so
+ * that sibling processes share one warm cache.</p>
+ *
+ * <p>The directory holds an <code>index</code> file and a number of
+ * <code>seg-N.dat</code> segment files. Entries are appended to the newest
+ * segment, and never modified in place. The index is a hash table of fixed
+ * size slots, mapped into memory, which gives the segment and offset of
+ * each entry, so finding an entry takes a single read. When the live
+ * entries exceed the maximum size the least recently used ones are evicted,
+ * and segments which are mostly dead are compacted.</p>
+ *
+ * <p>Every operation holds a lock on the index file, which serializes access
+ * between processes. An entry is appended to its segment before the index
+ * points to it, and every entry carries a checksum which is verified when
+ * it is read, so a process which dies part way through a write leaves, at
+ * worst, an entry which is ignored. On opening, the index is checked against
+ * the segments, and rebuilt from them if it is unusable. A rebuilt index
+ * may bring back entries which had been removed, but not evicted.</p>
+ *
+ * <p>Within one JVM, several DiskCaches may be opened on the same directory,
+ * but they must all be closed before the files are deleted.</p>
+ */
+public class DiskCache {
+    private static final int MAGIC = 0x48434931; // HCI1
+    private static final int RECORD_MAGIC = 0x48435231; // HCR1
+    private static final int VERSION = 1;
+    
+    //layout of the index header
+    private static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_SLOTS = 8;
+    private static final int H_ACTIVE_SEGMENT = 12;
+    private static final int H_LIVE_BYTES = 16;
+    private static final int H_LIVE_ENTRIES = 24;
+    private static final int H_CLOCK = 32;
+    private static final int H_DISK_BYTES = 40;
+    
+    //layout of a slot. A hash of 0 marks an empty slot
+    private static final int SLOT_SIZE = 32;
+    private static final int S_HASH = 0;
+    private static final int S_SEGMENT = 8;
+    private static final int S_LENGTH = 12;
+    private static final int S_OFFSET = 16;
+    private static final int S_ACCESS = 24;
+    
+    /** magic, length and checksum */
+    private static final int RECORD_HEADER_SIZE = 12;
+    
+    /** locks shared by every DiskCache on the same directory in this JVM */
+    private static final Map<String,Object> LOCKS = new HashMap<String,Object>();
+    
+    private final File dir;
+    private final long maxSize;
+    private final long segmentSize;
+    private final Object lock;
+    private final RandomAccessFile indexFile;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private final int slotCount;
+    private final Map<Integer,FileChannel> segments = new HashMap<Integer,FileChannel>();
+    private boolean closed = false;
+    
+    private long hits = 0;
+    private long misses = 0;
+    private long writes = 0;
+    private long evictions = 0;
+    private long corrupt = 0;
+    
+    /**
+     * Opens the cache in the given directory, creating it if needed.
+     *
+     * @param dir the directory to hold the cache. Must not be null.
+     * @param maxSize the maximum total size, in bytes, of the live entries.
+     *        The files on disk may take up to about twice as much.
+     * @throws IOException if the directory cannot be created or opened
+     */
+    public DiskCache(File dir, long maxSize) throws IOException {
+        if (dir == null) {
+            throw new NullPointerException("dir cannot be null");
+        }
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + dir);
+        }
+        this.dir = dir.getCanonicalFile();
+        this.maxSize = maxSize;
+        this.segmentSize = Math.max(64 * 1024, Math.min(64 * 1024 * 1024, maxSize / 8));
+        synchronized (LOCKS) {
+            Object l = LOCKS.get(this.dir.getPath());
+            if (l == null) {
+                l = new Object();
+                LOCKS.put(this.dir.getPath(), l);
+            }
+            this.lock = l;
+        }
+        
+        synchronized (lock) {
+            indexFile = new RandomAccessFile(new File(this.dir, "index"), "rw");
+            indexChannel = indexFile.getChannel();
+            FileLock fl = indexChannel.lock();
+            try {
+                int slots = readSlotCount();
+                boolean valid = slots > 0;
+                if (!valid) {
+                    //a new cache, or an index which cannot be trusted
+                    slots = (int)Math.max(1024, Math.min(1 << 20, maxSize / 2048));
+                    indexChannel.truncate(0);
+                }
+                slotCount = slots;
+                index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)slots * SLOT_SIZE);
+                if (valid) {
+                    recover();
+                } else {
+                    index.putInt(H_MAGIC, MAGIC);
+                    index.putInt(H_VERSION, VERSION);
+                    index.putInt(H_SLOTS, slots);
+                    rebuild();
+                }
+            } finally {
+                fl.release();
+            }
+        }
+    }
+    
+    /**
+     * @return the directory holding this cache
+     */
+    public File getDirectory() {
+        return dir;
+    }
+    
+    /**
+     * @return the maximum total size of the live entries, in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * Returns the data stored under the given key, and marks it as recently
+     * used.
+     *
+     * @return the data, or null if there is none
+     */
+    public byte[] get(String key) throws IOException {
+        long hash = hash(key);
+        synchronized (lock) {
+            checkOpen();
+            FileLock fl = indexChannel.lock();
+            try {
+                int slot = find(hash);
+                if (slot < 0) {
+                    misses++;
+                    return null;
+                }
+                byte[] data = read(slot, key);
+                if (data == null) {
+                    misses++;
+                    return null;
+                }
+                long clock = index.getLong(H_CLOCK) + 1;
+                index.putLong(H_CLOCK, clock);
+                index.putLong(slotOffset(slot) + S_ACCESS, clock);
+                hits++;
+                return data;
+            } finally {
+                fl.release();
+            }
+        }
+    }
+    
+    /**
+     * Stores the given data under the given key, replacing any data already
+     * stored. Data larger than the maximum size is not stored.
+     */
+    public void put(String key, byte[] data) throws IOException {
+        byte[] record = encode(key, data);
+        if (record.length > maxSize) {
+            remove(key);
+            return;
+        }
+        long hash = hash(key);
+        synchronized (lock) {
+            checkOpen();
+            FileLock fl = indexChannel.lock();
+            try {
+                //make room in the table first, so that a slot is free
+                if (liveEntries() + 1 > slotCount * 3 / 4) {
+                    evict(maxSize, liveEntries() - slotCount / 2);
+                }
+                int segment = index.getInt(H_ACTIVE_SEGMENT);
+                FileChannel channel = segment(segment, true);
+                if (channel.size() > 0 && channel.size() + record.length > segmentSize) {
+                    segment++;
+                    index.putInt(H_ACTIVE_SEGMENT, segment);
+                    channel = segment(segment, true);
+                }
+                long offset = append(channel, record);
+                index.putLong(H_DISK_BYTES, index.getLong(H_DISK_BYTES) + record.length);
+                
+                int slot = find(hash);
+                if (slot >= 0) {
+                    index.putLong(H_LIVE_BYTES, liveBytes() - index.getInt(slotOffset(slot) + S_LENGTH));
+                } else {
+                    slot = home(hash);
+                    while (index.getLong(slotOffset(slot) + S_HASH) != 0) {
+                        slot = (slot + 1) % slotCount;
+                    }
+                    index.putInt(H_LIVE_ENTRIES, liveEntries() + 1);
+                }
+                long clock = index.getLong(H_CLOCK) + 1;
+                index.putLong(H_CLOCK, clock);
+                int base = slotOffset(slot);
+                index.putInt(base + S_SEGMENT, segment);
+                index.putInt(base + S_LENGTH, record.length);
+                index.putLong(base + S_OFFSET, offset);
+                index.putLong(base + S_ACCESS, clock);
+                index.putLong(base + S_HASH, hash);
+                index.putLong(H_LIVE_BYTES, liveBytes() + record.length);
+                writes++;
+                
+                if (liveBytes() > maxSize) {
+                    //evict down to 90%, so as not to evict on every put
+                    evict(maxSize - maxSize / 10, 0);
+                } else if (index.getLong(H_DISK_BYTES) > 2 * maxSize) {
+                    compact(liveBytesBySegment());
+                }
+            } finally {
+                fl.release();
+            }
+        }
+    }
+    
+    /**
+     * Removes the data stored under the given key, if any.
+     */
+    public void remove(String key) throws IOException {
+        long hash = hash(key);
+        synchronized (lock) {
+            checkOpen();
+            FileLock fl = indexChannel.lock();
+            try {
+                int slot = find(hash);
+                if (slot >= 0) {
+                    delete(slot);
+                }
+            } finally {
+                fl.release();
+            }
+        }
+    }
+    
+    /**
+     * Removes every entry, and deletes the segment files.
+     */
+    public void clear() throws IOException {
+        synchronized (lock) {
+            checkOpen();
+            FileLock fl = indexChannel.lock();
+            try {
+                for (int i = 0; i < slotCount; i++) {
+                    index.putLong(slotOffset(i) + S_HASH, 0);
+                }
+                int active = index.getInt(H_ACTIVE_SEGMENT);
+                for (int segment : segmentNumbers()) {
+                    deleteSegment(segment);
+                }
+                index.putInt(H_ACTIVE_SEGMENT, active + 1);
+                index.putLong(H_LIVE_BYTES, 0);
+                index.putInt(H_LIVE_ENTRIES, 0);
+                index.putLong(H_DISK_BYTES, 0);
+            } finally {
+                fl.release();
+            }
+        }
+    }
+    
+    /**
+     * Closes the files of this cache. The cache cannot be used afterwards.
+     */
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) return;
+            closed = true;
+            index.force();
+            for (FileChannel c : segments.values()) {
+                c.close();
+            }
+            segments.clear();
+            indexFile.close();
+        }
+    }
+    
+    /**
+     * @return a snapshot of the statistics of this cache. The hit, miss, write,
+     *         eviction and corruption counts are those of this DiskCache only,
+     *         while the size and entry count cover every process using the
+     *         directory.
+     */
+    public Stats getStats() {
+        synchronized (lock) {
+            return new Stats(hits, misses, writes, evictions, corrupt,
+                    closed ? 0 : liveEntries(), closed ? 0 : liveBytes());
+        }
+    }
+    
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The cache has been closed");
+        }
+    }
+    
+    private long liveBytes() {
+        return index.getLong(H_LIVE_BYTES);
+    }
+    
+    private int liveEntries() {
+        return index.getInt(H_LIVE_ENTRIES);
+    }
+    
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+    
+    private int home(long hash) {
+        return (int)((hash ^ (hash >>> 32)) & 0x7fffffff) % slotCount;
+    }
+    
+    /**
+     * @return a 64 bit FNV-1a hash of the key, which is never 0
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+    
+    /**
+     * @return the slot holding the given hash, or -1
+     */
+    private int find(long hash) {
+        int slot = home(hash);
+        for (int i = 0; i < slotCount; i++) {
+            long h = index.getLong(slotOffset(slot) + S_HASH);
+            if (h == 0) {
+                return -1;
+            } else if (h == hash) {
+                return slot;
+            }
+            slot = (slot + 1) % slotCount;
+        }
+        return -1;
+    }
+    
+    /**
+     * Empties the given slot, moving later slots back so that no probe
+     * sequence is broken.
+     */
+    private void delete(int slot) {
+        int base = slotOffset(slot);
+        index.putLong(H_LIVE_BYTES, liveBytes() - index.getInt(base + S_LENGTH));
+        index.putInt(H_LIVE_ENTRIES, liveEntries() - 1);
+        index.putLong(base + S_HASH, 0);
+        
+        int hole = slot;
+        int next = (slot + 1) % slotCount;
+        while (true) {
+            long h = index.getLong(slotOffset(next) + S_HASH);
+            if (h == 0) {
+                return;
+            }
+            int home = home(h);
+            //can the entry at next move back to the hole, without passing its home?
+            boolean move = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+            if (move) {
+                int from = slotOffset(next);
+                int to = slotOffset(hole);
+                index.putInt(to + S_SEGMENT, index.getInt(from + S_SEGMENT));
+                index.putInt(to + S_LENGTH, index.getInt(from + S_LENGTH));
+                index.putLong(to + S_OFFSET, index.getLong(from + S_OFFSET));
+                index.putLong(to + S_ACCESS, index.getLong(from + S_ACCESS));
+                index.putLong(to + S_HASH, h);
+                index.putLong(from + S_HASH, 0);
+                hole = next;
+            }
+            next = (next + 1) % slotCount;
+        }
+    }
+    
+    /**
+     * Reads and checks the record in the given slot. A record which is
+     * missing or damaged is removed.
+     *
+     * @return the data of the record, or null if the record is not for the
+     *         given key or is damaged
+     */
+    private byte[] read(int slot, String key) throws IOException {
+        int base = slotOffset(slot);
+        FileChannel channel = segment(index.getInt(base + S_SEGMENT), false);
+        byte[] record = channel == null ? null :
+            readFully(channel, index.getLong(base + S_OFFSET), index.getInt(base + S_LENGTH));
+        Object[] decoded = record == null ? null : decode(record);
+        if (decoded == null) {
+            corrupt++;
+            delete(slot);
+            return null;
+        }
+        return key.equals(decoded[0]) ? (byte[])decoded[1] : null;
+    }
+    
+    private static byte[] readFully(FileChannel channel, long offset, int length) throws IOException {
+        if (length < RECORD_HEADER_SIZE || offset < 0 || offset + length > channel.size()) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, offset + buffer.position());
+            if (n < 0) return null;
+        }
+        return buffer.array();
+    }
+    
+    private static long append(FileChannel channel, byte[] record) throws IOException {
+        long offset = channel.size();
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        return offset;
+    }
+    
+    private static byte[] encode(String key, byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + key.length() + 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(RECORD_MAGIC);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeUTF(key);
+        out.writeInt(data.length);
+        out.write(data);
+        out.close();
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(record);
+        header.putInt(4, record.length);
+        header.putInt(8, (int)crc.getValue());
+        return record;
+    }
+    
+    /**
+     * @return the key and data of the record, or null if it is damaged
+     */
+    private static Object[] decode(byte[] record) {
+        ByteBuffer header = ByteBuffer.wrap(record);
+        if (header.getInt(0) != RECORD_MAGIC || header.getInt(4) != record.length) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+        if (header.getInt(8) != (int)crc.getValue()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE));
+            String key = in.readUTF();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new Object[] {key, data};
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    private File segmentFile(int segment) {
+        return new File(dir, "seg-" + segment + ".dat");
+    }
+    
+    /**
+     * @return the channel for the given segment, or null if it does not exist
+     *         and create is false
+     */
+    private FileChannel segment(int segment, boolean create) throws IOException {
+        FileChannel channel = segments.get(segment);
+        if (channel == null) {
+            File f = segmentFile(segment);
+            if (!create && !f.exists()) {
+                return null;
+            }
+            channel = new RandomAccessFile(f, "rw").getChannel();
+            segments.put(segment, channel);
+        }
+        return channel;
+    }
+    
+    private void deleteSegment(int segment) throws IOException {
+        FileChannel channel = segments.remove(segment);
+        if (channel != null) {
+            channel.close();
+        }
+        File f = segmentFile(segment);
+        long length = f.length();
+        if (f.delete()) {
+            index.putLong(H_DISK_BYTES, Math.max(0, index.getLong(H_DISK_BYTES) - length));
+        }
+    }
+    
+    /**
+     * @return the numbers of the segment files in the directory, in order
+     */
+    private List<Integer> segmentNumbers() {
+        List<Integer> numbers = new ArrayList<Integer>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("seg-") && name.endsWith(".dat")) {
+                    try {
+                        numbers.add(Integer.parseInt(name.substring(4, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        //not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+    
+    /**
+     * @return the number of slots of the existing index, or 0 if it is
+     *         missing or damaged
+     */
+    private int readSlotCount() throws IOException {
+        long length = indexChannel.size();
+        if (length < HEADER_SIZE) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (indexChannel.read(header, header.position()) < 0) return 0;
+        }
+        int slots = header.getInt(H_SLOTS);
+        if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION ||
+                slots <= 0 || length != HEADER_SIZE + (long)slots * SLOT_SIZE) {
+            return 0;
+        }
+        return slots;
+    }
+    
+    /**
+     * Checks every slot of the index against the segments, dropping those
+     * which point past the end of a segment, and recomputes the totals of
+     * the header. Called on opening, in case a process died while updating
+     * the index.
+     */
+    private void recover() throws IOException {
+        Map<Integer,Long> sizes = new HashMap<Integer,Long>();
+        long diskBytes = 0;
+        int active = index.getInt(H_ACTIVE_SEGMENT);
+        for (int segment : segmentNumbers()) {
+            long size = segmentFile(segment).length();
+            sizes.put(segment, size);
+            diskBytes += size;
+            active = Math.max(active, segment);
+        }
+        int slot = 0;
+        while (slot < slotCount) {
+            int base = slotOffset(slot);
+            if (index.getLong(base + S_HASH) != 0) {
+                Long size = sizes.get(index.getInt(base + S_SEGMENT));
+                long end = index.getLong(base + S_OFFSET) + index.getInt(base + S_LENGTH);
+                if (size == null || end > size || index.getInt(base + S_LENGTH) < RECORD_HEADER_SIZE) {
+                    corrupt++;
+                    delete(slot);
+                    //another entry may have moved into this slot
+                    continue;
+                }
+            }
+            slot++;
+        }
+        long liveBytes = 0;
+        int liveEntries = 0;
+        for (int i = 0; i < slotCount; i++) {
+            int base = slotOffset(i);
+            if (index.getLong(base + S_HASH) != 0) {
+                liveBytes += index.getInt(base + S_LENGTH);
+                liveEntries++;
+            }
+        }
+        index.putInt(H_ACTIVE_SEGMENT, active);
+        index.putLong(H_LIVE_BYTES, liveBytes);
+        index.putInt(H_LIVE_ENTRIES, liveEntries);
+        index.putLong(H_DISK_BYTES, diskBytes);
+    }
+    
+    /**
+     * Rebuilds the index by scanning the segments, oldest first, so that the
+     * newest record for each key wins. A segment is truncated at its first
+     * damaged record.
+     */
+    private void rebuild() throws IOException {
+        index.putLong(H_LIVE_BYTES, 0);
+        index.putInt(H_LIVE_ENTRIES, 0);
+        index.putLong(H_DISK_BYTES, 0);
+        index.putLong(H_CLOCK, 0);
+        int active = 0;
+        for (int segment : segmentNumbers()) {
+            active = Math.max(active, segment);
+            FileChannel channel = segment(segment, false);
+            long offset = 0;
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (offset + RECORD_HEADER_SIZE <= size) {
+                header.clear();
+                channel.read(header, offset);
+                int length = header.getInt(4);
+                if (header.getInt(0) != RECORD_MAGIC || length < RECORD_HEADER_SIZE || offset + length > size) {
+                    break;
+                }
+                byte[] record = readFully(channel, offset, length);
+                Object[] decoded = record == null ? null : decode(record);
+                if (decoded == null) {
+                    break;
+                }
+                long hash = hash((String)decoded[0]);
+                int slot = find(hash);
+                if (slot >= 0) {
+                    delete(slot);
+                }
+                if (liveEntries() + 1 <= slotCount * 3 / 4) {
+                    slot = home(hash);
+                    while (index.getLong(slotOffset(slot) + S_HASH) != 0) {
+                        slot = (slot + 1) % slotCount;
+                    }
+                    long clock = index.getLong(H_CLOCK) + 1;
+                    index.putLong(H_CLOCK, clock);
+                    int base = slotOffset(slot);
+                    index.putInt(base + S_SEGMENT, segment);
+                    index.putInt(base + S_LENGTH, length);
+                    index.putLong(base + S_OFFSET, offset);
+                    index.putLong(base + S_ACCESS, clock);
+                    index.putLong(base + S_HASH, hash);
+                    index.putLong(H_LIVE_BYTES, liveBytes() + length);
+                    index.putInt(H_LIVE_ENTRIES, liveEntries() + 1);
+                }
+                offset += length;
+            }
+            if (offset < size) {
+                corrupt++;
+                channel.truncate(offset);
+            }
+            index.putLong(H_DISK_BYTES, index.getLong(H_DISK_BYTES) + offset);
+        }
+        index.putInt(H_ACTIVE_SEGMENT, active);
+        if (liveBytes() > maxSize) {
+            evict(maxSize, 0);
+        }
+    }
+    
+    /**
+     * Evicts the least recently used entries until the live entries take no
+     * more than the given number of bytes, and at least the given number of
+     * entries have been evicted. Then compacts the segments.
+     */
+    private void evict(long targetBytes, int minEntries) throws IOException {
+        List<long[]> used = new ArrayList<long[]>();
+        for (int i = 0; i < slotCount; i++) {
+            int base = slotOffset(i);
+            long h = index.getLong(base + S_HASH);
+            if (h != 0) {
+                used.add(new long[] {index.getLong(base + S_ACCESS), h});
+            }
+        }
+        Collections.sort(used, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        Iterator<long[]> itr = used.iterator();
+        int evicted = 0;
+        while ((liveBytes() > targetBytes || evicted < minEntries) && itr.hasNext()) {
+            int slot = find(itr.next()[1]);
+            if (slot >= 0) {
+                delete(slot);
+                evicted++;
+                evictions++;
+            }
+        }
+        compact(liveBytesBySegment());
+    }
+    
+    private Map<Integer,Long> liveBytesBySegment() {
+        Map<Integer,Long> live = new HashMap<Integer,Long>();
+        for (int i = 0; i < slotCount; i++) {
+            int base = slotOffset(i);
+            if (index.getLong(base + S_HASH) != 0) {
+                int segment = index.getInt(base + S_SEGMENT);
+                Long bytes = live.get(segment);
+                live.put(segment, (bytes == null ? 0 : bytes) + index.getInt(base + S_LENGTH));
+            }
+        }
+        return live;
+    }
+    
+    /**
+     * Deletes the segments (other than the active one) with no live entries,
+     * and copies the live entries of those which are less than half live
+     * into the active segment, so that they can be deleted too.
+     */
+    private void compact(Map<Integer,Long> live) throws IOException {
+        int active = index.getInt(H_ACTIVE_SEGMENT);
+        for (int segment : segmentNumbers()) {
+            if (segment >= active) {
+                continue;
+            }
+            Long bytes = live.get(segment);
+            if (bytes != null && bytes >= segmentFile(segment).length() / 2) {
+                continue;
+            }
+            if (bytes != null) {
+                FileChannel from = segment(segment, false);
+                for (int i = 0; i < slotCount; i++) {
+                    int base = slotOffset(i);
+                    if (index.getLong(base + S_HASH) == 0 || index.getInt(base + S_SEGMENT) != segment) {
+                        continue;
+                    }
+                    byte[] record = readFully(from, index.getLong(base + S_OFFSET), index.getInt(base + S_LENGTH));
+                    if (record == null) {
+                        continue;
+                    }
+                    FileChannel to = segment(active, true);
+                    if (to.size() > 0 && to.size() + record.length > segmentSize) {
+                        active++;
+                        index.putInt(H_ACTIVE_SEGMENT, active);
+                        to = segment(active, true);
+                    }
+                    long offset = append(to, record);
+                    index.putLong(H_DISK_BYTES, index.getLong(H_DISK_BYTES) + record.length);
+                    index.putInt(base + S_SEGMENT, active);
+                    index.putLong(base + S_OFFSET, offset);
+                }
+            }
+            deleteSegment(segment);
+        }
+        //close the segments which other processes have deleted
+        Iterator<Map.Entry<Integer,FileChannel>> itr = segments.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<Integer,FileChannel> e = itr.next();
+            if (!segmentFile(e.getKey()).exists()) {
+                e.getValue().close();
+                itr.remove();
+            }
+        }
+    }
+    
+    /**
+     * A snapshot of the statistics of a DiskCache.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long writes;
+        private final long evictions;
+        private final long corrupt;
+        private final int entries;
+        private final long size;
+        
+        private Stats(long hits, long misses, long writes, long evictions, long corrupt, int entries, long size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.writes = writes;
+            this.evictions = evictions;
+            this.corrupt = corrupt;
+            this.entries = entries;
+            this.size = size;
+        }
+        
+        /** @return the number of reads which found an entry */
+        public long getHitCount() { return hits; }
+        /** @return the number of reads which found nothing */
+        public long getMissCount() { return misses; }
+        /** @return the number of entries written */
+        public long getWriteCount() { return writes; }
+        /** @return the number of entries evicted to stay within the maximum size */
+        public long getEvictionCount() { return evictions; }
+        /** @return the number of damaged entries found, and dropped */
+        public long getCorruptCount() { return corrupt; }
+        /** @return the number of live entries */
+        public int getEntryCount() { return entries; }
+        /** @return the total size of the live entries, in bytes */
+        public long getSize() { return size; }
+        
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, writes=%d, evictions=%d, corrupt=%d, entries=%d, size=%d",
+                    hits, misses, writes, evictions, corrupt, entries, size);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Document;
+
+/**
+ * <p>A {@link RequestBody} which sends a DOM {@link Document} as UTF-8 encoded
+ * xml. The document is serialized straight onto the connection as it is
+ * sent, rather than into a String first, so the memory needed does not depend
+ * on the size of the document. Since its length is not known in advance the
+ * body is sent chunked.</p>
+ *
+ * <pre><code>
+ *      Request req = new Request(Method.POST, "http://example.com/orders");
+ *      req.setBody(RequestBody.gzip(new DocumentBody(dom)));
+ * </code></pre>
+ *
+ * <p>The document is read each time the body is sent, and so must not be
+ * changed, or used by another thread, until the request is done.</p>
+ */
+public class DocumentBody extends RequestBody {
+    private static final TransformerFactory FACTORY = TransformerFactory.newInstance();
+    
+    private final Document dom;
+    private final String contentType;
+    
+    /**
+     * Creates a new DocumentBody, which leaves the Content-Type header of the
+     * request as it is.
+     *
+     * @param dom the document to send. Must not be null.
+     */
+    public DocumentBody(Document dom) {
+        this(dom, null);
+    }
+    
+    /**
+     * Creates a new DocumentBody.
+     *
+     * @param dom the document to send. Must not be null.
+     * @param contentType the Content-Type, such as
+     *        <code>application/xml; charset=UTF-8</code>, or null
+     */
+    public DocumentBody(Document dom, String contentType) {
+        if (dom == null) {
+            throw new NullPointerException("dom cannot be null");
+        }
+        this.dom = dom;
+        this.contentType = contentType;
+    }
+    
+    /**
+     * @return the document sent by this body
+     */
+    public Document getDocument() {
+        return dom;
+    }
+    
+    /**
+     * @return -1, since the length is only known once the document has been
+     *         serialized
+     */
+    public long getContentLength() {
+        return -1;
+    }
+    
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+    
+    public InputStream openStream() {
+        return pipe();
+    }
+    
+    /**
+     * Serializes the document to the given stream as UTF-8.
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        Transformer tx;
+        try {
+            //factories are not thread safe, the transformers they make are
+            //used by one thread only
+            synchronized (FACTORY) {
+                tx = FACTORY.newTransformer();
+            }
+        } catch (TransformerConfigurationException ex) {
+            throw new IOException("Could not create a transformer", ex);
+        }
+        tx.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        try {
+            tx.transform(new DOMSource(dom), new StreamResult(out));
+        } catch (TransformerException ex) {
+            //the transformer wraps errors writing to out
+            for (Throwable t = ex; t != null; t = t.getCause()) {
+                if (t instanceof IOException) {
+                    throw (IOException)t;
+                }
+            }
+            throw new IOException("Could not serialize the document", ex);
+        }
+        out.flush();
+    }
+}
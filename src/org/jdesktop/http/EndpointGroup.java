@@ -0,0 +1,440 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A logical service backed by several replicas, among which a
+ * {@link Session} spreads the requests made to it. Add a group to a Session
+ * with {@link Session#addEndpointGroup}, then make requests to a url whose
+ * host is the name of the group, such as <code>http://users/v1/list</code>.
+ * The scheme, host and port of each request are replaced by those of the
+ * endpoint picked for it, and its path is appended to the path of the
+ * endpoint.</p>
+ *
+ * <p>How the endpoint is picked depends on the {@link Selection}. The
+ * default takes the endpoints in turn, which spreads the requests evenly
+ * but keeps sending them to a slow replica. The other selections prefer
+ * the endpoints with the fewest requests in flight, so that a slow replica
+ * soon gets less traffic.</p>
+ *
+ * <p>Endpoints which misbehave are ejected for a while. An endpoint is
+ * ejected when <code>consecutiveFailures</code> requests in a row fail to
+ * connect or are answered with a 5xx status, or when its average response
+ * time has grown to <code>latencyFactor</code> times that of the other
+ * endpoints. It comes back after <code>baseEjectionTime</code>, which is
+ * multiplied by the number of times in a row it has been ejected. At most
+ * <code>maxEjectionRatio</code> of the endpoints are ejected at once, and if
+ * none are left the ejected ones are used all the same.</p>
+ *
+ * <p>Each endpoint has its own connections in the {@link ConnectionPool} of
+ * the Session, limited by its <code>maxPerRoute</code>. A group may be
+ * shared by several Sessions, in which case they share what it knows about
+ * the endpoints.</p>
+ */
+public class EndpointGroup {
+    /**
+     * The ways of picking an endpoint for a request.
+     */
+    public enum Selection {
+        /** Take the endpoints in turn. */
+        ROUND_ROBIN,
+        /** Take the endpoint with the fewest requests in flight. */
+        LEAST_OUTSTANDING,
+        /**
+         * Take the one of two endpoints picked at random which has the fewest
+         * requests in flight. Nearly as good as LEAST_OUTSTANDING, without
+         * sending every request to the same endpoint when they are tied.
+         */
+        POWER_OF_TWO_CHOICES
+    }
+    
+    /** The default number of failures in a row after which an endpoint is ejected: 5. */
+    public static final int DEFAULT_CONSECUTIVE_FAILURES = 5;
+    /** The default time for which an endpoint is ejected the first time: 30s. */
+    public static final long DEFAULT_BASE_EJECTION_TIME = 30000;
+    /** The default share of the endpoints which may be ejected at once: 50%. */
+    public static final double DEFAULT_MAX_EJECTION_RATIO = 0.5;
+    /** The default factor by which an endpoint may be slower than the others: 3. */
+    public static final double DEFAULT_LATENCY_FACTOR = 3;
+    
+    private static final Logger LOG = Logger.getLogger(EndpointGroup.class.getName());
+    
+    /** The most the ejection time is multiplied by */
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+    /** The response times needed before an endpoint can be ejected for being slow */
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    /** The weight of the latest response time in the average */
+    private static final double LATENCY_WEIGHT = 0.1;
+    
+    private final String name;
+    private final Endpoint[] endpoints;
+    private Selection selection = Selection.ROUND_ROBIN;
+    private int consecutiveFailures = DEFAULT_CONSECUTIVE_FAILURES;
+    private long baseEjectionTime = DEFAULT_BASE_EJECTION_TIME;
+    private double maxEjectionRatio = DEFAULT_MAX_EJECTION_RATIO;
+    private double latencyFactor = DEFAULT_LATENCY_FACTOR;
+    private int next = 0;
+    
+    /**
+     * Creates a new EndpointGroup.
+     *
+     * @param name the name by which requests refer to the group, as the host
+     *        of their url
+     * @param baseUrls the urls of the replicas, such as
+     *        <code>http://10.0.0.1:8080/api</code>. There must be at least one.
+     * @throws MalformedURLException if one of the urls is not valid
+     */
+    public EndpointGroup(String name, String... baseUrls) throws MalformedURLException {
+        if (name == null) {
+            throw new NullPointerException("name cannot be null");
+        }
+        if (baseUrls.length == 0) {
+            throw new IllegalArgumentException("An EndpointGroup needs at least one endpoint");
+        }
+        this.name = name;
+        this.endpoints = new Endpoint[baseUrls.length];
+        for (int i = 0; i < baseUrls.length; i++) {
+            endpoints[i] = new Endpoint(this, new URL(baseUrls[i]));
+        }
+    }
+    
+    /**
+     * @return the name by which requests refer to this group
+     */
+    public final String getName() {
+        return name;
+    }
+    
+    /**
+     * @return the endpoints of this group, in the order they were given
+     */
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(Arrays.asList(endpoints));
+    }
+    
+    public synchronized Selection getSelection() {
+        return selection;
+    }
+    
+    /**
+     * @param selection how to pick the endpoint for each request
+     */
+    public synchronized void setSelection(Selection selection) {
+        if (selection == null) {
+            throw new NullPointerException("selection cannot be null");
+        }
+        this.selection = selection;
+    }
+    
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+    
+    /**
+     * @param failures the number of requests in a row which may fail before
+     *        their endpoint is ejected, at least 1
+     */
+    public synchronized void setConsecutiveFailures(int failures) {
+        if (failures < 1) {
+            throw new IllegalArgumentException("failures must be at least 1");
+        }
+        this.consecutiveFailures = failures;
+    }
+    
+    public synchronized long getBaseEjectionTime() {
+        return baseEjectionTime;
+    }
+    
+    /**
+     * @param millis how long an endpoint is ejected for the first time. Must
+     *        not be negative.
+     */
+    public synchronized void setBaseEjectionTime(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        this.baseEjectionTime = millis;
+    }
+    
+    public synchronized double getMaxEjectionRatio() {
+        return maxEjectionRatio;
+    }
+    
+    /**
+     * @param ratio the share of the endpoints which may be ejected at once,
+     *        between 0 and 1. One endpoint may always be ejected, unless it
+     *        is the only one.
+     */
+    public synchronized void setMaxEjectionRatio(double ratio) {
+        if (ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("ratio must be between 0 and 1");
+        }
+        this.maxEjectionRatio = ratio;
+    }
+    
+    public synchronized double getLatencyFactor() {
+        return latencyFactor;
+    }
+    
+    /**
+     * @param factor how many times slower than the median of the other
+     *        endpoints an endpoint may get before it is ejected, above 1.
+     *        Use {@link Double#POSITIVE_INFINITY} never to eject endpoints for
+     *        being slow.
+     */
+    public synchronized void setLatencyFactor(double factor) {
+        if (!(factor > 1)) {
+            throw new IllegalArgumentException("factor must be above 1");
+        }
+        this.latencyFactor = factor;
+    }
+    
+    /**
+     * Picks the endpoint for a request, and counts the request as in flight
+     * until {@link #released} is called.
+     */
+    synchronized Endpoint select() {
+        long now = System.currentTimeMillis();
+        List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.length);
+        for (Endpoint e : endpoints) {
+            if (e.ejectedUntil != 0 && e.ejectedUntil <= now) {
+                //back in service, with a clean slate
+                e.ejectedUntil = 0;
+                e.returnedAt = now;
+                e.failures = 0;
+                e.samples = 0;
+                e.latency = 0;
+            }
+            if (e.ejectedUntil == 0) {
+                candidates.add(e);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates.addAll(Arrays.asList(endpoints));
+        }
+        
+        Endpoint chosen;
+        switch (selection) {
+            case LEAST_OUTSTANDING:
+                //start from the next in turn, so that ties are spread out
+                int start = next++ % candidates.size();
+                chosen = candidates.get(start);
+                for (int i = 1; i < candidates.size(); i++) {
+                    Endpoint e = candidates.get((start + i) % candidates.size());
+                    if (e.outstanding < chosen.outstanding) {
+                        chosen = e;
+                    }
+                }
+                break;
+            case POWER_OF_TWO_CHOICES:
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int first = random.nextInt(candidates.size());
+                chosen = candidates.get(first);
+                if (candidates.size() > 1) {
+                    int second = random.nextInt(candidates.size() - 1);
+                    Endpoint other = candidates.get(second >= first ? second + 1 : second);
+                    if (other.outstanding < chosen.outstanding) {
+                        chosen = other;
+                    }
+                }
+                break;
+            default:
+                chosen = candidates.get(next++ % candidates.size());
+        }
+        if (next < 0) {
+            next = 0;
+        }
+        chosen.outstanding++;
+        chosen.requests++;
+        return chosen;
+    }
+    
+    /**
+     * Records how a request to the given endpoint went, and ejects the
+     * endpoint if it is failing or slow.
+     *
+     * @param failed whether the request failed to connect, or was answered
+     *        with a 5xx status
+     * @param millis how long the response took to arrive, or -1 if it did
+     *        not or is not to be counted
+     */
+    synchronized void released(Endpoint e, boolean failed, long millis) {
+        e.outstanding--;
+        if (e.ejectedUntil != 0) {
+            return;
+        }
+        if (failed) {
+            e.failureCount++;
+            if (++e.failures >= consecutiveFailures) {
+                eject(e, "failed " + e.failures + " times in a row");
+            }
+            return;
+        }
+        e.failures = 0;
+        if (millis < 0) {
+            return;
+        }
+        e.latency = e.samples == 0 ? millis : e.latency + LATENCY_WEIGHT * (millis - e.latency);
+        e.samples++;
+        if (e.samples >= MIN_LATENCY_SAMPLES) {
+            double median = medianLatency(e);
+            if (median >= 0 && e.latency > latencyFactor * Math.max(median, 1)) {
+                eject(e, String.format("is averaging %.0fms, the others %.0fms", e.latency, median));
+            }
+        }
+    }
+    
+    /**
+     * @return the median of the average response times of the endpoints in
+     *         service other than the given one, or -1 if none are known
+     */
+    private double medianLatency(Endpoint except) {
+        double[] latencies = new double[endpoints.length];
+        int count = 0;
+        for (Endpoint e : endpoints) {
+            if (e != except && e.ejectedUntil == 0 && e.samples >= MIN_LATENCY_SAMPLES) {
+                latencies[count++] = e.latency;
+            }
+        }
+        if (count == 0) {
+            return -1;
+        }
+        Arrays.sort(latencies, 0, count);
+        return count % 2 == 1 ? latencies[count / 2] : (latencies[count / 2 - 1] + latencies[count / 2]) / 2;
+    }
+    
+    private void eject(Endpoint e, String reason) {
+        int ejected = 0;
+        for (Endpoint other : endpoints) {
+            if (other.ejectedUntil != 0) {
+                ejected++;
+            }
+        }
+        if (ejected + 1 >= endpoints.length || ejected + 1 > Math.max(1, (int)(maxEjectionRatio * endpoints.length))) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - e.returnedAt > baseEjectionTime) {
+            //it has behaved since it last came back
+            e.ejections = 0;
+        }
+        e.ejections = Math.min(e.ejections + 1, MAX_EJECTION_MULTIPLIER);
+        e.ejectedUntil = now + baseEjectionTime * e.ejections;
+        e.ejectionCount++;
+        LOG.log(Level.INFO, "Ejected {0} from {1} for {2}ms, as it {3}",
+                new Object[] {e.baseUrl, name, baseEjectionTime * e.ejections, reason});
+    }
+    
+    @Override
+    public String toString() {
+        return name + Arrays.toString(endpoints);
+    }
+    
+    /**
+     * One of the replicas of an {@link EndpointGroup}.
+     */
+    public static final class Endpoint {
+        private final EndpointGroup group;
+        private final URL baseUrl;
+        private int outstanding = 0;
+        private long requests = 0;
+        private long failureCount = 0;
+        private long ejectionCount = 0;
+        /** the failures in a row */
+        private int failures = 0;
+        /** the moving average of the response times, and how many went into it */
+        private double latency = 0;
+        private int samples = 0;
+        /** when the endpoint comes back into service, or 0 if it is in service */
+        private long ejectedUntil = 0;
+        private long returnedAt = 0;
+        /** the ejections in a row, which multiply the ejection time */
+        private int ejections = 0;
+        
+        private Endpoint(EndpointGroup group, URL baseUrl) {
+            this.group = group;
+            this.baseUrl = baseUrl;
+        }
+        
+        /**
+         * @return the group this endpoint belongs to
+         */
+        public EndpointGroup getGroup() {
+            return group;
+        }
+        
+        public String getBaseUrl() {
+            return baseUrl.toString();
+        }
+        
+        /**
+         * Resolves the given url against this endpoint, keeping its path and
+         * query string but replacing its scheme, host and port.
+         */
+        URL resolve(URL url) throws MalformedURLException {
+            String path = baseUrl.getPath();
+            if (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            return new URL(baseUrl.getProtocol(), baseUrl.getHost(), baseUrl.getPort(), path + url.getFile());
+        }
+        
+        /** @return the number of requests to this endpoint in flight */
+        public int getOutstanding() { synchronized (group) { return outstanding; } }
+        /** @return the number of requests sent to this endpoint */
+        public long getRequestCount() { synchronized (group) { return requests; } }
+        /** @return the number of requests to this endpoint which failed */
+        public long getFailureCount() { synchronized (group) { return failureCount; } }
+        /** @return the number of times this endpoint has been ejected */
+        public long getEjectionCount() { synchronized (group) { return ejectionCount; } }
+        /** @return the moving average of the response times of this endpoint in milliseconds */
+        public double getAverageLatency() { synchronized (group) { return latency; } }
+        
+        /**
+         * @return true if this endpoint is ejected, and not being sent requests
+         */
+        public boolean isEjected() {
+            synchronized (group) {
+                return ejectedUntil > System.currentTimeMillis();
+            }
+        }
+        
+        @Override
+        public String toString() {
+            synchronized (group) {
+                return String.format("%s: outstanding=%d, requests=%d, failures=%d, ejections=%d, latency=%.1fms%s",
+                        baseUrl, outstanding, requests, failureCount, ejectionCount, latency,
+                        ejectedUntil != 0 ? ", ejected" : "");
+            }
+        }
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.FilterOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * <p>A single request/response cycle in flight, as handed by a {@link Session}
+ * to its {@link Transport}. The exchange describes the request to send, and
+ * collects the head and body of the response.</p>
+ *
+ * <p>All progress reporting goes through the exchange, so that the
+ * <code>state</code>, <code>bytesSoFar</code> and <code>totalBytes</code>
+ * properties of the Session behave the same regardless of transport.</p>
+ */
+public final class Exchange {
+    private final Session session;
+    private final Request request;
+    private final URL url;
+    private final long contentLength;
+    private boolean bodyTaken = false;
+    private boolean bodyResolved = false;
+    private RequestBody requestBody;
+    private InputStream streamBody;
+    
+    private int status = -1;
+    private String statusText;
+    private Set<Header> headers;
+    private InputStream responseBody;
+    
+    /** the request as given to the Session, which the cache is updated with */
+    Request originalRequest;
+    /** the cache to update with the response, or null */
+    HttpCache cache;
+    /** the result of looking up the original request in the cache, or null */
+    HttpCache.Lookup cacheLookup;
+    /** the url the cache knows the request by, before any endpoint group resolved it */
+    URL cacheUrl;
+    /** the endpoint the request was sent to, if its url named an endpoint group */
+    EndpointGroup.Endpoint endpoint;
+    /** the circuit breaker which let the request through, and its permit, or null */
+    CircuitBreaker circuitBreaker;
+    CircuitBreaker.Permit permit;
+    /** the concurrency limiter which let the request be sent, and its permit, or null */
+    private ConcurrencyLimiter limiter;
+    private ConcurrencyLimiter.Permit limiterPermit;
+    /** a response from the cache, in which case the transport is not used */
+    Response cachedResponse;
+    /** when the exchange was handed to the transport */
+    long requestTime;
+    /** whether the Session compressed the body of the request */
+    boolean compressed;
+    /** the connect and read timeouts in milliseconds, 0 for none */
+    long connectTimeout;
+    long readTimeout;
+    /** the deadline of the exchange, or null */
+    Deadline deadline;
+    private Runnable canceller;
+    private ScheduledFuture<?> deadlineTimer;
+    private boolean expired = false;
+    private boolean aborted = false;
+    private boolean done = false;
+    /** whether, and when, the exchange was handed to the transport, and when the head of the response arrived */
+    private boolean sent = false;
+    private long sentAt;
+    private long headAt = -1;
+    
+    Exchange(Session session, Request request, URL url, long contentLength) {
+        this.session = session;
+        this.request = request;
+        this.url = url;
+        this.contentLength = contentLength;
+    }
+    
+    public Session getSession() {
+        return session;
+    }
+    
+    /**
+     * @return the Request being executed. Transports should only read from it.
+     */
+    public Request getRequest() {
+        return request;
+    }
+    
+    /**
+     * @return the full URL to hit, including any query parameters
+     */
+    public URL getUrl() {
+        return url;
+    }
+    
+    /**
+     * @return the route of the url, as computed by {@link ConnectionPool#route(URL)}
+     */
+    public String getRoute() {
+        return ConnectionPool.route(url);
+    }
+    
+    /**
+     * @return the pool from which transports should lease their connections
+     */
+    public ConnectionPool getConnectionPool() {
+        return session.getConnectionPool();
+    }
+    
+    /**
+     * Returns an SSLContext which respects the security level of the Session,
+     * for use with https urls.
+     */
+    public SSLContext getSSLContext() {
+        return session.getSSLContextEntry().getContext();
+    }
+    
+    /**
+     * Returns an SSLSocketFactory made from {@link #getSSLContext()}. Transports
+     * which create SSLSockets should prefer this, as it keeps track of
+     * handshakes for the statistics of the Session.
+     */
+    public SSLSocketFactory getSSLSocketFactory() {
+        return session.getSSLContextEntry().getSocketFactory();
+    }
+    
+    /**
+     * Returns the time the transport should allow to establish a connection.
+     * This is never longer than the time left before the deadline.
+     *
+     * @return the timeout in milliseconds, or 0 to wait forever
+     */
+    public long getConnectTimeout() {
+        return capped(connectTimeout);
+    }
+    
+    /**
+     * Returns the longest time the transport should wait for the server to
+     * send anything, while waiting for the response or reading its body.
+     * This is never longer than the time left before the deadline.
+     *
+     * @return the timeout in milliseconds, or 0 to wait forever
+     */
+    public long getReadTimeout() {
+        return capped(readTimeout);
+    }
+    
+    /**
+     * @return the deadline by which the exchange must be done, or null
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+    
+    private long capped(long timeout) {
+        if (deadline == null) {
+            return timeout;
+        }
+        //0 would mean forever
+        long left = Math.max(1, deadline.remaining());
+        return timeout == 0 ? left : Math.min(timeout, left);
+    }
+    
+    /**
+     * Sets what to run to abort the exchange when its deadline passes, such
+     * as closing its connection. Transports should set this as soon as there
+     * is something to abort, and replace it as the exchange moves on (for
+     * example, to a new connection after a redirect). If the deadline has
+     * already passed, the canceller is run at once.
+     */
+    public void setCanceller(Runnable canceller) {
+        synchronized (this) {
+            this.canceller = canceller;
+            if (!isCancelled()) return;
+        }
+        canceller.run();
+    }
+    
+    /**
+     * @return true if the deadline of the exchange passed before it was done,
+     *         in which case it has been aborted
+     */
+    public synchronized boolean isExpired() {
+        return expired;
+    }
+    
+    /**
+     * @return true if the exchange has been aborted, because its deadline
+     *         passed or it is no longer wanted
+     */
+    synchronized boolean isCancelled() {
+        return expired || aborted;
+    }
+    
+    /**
+     * @return true if the exchange was aborted by {@link #abort}
+     */
+    synchronized boolean isAborted() {
+        return aborted;
+    }
+    
+    /**
+     * Aborts the exchange, wherever it has got to, because its response is no
+     * longer wanted. Does nothing once the exchange is done.
+     */
+    void abort() {
+        Runnable c;
+        synchronized (this) {
+            if (done || aborted) return;
+            aborted = true;
+            c = canceller;
+        }
+        if (c != null) {
+            c.run();
+        }
+    }
+    
+    /**
+     * Starts watching for the deadline, if there is one.
+     */
+    synchronized void armDeadline() {
+        if (deadline != null && deadlineTimer == null) {
+            deadlineTimer = deadline.schedule(new Runnable() {
+                public void run() {
+                    expire();
+                }
+            });
+        }
+    }
+    
+    /**
+     * Notes that the exchange is about to be handed to the transport, with a
+     * place in flight from the given concurrency limiter, if any.
+     *
+     * @return false if the exchange is already done, in which case it must
+     *         not be sent and the permit is not taken
+     */
+    synchronized boolean sending(ConcurrencyLimiter limiter, ConcurrencyLimiter.Permit permit) {
+        if (done) {
+            return false;
+        }
+        this.limiter = limiter;
+        this.limiterPermit = permit;
+        this.sent = true;
+        this.sentAt = System.nanoTime();
+        return true;
+    }
+    
+    /**
+     * Settles the exchange once it is done: stops watching for the deadline,
+     * and tells the endpoint group, circuit breaker and concurrency limiter,
+     * if any, how the exchange went.
+     *
+     * <p>This must be called once the exchange is done, whether it succeeded,
+     * failed or was aborted, or the endpoint, breaker and limiter go on
+     * counting it as in flight. Only the first call has any effect, so that
+     * each outcome is reported exactly once; later calls do nothing.</p>
+     */
+    void settle() {
+        EndpointGroup.Endpoint e;
+        CircuitBreaker breaker;
+        ConcurrencyLimiter l;
+        //an exchange which was aborted, or never sent, says nothing about the host
+        boolean ignored;
+        boolean failed;
+        long rtt;
+        synchronized (this) {
+            e = done ? null : endpoint;
+            breaker = done ? null : circuitBreaker;
+            l = done ? null : limiter;
+            done = true;
+            if (deadlineTimer != null) {
+                deadlineTimer.cancel(false);
+            }
+            ignored = aborted || !sent;
+            failed = !ignored && (status < 0 || status >= 500);
+            rtt = ignored || headAt < 0 ? -1 : headAt - sentAt;
+        }
+        long millis = rtt < 0 ? -1 : rtt / 1000000;
+        if (e != null) {
+            e.getGroup().released(e, failed, millis);
+        }
+        if (breaker != null) {
+            breaker.record(session, permit, failed, millis, ignored);
+        }
+        if (l != null) {
+            l.release(limiterPermit, rtt, !ignored && (status < 0 || status == 429 || status == 503));
+        }
+    }
+    
+    private void expire() {
+        Runnable c;
+        synchronized (this) {
+            if (deadlineTimer.isCancelled()) return;
+            expired = true;
+            c = canceller;
+        }
+        if (c != null) {
+            c.run();
+        }
+    }
+    
+    /**
+     * @return the length of the request body, or -1 if not known
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+    
+    /**
+     * @return true if the request has a body
+     */
+    public boolean hasBody() throws Exception {
+        resolveBody();
+        return requestBody != null || streamBody != null;
+    }
+    
+    /**
+     * Returns the body of the request, or null if there is none. Reading from
+     * the returned stream updates the progress of the Session. The body may
+     * only be taken once, by this method, {@link #writeBody} or
+     * {@link #getRequestBody}, and the transport must close the returned stream.
+     *
+     * @return the request body. May be null.
+     */
+    public InputStream getBody() throws Exception {
+        takeBody();
+        if (requestBody != null) {
+            return new ProgressInputStream(requestBody.openStream());
+        }
+        return streamBody == null ? null : new ProgressInputStream(streamBody);
+    }
+    
+    /**
+     * Writes the body of the request, if any, to the given stream, which is
+     * not closed. Writing updates the progress of the Session. The body may
+     * only be taken once.
+     */
+    public void writeBody(OutputStream out) throws Exception {
+        takeBody();
+        ProgressOutputStream progress = new ProgressOutputStream(out);
+        if (requestBody != null) {
+            try {
+                requestBody.writeTo(progress);
+            } finally {
+                requestBody.close();
+            }
+        } else if (streamBody != null) {
+            try {
+                byte[] buffer = new byte[RequestBody.CHUNK];
+                int length;
+                while ((length = streamBody.read(buffer)) != -1) {
+                    progress.write(buffer, 0, length);
+                }
+            } finally {
+                streamBody.close();
+            }
+        }
+    }
+    
+    /**
+     * @return true if the request has a body which supports
+     *         {@link RequestBody#transferTo}
+     */
+    public boolean canTransferBody() throws Exception {
+        resolveBody();
+        return requestBody != null && requestBody.supportsTransfer();
+    }
+    
+    /**
+     * Returns the body of the request as a {@link RequestBody}, for transports
+     * which send it with {@link RequestBody#transferTo} when
+     * {@link #canTransferBody()} is true. Such transports must report what
+     * they send with {@link #bodySent}, and close the body. The body may only
+     * be taken once.
+     *
+     * @return the body, or null if it was not set as a RequestBody
+     */
+    public RequestBody getRequestBody() throws Exception {
+        takeBody();
+        return requestBody;
+    }
+    
+    /**
+     * Reports that the given number of bytes of the body have been sent, for
+     * transports which use {@link #getRequestBody}.
+     */
+    public void bodySent(long bytes) {
+        session.setBytesSoFar(session.getBytesSoFar() + bytes);
+    }
+    
+    private void resolveBody() throws Exception {
+        if (!bodyResolved) {
+            bodyResolved = true;
+            requestBody = request.getRequestBody();
+            if (requestBody == null) {
+                streamBody = request.getBody();
+            }
+        }
+    }
+    
+    private void takeBody() throws Exception {
+        if (bodyTaken) {
+            throw new IllegalStateException("The request body has already been taken");
+        }
+        bodyTaken = true;
+        resolveBody();
+    }
+    
+    /**
+     * Called by the transport once the request (including its body) has been
+     * sent, and it is about to wait for the response.
+     */
+    public void sent() {
+        session.setState(State.SENT);
+    }
+    
+    /**
+     * Called by the transport once the head of the response has been
+     * received.
+     *
+     * @param status the HTTP status code
+     * @param statusText the reason phrase. May be null.
+     * @param headers the response headers, keyed by name. Entries with a null
+     *        key (such as the status line) are ignored.
+     * @param body the response body. Closing it must release the connection
+     *        it was read from. May be null if there is no body.
+     */
+    public void setResponse(int status, String statusText, Map<String,List<String>> headers, InputStream body) {
+        this.headAt = System.nanoTime();
+        this.status = status;
+        this.statusText = statusText;
+        this.headers = new HashSet<Header>();
+        long length = -1;
+        if (headers != null) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                String headerKey = entry.getKey();
+                List<String> values = entry.getValue();
+                if (headerKey == null || values == null || values.isEmpty()) continue;
+                Header.Element[] elements = new Header.Element[values.size()];
+                for (int j=0; j<elements.length; j++) {
+                    elements[j] = new Header.Element(new Parameter(values.get(j), values.get(j)));
+                }
+                //as with HttpURLConnection.getHeaderField, the last value wins
+                String headerValue = values.get(values.size() - 1);
+                this.headers.add(new Header(headerKey, headerValue, elements));
+                if ("Content-Length".equalsIgnoreCase(headerKey)) {
+                    try {
+                        length = Long.parseLong(headerValue.trim());
+                    } catch (NumberFormatException e) {
+                        length = -1;
+                    }
+                }
+            }
+        }
+        this.responseBody = body;
+        session.setBytesSoFar(0);
+        session.setTotalBytes(length);
+        session.setState(State.RECEIVING);
+    }
+    
+    int getStatus() {
+        return status;
+    }
+    
+    String getStatusText() {
+        return statusText;
+    }
+    
+    Set<Header> getResponseHeaders() {
+        return headers;
+    }
+    
+    InputStream getResponseBody() {
+        return responseBody;
+    }
+    
+    Header getResponseHeader(String name) {
+        for (Header h : headers) {
+            if (name.equalsIgnoreCase(h.getName())) {
+                return h;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Reports the bytes uploaded so far to the Session as they are written by
+     * the transport.
+     */
+    private final class ProgressOutputStream extends FilterOutputStream {
+        private ProgressOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            session.setBytesSoFar(session.getBytesSoFar() + 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            session.setBytesSoFar(session.getBytesSoFar() + len);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            //the transport closes the underlying stream itself
+            flush();
+        }
+    }
+    
+    /**
+     * Reports the bytes uploaded so far to the Session as they are read by
+     * the transport.
+     */
+    private final class ProgressInputStream extends FilterInputStream {
+        private ProgressInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) session.setBytesSoFar(session.getBytesSoFar() + 1);
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) session.setBytesSoFar(session.getBytesSoFar() + n);
+            return n;
+        }
+    }
+}
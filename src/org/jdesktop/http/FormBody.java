@@ -0,0 +1,170 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A {@link RequestBody} which sends {@link Parameter}s as an
+ * <code>application/x-www-form-urlencoded</code> form, as a browser does when
+ * submitting an html form with the POST method.</p>
+ *
+ * <pre><code>
+ *      Request req = new Request(Method.POST, "http://example.com/login");
+ *      req.setBody(new FormBody(new Parameter("user", "bob"),
+ *                               new Parameter("password", "secret")));
+ * </code></pre>
+ *
+ * <p>The parameters are encoded one at a time as the transport reads the
+ * body, and the Content-Length is worked out up front without encoding the
+ * whole form. The parameters are copied when the body is created, so later
+ * changes to them are not sent.</p>
+ */
+public class FormBody extends RequestBody {
+    private final List<Parameter> params = new ArrayList<Parameter>();
+    private final String charset;
+    private long contentLength = -1;
+    
+    /**
+     * Creates a new FormBody which encodes the given parameters as UTF-8.
+     *
+     * @param params the parameters to send. May be null.
+     */
+    public FormBody(Parameter... params) {
+        this("UTF-8", params);
+    }
+    
+    /**
+     * Creates a new FormBody which encodes the given parameters with the given
+     * charset.
+     *
+     * @param charset the name of the charset to encode with. Must not be null.
+     * @param params the parameters to send. May be null.
+     */
+    public FormBody(String charset, Parameter... params) {
+        if (charset == null) {
+            throw new NullPointerException("charset cannot be null");
+        }
+        try {
+            URLEncoder.encode("", charset);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalArgumentException("Unsupported charset: " + charset, ex);
+        }
+        this.charset = charset;
+        if (params != null) {
+            for (Parameter p : params) {
+                if (p == null || p.getName() == null) {
+                    throw new IllegalArgumentException("Parameter name cannot be null");
+                }
+                this.params.add(p.clone());
+            }
+        }
+    }
+    
+    /**
+     * @return a copy of the parameters sent by this body
+     */
+    public Parameter[] getParameters() {
+        Parameter[] results = new Parameter[params.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = params.get(i).clone();
+        }
+        return results;
+    }
+    
+    /**
+     * @return the length of the encoded form, which is always known
+     */
+    public synchronized long getContentLength() {
+        if (contentLength < 0) {
+            long length = 0;
+            for (int i = 0; i < params.size(); i++) {
+                length += encode(i).length;
+            }
+            contentLength = length;
+        }
+        return contentLength;
+    }
+    
+    @Override
+    public String getContentType() {
+        return "application/x-www-form-urlencoded; charset=" + charset;
+    }
+    
+    public InputStream openStream() {
+        return new InputStream() {
+            private int next = 0;
+            private byte[] current = new byte[0];
+            private int pos = 0;
+            
+            @Override
+            public int read() {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+            
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                int total = 0;
+                while (total < len) {
+                    if (pos == current.length) {
+                        if (next == params.size()) {
+                            break;
+                        }
+                        current = encode(next++);
+                        pos = 0;
+                    }
+                    int n = Math.min(len - total, current.length - pos);
+                    System.arraycopy(current, pos, b, off + total, n);
+                    pos += n;
+                    total += n;
+                }
+                return total == 0 ? -1 : total;
+            }
+        };
+    }
+    
+    /**
+     * Encodes the parameter at the given index, preceded by an ampersand if it
+     * is not the first.
+     */
+    private byte[] encode(int index) {
+        Parameter p = params.get(index);
+        String value = p.getValue() == null ? "" : p.getValue();
+        try {
+            String pair = URLEncoder.encode(p.getName(), charset) + "=" + URLEncoder.encode(value, charset);
+            //the encoded form is plain ascii
+            return (index == 0 ? pair : "&" + pair).getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException ex) {
+            //checked by the constructor
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * <p>A {@link SecurityHandler} which decides from configuration, without
+ * asking anybody. This is the default when running headless, in which case
+ * it is configured from system properties.</p>
+ *
+ * <p>A self-signed certificate is trusted if its SHA-256 fingerprint is one
+ * of the trusted fingerprints, or the host is one of the trusted hosts.
+ * Everything else is rejected. The configuration properties are:
+ * <ul>
+ *  <li><b>org.jdesktop.http.trustedFingerprints:</b> a comma separated list
+ *      of SHA-256 fingerprints in hex, with or without colons.</li>
+ *  <li><b>org.jdesktop.http.trustedHosts:</b> a comma separated list of host
+ *      names. A name starting with "*." matches any subdomain.</li>
+ * </ul></p>
+ */
+public class HeadlessSecurityHandler implements SecurityHandler {
+    public static final String TRUSTED_FINGERPRINTS = "org.jdesktop.http.trustedFingerprints";
+    public static final String TRUSTED_HOSTS = "org.jdesktop.http.trustedHosts";
+    
+    private final Set<String> fingerprints = new HashSet<String>();
+    private final Set<String> hosts = new HashSet<String>();
+    private final List<String> domains = new ArrayList<String>();
+    
+    /**
+     * Creates a new HeadlessSecurityHandler, which rejects every self-signed
+     * certificate.
+     */
+    public HeadlessSecurityHandler() {
+        this(new Properties());
+    }
+    
+    /**
+     * Creates a new HeadlessSecurityHandler configured from the given
+     * properties.
+     *
+     * @param config the configuration. Must not be null.
+     */
+    public HeadlessSecurityHandler(Properties config) {
+        for (String fingerprint : split(config.getProperty(TRUSTED_FINGERPRINTS))) {
+            fingerprints.add(TrustDecisionCache.normalize(fingerprint));
+        }
+        for (String host : split(config.getProperty(TRUSTED_HOSTS))) {
+            host = host.toLowerCase();
+            if (host.startsWith("*.")) {
+                domains.add(host.substring(1));
+            } else {
+                hosts.add(host);
+            }
+        }
+    }
+    
+    /**
+     * @return a HeadlessSecurityHandler configured from the system properties
+     */
+    public static HeadlessSecurityHandler fromSystemProperties() {
+        return new HeadlessSecurityHandler(System.getProperties());
+    }
+    
+    public boolean isServerTrusted(String host, X509Certificate cert) {
+        if (!fingerprints.isEmpty()) {
+            String fingerprint = TrustDecisionCache.fingerprint(cert);
+            if (fingerprint != null && fingerprints.contains(fingerprint)) {
+                return true;
+            }
+        }
+        if (host == null) {
+            return false;
+        }
+        host = host.toLowerCase();
+        if (hosts.contains(host)) {
+            return true;
+        }
+        for (String domain : domains) {
+            if (host.endsWith(domain)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static List<String> split(String value) {
+        List<String> parts = new ArrayList<String>();
+        if (value != null) {
+            for (String part : value.split(",")) {
+                part = part.trim();
+                if (part.length() > 0) parts.add(part);
+            }
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+package org.jdesktop.http;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>Decides when a {@link Session} races a second, identical request (a
+ * hedge) against one which is taking longer than usual, to cut the tail of
+ * the response times caused by the odd slow server or connection. Set a
+ * policy on a Session with {@link Session#setHedgingPolicy}.</p>
+ *
+ * <p>The response time of every request is recorded per host, timed from
+ * when it was first sent, whether or not it was hedged. Once enough
+ * have been seen, a request which has had no response within the
+ * <code>percentile</code> (by default the 95th) of the recent response
+ * times of its host is hedged: the same request is sent again, on another
+ * connection from the pool. Whichever response arrives first is returned,
+ * and the other request is aborted.</p>
+ *
+ * <p>Only requests which may safely be sent twice are hedged: those with an
+ * {@link RetryPolicy#isIdempotent idempotent} method and a repeatable body,
+ * if any. Streaming requests are never hedged. Since every hedge is an
+ * extra request, hedges are limited to <code>maxHedgeRatio</code> of the
+ * requests made over the last ten seconds. A policy may be shared by
+ * several Sessions, in which case they share the response times and the
+ * limit too.</p>
+ */
+public class HedgingPolicy {
+    /** The default percentile of the response times after which to hedge: 0.95. */
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    /** The default share of requests which may be hedged: 5%. */
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.05;
+    /** The default shortest delay before hedging: 10ms. */
+    public static final long DEFAULT_MIN_DELAY = 10;
+    
+    /** The number of response times kept for each host */
+    private static final int SAMPLES = 128;
+    /** The number of response times needed before a host is hedged */
+    private static final int MIN_SAMPLES = 20;
+    
+    private double percentile = DEFAULT_PERCENTILE;
+    private double maxHedgeRatio = DEFAULT_MAX_HEDGE_RATIO;
+    private long minDelay = DEFAULT_MIN_DELAY;
+    private final Map<String,Latencies> latencies = new HashMap<String,Latencies>();
+    private final TrafficBudget budget = new TrafficBudget();
+    private long requests = 0;
+    private long hedges = 0;
+    private long wins = 0;
+    
+    /** Creates a new HedgingPolicy with the default settings. */
+    public HedgingPolicy() {
+    }
+    
+    public synchronized double getPercentile() {
+        return percentile;
+    }
+    
+    /**
+     * @param percentile the share of the recent response times of a host
+     *        within which a request must be answered not to be hedged,
+     *        between 0 (exclusive) and 1
+     */
+    public synchronized void setPercentile(double percentile) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be above 0 and at most 1");
+        }
+        this.percentile = percentile;
+    }
+    
+    public synchronized double getMaxHedgeRatio() {
+        return maxHedgeRatio;
+    }
+    
+    /**
+     * @param ratio the share of requests which may be hedged, between 0 and 1
+     */
+    public synchronized void setMaxHedgeRatio(double ratio) {
+        if (ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("ratio must be between 0 and 1");
+        }
+        this.maxHedgeRatio = ratio;
+    }
+    
+    public synchronized long getMinDelay() {
+        return minDelay;
+    }
+    
+    /**
+     * @param millis the shortest time to wait for a response before hedging,
+     *        however fast the host usually is. Must not be negative.
+     */
+    public synchronized void setMinDelay(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        this.minDelay = millis;
+    }
+    
+    /**
+     * Decides whether the given request may be hedged at all. By default,
+     * requests with an idempotent method and a repeatable body are.
+     */
+    protected boolean isHedgeable(Request req) {
+        return RetryPolicy.isIdempotent(req.getMethod()) && req.isBodyRepeatable();
+    }
+    
+    /**
+     * @return a snapshot of the statistics of this policy
+     */
+    public synchronized Stats getStats() {
+        return new Stats(requests, hedges, wins);
+    }
+    
+    /**
+     * Counts a request, and returns how long to wait for its response before
+     * hedging it.
+     *
+     * @param route the route of the request, see {@link ConnectionPool#route}
+     * @return the delay in milliseconds, or -1 not to hedge the request
+     */
+    synchronized long requestStarted(Request req, String route) {
+        requests++;
+        budget.deposit();
+        Latencies l = latencies.get(route);
+        if (l == null || l.count < MIN_SAMPLES || !isHedgeable(req)) {
+            return -1;
+        }
+        return Math.max(minDelay, l.percentile(percentile));
+    }
+    
+    /**
+     * Takes a hedge from the budget, if it allows one.
+     */
+    synchronized boolean tryHedge() {
+        if (!budget.withdraw(maxHedgeRatio, 0)) {
+            return false;
+        }
+        hedges++;
+        return true;
+    }
+    
+    /**
+     * Records the time a request to the given route took to be answered,
+     * from when its first attempt was sent. Timing only the attempt which won
+     * would leave out the wait before a hedge, and bias the percentile low.
+     *
+     * @param hedge whether the response was to the hedge
+     */
+    synchronized void record(String route, long millis, boolean hedge) {
+        Latencies l = latencies.get(route);
+        if (l == null) {
+            l = new Latencies();
+            latencies.put(route, l);
+        }
+        l.add(millis);
+        if (hedge) {
+            wins++;
+        }
+    }
+    
+    /**
+     * The most recent response times of a host.
+     */
+    private static final class Latencies {
+        private final long[] samples = new long[SAMPLES];
+        private int next = 0;
+        private int count = 0;
+        
+        void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % SAMPLES;
+            count = Math.min(count + 1, SAMPLES);
+        }
+        
+        long percentile(double p) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int)Math.ceil(p * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+    
+    /**
+     * A snapshot of the statistics of a HedgingPolicy.
+     */
+    public static final class Stats {
+        private final long requests;
+        private final long hedges;
+        private final long wins;
+        
+        private Stats(long requests, long hedges, long wins) {
+            this.requests = requests;
+            this.hedges = hedges;
+            this.wins = wins;
+        }
+        
+        /** @return the number of requests made under the policy, not counting hedges */
+        public long getRequestCount() { return requests; }
+        /** @return the number of hedges sent */
+        public long getHedgeCount() { return hedges; }
+        /** @return the number of hedges answered before the request they raced */
+        public long getHedgeWinCount() { return wins; }
+        
+        @Override
+        public String toString() {
+            return String.format("requests=%d, hedges=%d, hedgeWins=%d", requests, hedges, wins);
+        }
+    }
+}
@@ -21,64 +21,32 @@
 
 package org.jdesktop.http;
 
+import java.net.Socket;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-import javax.swing.JOptionPane;
+import javax.net.ssl.SSLEngine;
 
 /**
  * <p>
- * MediumSecurityX509TrustManager unlike default {@link X509TrustManager} accepts 
- * self-signed certificates, but prompts the user before accepting them.
+ * HighSecurityX509TrustManager simply falls back on the standard trust
+ * manager, and so fails for self-signed certificates.
  * </p>
  */
 
-class HighSecurityX509TrustManager implements X509TrustManager {
-    private X509TrustManager standardTrustManager = null;
-
-    /** Log object for this class. */
-    private static final Logger LOG = Logger.getLogger(MediumSecurityX509TrustManager.class.getName());
-
+class HighSecurityX509TrustManager extends AbstractX509TrustManager {
     /**
-     * Constructor for EasyX509TrustManager.
+     * Constructor for HighSecurityX509TrustManager.
      */
     public HighSecurityX509TrustManager(KeyStore keystore) throws NoSuchAlgorithmException, KeyStoreException {
-        super();
-        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        factory.init(keystore);
-        TrustManager[] trustmanagers = factory.getTrustManagers();
-        if (trustmanagers.length == 0) {
-            throw new NoSuchAlgorithmException("no trust manager found");
-        }
-        this.standardTrustManager = (X509TrustManager)trustmanagers[0];
-    }
-
-    /**
-     * @see javax.net.ssl.X509TrustManager#checkClientTrusted(X509Certificate[],String authType)
-     */
-    public void checkClientTrusted(X509Certificate[] certificates,String authType) throws CertificateException {
-        standardTrustManager.checkClientTrusted(certificates,authType);
+        super(keystore);
     }
 
-    /**
-     * @see javax.net.ssl.X509TrustManager#checkServerTrusted(X509Certificate[],String authType)
-     */
-    public void checkServerTrusted(X509Certificate[] certificates,String authType) throws CertificateException {
-        standardTrustManager.checkServerTrusted(certificates,authType);
-    }
-
-    /**
-     * @see javax.net.ssl.X509TrustManager#getAcceptedIssuers()
-     */
-    public X509Certificate[] getAcceptedIssuers() {
-        return this.standardTrustManager.getAcceptedIssuers();
+    protected void checkServer(X509Certificate[] certificates, String authType, String host,
+            Socket socket, SSLEngine engine) throws CertificateException {
+        checkStandard(certificates, authType, socket, engine);
     }
 }
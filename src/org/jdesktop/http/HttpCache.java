@@ -0,0 +1,744 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A size bounded, in memory cache of responses, following the rules of
+ * RFC 7234 for a private cache. Set a cache on a {@link Session} with
+ * {@link Session#setCache}. Several Sessions may share a cache, in which
+ * case they share responses too, so a cache should only be shared between
+ * Sessions acting for the same user.</p>
+ *
+ * <p>Responses to GET requests are stored when their status and
+ * <code>Cache-Control</code> allow it. A stored response is served without
+ * contacting the server for as long as it is fresh, as given by
+ * <code>max-age</code>, <code>Expires</code>, or failing those a heuristic
+ * based on <code>Last-Modified</code>. A stale response with an
+ * <code>ETag</code> or <code>Last-Modified</code> validator is revalidated
+ * with a conditional request, and a 304 Not Modified from the server is
+ * turned into the stored response. <code>Vary</code> is honoured by storing
+ * the request headers it names, and only serving the response to requests
+ * with the same values. Only the most recent variant of each url is kept.</p>
+ *
+ * <p>The weight of an entry is the size of its body plus its headers. Once
+ * the total weight exceeds the maximum size, the least recently used entries
+ * are evicted.</p>
+ *
+ * <p>An HttpCache may be backed by a {@link DiskCache}, in which case every
+ * stored response is also written to disk, and the memory holds the most
+ * recently used of them. Responses found on disk are served, or
+ * revalidated, like those in memory, so a new process starts with a warm
+ * cache.</p>
+ */
+public class HttpCache {
+    private static final Logger LOG = Logger.getLogger(HttpCache.class.getName());
+    
+    /** The default maximum size of a cache: 10MB. */
+    public static final long DEFAULT_MAX_SIZE = 10 * 1024 * 1024;
+    
+    /** The longest heuristic freshness lifetime, one day. */
+    private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000L;
+    private static final int ENTRY_OVERHEAD = 128;
+    
+    /** Status codes which may be cached without explicit freshness, from RFC 7231 section 6.1 */
+    private static final Set<Integer> CACHEABLE_BY_DEFAULT = new HashSet<Integer>();
+    static {
+        for (int code : new int[] {200, 203, 204, 300, 301, 404, 405, 410, 414, 501}) {
+            CACHEABLE_BY_DEFAULT.add(code);
+        }
+    }
+    
+    /** Headers of a 304 which must not replace the stored ones. */
+    private static final Set<String> NOT_UPDATED = new HashSet<String>();
+    static {
+        for (String name : new String[] {"content-length", "content-encoding", "transfer-encoding",
+                "content-range", "connection"}) {
+            NOT_UPDATED.add(name);
+        }
+    }
+    
+    private final DiskCache disk;
+    private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+    private long maxSize;
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long revalidations = 0;
+    private long stores = 0;
+    private long evictions = 0;
+    
+    /** Creates a new HttpCache of {@link #DEFAULT_MAX_SIZE}. */
+    public HttpCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+    
+    /**
+     * Creates a new HttpCache.
+     *
+     * @param maxSize the maximum total weight, in bytes, of the entries
+     */
+    public HttpCache(long maxSize) {
+        this(maxSize, null);
+    }
+    
+    /**
+     * Creates a new HttpCache backed by the given DiskCache.
+     *
+     * @param maxSize the maximum total weight, in bytes, of the entries held
+     *        in memory
+     * @param disk the DiskCache to which responses are written, and from which
+     *        they are read when not in memory. May be null.
+     */
+    public HttpCache(long maxSize, DiskCache disk) {
+        this.disk = disk;
+        setMaxSize(maxSize);
+    }
+    
+    /**
+     * @return the DiskCache backing this cache, or null if there is none
+     */
+    public final DiskCache getDiskCache() {
+        return disk;
+    }
+    
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * Sets the maximum total weight of the entries, evicting entries if needed.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize cannot be negative");
+        }
+        this.maxSize = maxSize;
+        trim();
+    }
+    
+    /**
+     * @return the current total weight of the entries, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+    
+    /**
+     * Removes every entry, including those on disk.
+     */
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            size = 0;
+        }
+        if (disk != null) {
+            try {
+                disk.clear();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not clear the disk cache", e);
+            }
+        }
+    }
+    
+    /**
+     * Removes the entry for the given url, if any, including from disk.
+     */
+    public void remove(String url) {
+        removeFromMemory(url);
+        if (disk != null) {
+            try {
+                disk.remove(url);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not remove " + url + " from the disk cache", e);
+            }
+        }
+    }
+    
+    private synchronized void removeFromMemory(String url) {
+        Entry e = entries.remove(url);
+        if (e != null) {
+            size -= e.weight;
+        }
+    }
+    
+    private synchronized boolean contains(String url) {
+        return entries.containsKey(url);
+    }
+    
+    private synchronized void putInMemory(String url, Entry e) {
+        Entry old = entries.put(url, e);
+        if (old != null) {
+            size -= old.weight;
+        }
+        size += e.weight;
+        trim();
+    }
+    
+    /**
+     * Writes the entry to disk, if there is a DiskCache.
+     */
+    private void persist(String url, Entry e) {
+        if (disk != null) {
+            try {
+                disk.put(url, e.toBytes());
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Could not write " + url + " to the disk cache", ex);
+            }
+        }
+    }
+    
+    /**
+     * @return a snapshot of the statistics of this cache
+     */
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, revalidations, stores, evictions, entries.size(), size);
+    }
+    
+    /**
+     * Looks up the request in the cache. Called by the Session before the
+     * request is sent.
+     *
+     * @return null if the cache has nothing to offer, otherwise a Lookup with
+     *         either a fresh response, or a conditional request to send instead
+     */
+    Lookup lookup(Request req, URL url) {
+        if (req.getMethod() != Method.GET) {
+            return null;
+        }
+        String key = url.toString();
+        Entry fromDisk = null;
+        if (disk != null && !contains(key)) {
+            try {
+                byte[] data = disk.get(key);
+                if (data != null) {
+                    fromDisk = Entry.fromBytes(data);
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not read " + key + " from the disk cache", e);
+            }
+            if (fromDisk != null) {
+                putInMemory(key, fromDisk);
+            }
+        }
+        return lookup(req, key, fromDisk);
+    }
+    
+    private synchronized Lookup lookup(Request req, String key, Entry fromDisk) {
+        Directives request = new Directives(req.getHeader("Cache-Control"));
+        if (request.noStore) {
+            return null;
+        }
+        if (request.noCache == null) {
+            Header pragma = req.getHeader("Pragma");
+            if (pragma != null && pragma.getValue() != null && pragma.getValue().toLowerCase().contains("no-cache")) {
+                request.noCache = "";
+            }
+        }
+        
+        Entry e = entries.get(key);
+        if (e == null) {
+            //the memory may be too small to hold what was just read from disk
+            e = fromDisk;
+        }
+        if (e != null && !e.matches(req)) {
+            e = null;
+        }
+        long now = System.currentTimeMillis();
+        if (e != null && request.noCache == null && !e.directives.mustAlwaysRevalidate()) {
+            long age = e.age(now);
+            long lifetime = e.lifetime();
+            if (request.maxAge >= 0) lifetime = Math.min(lifetime, request.maxAge * 1000);
+            if (request.minFresh >= 0) age += request.minFresh * 1000;
+            if (age < lifetime) {
+                hits++;
+                return new Lookup(e.withAge(now), null, null);
+            }
+        }
+        
+        if (request.onlyIfCached) {
+            misses++;
+            return new Lookup(new Response(StatusCode.GATEWAY_TIMEOUT, "Not in cache", null, null, null, null), null, null);
+        }
+        if (e == null || (e.etag == null && e.lastModified == null)) {
+            misses++;
+            return null;
+        }
+        
+        //revalidate with the server, unless the request has its own conditions
+        if (req.getHeader("If-None-Match") != null || req.getHeader("If-Modified-Since") != null) {
+            misses++;
+            return null;
+        }
+        Request conditional = new Request(req);
+        if (e.etag != null) {
+            conditional.setHeader("If-None-Match", e.etag);
+        }
+        if (e.lastModified != null) {
+            conditional.setHeader("If-Modified-Since", e.lastModified);
+        }
+        return new Lookup(null, e, conditional);
+    }
+    
+    /**
+     * Called by the Session with the Response to a request, which was sent
+     * after the given lookup (which may be null). Stores the response if
+     * possible.
+     *
+     * @param requestTime when the request was sent
+     * @return the Response to hand to the caller. For a 304 Not Modified which
+     *         answers a revalidation, this is the stored response.
+     */
+    Response store(Request req, URL url, Lookup lookup, Response response, long requestTime) {
+        long now = System.currentTimeMillis();
+        String key = url.toString();
+        int status = response.getStatusCode().getCode();
+        Method method = req.getMethod();
+        
+        if (method != Method.GET && method != Method.HEAD && method != Method.OPTIONS && method != Method.TRACE) {
+            //unsafe methods invalidate what is stored for the url (RFC 7234 section 4.4)
+            if (status < 400) {
+                remove(key);
+            }
+            return response;
+        }
+        
+        if (lookup != null && lookup.stale != null && status == 304) {
+            Entry e = lookup.stale.update(response.getHeaders(), requestTime, now);
+            synchronized (this) {
+                revalidations++;
+                //unless the entry was evicted, or replaced, while revalidating
+                if (entries.get(key) == lookup.stale) {
+                    entries.put(key, e);
+                    size += e.weight - lookup.stale.weight;
+                    trim();
+                }
+            }
+            persist(key, e);
+            return e.withAge(now);
+        }
+        
+        if (lookup != null && lookup.stale != null) {
+            synchronized (this) {
+                misses++;
+            }
+        }
+        if (method != Method.GET) {
+            return response;
+        }
+        
+        Directives req_ = new Directives(req.getHeader("Cache-Control"));
+        Directives res = new Directives(response.getHeader("Cache-Control"));
+        Header vary = response.getHeader("Vary");
+        boolean explicit = res.maxAge >= 0 || response.getHeader("Expires") != null;
+        boolean storable = !req_.noStore && !res.noStore &&
+            (vary == null || !vary.getValue().contains("*")) &&
+            (CACHEABLE_BY_DEFAULT.contains(status) || explicit) &&
+            (status != 206);
+        Entry e = storable ? Entry.forRequest(req, response, requestTime, now) : null;
+        if (e == null || (e.lifetime() <= 0 && e.etag == null && e.lastModified == null)) {
+            //not storable, or would never be fresh and could never be revalidated
+            remove(key);
+            return response;
+        }
+        synchronized (this) {
+            stores++;
+        }
+        putInMemory(key, e);
+        persist(key, e);
+        return response;
+    }
+    
+    private void trim() {
+        Iterator<Entry> itr = entries.values().iterator();
+        while (size > maxSize && itr.hasNext()) {
+            Entry e = itr.next();
+            itr.remove();
+            size -= e.weight;
+            evictions++;
+        }
+    }
+    
+    static Date parseDate(String value) {
+        if (value == null) return null;
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value.trim());
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+    
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * The result of looking up a request.
+     */
+    static final class Lookup {
+        /** a response to serve without contacting the server, or null */
+        final Response fresh;
+        /** the stored entry being revalidated, or null */
+        final Entry stale;
+        /** the conditional request to send instead of the original, or null */
+        final Request conditional;
+        
+        private Lookup(Response fresh, Entry stale, Request conditional) {
+            this.fresh = fresh;
+            this.stale = stale;
+            this.conditional = conditional;
+        }
+    }
+    
+    /**
+     * The parsed Cache-Control directives of a request or response.
+     */
+    private static final class Directives {
+        private boolean noStore;
+        /** non null if no-cache was given, possibly with a list of headers */
+        private String noCache;
+        private boolean mustRevalidate;
+        private boolean onlyIfCached;
+        private long maxAge = -1;
+        private long minFresh = -1;
+        
+        private Directives(Header header) {
+            if (header == null || header.getValue() == null) return;
+            for (String directive : header.getValue().split(",")) {
+                directive = directive.trim().toLowerCase();
+                String value = null;
+                int eq = directive.indexOf('=');
+                if (eq > 0) {
+                    value = directive.substring(eq + 1).trim();
+                    if (value.startsWith("\"") && value.endsWith("\"") && value.length() > 1) {
+                        value = value.substring(1, value.length() - 1);
+                    }
+                    directive = directive.substring(0, eq).trim();
+                }
+                if (directive.equals("no-store")) {
+                    noStore = true;
+                } else if (directive.equals("no-cache")) {
+                    noCache = value == null ? "" : value;
+                } else if (directive.equals("must-revalidate")) {
+                    mustRevalidate = true;
+                } else if (directive.equals("only-if-cached")) {
+                    onlyIfCached = true;
+                } else if (directive.equals("max-age") && value != null) {
+                    maxAge = parseSeconds(value);
+                } else if (directive.equals("min-fresh") && value != null) {
+                    minFresh = parseSeconds(value);
+                }
+            }
+        }
+        
+        /**
+         * @return true if the stored response must be revalidated before
+         *         every use
+         */
+        private boolean mustAlwaysRevalidate() {
+            return noCache != null && noCache.length() == 0;
+        }
+    }
+    
+    /**
+     * A stored response. Entries are immutable, so that they can be written to
+     * disk without holding the lock of the cache.
+     */
+    static final class Entry {
+        private final Response response;
+        private final Directives directives;
+        /** the values of the request headers named by Vary */
+        private final Map<String,String> varying;
+        private final String etag;
+        private final String lastModified;
+        private final long requestTime;
+        private final long responseTime;
+        private final long weight;
+        
+        private Entry(Response response, Map<String,String> varying, long requestTime, long responseTime) {
+            this.response = response;
+            this.varying = varying;
+            this.requestTime = requestTime;
+            this.responseTime = responseTime;
+            this.directives = new Directives(response.getHeader("Cache-Control"));
+            this.etag = headerValue("ETag");
+            this.lastModified = headerValue("Last-Modified");
+            long w = ENTRY_OVERHEAD + response.getBodyAsBytes().length;
+            for (Header h : response.getHeaders()) {
+                w += 2 * (length(h.getName()) + length(h.getValue()));
+            }
+            this.weight = w;
+        }
+        
+        private static Entry forRequest(Request req, Response response, long requestTime, long responseTime) {
+            Map<String,String> varying = new LinkedHashMap<String,String>();
+            Header vary = response.getHeader("Vary");
+            if (vary != null && vary.getValue() != null) {
+                for (String name : vary.getValue().split(",")) {
+                    name = name.trim();
+                    if (name.length() == 0) continue;
+                    Header h = req.getHeader(name);
+                    varying.put(name, h == null ? null : h.getValue());
+                }
+            }
+            return new Entry(response, varying, requestTime, responseTime);
+        }
+        
+        /**
+         * @return the entry, in the form written to a DiskCache
+         */
+        private byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(response.getBodyAsBytes().length + 512);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(varying.size());
+            for (Map.Entry<String,String> v : varying.entrySet()) {
+                out.writeUTF(v.getKey());
+                writeString(out, v.getValue());
+            }
+            out.writeInt(response.getStatusCode().getCode());
+            writeString(out, response.getStatusText());
+            writeString(out, response.getCharset());
+            writeString(out, response.getBaseUrl());
+            Header[] headers = response.getHeaders();
+            out.writeInt(headers.length);
+            for (Header h : headers) {
+                out.writeUTF(h.getName());
+                writeString(out, h.getValue());
+            }
+            out.writeLong(requestTime);
+            out.writeLong(responseTime);
+            byte[] body = response.getBodyAsBytes();
+            out.writeInt(body.length);
+            out.write(body);
+            out.close();
+            return bytes.toByteArray();
+        }
+        
+        /**
+         * @return the entry read from the given bytes, or null if they cannot
+         *         be understood
+         */
+        private static Entry fromBytes(byte[] data) {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                Map<String,String> varying = new LinkedHashMap<String,String>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    varying.put(in.readUTF(), readString(in));
+                }
+                StatusCode status = StatusCode.valueOf(in.readInt());
+                String statusText = readString(in);
+                String charset = readString(in);
+                String baseUrl = readString(in);
+                Set<Header> headers = new HashSet<Header>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    headers.add(new Header(in.readUTF(), readString(in)));
+                }
+                long requestTime = in.readLong();
+                long responseTime = in.readLong();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                if (status == null) {
+                    return null;
+                }
+                Response response = new Response(status, statusText, body, charset, headers, baseUrl);
+                return new Entry(response, varying, requestTime, responseTime);
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Could not read a cached response", e);
+                return null;
+            } catch (RuntimeException e) {
+                LOG.log(Level.FINE, "Could not read a cached response", e);
+                return null;
+            }
+        }
+        
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            out.writeBoolean(s != null);
+            if (s != null) {
+                out.writeUTF(s);
+            }
+        }
+        
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+        
+        private static int length(String s) {
+            return s == null ? 0 : s.length();
+        }
+        
+        private boolean matches(Request req) {
+            for (Map.Entry<String,String> v : varying.entrySet()) {
+                Header h = req.getHeader(v.getKey());
+                String value = h == null ? null : h.getValue();
+                if (value == null ? v.getValue() != null : !value.equals(v.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * @return the freshness lifetime in milliseconds (RFC 7234 section 4.2.1)
+         */
+        private long lifetime() {
+            if (directives.maxAge >= 0) {
+                return directives.maxAge * 1000;
+            }
+            Date date = parseDate(headerValue("Date"));
+            long base = date == null ? responseTime : date.getTime();
+            Header expires = response.getHeader("Expires");
+            if (expires != null) {
+                Date d = parseDate(expires.getValue());
+                //an invalid Expires means already expired
+                return d == null ? 0 : Math.max(0, d.getTime() - base);
+            }
+            Date modified = parseDate(lastModified);
+            if (modified != null && modified.getTime() < base) {
+                return Math.min(MAX_HEURISTIC_LIFETIME, (base - modified.getTime()) / 10);
+            }
+            return 0;
+        }
+        
+        /**
+         * @return the current age in milliseconds (RFC 7234 section 4.2.3)
+         */
+        private long age(long now) {
+            Date date = parseDate(headerValue("Date"));
+            long apparentAge = date == null ? 0 : Math.max(0, responseTime - date.getTime());
+            long ageValue = 0;
+            String age = headerValue("Age");
+            if (age != null) {
+                ageValue = Math.max(0, parseSeconds(age)) * 1000;
+            }
+            long correctedAge = ageValue + (responseTime - requestTime);
+            return Math.max(apparentAge, correctedAge) + (now - responseTime);
+        }
+        
+        private String headerValue(String name) {
+            Header h = response.getHeader(name);
+            return h == null ? null : h.getValue();
+        }
+        
+        /**
+         * @return a copy of this entry with its headers updated from those
+         *         of a 304 response
+         */
+        private Entry update(Header[] headers, long requestTime, long responseTime) {
+            Set<Header> merged = new HashSet<Header>();
+            Set<String> replaced = new HashSet<String>();
+            for (Header h : headers) {
+                if (!NOT_UPDATED.contains(h.getName().toLowerCase())) {
+                    replaced.add(h.getName().toLowerCase());
+                    merged.add(h);
+                }
+            }
+            for (Header h : response.getHeaders()) {
+                if (!replaced.contains(h.getName().toLowerCase())) {
+                    merged.add(h);
+                }
+            }
+            return new Entry(response.withHeaders(merged), varying, requestTime, responseTime);
+        }
+        
+        /**
+         * @return the stored response, with an Age header
+         */
+        private Response withAge(long now) {
+            Set<Header> headers = new HashSet<Header>();
+            for (Header h : response.getHeaders()) {
+                if (!h.getName().equalsIgnoreCase("Age")) {
+                    headers.add(h);
+                }
+            }
+            headers.add(new Header("Age", String.valueOf(age(now) / 1000)));
+            return response.withHeaders(headers);
+        }
+    }
+    
+    /**
+     * A snapshot of the statistics of an HttpCache.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long revalidations;
+        private final long stores;
+        private final long evictions;
+        private final int entries;
+        private final long size;
+        
+        private Stats(long hits, long misses, long revalidations, long stores, long evictions, int entries, long size) {
+            this.hits = hits;
+            this.misses = misses;
+            this.revalidations = revalidations;
+            this.stores = stores;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.size = size;
+        }
+        
+        /** @return the number of requests served from the cache without contacting the server */
+        public long getHitCount() { return hits; }
+        /** @return the number of requests which had to be sent to the server in full */
+        public long getMissCount() { return misses; }
+        /** @return the number of stored responses confirmed by a 304 Not Modified */
+        public long getRevalidationCount() { return revalidations; }
+        /** @return the number of responses stored */
+        public long getStoreCount() { return stores; }
+        /** @return the number of entries evicted to stay within the maximum size */
+        public long getEvictionCount() { return evictions; }
+        /** @return the number of entries */
+        public int getEntryCount() { return entries; }
+        /** @return the total weight of the entries, in bytes */
+        public long getSize() { return size; }
+        
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, revalidations=%d, stores=%d, evictions=%d, entries=%d, size=%d",
+                    hits, misses, revalidations, stores, evictions, entries, size);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.CookieHandler;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLContext;
+
+/**
+ * <p>A {@link Transport} built on <code>java.net.http.HttpClient</code>. Unlike
+ * {@link URLConnectionTransport}, this transport negotiates HTTP/2 when the
+ * server offers it, multiplexes concurrent exchanges to the same host over a
+ * single connection, and performs its I/O without blocking a thread per
+ * connection. It is an {@link AsyncTransport}, so {@link Session#executeAsync}
+ * does not tie up a thread while waiting for the server either.</p>
+ *
+ * <p>HttpClient manages its own connections. The leases taken from the
+ * {@link ConnectionPool} of the Session are therefore only used to enforce
+ * the per-route and total limits on concurrent exchanges, so that both
+ * transports can be compared under the same limits.</p>
+ *
+ * <p>An HttpClient is created lazily for each combination of SSL settings,
+ * redirect policy and connect timeout in use, and reused for every subsequent
+ * exchange. At most {@link #MAX_CLIENTS} are kept; the least recently used
+ * one beyond that is shut down once its exchanges in flight are done.</p>
+ */
+public class HttpClientTransport implements AsyncTransport {
+    /**
+     * Headers which HttpClient computes itself and refuses to have set.
+     */
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<String>();
+    static {
+        RESTRICTED_HEADERS.add("connection");
+        RESTRICTED_HEADERS.add("content-length");
+        RESTRICTED_HEADERS.add("expect");
+        RESTRICTED_HEADERS.add("host");
+        RESTRICTED_HEADERS.add("upgrade");
+    }
+    
+    private static final ConnectionPool.Factory SLOT_FACTORY = new ConnectionPool.Factory() {
+        public ConnectionPool.Connection create(String route) {
+            return new Slot(route);
+        }
+    };
+    
+    /**
+     * The most HttpClients kept at once. Each has a selector thread and
+     * connections of its own, so the least recently used is let go beyond this.
+     */
+    public static final int MAX_CLIENTS = 8;
+    
+    /** in least recently used order */
+    private final Map<List<Object>,HttpClient> clients = new LinkedHashMap<List<Object>,HttpClient>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>,HttpClient> eldest) {
+            if (size() > MAX_CLIENTS) {
+                shutdown(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final HttpClient.Version version;
+    private final Executor executor;
+    
+    /**
+     * Creates a new HttpClientTransport which prefers HTTP/2, and uses the
+     * default HttpClient executor.
+     */
+    public HttpClientTransport() {
+        this(HttpClient.Version.HTTP_2, null);
+    }
+    
+    /**
+     * Creates a new HttpClientTransport.
+     *
+     * @param version the preferred HTTP version. If null, HTTP/2 is preferred.
+     * @param executor the executor HttpClient uses for asynchronous tasks. If
+     *        null, the HttpClient default is used.
+     */
+    public HttpClientTransport(HttpClient.Version version, Executor executor) {
+        this.version = version == null ? HttpClient.Version.HTTP_2 : version;
+        this.executor = executor;
+    }
+    
+    public void execute(Exchange exchange) throws Exception {
+        ConnectionPool pool = exchange.getConnectionPool();
+        ConnectionPool.Connection lease = pool.lease(exchange.getRoute(), SLOT_FACTORY);
+        boolean handedOff = false;
+        try {
+            URI uri = exchange.getUrl().toURI();
+            InputStream body = exchange.getBody();
+            
+            // the exchange is sent asynchronously, so that it can be aborted
+            // by cancelling the future when the deadline passes
+            HttpResponse<InputStream> response;
+            final CompletableFuture<HttpResponse<InputStream>> future = getClient(exchange).sendAsync(
+                    buildRequest(exchange, uri, body), HttpResponse.BodyHandlers.ofInputStream());
+            exchange.setCanceller(new Runnable() {
+                public void run() {
+                    future.cancel(true);
+                }
+            });
+            try {
+                response = future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true);
+                throw e;
+            } catch (CancellationException e) {
+                throw new SocketTimeoutException("The deadline passed before " + uri + " responded");
+            } catch (ExecutionException e) {
+                throw failed(e.getCause(), uri);
+            } finally {
+                if (body != null) body.close();
+            }
+            exchange.sent();
+            final InputStream in = response.body();
+            exchange.setCanceller(new Runnable() {
+                public void run() {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        //nothing more can be done to abort it
+                    }
+                }
+            });
+            
+            //HttpClient does not expose the reason phrase
+            StatusCode code = StatusCode.valueOf(response.statusCode());
+            exchange.setResponse(response.statusCode(), code == null ? null : code.getDescription(),
+                    response.headers().map(), new LeasedInputStream(in, pool, lease));
+            handedOff = true;
+        } finally {
+            if (!handedOff) {
+                pool.release(lease, false);
+            }
+        }
+    }
+    
+    public CompletableFuture<Void> executeAsync(final Exchange exchange) {
+        final ConnectionPool pool = exchange.getConnectionPool();
+        //cancelling the lease gives up waiting for a slot
+        final CompletableFuture<ConnectionPool.Connection> lease = pool.leaseAsync(exchange.getRoute(), SLOT_FACTORY);
+        exchange.setCanceller(new Runnable() {
+            public void run() {
+                lease.cancel(false);
+            }
+        });
+        return lease.handle(new BiFunction<ConnectionPool.Connection,Throwable,ConnectionPool.Connection>() {
+            public ConnectionPool.Connection apply(ConnectionPool.Connection slot, Throwable t) {
+                if (t == null) {
+                    return slot;
+                }
+                if (t instanceof CompletionException && t.getCause() != null) {
+                    t = t.getCause();
+                }
+                if (t instanceof CancellationException) {
+                    t = new SocketTimeoutException("The exchange was aborted while waiting to be sent to "
+                            + exchange.getRoute());
+                }
+                throw new CompletionException(t);
+            }
+        }).thenCompose(new Function<ConnectionPool.Connection,CompletionStage<Void>>() {
+            public CompletionStage<Void> apply(ConnectionPool.Connection slot) {
+                return send(exchange, slot);
+            }
+        });
+    }
+    
+    /**
+     * Sends the exchange on the given slot. The body of the response is
+     * buffered before the returned future completes.
+     */
+    private CompletableFuture<Void> send(final Exchange exchange, final ConnectionPool.Connection slot) {
+        final ConnectionPool pool = exchange.getConnectionPool();
+        final URI uri;
+        final InputStream body;
+        final CompletableFuture<HttpResponse<byte[]>> future;
+        try {
+            if (exchange.isCancelled()) {
+                throw new SocketTimeoutException("The exchange was aborted before it was sent to " + exchange.getRoute());
+            }
+            uri = exchange.getUrl().toURI();
+            body = exchange.getBody();
+            future = getClient(exchange).sendAsync(buildRequest(exchange, uri, body),
+                    HttpResponse.BodyHandlers.ofByteArray());
+        } catch (Exception e) {
+            pool.release(slot, false);
+            CompletableFuture<Void> failed = new CompletableFuture<Void>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        exchange.setCanceller(new Runnable() {
+            public void run() {
+                future.cancel(true);
+            }
+        });
+        return future.handle(new BiFunction<HttpResponse<byte[]>,Throwable,Void>() {
+            public Void apply(HttpResponse<byte[]> response, Throwable t) {
+                try {
+                    if (body != null) body.close();
+                } catch (IOException e) {
+                    //ignore
+                }
+                if (t != null) {
+                    pool.release(slot, false);
+                    if (t instanceof CompletionException && t.getCause() != null) {
+                        t = t.getCause();
+                    }
+                    if (t instanceof CancellationException) {
+                        t = new SocketTimeoutException("The deadline passed before " + uri + " responded");
+                    } else {
+                        t = failed(t, uri);
+                    }
+                    throw new CompletionException(t);
+                }
+                exchange.sent();
+                //HttpClient does not expose the reason phrase
+                StatusCode code = StatusCode.valueOf(response.statusCode());
+                exchange.setResponse(response.statusCode(), code == null ? null : code.getDescription(),
+                        response.headers().map(),
+                        new LeasedInputStream(new ByteArrayInputStream(response.body()), pool, slot));
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Builds the HttpRequest for the given exchange.
+     *
+     * @param body the body of the request, or null
+     */
+    private static HttpRequest buildRequest(Exchange exchange, URI uri, final InputStream body) {
+        Request req = exchange.getRequest();
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri);
+        for (Header h : req.getHeaders()) {
+            if (h.getValue() != null && !RESTRICTED_HEADERS.contains(h.getName().toLowerCase())) {
+                builder.header(h.getName(), h.getValue());
+            }
+        }
+        
+        HttpRequest.BodyPublisher publisher;
+        if (body == null) {
+            publisher = HttpRequest.BodyPublishers.noBody();
+        } else {
+            publisher = HttpRequest.BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+                public InputStream get() {
+                    return body;
+                }
+            });
+            if (exchange.getContentLength() >= 0) {
+                publisher = HttpRequest.BodyPublishers.fromPublisher(publisher, exchange.getContentLength());
+            }
+        }
+        builder.method(req.getMethod().name(), publisher);
+        //HttpClient has no timeout between reads, so the read timeout
+        //only applies until the response head arrives
+        if (exchange.getReadTimeout() > 0) {
+            builder.timeout(Duration.ofMillis(exchange.getReadTimeout()));
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Translates the exceptions thrown by HttpClient into those thrown by the
+     * other transports.
+     */
+    private static Exception failed(Throwable t, URI uri) {
+        if (t instanceof HttpTimeoutException) {
+            SocketTimeoutException timeout = new SocketTimeoutException(t.getMessage());
+            timeout.initCause(t);
+            return timeout;
+        }
+        if (t instanceof ConnectException) {
+            for (Throwable c = t.getCause(); c != null; c = c.getCause()) {
+                if (c instanceof UnresolvedAddressException) {
+                    UnknownHostException uhe = new UnknownHostException(uri.getHost());
+                    uhe.initCause(t);
+                    return uhe;
+                }
+            }
+        }
+        if (t instanceof Exception) {
+            return (Exception)t;
+        }
+        if (t instanceof Error) {
+            throw (Error)t;
+        }
+        return new IOException(t);
+    }
+    
+    /**
+     * Lets go of a client evicted from the cache. HttpClient.shutdown, where
+     * the runtime has it, lets the exchanges in flight finish and then closes
+     * the connections and stops the selector thread. Older runtimes stop them
+     * once the client is no longer referenced and has nothing in flight.
+     */
+    private static void shutdown(HttpClient client) {
+        try {
+            HttpClient.class.getMethod("shutdown").invoke(client);
+        } catch (Exception e) {
+            //not available, it is left to be collected
+        }
+    }
+    
+    private HttpClient getClient(Exchange exchange) {
+        Request req = exchange.getRequest();
+        boolean https = "https".equalsIgnoreCase(exchange.getUrl().getProtocol());
+        //SSLContexts are cached by the Session, so their identity is enough
+        SSLContext context = https ? exchange.getSSLContext() : null;
+        //the connect timeout belongs to the client, so the time left before
+        //the deadline is left to the canceller
+        long connectTimeout = exchange.connectTimeout;
+        List<Object> key = Arrays.asList(context, req.getFollowRedirects(), connectTimeout);
+        synchronized (clients) {
+            HttpClient client = clients.get(key);
+            if (client == null) {
+                HttpClient.Builder builder = HttpClient.newBuilder()
+                        .version(version)
+                        .followRedirects(req.getFollowRedirects() ?
+                            HttpClient.Redirect.NORMAL : HttpClient.Redirect.NEVER);
+                if (connectTimeout > 0) {
+                    builder.connectTimeout(Duration.ofMillis(connectTimeout));
+                }
+                if (context != null) {
+                    builder.sslContext(context);
+                }
+                CookieHandler cookies = CookieHandler.getDefault();
+                if (cookies != null) {
+                    builder.cookieHandler(cookies);
+                }
+                if (executor != null) {
+                    builder.executor(executor);
+                }
+                client = builder.build();
+                clients.put(key, client);
+            }
+            return client;
+        }
+    }
+    
+    /**
+     * A permit for one exchange in flight on a route.
+     */
+    private static final class Slot extends ConnectionPool.Connection {
+        private Slot(String route) {
+            super(route);
+        }
+        
+        protected boolean isOpen() {
+            return true;
+        }
+        
+        protected void close() {
+        }
+        
+        protected boolean tracksReuse() {
+            return false;
+        }
+    }
+}
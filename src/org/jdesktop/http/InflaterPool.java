@@ -0,0 +1,78 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.util.ArrayDeque;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Keeps Inflaters for reuse in decoding compressed responses. Each Inflater
+ * holds native zlib state, which is only freed when it is ended or finalized,
+ * so creating one per response churns native memory when many small responses
+ * are received. Instead they are reset and handed out again.</p>
+ *
+ * <p>At most {@link #MAX_POOLED} Inflaters of each kind are kept, which bounds
+ * the native memory held by the pool. Any more are ended when released.</p>
+ */
+final class InflaterPool {
+    /** The most Inflaters of each kind (raw and zlib) kept in the pool */
+    static final int MAX_POOLED = 16;
+    
+    private static final ArrayDeque<Inflater> RAW = new ArrayDeque<Inflater>();
+    private static final ArrayDeque<Inflater> ZLIB = new ArrayDeque<Inflater>();
+    
+    private InflaterPool() {
+    }
+    
+    /**
+     * Takes an Inflater from the pool, or creates one if the pool is empty.
+     *
+     * @param nowrap true for raw deflate data (as in gzip), false for data in
+     *        the zlib format
+     */
+    static Inflater acquire(boolean nowrap) {
+        ArrayDeque<Inflater> pool = nowrap ? RAW : ZLIB;
+        synchronized (pool) {
+            Inflater inflater = pool.poll();
+            if (inflater != null) {
+                return inflater;
+            }
+        }
+        return new Inflater(nowrap);
+    }
+    
+    /**
+     * Returns an Inflater taken with {@link #acquire} to the pool. It must not
+     * be used again by the caller.
+     */
+    static void release(Inflater inflater, boolean nowrap) {
+        inflater.reset();
+        ArrayDeque<Inflater> pool = nowrap ? RAW : ZLIB;
+        synchronized (pool) {
+            if (pool.size() < MAX_POOLED) {
+                pool.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * <p>Decodes a response body sent with a Content-Encoding of gzip or deflate,
+ * using an Inflater from the {@link InflaterPool}, which is given back when
+ * the stream is closed.</p>
+ *
+ * <p>A gzip body may hold several members one after the other, as with
+ * <code>GZIPInputStream</code>, but unlike it an empty body is read as
+ * empty rather than failing. A deflate body should be in the zlib format,
+ * but some servers send raw deflate data instead, so the format is worked
+ * out from the first two bytes.</p>
+ */
+final class InflatingInputStream extends InflaterInputStream {
+    private static final int BUFFER = 8192;
+    
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    
+    private final PushbackInputStream source;
+    private final boolean nowrap;
+    /** the checksum of the current gzip member, or null if not gzip */
+    private final CRC32 crc;
+    private boolean started = false;
+    private boolean eof = false;
+    private boolean released = false;
+    
+    private InflatingInputStream(PushbackInputStream source, boolean gzip, boolean nowrap) {
+        super(source, InflaterPool.acquire(nowrap), BUFFER);
+        this.source = source;
+        this.nowrap = nowrap;
+        this.crc = gzip ? new CRC32() : null;
+    }
+    
+    /**
+     * Returns a stream which decodes the given body. Encodings other than
+     * gzip and deflate are left for the caller to deal with.
+     *
+     * @param in the encoded body
+     * @param encoding the value of the Content-Encoding header, or null
+     * @return the decoded body, or <code>in</code> itself if the encoding is
+     *         not one this class decodes
+     */
+    static InputStream decode(InputStream in, String encoding) throws IOException {
+        if (encoding == null) {
+            return in;
+        }
+        encoding = encoding.trim().toLowerCase();
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            return new InflatingInputStream(new PushbackInputStream(in, BUFFER), true, true);
+        } else if ("deflate".equals(encoding)) {
+            PushbackInputStream source = new PushbackInputStream(in, BUFFER);
+            int b0 = source.read();
+            if (b0 == -1) {
+                return source;
+            }
+            int b1 = source.read();
+            if (b1 != -1) {
+                source.unread(b1);
+            }
+            source.unread(b0);
+            //a zlib header names the deflate method, and is a multiple of 31
+            boolean zlib = b1 != -1 && (b0 & 0x0f) == 8 && (b0 >> 4) <= 7 && ((b0 << 8) | b1) % 31 == 0;
+            return new InflatingInputStream(source, false, !zlib);
+        }
+        return in;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int length) throws IOException {
+        if (eof) {
+            return -1;
+        }
+        if (crc != null && !started) {
+            started = true;
+            if (!readHeader(true)) {
+                eof = true;
+                return -1;
+            }
+        }
+        while (true) {
+            int n = super.read(b, off, length);
+            if (n != -1) {
+                if (crc != null) {
+                    crc.update(b, off, n);
+                }
+                return n;
+            }
+            if (crc == null || !nextMember()) {
+                eof = true;
+                return -1;
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (!released) {
+                released = true;
+                InflaterPool.release(inf, nowrap);
+            }
+        }
+    }
+    
+    /**
+     * Checks the trailer of the gzip member just inflated, and starts on the
+     * next one, if there is one.
+     *
+     * @return true if there is another member
+     */
+    private boolean nextMember() throws IOException {
+        //give back what the inflater read past the end of the member
+        int remaining = inf.getRemaining();
+        if (remaining > 0) {
+            source.unread(buf, len - remaining, remaining);
+        }
+        long checksum = readInt();
+        long size = readInt();
+        if (checksum != crc.getValue() || size != (inf.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+        inf.reset();
+        crc.reset();
+        return readHeader(false);
+    }
+    
+    /**
+     * Reads the header of a gzip member.
+     *
+     * @param first whether this is the first member
+     * @return false if the body ends here
+     */
+    private boolean readHeader(boolean first) throws IOException {
+        int magic = source.read();
+        if (magic == -1) {
+            return false;
+        }
+        if (magic != 0x1f || readByte() != 0x8b) {
+            if (first) {
+                throw new ZipException("Not in GZIP format");
+            }
+            //as GZIPInputStream does, ignore anything after the last member
+            return false;
+        }
+        if (readByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+        int flags = readByte();
+        for (int i = 0; i < 6; i++) {
+            //modification time, extra flags and operating system
+            readByte();
+        }
+        if ((flags & FEXTRA) != 0) {
+            int length = readByte() | (readByte() << 8);
+            for (int i = 0; i < length; i++) {
+                readByte();
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            while (readByte() != 0) {
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (readByte() != 0) {
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            readByte();
+            readByte();
+        }
+        return true;
+    }
+    
+    private long readInt() throws IOException {
+        return readByte() | (readByte() << 8) | (readByte() << 16) | ((long)readByte() << 24);
+    }
+    
+    private int readByte() throws IOException {
+        int b = source.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of GZIP input stream");
+        }
+        return b;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>A response body stream bound to a connection leased from a
+ * {@link ConnectionPool}. Closing the stream releases the connection back to
+ * the pool.</p>
+ *
+ * <p>A connection may only be reused once the response body has been read to
+ * the end. If the stream is closed early, up to <code>drainLimit</code> bytes
+ * of the remaining body are read and thrown away. If the end still has not
+ * been reached, the connection is discarded rather than reused. Subclasses
+ * override {@link #discard()} to actually close the underlying socket in that
+ * case.</p>
+ */
+public class LeasedInputStream extends FilterInputStream {
+    /**
+     * The default maximum number of bytes read and thrown away on close in
+     * order to make a connection reusable.
+     */
+    public static final int DEFAULT_DRAIN_LIMIT = 64 * 1024;
+    
+    private final ConnectionPool pool;
+    private final ConnectionPool.Connection connection;
+    private int drainLimit = DEFAULT_DRAIN_LIMIT;
+    private boolean reusable = true;
+    private boolean eof = false;
+    private boolean released = false;
+    
+    /**
+     * Creates a new LeasedInputStream.
+     *
+     * @param in the response body, as read from the connection. Must not be null.
+     * @param pool the pool the connection was leased from. Must not be null.
+     * @param connection the leased connection. Must not be null.
+     */
+    public LeasedInputStream(InputStream in, ConnectionPool pool, ConnectionPool.Connection connection) {
+        super(in);
+        if (in == null || pool == null || connection == null) {
+            throw new NullPointerException("in, pool and connection cannot be null");
+        }
+        this.pool = pool;
+        this.connection = connection;
+    }
+    
+    /**
+     * Marks whether the connection may be reused once the body has been
+     * consumed. This should be set to false if, for example, the server sent a
+     * <code>Connection: close</code> header.
+     */
+    public void setReusable(boolean reusable) {
+        this.reusable = reusable;
+    }
+    
+    /**
+     * Sets the maximum number of bytes to read and throw away when this stream
+     * is closed before reaching the end of the body.
+     */
+    public void setDrainLimit(int limit) {
+        this.drainLimit = limit;
+    }
+    
+    public final ConnectionPool.Connection getConnection() {
+        return connection;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) eof = true;
+        return b;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n == -1) eof = true;
+        return n;
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+    /**
+     * Releases the connection. The connection is released as reusable only if
+     * the whole body was consumed (possibly by draining it here).
+     */
+    @Override
+    public void close() throws IOException {
+        if (released) return;
+        released = true;
+        boolean ok = false;
+        try {
+            ok = reusable && (eof || drain());
+            in.close();
+        } catch (IOException e) {
+            ok = false;
+            throw e;
+        } finally {
+            if (!ok) {
+                discard();
+            }
+            pool.release(connection, ok);
+        }
+    }
+    
+    /**
+     * Called when the connection will not be reused. The default
+     * implementation does nothing.
+     */
+    protected void discard() {
+    }
+    
+    private boolean drain() throws IOException {
+        byte[] buffer = new byte[Math.min(8192, Math.max(1, drainLimit))];
+        long remaining = drainLimit;
+        int n;
+        while (remaining > 0 && (n = in.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1) {
+            remaining -= n;
+        }
+        if (remaining > 0) {
+            eof = true;
+        } else {
+            eof = in.read() == -1;
+        }
+        return eof;
+    }
+}
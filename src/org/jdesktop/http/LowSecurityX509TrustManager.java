@@ -21,24 +21,25 @@
 
 package org.jdesktop.http;
 
+import java.net.Socket;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SSLEngine;
+
 /**
+ * <p>
+ * LowSecurityX509TrustManager accepts any self-signed certificate which is
+ * currently valid, without asking. Other certificates are checked as usual.
+ * </p>
  */
 
-class LowSecurityX509TrustManager implements X509TrustManager {
-    private X509TrustManager standardTrustManager = null;
-
+class LowSecurityX509TrustManager extends AbstractX509TrustManager {
     /** Log object for this class. */
     private static final Logger LOG = Logger.getLogger(LowSecurityX509TrustManager.class.getName());
 
@@ -46,27 +47,11 @@ class LowSecurityX509TrustManager implements X509TrustManager {
      * Constructor for LowSecurityX509TrustManager.
      */
     public LowSecurityX509TrustManager(KeyStore keystore) throws NoSuchAlgorithmException, KeyStoreException {
-        super();
-        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        factory.init(keystore);
-        TrustManager[] trustmanagers = factory.getTrustManagers();
-        if (trustmanagers.length == 0) {
-            throw new NoSuchAlgorithmException("no trust manager found");
-        }
-        this.standardTrustManager = (X509TrustManager)trustmanagers[0];
-    }
-
-    /**
-     * @see javax.net.ssl.X509TrustManager#checkClientTrusted(X509Certificate[],String authType)
-     */
-    public void checkClientTrusted(X509Certificate[] certificates,String authType) throws CertificateException {
-        standardTrustManager.checkClientTrusted(certificates,authType);
+        super(keystore);
     }
 
-    /**
-     * @see javax.net.ssl.X509TrustManager#checkServerTrusted(X509Certificate[],String authType)
-     */
-    public void checkServerTrusted(X509Certificate[] certificates,String authType) throws CertificateException {
+    protected void checkServer(X509Certificate[] certificates, String authType, String host,
+            Socket socket, SSLEngine engine) throws CertificateException {
         if ((certificates != null) && LOG.isLoggable(Level.FINE)) {
             LOG.fine("Server certificate chain:");
             for (int i = 0; i < certificates.length; i++) {
@@ -76,14 +61,7 @@ class LowSecurityX509TrustManager implements X509TrustManager {
         if ((certificates != null) && (certificates.length == 1)) {
             certificates[0].checkValidity();
         } else {
-            standardTrustManager.checkServerTrusted(certificates,authType);
+            checkStandard(certificates, authType, socket, engine);
         }
     }
-
-    /**
-     * @see javax.net.ssl.X509TrustManager#getAcceptedIssuers()
-     */
-    public X509Certificate[] getAcceptedIssuers() {
-        return this.standardTrustManager.getAcceptedIssuers();
-    }
 }
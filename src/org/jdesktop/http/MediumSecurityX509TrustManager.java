@@ -21,61 +21,44 @@
 
 package org.jdesktop.http;
 
+import java.net.Socket;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.TrustManager;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.X509TrustManager;
-import javax.swing.JOptionPane;
 
 /**
  * <p>
  * MediumSecurityX509TrustManager unlike default {@link X509TrustManager} accepts 
  * self-signed certificates, but prompts the user before accepting them.
  * </p>
+ *
+ * <p>The user is asked about the host named in each handshake. The JSSE
+ * session cache is keyed by host and port, so a TLS session (which skips
+ * this check when resumed) is only ever resumed with the host the user
+ * accepted it for.</p>
  */
 
-class MediumSecurityX509TrustManager implements X509TrustManager {
-    private X509TrustManager standardTrustManager = null;
-
+class MediumSecurityX509TrustManager extends AbstractX509TrustManager {
     /** Log object for this class. */
     private static final Logger LOG = Logger.getLogger(MediumSecurityX509TrustManager.class.getName());
     private SecurityHandler handler;
-    private String host;
 
     /**
-     * Constructor for EasyX509TrustManager.
+     * Constructor for MediumSecurityX509TrustManager.
      */
-    public MediumSecurityX509TrustManager(String host, SecurityHandler handler, KeyStore keystore) throws NoSuchAlgorithmException, KeyStoreException {
-        super();
-        this.host = host;
+    public MediumSecurityX509TrustManager(SecurityHandler handler, KeyStore keystore) throws NoSuchAlgorithmException, KeyStoreException {
+        super(keystore);
         this.handler = handler;
-        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        factory.init(keystore);
-        TrustManager[] trustmanagers = factory.getTrustManagers();
-        if (trustmanagers.length == 0) {
-            throw new NoSuchAlgorithmException("no trust manager found");
-        }
-        this.standardTrustManager = (X509TrustManager)trustmanagers[0];
-    }
-
-    /**
-     * @see javax.net.ssl.X509TrustManager#checkClientTrusted(X509Certificate[],String authType)
-     */
-    public void checkClientTrusted(X509Certificate[] certificates,String authType) throws CertificateException {
-        standardTrustManager.checkClientTrusted(certificates,authType);
     }
 
-    /**
-     * @see javax.net.ssl.X509TrustManager#checkServerTrusted(X509Certificate[],String authType)
-     */
-    public void checkServerTrusted(X509Certificate[] certificates,String authType) throws CertificateException {
+    protected void checkServer(X509Certificate[] certificates, String authType, String host,
+            Socket socket, SSLEngine engine) throws CertificateException {
         if ((certificates != null) && (certificates.length == 1) && handler != null) {
             certificates[0].checkValidity();
             if (!handler.isServerTrusted(host, certificates[0])) {
@@ -84,14 +67,7 @@ class MediumSecurityX509TrustManager implements X509TrustManager {
                         " is not trusted");
             }
         } else {
-            standardTrustManager.checkServerTrusted(certificates,authType);
+            checkStandard(certificates, authType, socket, engine);
         }
     }
-
-    /**
-     * @see javax.net.ssl.X509TrustManager#getAcceptedIssuers()
-     */
-    public X509Certificate[] getAcceptedIssuers() {
-        return this.standardTrustManager.getAcceptedIssuers();
-    }
 }
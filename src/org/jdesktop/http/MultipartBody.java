@@ -0,0 +1,348 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * <p>A {@link RequestBody} which sends a <code>multipart/form-data</code>
+ * form, as a browser does when submitting an html form which uploads files.
+ * Plain {@link Parameter}s may be mixed with parts read from files, streams
+ * or any other <code>RequestBody</code>.</p>
+ *
+ * <pre><code>
+ *      MultipartBody form = new MultipartBody();
+ *      form.addParameter("title", "Holiday");
+ *      form.addFile("photo", new File("beach.jpg"), "image/jpeg");
+ *      Request req = new Request(Method.POST, "http://example.com/upload");
+ *      req.setBody(form);
+ * </code></pre>
+ *
+ * <p>Nothing is encoded until the transport reads the body, and each part is
+ * only opened when it is reached, so a form may upload files far larger than
+ * the heap. If the length of every part is known the body is sent with a
+ * Content-Length, and otherwise it is sent chunked.</p>
+ *
+ * <p>Parts should not be added once the body has been handed to a
+ * {@link Request}.</p>
+ */
+public class MultipartBody extends RequestBody {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    private final String boundary;
+    private final List<Part> parts = new ArrayList<Part>();
+    
+    /**
+     * Creates a new, empty, MultipartBody with a random boundary.
+     */
+    public MultipartBody() {
+        this("----FormBoundary" + Long.toHexString(RANDOM.nextLong()) + Long.toHexString(RANDOM.nextLong()));
+    }
+    
+    /**
+     * Creates a new, empty, MultipartBody with the given boundary. The
+     * boundary must not appear in any part.
+     *
+     * @param boundary the boundary between parts. Must be 1 to 70 characters.
+     */
+    public MultipartBody(String boundary) {
+        if (boundary == null) {
+            throw new NullPointerException("boundary cannot be null");
+        }
+        if (boundary.length() == 0 || boundary.length() > 70) {
+            throw new IllegalArgumentException("boundary must be 1 to 70 characters long");
+        }
+        this.boundary = boundary;
+    }
+    
+    /**
+     * @return the boundary between parts
+     */
+    public String getBoundary() {
+        return boundary;
+    }
+    
+    /**
+     * Adds a plain form field. The value is sent as UTF-8.
+     *
+     * @param name the name of the field. Must not be null.
+     * @param value the value of the field. May be null.
+     */
+    public void addParameter(String name, String value) {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(UTF8);
+        addPart(name, null, RequestBody.fromBytes(bytes, null));
+    }
+    
+    /**
+     * Adds a plain form field for each of the given parameters.
+     *
+     * @param params the parameters to add. May be null.
+     */
+    public void addParameters(Parameter... params) {
+        if (params != null) {
+            for (Parameter p : params) {
+                addParameter(p.getName(), p.getValue());
+            }
+        }
+    }
+    
+    /**
+     * Adds a file upload, which is read from the given file as it is sent.
+     *
+     * @param name the name of the field. Must not be null.
+     * @param file the file to send. Its name is sent as the file name.
+     * @param contentType the Content-Type of the file, or null for
+     *        application/octet-stream
+     */
+    public void addFile(String name, File file, String contentType) {
+        addPart(name, file.getName(), RequestBody.fromFile(file, contentType));
+    }
+    
+    /**
+     * Adds a file upload, which is read from the given file as it is sent.
+     *
+     * @param name the name of the field. Must not be null.
+     * @param file the file to send. Its name is sent as the file name.
+     * @param contentType the Content-Type of the file, or null for
+     *        application/octet-stream
+     */
+    public void addFile(String name, Path file, String contentType) {
+        addPart(name, file.getFileName().toString(), RequestBody.fromFile(file, contentType));
+    }
+    
+    /**
+     * Adds a file upload which is read from the given stream as it is sent.
+     * A form with such a part can only be sent once.
+     *
+     * @param name the name of the field. Must not be null.
+     * @param filename the file name to send. May be null.
+     * @param in the stream to send. It is closed once sent.
+     * @param length the number of bytes the stream will produce, or -1 if not
+     *        known, in which case the whole form is sent chunked
+     * @param contentType the Content-Type of the file, or null for
+     *        application/octet-stream
+     */
+    public void addStream(String name, String filename, InputStream in, long length, String contentType) {
+        addPart(name, filename, RequestBody.fromStream(in, length, contentType));
+    }
+    
+    /**
+     * Adds a part whose content is produced by the given body. If the body
+     * has a Content-Type it is sent with the part.
+     *
+     * @param name the name of the field. Must not be null.
+     * @param filename the file name to send, or null for a plain field
+     * @param content the content of the part. Must not be null.
+     */
+    public synchronized void addPart(String name, String filename, RequestBody content) {
+        if (name == null) {
+            throw new NullPointerException("name cannot be null");
+        }
+        if (content == null) {
+            throw new NullPointerException("content cannot be null");
+        }
+        parts.add(new Part(name, filename, content));
+    }
+    
+    /**
+     * @return the length of the whole form, or -1 if the length of any of
+     *         its parts is not known
+     */
+    public synchronized long getContentLength() {
+        long length = 0;
+        for (Part part : parts) {
+            long content = part.content.getContentLength();
+            if (content < 0) {
+                return -1;
+            }
+            length += part.head().length + content + CRLF.length;
+        }
+        return length + closing().length;
+    }
+    
+    @Override
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+    
+    public InputStream openStream() throws IOException {
+        final List<Part> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<Part>(parts);
+        }
+        //each part is opened only when the previous one has been read
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private int index = 0;
+            private int step = 0;
+            
+            public boolean hasMoreElements() {
+                return index < snapshot.size() || step == 0;
+            }
+            
+            public InputStream nextElement() {
+                if (index == snapshot.size()) {
+                    step = 1;
+                    return new ByteArrayInputStream(closing());
+                }
+                Part part = snapshot.get(index);
+                switch (step++) {
+                    case 0:
+                        return new ByteArrayInputStream(part.head());
+                    case 1:
+                        try {
+                            return part.content.openStream();
+                        } catch (IOException ex) {
+                            return new FailedInputStream(ex);
+                        }
+                    default:
+                        step = 0;
+                        index++;
+                        return new ByteArrayInputStream(CRLF);
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return true if every part can be produced more than once
+     */
+    @Override
+    public synchronized boolean isRepeatable() {
+        for (Part part : parts) {
+            if (!part.content.isRepeatable()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        for (Part part : parts) {
+            try {
+                part.content.close();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    private byte[] closing() {
+        return ("--" + boundary + "--\r\n").getBytes(UTF8);
+    }
+    
+    /**
+     * Quotes a name for a Content-Disposition header, escaping quotes and
+     * line breaks as browsers do.
+     */
+    private static String quote(String s) {
+        StringBuilder buffer = new StringBuilder(s.length() + 2);
+        buffer.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': buffer.append("%22"); break;
+                case '\r': buffer.append("%0D"); break;
+                case '\n': buffer.append("%0A"); break;
+                default: buffer.append(c);
+            }
+        }
+        return buffer.append('"').toString();
+    }
+    
+    /**
+     * One part of the form, whose headers are built the first time they are
+     * needed.
+     */
+    private final class Part {
+        private final String name;
+        private final String filename;
+        private final RequestBody content;
+        private byte[] head;
+        
+        private Part(String name, String filename, RequestBody content) {
+            this.name = name;
+            this.filename = filename;
+            this.content = content;
+        }
+        
+        private synchronized byte[] head() {
+            if (head == null) {
+                StringBuilder buffer = new StringBuilder();
+                buffer.append("--").append(boundary).append("\r\n");
+                buffer.append("Content-Disposition: form-data; name=").append(quote(name));
+                if (filename != null) {
+                    buffer.append("; filename=").append(quote(filename));
+                }
+                buffer.append("\r\n");
+                String type = content.getContentType();
+                if (type == null && filename != null) {
+                    type = "application/octet-stream";
+                }
+                if (type != null) {
+                    buffer.append("Content-Type: ").append(type).append("\r\n");
+                }
+                buffer.append("\r\n");
+                head = buffer.toString().getBytes(UTF8);
+            }
+            return head;
+        }
+    }
+    
+    /**
+     * Rethrows the failure to open a part when the part is read, since an
+     * Enumeration cannot throw it.
+     */
+    private static final class FailedInputStream extends InputStream {
+        private final IOException failure;
+        
+        private FailedInputStream(IOException failure) {
+            this.failure = failure;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            throw failure;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            throw failure;
+        }
+    }
+}
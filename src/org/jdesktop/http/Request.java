@@ -21,14 +21,13 @@
 
 package org.jdesktop.http;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
 import org.jdesktop.beans.AbstractBean;
 import org.jdesktop.http.Header.Element;
-import org.jdesktop.xpath.XPathUtils;
 import org.w3c.dom.Document;
 import sun.misc.BASE64Decoder;
 import sun.misc.BASE64Encoder;
@@ -56,7 +55,7 @@ import sun.misc.BASE64Encoder;
  * <p>HTTP headers are represented by the {@link Header} API. All HTTP headers
  * that will be sent as part of this request are represented with a Header
  * in this class. By default, all Request objects are created with an
- * Accept-Encoding header set to "gzip", and have a Content-Type header
+ * Accept-Encoding header set to "gzip, deflate", and have a Content-Type header
  * set to 'text/plain; charset="UTF-8"'. If you send other data be sure to
  * replace the value of the content type header.</p>
  * 
@@ -115,6 +114,8 @@ import sun.misc.BASE64Encoder;
  * @author rbair
  */
 public class Request extends AbstractBean {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
     /**
      * Header keys are stored in a case insensitive manner.
      */
@@ -124,8 +125,12 @@ public class Request extends AbstractBean {
     private Method method = Method.GET;
     private String url;
     private InputStream requestBody;
+    private RequestBody body;
     private String username;
     private char[] password;
+    private long connectTimeout = -1;
+    private long readTimeout = -1;
+    private Deadline deadline;
     /**
      * Used in the toString() method call only if the body was set as a String.
      * If set as an InputStream or as bytes then this will be null.
@@ -136,7 +141,7 @@ public class Request extends AbstractBean {
      * <p>Creates a new instance of Request. The following default values are
      * used:
      * <ul>
-     *      <li>headers: Accept-Encoding = gzip</li>
+     *      <li>headers: Accept-Encoding = gzip, deflate</li>
      *      <li>parameters: empty set</li>
      *      <li>followRedirects: true</li>
      *      <li>method: GET</li>
@@ -168,7 +173,7 @@ public class Request extends AbstractBean {
      */
     public Request(Method method, String url) {
         this.method = method == null ? Method.GET : method;
-        setHeader("Accept-Encoding", "gzip");
+        setHeader("Accept-Encoding", "gzip, deflate");
         setHeader("Content-Type", "text/plain; charset=UTF-8");
         if (url != null) {
             setUrlImpl(url);
@@ -191,6 +196,9 @@ public class Request extends AbstractBean {
             followRedirects = source.followRedirects;
             method = source.method;
             url = source.url;
+            connectTimeout = source.connectTimeout;
+            readTimeout = source.readTimeout;
+            deadline = source.deadline;
         }
     }
     
@@ -403,6 +411,71 @@ public class Request extends AbstractBean {
         return followRedirects;
     }
     
+    /**
+     * Sets the time allowed to establish a connection for this Request, in
+     * place of the connectTimeout of the {@link Session}.
+     * 
+     * @param millis the timeout in milliseconds, 0 to wait forever, or -1
+     *        (the default) to use the timeout of the Session
+     */
+    public void setConnectTimeout(long millis) {
+        long old = getConnectTimeout();
+        this.connectTimeout = millis < 0 ? -1 : millis;
+        firePropertyChange("connectTimeout", old, this.connectTimeout);
+    }
+    
+    /**
+     * @return the connect timeout in milliseconds, or -1 to use the timeout
+     *         of the Session
+     */
+    public final long getConnectTimeout() {
+        return connectTimeout;
+    }
+    
+    /**
+     * Sets the longest time to wait for the server to send anything, while
+     * waiting for the response or reading its body, in place of the
+     * readTimeout of the {@link Session}.
+     * 
+     * @param millis the timeout in milliseconds, 0 to wait forever, or -1
+     *        (the default) to use the timeout of the Session
+     */
+    public void setReadTimeout(long millis) {
+        long old = getReadTimeout();
+        this.readTimeout = millis < 0 ? -1 : millis;
+        firePropertyChange("readTimeout", old, this.readTimeout);
+    }
+    
+    /**
+     * @return the read timeout in milliseconds, or -1 to use the timeout of
+     *         the Session
+     */
+    public final long getReadTimeout() {
+        return readTimeout;
+    }
+    
+    /**
+     * Sets the {@link Deadline} by which this Request must be done. The
+     * request is aborted if it passes, and fails with a
+     * <code>SocketTimeoutException</code>. The earliest of this deadline,
+     * the current deadline of the thread (see {@link Deadline#call}) and the
+     * requestTimeout of the Session applies.
+     * 
+     * @param deadline the deadline, or null for none
+     */
+    public void setDeadline(Deadline deadline) {
+        Deadline old = getDeadline();
+        this.deadline = deadline;
+        firePropertyChange("deadline", old, deadline);
+    }
+    
+    /**
+     * @return the Deadline by which this Request must be done, or null
+     */
+    public final Deadline getDeadline() {
+        return deadline;
+    }
+    
     /**
      * Sets the http {@link Method} to use for this Request. If null, a GET method
      * will be used.
@@ -550,13 +623,14 @@ public class Request extends AbstractBean {
     }
  
     /**
-     * Sets the request body to be the specified String.
+     * Sets the request body to be the specified String. It is encoded with
+     * the charset named by the Content-Type header, or UTF-8 if there is none.
      * 
      * @param body the String to use for the body. May be null.
      */
     public void setBody(String body) {
+        setBody(body == null ? null : body.getBytes(getCharset()));
         stringBody = body;
-        setBody(body == null ? null : body.getBytes());
     }
     
     /**
@@ -565,20 +639,18 @@ public class Request extends AbstractBean {
      * @param body the byte array to use for the body. May be null.
      */
     public void setBody(byte[] body) {
-        if (body == null || body.length == 0) {
-            requestBody = null;
-        } else {
-            setBody(new ByteArrayInputStream(body));
-        }
+        setBody(body == null || body.length == 0 ? null : RequestBody.fromBytes(body, null));
     }
     
     /**
-     * Sets the request body to be the specified {@link SimpleDocument}.
+     * Sets the request body to be the specified {@link SimpleDocument}. The
+     * document is serialized as UTF-8 while the request is sent, with a
+     * {@link DocumentBody}.
      * 
      * @param body the DOM document to use for the body. May be null.
      */
     public void setBody(Document body) {
-        setBody(body == null ? null : XPathUtils.toXML(body));
+        setBody(body == null ? null : new DocumentBody(body));
     }
     
     /**
@@ -587,9 +659,71 @@ public class Request extends AbstractBean {
      * @param body the InputStream to use for the body. May be null.
      */
     public void setBody(InputStream body) {
+        setBody((RequestBody)null);
         this.requestBody = body;
     }
     
+    /**
+     * Sets the request body to be the specified {@link RequestBody}, which is
+     * produced as it is sent rather than held in memory. If the body has a
+     * Content-Type or Content-Encoding, the matching header is set to it.
+     * 
+     * @param body the RequestBody to use for the body. May be null.
+     */
+    public void setBody(RequestBody body) {
+        if (this.body != null && this.body.getContentEncoding() != null) {
+            removeHeader("Content-Encoding");
+        }
+        this.requestBody = null;
+        this.stringBody = null;
+        this.body = body;
+        if (body != null && body.getContentType() != null) {
+            setHeader("Content-Type", body.getContentType());
+        }
+        if (body != null && body.getContentEncoding() != null) {
+            setHeader("Content-Encoding", body.getContentEncoding());
+        }
+    }
+    
+    /**
+     * Returns the charset named by the Content-Type header, or UTF-8 if it
+     * names none, or one which is not supported.
+     */
+    private Charset getCharset() {
+        Header h = getHeader("Content-Type");
+        if (h != null && h.getValue() != null) {
+            for (String part : h.getValue().split(";")) {
+                part = part.trim();
+                if (part.regionMatches(true, 0, "charset=", 0, 8)) {
+                    String name = part.substring(8).trim().replace("\"", "");
+                    try {
+                        return Charset.forName(name);
+                    } catch (IllegalArgumentException ex) {
+                        //fall back on UTF-8
+                    }
+                }
+            }
+        }
+        return UTF8;
+    }
+    
+    /**
+     * Returns the body set with {@link #setBody(RequestBody)} (or as a String
+     * or bytes), or null if there is none, in which case {@link #getBody()}
+     * is used instead.
+     */
+    final RequestBody getRequestBody() {
+        return body;
+    }
+    
+    /**
+     * @return true if the body, if any, can be sent more than once. A body
+     *         set as an InputStream never can.
+     */
+    final boolean isBodyRepeatable() {
+        return body != null ? body.isRepeatable() : requestBody == null;
+    }
+    
     /**
      * Protected method which returns the request body. This is only called
      * by the Session. This method should never be called by client code, and
@@ -0,0 +1,675 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>The body of a {@link Request}, which is produced as the transport sends
+ * it rather than held in memory. Set one with {@link Request#setBody(RequestBody)}.</p>
+ *
+ * <p>When the length of a body is known the request is sent with a
+ * Content-Length, and otherwise with chunked transfer coding, so that the
+ * transport never needs to buffer the whole body. Bodies backed by a file
+ * can also be sent with <code>FileChannel.transferTo</code>, which lets the
+ * operating system copy the file to the socket directly, when the transport
+ * allows it.</p>
+ *
+ * <p>Transports either pull a body, from {@link #openStream()}, or push it,
+ * with {@link #writeTo(OutputStream)}. A body which is naturally written
+ * rather than read, such as a serialized document, can implement
+ * <code>openStream</code> with {@link #pipe()}. A body which can be produced
+ * more than once is {@link #isRepeatable() repeatable}.</p>
+ */
+public abstract class RequestBody implements Closeable {
+    /** The size of the pieces in which bodies are copied */
+    static final int CHUNK = 64 * 1024;
+    /**
+     * How long, in milliseconds, the writer of a {@link #pipe()} waits for
+     * its reader to take a piece before giving up on it.
+     */
+    static final long PIPE_TIMEOUT = 60000;
+    /** The most pipe writers which run at once */
+    private static final int PIPE_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    
+    /**
+     * Runs the writers of every pipe. It has a bounded number of threads, and
+     * writers beyond that wait in its queue until a thread is free. They are
+     * never run on the thread of the reader, which would deadlock.
+     */
+    private static final Executor PIPE_WRITERS;
+    static {
+        ThreadPoolExecutor writers = new ThreadPoolExecutor(
+                PIPE_THREADS, PIPE_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "RequestBody-writer-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        writers.allowCoreThreadTimeOut(true);
+        PIPE_WRITERS = writers;
+    }
+    
+    /**
+     * @return the length of the body in bytes, or -1 if not known in advance
+     */
+    public abstract long getContentLength();
+    
+    /**
+     * @return the Content-Type of the body, or null to leave the Content-Type
+     *         header of the request as it is
+     */
+    public String getContentType() {
+        return null;
+    }
+    
+    /**
+     * @return the Content-Encoding of the body, such as gzip, or null if it
+     *         is not encoded
+     */
+    public String getContentEncoding() {
+        return null;
+    }
+    
+    /**
+     * Returns a stream from which the body may be read. The caller must close it.
+     */
+    public abstract InputStream openStream() throws IOException;
+    
+    /**
+     * Runs {@link #writeTo(OutputStream)} on a shared pool of background
+     * threads, and returns a stream from which what it writes may be read.
+     * The writer is held up while more than a few pieces are waiting to be
+     * read, so memory use does not depend on the size of the body. An
+     * exception thrown by the writer is thrown from the stream once the data
+     * written before it has been read. Closing the stream early stops the
+     * writer, as does leaving it unread for a minute.
+     *
+     * @return a stream of the body. The caller must close it.
+     */
+    protected final InputStream pipe() {
+        final Pipe pipe = new Pipe();
+        PIPE_WRITERS.execute(new Runnable() {
+            public void run() {
+                if (pipe.isClosed()) {
+                    //the reader gave up while the writer was queued
+                    return;
+                }
+                try {
+                    writeTo(pipe.sink);
+                    pipe.sink.flush();
+                    pipe.finish(null);
+                } catch (IOException ex) {
+                    pipe.finish(ex);
+                } catch (RuntimeException ex) {
+                    pipe.finish(new IOException(ex));
+                }
+            }
+        });
+        return pipe;
+    }
+    
+    /**
+     * Writes the body to the given stream, which is not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        InputStream in = openStream();
+        try {
+            byte[] buffer = new byte[CHUNK];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * @return true if {@link #transferTo} is supported
+     */
+    public boolean supportsTransfer() {
+        return false;
+    }
+    
+    /**
+     * Transfers part of the body straight to the given channel, without
+     * copying it through the heap. Only supported by bodies backed by a file.
+     *
+     * @param offset the offset into the body of the first byte to transfer
+     * @param count the most bytes to transfer
+     * @param target the channel to transfer to. If it is non-blocking, fewer
+     *        bytes than asked for (or none) may be transferred.
+     * @return the number of bytes transferred
+     * @throws UnsupportedOperationException if {@link #supportsTransfer()} is false
+     */
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * @return true if the body can be produced more than once, as is needed to
+     *         follow a redirect or retry the request
+     */
+    public boolean isRepeatable() {
+        return true;
+    }
+    
+    /**
+     * Releases any resources held by {@link #transferTo}. Streams returned by
+     * {@link #openStream()} are closed by whoever opened them.
+     */
+    public void close() throws IOException {
+    }
+    
+    /**
+     * Creates a body which sends the given bytes.
+     *
+     * @param bytes the bytes to send. Must not be null. They are not copied.
+     * @param contentType the Content-Type, or null
+     */
+    public static RequestBody fromBytes(final byte[] bytes, final String contentType) {
+        if (bytes == null) {
+            throw new NullPointerException("bytes cannot be null");
+        }
+        return new RequestBody() {
+            public long getContentLength() {
+                return bytes.length;
+            }
+            
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+            
+            public InputStream openStream() {
+                return new ByteArrayInputStream(bytes);
+            }
+            
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+        };
+    }
+    
+    /**
+     * Creates a body which sends the contents of the given file.
+     *
+     * @param file the file to send. Must not be null.
+     * @param contentType the Content-Type, or null
+     */
+    public static RequestBody fromFile(File file, String contentType) {
+        return fromFile(file.toPath(), contentType);
+    }
+    
+    /**
+     * Creates a body which sends the contents of the given file. The length
+     * of the file is taken when the body is created.
+     *
+     * @param file the file to send. Must not be null.
+     * @param contentType the Content-Type, or null
+     */
+    public static RequestBody fromFile(Path file, String contentType) {
+        return new FileBody(file, null, 0, file.toFile().length(), contentType);
+    }
+    
+    /**
+     * Creates a body which sends part of the given channel. The channel is not
+     * closed, and its position is not changed. Several requests may send parts
+     * of the same channel at once.
+     *
+     * @param channel the channel to send from. Must not be null.
+     * @param position the position of the first byte to send
+     * @param length the number of bytes to send
+     * @param contentType the Content-Type, or null
+     */
+    public static RequestBody fromChannel(FileChannel channel, long position, long length, String contentType) {
+        if (channel == null) {
+            throw new NullPointerException("channel cannot be null");
+        }
+        if (position < 0 || length < 0) {
+            throw new IllegalArgumentException("position and length cannot be negative");
+        }
+        return new FileBody(null, channel, position, length, contentType);
+    }
+    
+    /**
+     * Creates a body which sends what is read from the given stream. Such a
+     * body can only be sent once.
+     *
+     * @param in the stream to send. It is closed once sent.
+     * @param length the number of bytes the stream will produce, or -1 if not
+     *        known, in which case the body is sent chunked
+     * @param contentType the Content-Type, or null
+     */
+    public static RequestBody fromStream(final InputStream in, final long length, final String contentType) {
+        if (in == null) {
+            throw new NullPointerException("in cannot be null");
+        }
+        return new RequestBody() {
+            public long getContentLength() {
+                return length;
+            }
+            
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+            
+            public InputStream openStream() {
+                return in;
+            }
+            
+            @Override
+            public boolean isRepeatable() {
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * Creates a body which sends the given body compressed with gzip. The
+     * length of the compressed body is not known, so it is sent chunked, and
+     * the Content-Encoding header of the request is set to gzip. Only use
+     * this with servers known to accept compressed requests.
+     *
+     * @param body the body to compress. Must not be null.
+     * @see Session#setRequestCompression
+     */
+    public static RequestBody gzip(RequestBody body) {
+        return new EncodedBody(body, "gzip");
+    }
+    
+    /**
+     * Creates a body which sends the given body compressed with deflate (that
+     * is, in the zlib format). See {@link #gzip} for details.
+     *
+     * @param body the body to compress. Must not be null.
+     */
+    public static RequestBody deflate(RequestBody body) {
+        return new EncodedBody(body, "deflate");
+    }
+    
+    /**
+     * A body compressed with gzip or deflate as it is written.
+     */
+    private static final class EncodedBody extends RequestBody {
+        private final RequestBody body;
+        private final String encoding;
+        
+        private EncodedBody(RequestBody body, String encoding) {
+            if (body == null) {
+                throw new NullPointerException("body cannot be null");
+            }
+            this.body = body;
+            this.encoding = encoding;
+        }
+        
+        public long getContentLength() {
+            return -1;
+        }
+        
+        @Override
+        public String getContentType() {
+            return body.getContentType();
+        }
+        
+        @Override
+        public String getContentEncoding() {
+            return encoding;
+        }
+        
+        public InputStream openStream() {
+            return pipe();
+        }
+        
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            //closing the encoder finishes it, but must leave out open
+            out = new UnclosableOutputStream(out);
+            if ("gzip".equals(encoding)) {
+                GZIPOutputStream gzip = new GZIPOutputStream(out, CHUNK);
+                try {
+                    body.writeTo(gzip);
+                } finally {
+                    gzip.close();
+                }
+            } else {
+                Deflater deflater = new Deflater();
+                try {
+                    DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater, CHUNK);
+                    body.writeTo(deflate);
+                    deflate.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        }
+        
+        @Override
+        public boolean isRepeatable() {
+            return body.isRepeatable();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+    
+    /**
+     * A body read from a region of a file, either opened from a path when
+     * needed, or given as a channel by the caller.
+     */
+    private static final class FileBody extends RequestBody {
+        private final Path path;
+        private final FileChannel given;
+        private final long position;
+        private final long length;
+        private final String contentType;
+        /** the channel opened for transferTo, if any */
+        private FileChannel opened;
+        
+        private FileBody(Path path, FileChannel given, long position, long length, String contentType) {
+            this.path = path;
+            this.given = given;
+            this.position = position;
+            this.length = length;
+            this.contentType = contentType;
+        }
+        
+        public long getContentLength() {
+            return length;
+        }
+        
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+        
+        public InputStream openStream() throws IOException {
+            if (given == null) {
+                FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+                return new ChannelInputStream(channel, position, length, true);
+            }
+            return new ChannelInputStream(given, position, length, false);
+        }
+        
+        @Override
+        public boolean supportsTransfer() {
+            return true;
+        }
+        
+        @Override
+        public synchronized long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+            FileChannel channel = given;
+            if (channel == null) {
+                if (opened == null) {
+                    opened = FileChannel.open(path, StandardOpenOption.READ);
+                }
+                channel = opened;
+            }
+            count = Math.min(count, length - offset);
+            if (count <= 0) {
+                return 0;
+            }
+            if (position + offset >= channel.size()) {
+                //otherwise a non-blocking caller would wait forever
+                throw new EOFException("The file is shorter than the " + length + " bytes expected");
+            }
+            return channel.transferTo(position + offset, count, target);
+        }
+        
+        @Override
+        public synchronized void close() throws IOException {
+            if (opened != null) {
+                opened.close();
+                opened = null;
+            }
+        }
+    }
+    
+    /**
+     * Reads a region of a FileChannel with positional reads, so that the
+     * position of the channel is left alone.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private final boolean closeChannel;
+        private long position;
+        
+        private ChannelInputStream(FileChannel channel, long position, long length, boolean closeChannel) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+            this.closeChannel = closeChannel;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            len = (int)Math.min(len, end - position);
+            int n = channel.read(ByteBuffer.wrap(b, off, len), position);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (closeChannel) {
+                channel.close();
+            }
+        }
+    }
+    
+    /**
+     * Keeps a stream open when a stream wrapped around it is closed.
+     */
+    private static final class UnclosableOutputStream extends FilterOutputStream {
+        private UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+    
+    /**
+     * The stream returned by {@link RequestBody#pipe()}. The writer fills
+     * pieces of {@link #CHUNK} bytes through {@link #sink}, and blocks while
+     * {@link #MAX_CHUNKS} of them are waiting to be read.
+     */
+    private static final class Pipe extends InputStream {
+        private static final int MAX_CHUNKS = 4;
+        
+        private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+        private byte[] current;
+        private int offset = 0;
+        private boolean finished = false;
+        private boolean closed = false;
+        private IOException failure;
+        
+        /** the stream the writer writes to */
+        final OutputStream sink = new OutputStream() {
+            private byte[] buffer = new byte[CHUNK];
+            private int count = 0;
+            
+            @Override
+            public void write(int b) throws IOException {
+                if (count == buffer.length) {
+                    flush();
+                }
+                buffer[count++] = (byte)b;
+            }
+            
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (count == buffer.length) {
+                        flush();
+                    }
+                    int n = Math.min(len, buffer.length - count);
+                    System.arraycopy(b, off, buffer, count, n);
+                    count += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+            
+            @Override
+            public void flush() throws IOException {
+                if (count == buffer.length) {
+                    put(buffer);
+                    buffer = new byte[CHUNK];
+                } else if (count > 0) {
+                    put(Arrays.copyOf(buffer, count));
+                }
+                count = 0;
+            }
+        };
+        
+        private synchronized void put(byte[] chunk) throws IOException {
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PIPE_TIMEOUT);
+                while (chunks.size() >= MAX_CHUNKS && !closed) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        //the reader has stopped reading, or dropped the stream
+                        //without closing it
+                        close();
+                        break;
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            if (closed) {
+                throw new IOException("The request body is no longer being read");
+            }
+            chunks.add(chunk);
+            notifyAll();
+        }
+        
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+        
+        private synchronized void finish(IOException failure) {
+            this.failure = failure;
+            finished = true;
+            notifyAll();
+        }
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+        
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null || offset == current.length) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                current = chunks.poll();
+                offset = 0;
+                if (current != null) {
+                    notifyAll();
+                } else if (finished) {
+                    if (failure != null) {
+                        throw new IOException("Could not write the request body", failure);
+                    }
+                    return -1;
+                } else {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+            int n = Math.min(len, current.length - offset);
+            System.arraycopy(current, offset, b, off, n);
+            offset += n;
+            return n;
+        }
+        
+        @Override
+        public synchronized void close() {
+            closed = true;
+            chunks.clear();
+            current = null;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Factory methods for the executors on which requests are run in the
+ * background, as by {@link Session#executeAsync} and
+ * {@link org.jdesktop.http.async.AsyncHttpRequest}.</p>
+ *
+ * <p>Requests mostly wait on the network, so by default every request gets a
+ * thread of its own: a virtual thread where the runtime supports them, and a
+ * cached daemon thread otherwise. Where the number of threads must be
+ * bounded, use {@link #newBoundedExecutor}.</p>
+ *
+ * <p>A request which its executor rejects fails with the
+ * <code>RejectedExecutionException</code>. It is never run on the thread
+ * which sent it, which may be the event dispatch thread.</p>
+ */
+public final class RequestExecutors {
+    private static final Logger LOG = Logger.getLogger(RequestExecutors.class.getName());
+    private static Executor defaultExecutor;
+    
+    private RequestExecutors() {
+    }
+    
+    /**
+     * Returns the executor used when none has been specified. It is created
+     * by {@link #newThreadPerRequestExecutor} on first use, and shared by
+     * every Session and AsyncHttpRequest.
+     */
+    public static synchronized Executor getDefault() {
+        if (defaultExecutor == null) {
+            defaultExecutor = newThreadPerRequestExecutor();
+        }
+        return defaultExecutor;
+    }
+    
+    /**
+     * Replaces the executor used when none has been specified.
+     *
+     * @param executor the new default. If null, the built in default is
+     *        restored the next time it is needed.
+     */
+    public static synchronized void setDefault(Executor executor) {
+        defaultExecutor = executor;
+    }
+    
+    /**
+     * Creates an executor which runs each task on a new virtual thread. On a
+     * runtime without virtual threads, tasks run on a cached pool of daemon
+     * threads instead. Neither queues tasks.
+     */
+    public static ExecutorService newThreadPerRequestExecutor() {
+        try {
+            java.lang.reflect.Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        } catch (NoSuchMethodException e) {
+            //virtual threads are not available
+        } catch (Exception e) {
+            LOG.log(Level.FINE, "Could not create a virtual thread executor", e);
+        }
+        return Executors.newCachedThreadPool(new DaemonThreadFactory("http-request"));
+    }
+    
+    /**
+     * Creates an executor with a fixed number of daemon threads, and a bounded
+     * queue. When both are full, further tasks are rejected with a
+     * <code>RejectedExecutionException</code>, which fails the request. They
+     * are not run on the submitting thread, which would make an asynchronous
+     * request block its sender.
+     *
+     * @param threads the number of threads. Must be at least 1.
+     * @param queueSize the number of tasks which may wait for a thread. Must
+     *        be at least 1.
+     */
+    public static ExecutorService newBoundedExecutor(int threads, int queueSize) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("threads and queueSize must be at least 1");
+        }
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new DaemonThreadFactory("http-request"),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+    
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+        
+        private DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+        
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
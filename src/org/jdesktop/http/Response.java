@@ -22,10 +22,16 @@
 package org.jdesktop.http;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
@@ -47,6 +53,13 @@ import java.util.Set;
  * result, once the response body has been read, any futher calls to getResponseBody
  * <em>may</em> result in an exception.</p>
  * 
+ * <p>A <code>Response</code> produced by {@link Session#executeStreaming} is
+ * bound to the live connection. Its body may be read once, from
+ * {@link #getBodyAsStream()} or {@link #getBodyAsChannel()}, and the
+ * connection is released when that stream is closed (or {@link #close()} is
+ * called). Calling one of the other body accessors first reads the whole
+ * body into memory, after which every accessor may be used as usual.</p>
+ * 
  * @author rbair
  */
 public class Response {
@@ -65,6 +78,13 @@ public class Response {
     //implementation will cache to disk. This requires security priviledges, however,
     //and thus is somewhat problematic.
     private byte[] responseBody;
+    /** the live body of a streaming response, until it is taken or buffered */
+    private InputStream bodyStream;
+    private boolean streamTaken = false;
+    /** true while a thread is buffering the live body */
+    private boolean reading = false;
+    /** why the live body could not be buffered, if it could not */
+    private IOException bodyFailure;
     private String url;
     
     /** 
@@ -98,6 +118,40 @@ public class Response {
         }
     }
     
+    /**
+     * Creates a new streaming Response, whose body is read from the given
+     * stream. Closing the stream must release the connection.
+     */
+    static Response streaming(StatusCode statusCode, String statusText, InputStream body, String charset, Set<Header> headers, String baseUrl) {
+        Response response = new Response(statusCode, statusText, null, charset, headers, baseUrl);
+        response.responseBody = null;
+        response.bodyStream = body;
+        return response;
+    }
+    
+    /**
+     * Creates a copy of this Response with the given headers in place of its
+     * own. Used by the {@link HttpCache} to hand out stored responses.
+     */
+    Response withHeaders(Set<Header> headers) {
+        return new Response(statusCode, statusText, responseBody, charset, headers, url);
+    }
+    
+    /**
+     * Creates a copy of this Response with an empty body. Used when the body
+     * has been written somewhere else, such as a file.
+     */
+    Response withoutBody() {
+        return new Response(statusCode, statusText, null, charset, headers, url);
+    }
+    
+    /**
+     * @return the charset used to turn the body into a String
+     */
+    String getCharset() {
+        return charset;
+    }
+    
     /**
      * Returns the Header with the given name, or null if there is no such header.
      * Comparisons with header names are done in a case insensitive manner.
@@ -176,9 +230,56 @@ public class Response {
      * @returns the body as an <code>InputStream</code>. This will never be null.
      */
     public InputStream getBodyAsStream() {
+        synchronized (this) {
+            if (bodyStream != null) {
+                InputStream in = bodyStream;
+                bodyStream = null;
+                streamTaken = true;
+                return in;
+            }
+        }
         return new ByteArrayInputStream(getBodyAsBytes());
     }
     
+    /**
+     * Gets a channel from which the body of the response may be read. For a
+     * streaming response this reads from the live connection, which is
+     * released when the channel is closed.
+     * 
+     * @return the body as a <code>ReadableByteChannel</code>. This will never
+     *         be null.
+     */
+    public ReadableByteChannel getBodyAsChannel() {
+        return Channels.newChannel(getBodyAsStream());
+    }
+    
+    /**
+     * @return true if this is a streaming response whose body has not yet
+     *         been taken or buffered
+     */
+    public synchronized boolean isStreaming() {
+        return bodyStream != null;
+    }
+    
+    /**
+     * Releases the connection of a streaming response, if its body has not
+     * been taken. The rest of the body is discarded. Does nothing for other
+     * responses.
+     */
+    public void close() throws IOException {
+        InputStream in;
+        synchronized (this) {
+            in = bodyStream;
+            bodyStream = null;
+            if (in != null) {
+                responseBody = new byte[0];
+            }
+        }
+        if (in != null) {
+            in.close();
+        }
+    }
+    
     /**
      * Gets a <code>Reader</code> from which the body of the response may
      * be read.
@@ -186,7 +287,15 @@ public class Response {
      * @returns the body as a <code>Reader</code>. This will never be null.
      */
     public Reader getBodyAsReader() {
-        if (responseBody == null) {
+        if (isStreaming()) {
+            try {
+                return new InputStreamReader(getBodyAsStream(), charset);
+            } catch (UnsupportedEncodingException ex) {
+                //fall back on buffering, which copes with a bad charset
+            }
+        }
+        byte[] body = getBodyAsBytes();
+        if (body.length == 0) {
             return new StringReader("");
         } else {
             return new StringReader(getBody());
@@ -197,9 +306,68 @@ public class Response {
      * Gets a byte array representing the body of the response.
      * 
      * @returns the body as a byte array. This will never be null.
+     * @throws UncheckedIOException if the body of a streaming response could
+     *         not be read. Every later call throws it again.
      */
     public byte[] getBodyAsBytes() {
-        return responseBody == null ? new byte[0] : responseBody;
+        InputStream in;
+        synchronized (this) {
+            boolean interrupted = false;
+            while (reading) {
+                //another thread is buffering the body
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (bodyFailure != null) {
+                throw new UncheckedIOException("Could not read the response body", bodyFailure);
+            }
+            if (bodyStream == null) {
+                if (streamTaken) {
+                    throw new IllegalStateException("The body of this response has already been streamed");
+                }
+                return responseBody == null ? new byte[0] : responseBody;
+            }
+            in = bodyStream;
+            bodyStream = null;
+            reading = true;
+        }
+        //read outside the lock, so that close() and the other accessors do
+        //not wait on the network
+        byte[] body = null;
+        IOException failure = null;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(8096);
+            byte[] buffer = new byte[8096];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+            body = out.toByteArray();
+        } catch (IOException ex) {
+            failure = ex;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ex) {
+                //the body has been read, nothing else to do
+            }
+            synchronized (this) {
+                responseBody = body;
+                bodyFailure = failure;
+                reading = false;
+                notifyAll();
+            }
+        }
+        if (failure != null) {
+            throw new UncheckedIOException("Could not read the response body", failure);
+        }
+        return body;
     }
     
     /**
@@ -208,11 +376,12 @@ public class Response {
      * @returns the body as a String. This will never be null.
      */
     public String getBody() {
+        byte[] body = getBodyAsBytes();
         try {
-            return responseBody == null ? "" : new String(responseBody, charset);
+            return new String(body, charset);
         } catch (UnsupportedEncodingException ex) {
             ex.printStackTrace();
-            return responseBody == null ? "" : new String(responseBody);
+            return new String(body);
         }
     }
     
@@ -235,6 +404,13 @@ public class Response {
             buffer.append("  ").append(h.getName()).append(": ").append(h.getValue());
             buffer.append("\n");
         }
+        synchronized (this) {
+            if (bodyStream != null || streamTaken) {
+                //don't consume a live body just to print it
+                buffer.append("<streamed body>");
+                return buffer.toString();
+            }
+        }
         buffer.append(getBody());
         return buffer.toString();
     }
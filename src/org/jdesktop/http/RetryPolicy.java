@@ -0,0 +1,351 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+package org.jdesktop.http;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpRetryException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.net.ssl.SSLException;
+
+/**
+ * <p>Decides whether, and when, a {@link Session} sends a request again after
+ * it failed or was answered with a temporary error. Set a policy on a Session
+ * with {@link Session#setRetryPolicy}.</p>
+ *
+ * <p>By default only requests with an idempotent {@link Method} (GET, HEAD,
+ * PUT, DELETE, OPTIONS and TRACE) are retried, since sending any other
+ * request twice may do twice what it does. The exception is a connection
+ * which could not be established, in which case nothing was sent. A request
+ * is only retried if its body, if any, is
+ * {@link RequestBody#isRepeatable() repeatable}, which a body set as an
+ * <code>InputStream</code> is not.</p>
+ *
+ * <p>Requests are retried after an <code>IOException</code> (other than an
+ * unknown host, an SSL failure, an open {@link CircuitBreaker} or a full
+ * {@link ConcurrencyLimiter}), and after a 429 Too Many Requests, 502
+ * Bad Gateway, 503 Service Unavailable or 504 Gateway Timeout response. The
+ * delay before each retry grows exponentially from <code>baseDelay</code>
+ * up to <code>maxDelay</code>, and a random part of it is left out so that
+ * clients which failed together do not retry together. A Retry-After header
+ * on a 429 or 503 response is honoured instead, unless it asks for more than
+ * <code>maxDelay</code>, in which case the response is returned as it is. No
+ * retry is made that could not finish before the {@link Deadline} of the
+ * request.</p>
+ *
+ * <p>Retries are also limited by a budget, so that when a server is in
+ * trouble its clients do not multiply its load by retrying everything. Over
+ * the last ten seconds, retries may add up to no more than
+ * <code>budgetRatio</code> of the requests made, plus
+ * <code>minRetriesPerSecond</code> to let the odd retry through when
+ * traffic is light. A policy may be shared by several Sessions, in which
+ * case they share the budget too.</p>
+ *
+ * <p>Subclasses may change which failures are retried by overriding the
+ * <code>isRetryable</code> methods.</p>
+ */
+public class RetryPolicy {
+    /** The default number of attempts, including the first: 3. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    /** The default delay before the first retry: 100ms. */
+    public static final long DEFAULT_BASE_DELAY = 100;
+    /** The default longest delay before a retry: 10 seconds. */
+    public static final long DEFAULT_MAX_DELAY = 10 * 1000;
+    /** The default share of requests which may be retried: 10%. */
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+    /** The default number of retries allowed each second regardless of traffic. */
+    public static final int DEFAULT_MIN_RETRIES_PER_SECOND = 1;
+    
+    private static final Set<Method> IDEMPOTENT = EnumSet.of(Method.GET, Method.HEAD,
+            Method.PUT, Method.DELETE, Method.OPTIONS, Method.TRACE);
+    private static final Set<Integer> RETRYABLE_STATUS = new HashSet<Integer>();
+    static {
+        for (int code : new int[] {429, 502, 503, 504}) {
+            RETRYABLE_STATUS.add(code);
+        }
+    }
+    
+    private int maxAttempts;
+    private long baseDelay = DEFAULT_BASE_DELAY;
+    private long maxDelay = DEFAULT_MAX_DELAY;
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private int minRetriesPerSecond = DEFAULT_MIN_RETRIES_PER_SECOND;
+    
+    private final TrafficBudget budget = new TrafficBudget();
+    private long requests = 0;
+    private long retries = 0;
+    private long exhausted = 0;
+    
+    /** Creates a new RetryPolicy making up to {@link #DEFAULT_MAX_ATTEMPTS} attempts. */
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS);
+    }
+    
+    /**
+     * Creates a new RetryPolicy.
+     *
+     * @param maxAttempts the most attempts made for a request, including the
+     *        first. Must be at least 1.
+     */
+    public RetryPolicy(int maxAttempts) {
+        setMaxAttempts(maxAttempts);
+    }
+    
+    public synchronized int getMaxAttempts() {
+        return maxAttempts;
+    }
+    
+    /**
+     * @param attempts the most attempts made for a request, including the
+     *        first. Must be at least 1.
+     */
+    public synchronized void setMaxAttempts(int attempts) {
+        if (attempts < 1) {
+            throw new IllegalArgumentException("attempts must be at least 1");
+        }
+        this.maxAttempts = attempts;
+    }
+    
+    public synchronized long getBaseDelay() {
+        return baseDelay;
+    }
+    
+    /**
+     * @param millis the delay before the first retry, which doubles with
+     *        every further retry. Must not be negative.
+     */
+    public synchronized void setBaseDelay(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        this.baseDelay = millis;
+    }
+    
+    public synchronized long getMaxDelay() {
+        return maxDelay;
+    }
+    
+    /**
+     * @param millis the longest delay before a retry, including one asked
+     *        for with Retry-After. Must not be negative.
+     */
+    public synchronized void setMaxDelay(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        this.maxDelay = millis;
+    }
+    
+    public synchronized double getBudgetRatio() {
+        return budgetRatio;
+    }
+    
+    /**
+     * @param ratio the share of requests which may be retried, between 0 and 1
+     */
+    public synchronized void setBudgetRatio(double ratio) {
+        if (ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("ratio must be between 0 and 1");
+        }
+        this.budgetRatio = ratio;
+    }
+    
+    public synchronized int getMinRetriesPerSecond() {
+        return minRetriesPerSecond;
+    }
+    
+    /**
+     * @param retries the number of retries allowed each second regardless
+     *        of the number of requests. Must not be negative.
+     */
+    public synchronized void setMinRetriesPerSecond(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("retries cannot be negative");
+        }
+        this.minRetriesPerSecond = retries;
+    }
+    
+    /**
+     * @return true if sending a request with the given method more than once
+     *         has the same effect as sending it once
+     */
+    public static boolean isIdempotent(Method method) {
+        return IDEMPOTENT.contains(method);
+    }
+    
+    /**
+     * Decides whether a request which failed with the given exception may be
+     * sent again. The number of attempts, the body and the budget are checked
+     * separately.
+     */
+    protected boolean isRetryable(Request req, Exception e) {
+        if (e instanceof UnknownHostException || e instanceof HttpRetryException || e instanceof SSLException
+                || e instanceof CircuitOpenException || e instanceof ConcurrencyLimitException) {
+            return false;
+        }
+        if (e instanceof ConnectException) {
+            //nothing was sent
+            return true;
+        }
+        return e instanceof IOException && isIdempotent(req.getMethod());
+    }
+    
+    /**
+     * Decides whether a request which was answered with the given response
+     * may be sent again. The number of attempts, the body and the budget are
+     * checked separately.
+     */
+    protected boolean isRetryable(Request req, Response response) {
+        return RETRYABLE_STATUS.contains(response.getStatusCode().getCode()) && isIdempotent(req.getMethod());
+    }
+    
+    /**
+     * Returns the delay before the given retry: a random time between half
+     * and all of baseDelay doubled for each retry before it, capped at
+     * maxDelay.
+     *
+     * @param retry the number of the retry, starting at 1
+     */
+    protected long getBackoff(int retry) {
+        long base;
+        long max;
+        synchronized (this) {
+            base = baseDelay;
+            max = maxDelay;
+        }
+        long ceiling = base << Math.min(retry - 1, 30);
+        if (ceiling > max || ceiling < 0) {
+            ceiling = max;
+        }
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+    
+    /**
+     * @return a snapshot of the statistics of this policy
+     */
+    public synchronized Stats getStats() {
+        return new Stats(requests, retries, exhausted);
+    }
+    
+    /**
+     * Counts a request towards the budget. Called once per request, not per
+     * attempt.
+     */
+    synchronized void requestStarted() {
+        requests++;
+        budget.deposit();
+    }
+    
+    /**
+     * Decides whether to retry the request, which was made the given number
+     * of times so far, and failed with the given exception or was answered
+     * with the given response. A retry is taken from the budget.
+     *
+     * @return the delay before retrying in milliseconds, or -1 not to retry
+     */
+    long retryDelay(Request req, int attempts, Response response, Exception failure, Deadline deadline) {
+        if (attempts >= getMaxAttempts()) {
+            return -1;
+        }
+        if (!req.isBodyRepeatable()) {
+            return -1;
+        }
+        if (response != null ? !isRetryable(req, response) : !isRetryable(req, failure)) {
+            return -1;
+        }
+        long delay = response == null ? -1 : retryAfter(response);
+        if (delay > getMaxDelay()) {
+            return -1;
+        } else if (delay < 0) {
+            delay = getBackoff(attempts);
+        }
+        if (deadline != null && delay >= deadline.remaining()) {
+            return -1;
+        }
+        return withdraw() ? delay : -1;
+    }
+    
+    /**
+     * Takes a retry from the budget, if it allows one.
+     */
+    private synchronized boolean withdraw() {
+        if (!budget.withdraw(budgetRatio, minRetriesPerSecond)) {
+            exhausted++;
+            return false;
+        }
+        retries++;
+        return true;
+    }
+    
+    /**
+     * @return the delay asked for by the Retry-After header of a 429 or 503
+     *         response in milliseconds, or -1 if there is none
+     */
+    static long retryAfter(Response response) {
+        int status = response.getStatusCode().getCode();
+        Header h = response.getHeader("Retry-After");
+        if (h == null || h.getValue() == null || (status != 429 && status != 503)) {
+            return -1;
+        }
+        String value = h.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = HttpCache.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+    
+    /**
+     * A snapshot of the statistics of a RetryPolicy.
+     */
+    public static final class Stats {
+        private final long requests;
+        private final long retries;
+        private final long exhausted;
+        
+        private Stats(long requests, long retries, long exhausted) {
+            this.requests = requests;
+            this.retries = retries;
+            this.exhausted = exhausted;
+        }
+        
+        /** @return the number of requests made under the policy, not counting retries */
+        public long getRequestCount() { return requests; }
+        /** @return the number of retries made */
+        public long getRetryCount() { return retries; }
+        /** @return the number of retries refused because the budget was spent */
+        public long getBudgetExhaustedCount() { return exhausted; }
+        
+        @Override
+        public String toString() {
+            return String.format("requests=%d, retries=%d, budgetExhausted=%d", requests, retries, exhausted);
+        }
+    }
+}
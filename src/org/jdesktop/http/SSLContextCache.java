@@ -0,0 +1,296 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * <p>Caches an SSLContext, and the SSLSocketFactory made from it, for each
+ * combination of security level, security handler and keystore. Creating an
+ * SSLContext is expensive, and more importantly each SSLContext has its own
+ * cache of TLS sessions. Sharing contexts across requests (and Sessions)
+ * allows TLS sessions to be resumed rather than paying for a full handshake
+ * on every connection.</p>
+ *
+ * <p>The cache keeps track of how often handshakes were resumed. Every
+ * handshake over a socket from a cached factory is counted, as is every full
+ * handshake (which is the only kind in which the server certificate is
+ * checked). Handshakes made through an SSLEngine, such as by
+ * {@link HttpClientTransport}, only show up as full handshakes.</p>
+ */
+public final class SSLContextCache {
+    private static final SSLContextCache SHARED = new SSLContextCache();
+    
+    private final Map<Key,Entry> entries = new HashMap<Key,Entry>();
+    private long hits = 0;
+    private long misses = 0;
+    
+    /**
+     * Creates a new, empty, SSLContextCache. Most code should use
+     * {@link #getShared()} instead.
+     */
+    public SSLContextCache() {
+    }
+    
+    /**
+     * @return the cache shared by every Session, unless told otherwise
+     */
+    public static SSLContextCache getShared() {
+        return SHARED;
+    }
+    
+    /**
+     * Returns the cached entry for the given settings, creating it if needed.
+     */
+    Entry get(Session.SecurityLevel level, SecurityHandler handler, KeyStore keystore) {
+        Key key = new Key(level, handler, keystore);
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                hits++;
+                return e;
+            }
+            misses++;
+            e = new Entry(level, handler, keystore);
+            entries.put(key, e);
+            return e;
+        }
+    }
+    
+    /**
+     * Returns the statistics of the entry for the given settings, without
+     * creating it or counting a lookup.
+     */
+    synchronized Stats getStats(Session.SecurityLevel level, SecurityHandler handler, KeyStore keystore) {
+        Stats stats = new Stats(0, 0);
+        Entry e = entries.get(new Key(level, handler, keystore));
+        if (e != null) {
+            stats.add(e);
+        }
+        return stats;
+    }
+    
+    /**
+     * Forgets every cached context, and with them their TLS sessions.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+    
+    /**
+     * @return a snapshot of the statistics of every context in the cache
+     */
+    public synchronized Stats getStats() {
+        Stats stats = new Stats(hits, misses);
+        for (Entry e : entries.values()) {
+            stats.add(e);
+        }
+        return stats;
+    }
+    
+    /**
+     * A cached SSLContext, along with its socket factory.
+     */
+    static final class Entry {
+        private final SSLContext context;
+        private final AbstractX509TrustManager trustManager;
+        private final SSLSocketFactory socketFactory;
+        private final AtomicLong handshakes = new AtomicLong();
+        
+        private Entry(Session.SecurityLevel level, SecurityHandler handler, KeyStore keystore) {
+            try {
+                if (level == Session.SecurityLevel.Low) {
+                    trustManager = new LowSecurityX509TrustManager(keystore);
+                } else if (level == Session.SecurityLevel.Medium) {
+                    trustManager = new MediumSecurityX509TrustManager(handler, keystore);
+                } else {
+                    trustManager = new HighSecurityX509TrustManager(keystore);
+                }
+                context = SSLContext.getInstance("SSL");
+                context.init(null, new TrustManager[] {trustManager}, null);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            socketFactory = new CountingSocketFactory(context.getSocketFactory(), handshakes);
+        }
+        
+        SSLContext getContext() {
+            return context;
+        }
+        
+        /**
+         * @return a socket factory which counts completed handshakes
+         */
+        SSLSocketFactory getSocketFactory() {
+            return socketFactory;
+        }
+    }
+    
+    private static final class Key {
+        private final Session.SecurityLevel level;
+        private final SecurityHandler handler;
+        private final KeyStore keystore;
+        
+        private Key(Session.SecurityLevel level, SecurityHandler handler, KeyStore keystore) {
+            this.level = level;
+            //the handler only matters for the medium level
+            this.handler = level == Session.SecurityLevel.Medium ? handler : null;
+            this.keystore = keystore;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key k = (Key)obj;
+            return level == k.level && handler == k.handler && keystore == k.keystore;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (level == null ? 0 : level.hashCode()) * 31 +
+                    System.identityHashCode(handler) * 17 +
+                    System.identityHashCode(keystore);
+        }
+    }
+    
+    /**
+     * Counts the handshakes completed on the sockets it creates.
+     */
+    private static final class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final HandshakeCompletedListener listener;
+        
+        private CountingSocketFactory(SSLSocketFactory delegate, final AtomicLong handshakes) {
+            this.delegate = delegate;
+            this.listener = new HandshakeCompletedListener() {
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    handshakes.incrementAndGet();
+                }
+            };
+        }
+        
+        private Socket counted(Socket s) {
+            if (s instanceof SSLSocket) {
+                ((SSLSocket)s).addHandshakeCompletedListener(listener);
+            }
+            return s;
+        }
+        
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+        
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+        
+        public Socket createSocket() throws IOException {
+            return counted(delegate.createSocket());
+        }
+        
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return counted(delegate.createSocket(s, host, port, autoClose));
+        }
+        
+        public Socket createSocket(String host, int port) throws IOException {
+            return counted(delegate.createSocket(host, port));
+        }
+        
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return counted(delegate.createSocket(host, port, localHost, localPort));
+        }
+        
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return counted(delegate.createSocket(host, port));
+        }
+        
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return counted(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+    
+    /**
+     * A snapshot of the statistics of an SSLContextCache, or of a single
+     * context in it.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private long handshakes;
+        private long fullHandshakes;
+        private long socketFullHandshakes;
+        
+        private Stats(long hits, long misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+        
+        private void add(Entry e) {
+            handshakes += e.handshakes.get();
+            fullHandshakes += e.trustManager.getServerCheckCount();
+            socketFullHandshakes += e.trustManager.getSocketServerCheckCount();
+        }
+        
+        /** @return the number of times a cached context was reused */
+        public long getContextHitCount() { return hits; }
+        /** @return the number of contexts created */
+        public long getContextMissCount() { return misses; }
+        /** @return the number of handshakes completed over sockets from the cache */
+        public long getHandshakeCount() { return handshakes; }
+        /** @return the number of full handshakes, in which the server certificate was checked */
+        public long getFullHandshakeCount() { return fullHandshakes; }
+        
+        /**
+         * @return the number of handshakes over sockets from the cache which
+         *         resumed an earlier TLS session
+         */
+        public long getResumedHandshakeCount() {
+            return Math.max(0, handshakes - socketFullHandshakes);
+        }
+        
+        /**
+         * @return the fraction of handshakes over sockets from the cache which
+         *         resumed an earlier TLS session, or 0 if there were none
+         */
+        public float getResumptionRatio() {
+            return handshakes == 0 ? 0f : (float)getResumedHandshakeCount() / handshakes;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("contextHits=%d, contextMisses=%d, handshakes=%d, full=%d, resumed=%d",
+                    hits, misses, handshakes, fullHandshakes, getResumedHandshakeCount());
+        }
+    }
+}
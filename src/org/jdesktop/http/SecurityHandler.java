@@ -24,11 +24,20 @@ package org.jdesktop.http;
 import java.security.cert.X509Certificate;
 
 /**
- * Pluggable SecurityHandler. It is not clear that this is needed. Hence, it
- * is package private.
+ * Decides whether to trust a self-signed certificate when a {@link Session}
+ * uses the Medium security level. By default the user is asked with a dialog,
+ * or when running headless, the {@link HeadlessSecurityHandler} decides from
+ * configuration. Either way, decisions are remembered by a
+ * {@link TrustDecisionCache}.
  *
  * @author rbair
+ * @see Session#setMediumSecurityHandler
  */
-interface SecurityHandler {
+public interface SecurityHandler {
+    /**
+     * @param host the host being connected to. May be null if not known.
+     * @param cert the self-signed certificate presented by the host
+     * @return true if the certificate should be trusted
+     */
     public boolean isServerTrusted(String host, X509Certificate cert);
 }
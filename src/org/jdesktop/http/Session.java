@@ -21,24 +21,49 @@
 
 package org.jdesktop.http;
 
+import java.awt.GraphicsEnvironment;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpRetryException;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.net.ssl.*;
 import org.jdesktop.beans.AbstractBean;
 
@@ -58,6 +83,26 @@ import org.jdesktop.beans.AbstractBean;
  * @author rbair
  */
 public class Session extends AbstractBean {
+    /**
+     * How many requests a download to a file may make in all, when the
+     * connection keeps failing part way through.
+     */
+    public static final int MAX_DOWNLOAD_ATTEMPTS = 3;
+    private static final long DOWNLOAD_CHUNK = 1024 * 1024;
+    private static final long SEGMENT_CHUNK = 256 * 1024;
+    /** The largest body read straight into an array of its claimed length */
+    private static final int MAX_PRESIZE = 64 * 1024;
+    /**
+     * The smallest range fetched by a segmented download. Smaller files are
+     * split into fewer segments.
+     */
+    public static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    /**
+     * The default size below which request bodies are not compressed, see
+     * {@link #setCompressionThreshold}.
+     */
+    public static final long DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    
     /**
      * Specifies a value to use for security, either Low, Medium, or High. This
      * is currently used for determining how to treat SSL connections.
@@ -65,8 +110,11 @@ public class Session extends AbstractBean {
      * @see #setSslSecurityLevel
      */
     public enum SecurityLevel {Low, Medium, High};
+    
+    private static SecurityHandler defaultSecurityHandler;
     private SecurityLevel sslSecurity;
     private SecurityHandler handler;
+    private SSLContextCache sslContextCache = SSLContextCache.getShared();
     
     /**
      * Keeps track of the state of the Session when performing a request/response
@@ -85,6 +133,75 @@ public class Session extends AbstractBean {
      * is used whether or not the content-length is known
      */
     private long bytesSoFar = 0;
+    /**
+     * The pool from which connections are leased for every request/response
+     * cycle. Never null.
+     */
+    private ConnectionPool pool = new ConnectionPool();
+    /**
+     * Performs the wire level exchange. Never null.
+     */
+    private Transport transport = new URLConnectionTransport();
+    /**
+     * Runs {@link #executeAsync} when the transport can only block. If null,
+     * the shared default from {@link RequestExecutors} is used.
+     */
+    private Executor executor;
+    /**
+     * The cache consulted before, and updated after, every request. If null,
+     * responses are not cached.
+     */
+    private HttpCache cache;
+    /**
+     * The Content-Encoding with which request bodies are compressed, or null
+     * if they are sent as they are.
+     */
+    private String requestCompression;
+    /**
+     * Request bodies shorter than this are not compressed.
+     */
+    private long compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    /**
+     * The time allowed to connect, and to wait for the server to send
+     * anything, in milliseconds. 0 means forever.
+     */
+    private long connectTimeout = 0;
+    private long readTimeout = 0;
+    /**
+     * The time allowed for a whole request, from sending it to reading the
+     * last byte of the response, in milliseconds. 0 means forever.
+     */
+    private long requestTimeout = 0;
+    /**
+     * Decides which failed requests are sent again. If null, none are.
+     */
+    private RetryPolicy retryPolicy;
+    /**
+     * Decides which slow requests are raced against a hedge. If null, none are.
+     */
+    private HedgingPolicy hedgingPolicy;
+    /**
+     * Fails requests to hosts which are failing without sending them. If
+     * null, requests are always sent.
+     */
+    private CircuitBreaker circuitBreaker;
+    /**
+     * Limits the requests in flight to each host. If null, they are not
+     * limited other than by the connection pool.
+     */
+    private ConcurrencyLimiter concurrencyLimiter;
+    /**
+     * The endpoint groups which requests may name as their host, keyed by
+     * their name in lower case.
+     */
+    private final Map<String,EndpointGroup> endpointGroups = new ConcurrentHashMap<String,EndpointGroup>();
+    /**
+     * The routes (see {@link ConnectionPool#route}) which have answered a
+     * compressed request with 415 Unsupported Media Type, and so are sent
+     * bodies uncompressed from then on. Shared with the Sessions hedged
+     * attempts run on.
+     */
+    private Set<String> uncompressedRoutes = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
     
     /** Creates a new Session. Automatically installs the {@link CookieManager}.*/
     public Session() {
@@ -102,7 +219,7 @@ public class Session extends AbstractBean {
     public Session(boolean installCookieManager) {
         setSslSecurityLevel(SecurityLevel.Medium);
         //register a default security handler
-        setMediumSecurityHandler(new DefaultSecurityHandler());
+        setMediumSecurityHandler(getDefaultSecurityHandler());
         if (installCookieManager) {
             CookieManager.install();
         }
@@ -131,43 +248,478 @@ public class Session extends AbstractBean {
         return sslSecurity;
     }
     
-    void setMediumSecurityHandler(SecurityHandler h) {
+    /**
+     * Sets the {@link SecurityHandler} which decides whether to trust self
+     * signed certificates at the Medium security level. By default this is a
+     * {@link TrustDecisionCache}, shared by every Session, in front of either
+     * a dialog asking the user, or when running headless (as given by the
+     * <code>java.awt.headless</code> system property), a
+     * {@link HeadlessSecurityHandler} configured from system properties. If
+     * the <code>org.jdesktop.http.pinFile</code> system property is set,
+     * accepted certificates are pinned to that file.
+     *
+     * @param h the handler. If null, self signed certificates are checked as
+     *        at the High security level.
+     */
+    public void setMediumSecurityHandler(SecurityHandler h) {
         SecurityHandler old = getMediumSecurityHandler();
         this.handler = h;
         firePropertyChange("mediumSecurityHandler", old, getMediumSecurityHandler());
     }
     
-    SecurityHandler getMediumSecurityHandler() {
+    public final SecurityHandler getMediumSecurityHandler() {
         return handler;
     }
     
-    private SSLSocketFactory createSocketFactory(String host) {
-        try {
-            TrustManager tm = null;
-            Session.SecurityLevel level = getSslSecurityLevel();
-            if (level == Session.SecurityLevel.Low) {
-                tm = new LowSecurityX509TrustManager(null);
-            } else if (level == Session.SecurityLevel.Medium) {
-                tm = new MediumSecurityX509TrustManager(host, getMediumSecurityHandler(), null);
-            } else {
-                tm = new HighSecurityX509TrustManager(null);
-            }
-            SSLContext context = SSLContext.getInstance("SSL");
-            context.init(
-              null, 
-              new TrustManager[] {tm}, 
-              null);
-            return context.getSocketFactory();
-        } catch (Exception e) {
-            throw new AssertionError(e);
+    /**
+     * Returns the SecurityHandler every Session starts with.
+     */
+    private static synchronized SecurityHandler getDefaultSecurityHandler() {
+        if (defaultSecurityHandler == null) {
+            SecurityHandler h = GraphicsEnvironment.isHeadless() ?
+                HeadlessSecurityHandler.fromSystemProperties() : DefaultSecurityHandler.getShared();
+            TrustDecisionCache cache = new TrustDecisionCache(h);
+            String pinFile = System.getProperty("org.jdesktop.http.pinFile");
+            if (pinFile != null) {
+                try {
+                    cache.setPinFile(new File(pinFile));
+                } catch (IOException e) {
+                    Logger.getLogger(Session.class.getName()).log(Level.WARNING,
+                            "Could not read the pin file " + pinFile, e);
+                }
+            }
+            defaultSecurityHandler = cache;
+        }
+        return defaultSecurityHandler;
+    }
+    
+    /**
+     * Returns the cached SSLContext (and socket factory) for the current
+     * security settings of this Session.
+     */
+    SSLContextCache.Entry getSSLContextEntry() {
+        return sslContextCache.get(getSslSecurityLevel(), getMediumSecurityHandler(), null);
+    }
+    
+    /**
+     * Sets the cache from which this Session takes its SSLContexts. Sessions
+     * sharing a cache (and the same security settings) share TLS sessions, so
+     * that connections to a server they have both used can resume them.
+     *
+     * @param cache the cache to use. Must not be null. By default this is
+     *        {@link SSLContextCache#getShared()}.
+     */
+    public void setSSLContextCache(SSLContextCache cache) {
+        if (cache == null) {
+            throw new NullPointerException("cache cannot be null");
+        }
+        SSLContextCache old = this.sslContextCache;
+        this.sslContextCache = cache;
+        firePropertyChange("SSLContextCache", old, cache);
+    }
+    
+    /**
+     * @return the cache from which this Session takes its SSLContexts. This
+     *         will never be null.
+     */
+    public final SSLContextCache getSSLContextCache() {
+        return sslContextCache;
+    }
+    
+    /**
+     * Returns a snapshot of the TLS statistics (such as how many handshakes
+     * resumed an earlier session) for the SSLContext matching the current
+     * security settings of this Session.
+     *
+     * @return the statistics. This will never be null.
+     */
+    public final SSLContextCache.Stats getSSLStats() {
+        return sslContextCache.getStats(getSslSecurityLevel(), getMediumSecurityHandler(), null);
+    }
+    
+    /**
+     * Sets the {@link ConnectionPool} used by this Session. A single pool may be
+     * shared by several Sessions, in which case the limits of the pool apply to
+     * all of them together.
+     *
+     * @param pool the pool to use. Must not be null.
+     */
+    public void setConnectionPool(ConnectionPool pool) {
+        if (pool == null) {
+            throw new NullPointerException("pool cannot be null");
+        }
+        ConnectionPool old = this.pool;
+        this.pool = pool;
+        firePropertyChange("connectionPool", old, pool);
+    }
+    
+    /**
+     * Gets the {@link ConnectionPool} used by this Session.
+     *
+     * @return the pool. This will never be null.
+     */
+    public final ConnectionPool getConnectionPool() {
+        return pool;
+    }
+    
+    /**
+     * Returns a snapshot of the statistics (reuse ratio, wait time, etc) of the
+     * {@link ConnectionPool} used by this Session.
+     *
+     * @return the pool statistics. This will never be null.
+     */
+    public final ConnectionPool.Stats getConnectionPoolStats() {
+        return pool.getStats();
+    }
+    
+    /**
+     * Sets the {@link Transport} used to perform the wire level exchange for
+     * every request executed by this Session. The state and progress properties
+     * of the Session, as well as the Responses produced, behave the same
+     * regardless of the transport in use.
+     *
+     * @param transport the transport to use. Must not be null.
+     * @see URLConnectionTransport
+     * @see HttpClientTransport
+     */
+    public void setTransport(Transport transport) {
+        if (transport == null) {
+            throw new NullPointerException("transport cannot be null");
+        }
+        Transport old = this.transport;
+        this.transport = transport;
+        firePropertyChange("transport", old, transport);
+    }
+    
+    /**
+     * Gets the {@link Transport} used by this Session. By default this is a
+     * {@link URLConnectionTransport}.
+     *
+     * @return the transport. This will never be null.
+     */
+    public final Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Sets the Executor on which requests run in the background, when they
+     * are executed asynchronously and the transport can only block. This is
+     * also used by any {@link org.jdesktop.http.async.AsyncHttpRequest} using
+     * this Session, unless the request specifies an executor of its own.
+     *
+     * @param executor the executor to use. If null, the shared default
+     *        ({@link RequestExecutors#getDefault()}) is used.
+     */
+    public void setExecutor(Executor executor) {
+        Executor old = this.executor;
+        this.executor = executor;
+        firePropertyChange("executor", old, executor);
+    }
+
+    /**
+     * Gets the Executor on which requests run in the background.
+     *
+     * @return the executor. This will never be null.
+     */
+    public final Executor getExecutor() {
+        return executor == null ? RequestExecutors.getDefault() : executor;
+    }
+    
+    /**
+     * Sets the {@link HttpCache} used by this Session. A single cache may be
+     * shared by several Sessions.
+     *
+     * @param cache the cache to use. If null (the default), responses are
+     *        not cached.
+     */
+    public void setCache(HttpCache cache) {
+        HttpCache old = this.cache;
+        this.cache = cache;
+        firePropertyChange("cache", old, cache);
+    }
+    
+    /**
+     * Gets the {@link HttpCache} used by this Session.
+     *
+     * @return the cache. May be null.
+     */
+    public final HttpCache getCache() {
+        return cache;
+    }
+    
+    /**
+     * <p>Sets the Content-Encoding with which request bodies are compressed
+     * as they are sent. Only bodies set as a {@link RequestBody} (including
+     * Strings, bytes and Documents) of at least
+     * {@link #getCompressionThreshold() compressionThreshold} bytes, or of
+     * unknown length, are compressed. A request which already has a
+     * Content-Encoding header is left alone, so setting it to
+     * <code>identity</code> keeps a single request from being compressed.</p>
+     *
+     * <p>Not every server accepts compressed requests. When one answers a
+     * compressed request with 415 Unsupported Media Type, the Session
+     * remembers not to compress bodies sent to that host from then on, and
+     * sends the request again uncompressed if its body is
+     * {@link RequestBody#isRepeatable() repeatable}.</p>
+     *
+     * @param encoding gzip, deflate, or null (the default) to send bodies as
+     *        they are
+     */
+    public void setRequestCompression(String encoding) {
+        if (encoding != null && !"gzip".equals(encoding) && !"deflate".equals(encoding)) {
+            throw new IllegalArgumentException("Unsupported request compression: " + encoding);
+        }
+        String old = this.requestCompression;
+        this.requestCompression = encoding;
+        firePropertyChange("requestCompression", old, encoding);
+    }
+    
+    /**
+     * Gets the Content-Encoding with which request bodies are compressed.
+     *
+     * @return gzip, deflate, or null if bodies are not compressed
+     */
+    public final String getRequestCompression() {
+        return requestCompression;
+    }
+    
+    /**
+     * Sets the size below which request bodies are not compressed, since
+     * compressing small bodies costs more than it saves.
+     *
+     * @param bytes the threshold. Must not be negative.
+     */
+    public void setCompressionThreshold(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("The threshold cannot be negative");
+        }
+        long old = this.compressionThreshold;
+        this.compressionThreshold = bytes;
+        firePropertyChange("compressionThreshold", old, bytes);
+    }
+    
+    /**
+     * @return the size below which request bodies are not compressed
+     */
+    public final long getCompressionThreshold() {
+        return compressionThreshold;
+    }
+    
+    /**
+     * Sets the time allowed to establish a connection. A {@link Request} may
+     * set its own connectTimeout in place of this one.
+     *
+     * @param millis the timeout in milliseconds, or 0 (the default) to wait
+     *        forever. Must not be negative.
+     */
+    public void setConnectTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The timeout cannot be negative");
+        }
+        long old = this.connectTimeout;
+        this.connectTimeout = millis;
+        firePropertyChange("connectTimeout", old, millis);
+    }
+    
+    /**
+     * @return the connect timeout in milliseconds, or 0 for none
+     */
+    public final long getConnectTimeout() {
+        return connectTimeout;
+    }
+    
+    /**
+     * Sets the longest time to wait for the server to send anything, while
+     * waiting for the response or reading its body. A {@link Request} may set
+     * its own readTimeout in place of this one.
+     *
+     * @param millis the timeout in milliseconds, or 0 (the default) to wait
+     *        forever. Must not be negative.
+     */
+    public void setReadTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The timeout cannot be negative");
+        }
+        long old = this.readTimeout;
+        this.readTimeout = millis;
+        firePropertyChange("readTimeout", old, millis);
+    }
+    
+    /**
+     * @return the read timeout in milliseconds, or 0 for none
+     */
+    public final long getReadTimeout() {
+        return readTimeout;
+    }
+    
+    /**
+     * <p>Sets the time allowed for each request as a whole, from sending it
+     * to reading the last byte of its response (for a streaming response,
+     * whenever the caller reads it). A request which takes longer is aborted,
+     * and fails with a <code>SocketTimeoutException</code>.</p>
+     *
+     * <p>The earliest of this timeout, the {@link Request#getDeadline()
+     * deadline} of the request and the {@link Deadline#current() current
+     * deadline} of the calling thread applies.</p>
+     *
+     * @param millis the timeout in milliseconds, or 0 (the default) for none.
+     *        Must not be negative.
+     */
+    public void setRequestTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The timeout cannot be negative");
+        }
+        long old = this.requestTimeout;
+        this.requestTimeout = millis;
+        firePropertyChange("requestTimeout", old, millis);
+    }
+    
+    /**
+     * @return the time allowed for each request in milliseconds, or 0 for none
+     */
+    public final long getRequestTimeout() {
+        return requestTimeout;
+    }
+    
+    /**
+     * Sets the {@link RetryPolicy} which decides whether a request that
+     * failed, or was answered with a temporary error such as 503 Service
+     * Unavailable, is sent again, and after how long. A policy may be shared
+     * by several Sessions, which then share its retry budget.
+     *
+     * @param policy the policy to use, or null (the default) to never retry
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        RetryPolicy old = this.retryPolicy;
+        this.retryPolicy = policy;
+        firePropertyChange("retryPolicy", old, policy);
+    }
+    
+    /**
+     * @return the RetryPolicy of this Session, or null if requests are never
+     *         retried
+     */
+    public final RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+    
+    /**
+     * Sets the {@link HedgingPolicy} which decides when a request that is
+     * taking longer than usual is raced against a second, identical request.
+     * The first response is used, and the other request aborted. A policy may
+     * be shared by several Sessions, which then share what it has learned.
+     *
+     * @param policy the policy to use, or null (the default) to never hedge
+     */
+    public void setHedgingPolicy(HedgingPolicy policy) {
+        HedgingPolicy old = this.hedgingPolicy;
+        this.hedgingPolicy = policy;
+        firePropertyChange("hedgingPolicy", old, policy);
+    }
+    
+    /**
+     * @return the HedgingPolicy of this Session, or null if requests are
+     *         never hedged
+     */
+    public final HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+    
+    /**
+     * Sets the {@link CircuitBreaker} which keeps track of the hosts that are
+     * failing, and fails the requests made to them with a
+     * {@link CircuitOpenException} rather than sending them. Whenever a
+     * request moves a circuit to another state, a
+     * {@link CircuitBreaker.StateChangeEvent} is fired as a change of the
+     * <code>circuitState</code> property. A breaker may be shared by several
+     * Sessions, which then share its circuits.
+     *
+     * @param breaker the breaker to use, or null (the default) to always send
+     *        requests
+     */
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        CircuitBreaker old = this.circuitBreaker;
+        this.circuitBreaker = breaker;
+        firePropertyChange("circuitBreaker", old, breaker);
+    }
+    
+    /**
+     * @return the CircuitBreaker of this Session, or null if requests are
+     *         always sent
+     */
+    public final CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+    
+    /**
+     * Sets the {@link ConcurrencyLimiter} which limits the number of requests
+     * in flight to each host, adapting the limit to the response times of
+     * the host. Requests over the limit wait their turn for a while, then
+     * fail with a {@link ConcurrencyLimitException}. A limiter may be shared
+     * by several Sessions, which then share its limits.
+     *
+     * @param limiter the limiter to use, or null (the default) not to limit
+     *        requests other than by the connection pool
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter limiter) {
+        ConcurrencyLimiter old = this.concurrencyLimiter;
+        this.concurrencyLimiter = limiter;
+        firePropertyChange("concurrencyLimiter", old, limiter);
+    }
+    
+    /**
+     * @return the ConcurrencyLimiter of this Session, or null if requests are
+     *         not limited
+     */
+    public final ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+    
+    /**
+     * Fires a change of state of a circuit, on behalf of the CircuitBreaker.
+     */
+    void circuitChanged(CircuitBreaker.StateChangeEvent evt) {
+        firePropertyChange(evt);
+    }
+    
+    /**
+     * Adds an {@link EndpointGroup}, so that requests whose url has the name
+     * of the group as its host are spread among its endpoints. Host names are
+     * not case sensitive. Any group of the same name is replaced.
+     *
+     * @param group the group to add. This must not be null.
+     */
+    public void addEndpointGroup(EndpointGroup group) {
+        if (group == null) {
+            throw new NullPointerException("group cannot be null");
+        }
+        endpointGroups.put(group.getName().toLowerCase(Locale.ROOT), group);
+    }
+    
+    /**
+     * Removes the given {@link EndpointGroup}. Requests made to its name are
+     * sent to the host of that name from then on.
+     *
+     * @param group the group to remove
+     */
+    public void removeEndpointGroup(EndpointGroup group) {
+        if (group != null) {
+            endpointGroups.remove(group.getName().toLowerCase(Locale.ROOT), group);
         }
     }
     
+    /**
+     * @return the endpoint groups of this Session. This will never be null.
+     */
+    public final EndpointGroup[] getEndpointGroups() {
+        return endpointGroups.values().toArray(new EndpointGroup[0]);
+    }
+    
     public final long getTotalBytes() {
         return totalBytes;
     }
     
-    private void setTotalBytes(long bytes) {
+    void setTotalBytes(long bytes) {
         long old = totalBytes;
         float oldProgress = getProgress();
         firePropertyChange("totalBytes", old, this.totalBytes = bytes);
@@ -178,7 +730,7 @@ public class Session extends AbstractBean {
         return bytesSoFar;
     }
     
-    private void setBytesSoFar(long bytes) {
+    void setBytesSoFar(long bytes) {
         long old = this.bytesSoFar;
         float oldProgress = getProgress();
         firePropertyChange("bytesSoFar", old, this.bytesSoFar = bytes);
@@ -253,7 +805,8 @@ public class Session extends AbstractBean {
      *
      * @param url The url to hit. This url may contain a query string (ie: params).
      *            The url cannot be null.
-     * @param params The params to include in the request. This may be null.
+     * @param params The params to include in the request. This may be null. They are sent
+     *               in the body as an application/x-www-form-urlencoded form.
      * @return the {@link Response} to the {@link Request}.
      * @throws Exception if an error occurs while creating or executing the
      *         <code>Request</code> on the client machine. That is, if normal
@@ -284,7 +837,8 @@ public class Session extends AbstractBean {
      *
      * @param url The url to hit. This url may contain a query string (ie: params).
      *            The url cannot be null.
-     * @param params The params to include in the request. This may be null.
+     * @param params The params to include in the request. This may be null. They are sent
+     *               in the body as an application/x-www-form-urlencoded form.
      * @return the {@link Response} to the {@link Request}.
      * @throws Exception if an error occurs while creating or executing the
      *         <code>Request</code> on the client machine. That is, if normal
@@ -321,7 +875,9 @@ public class Session extends AbstractBean {
      * @param method The HTTP {@link Method} to use. This must not be null.
      * @param url The url to hit. This url may contain a query string (ie: params).
      *            The url cannot be null.
-     * @param params The params to include in the request. This may be null.
+     * @param params The params to include in the request. This may be null. For POST and
+     *               PUT they are sent in the body as a {@link FormBody},
+     *               and otherwise they are added to the url.
      * @return the {@link Response} to the {@link Request}.
      * @throws Exception if an error occurs while creating or executing the
      *         <code>Request</code> on the client machine. That is, if normal
@@ -335,9 +891,14 @@ public class Session extends AbstractBean {
             throw new NullPointerException("url cannot be null");
         }
         
-        //create and handle the request
+        //create and handle the request. The params of a POST or PUT are sent
+        //as a form in the body, any others are added to the url
         Request req = new Request();
-        req.setParameters(params);
+        if (method == Method.POST || method == Method.PUT) {
+            req.setBody(new FormBody(params));
+        } else {
+            req.setParameters(params);
+        }
         req.setMethod(method);
         req.setUrl(url); //make sure the URL is set after the params, or else
         //if the url had any params, they will be hosed!
@@ -346,206 +907,1307 @@ public class Session extends AbstractBean {
     
     /**
      * Executes the given {@link Request}, and returns a {@link Response}.
-     * This method blocks.
+     * This method blocks, including while waiting to retry the request if
+     * the {@link #setRetryPolicy retry policy} calls for it.
      *
      * @return the {@link Response} to the {@link Request}.
      * @throws Exception if an error occurs while creating or executing the
      *         <code>Request</code> on the client machine. That is, if normal
      *         http errors occur, they will not throw an exception (such as BAD_GATEWAY, etc).
+     *         A {@link CircuitOpenException} is thrown without sending the
+     *         request if the {@link #setCircuitBreaker circuit} to the host is open.
      */
     public Response execute(Request req) throws Exception {
+        return execute(req, false);
+    }
+    
+    /**
+     * <p>Executes the given {@link Request}, and returns a {@link Response}
+     * bound to the live connection, as soon as the head of the response has
+     * been received. The body is not read into memory: it is read from
+     * {@link Response#getBodyAsStream()} or {@link Response#getBodyAsChannel()},
+     * and the connection is released when that stream is closed. This allows
+     * bodies of any size to be processed in constant memory. This method
+     * blocks until the head of the response is received.</p>
+     *
+     * <p>The state of the Session stays RECEIVING, and bytesSoFar keeps being
+     * updated, until the body has been read to the end or closed. Streaming
+     * responses are not stored in the {@link HttpCache}, although fresh cached
+     * responses are still served from it.</p>
+     *
+     * @return the streaming {@link Response} to the {@link Request}. The
+     *         caller must read or close its body.
+     * @throws Exception if an error occurs while creating or executing the
+     *         <code>Request</code> on the client machine.
+     */
+    public Response executeStreaming(Request req) throws Exception {
+        return execute(req, true);
+    }
+    
+    /**
+     * Executes the given {@link Request}, and writes the body of the response
+     * to the given file, which is created if needed and replaced otherwise.
+     * Equivalent to <code>executeToFile(req, file, false)</code>.
+     *
+     * @see #executeToFile(Request, Path, boolean)
+     */
+    public Response executeToFile(Request req, Path file) throws Exception {
+        return executeToFile(req, file, false);
+    }
+    
+    /**
+     * <p>Executes the given {@link Request}, and writes the body of the response
+     * straight to the given file, without holding it in memory. A gzip or
+     * deflate encoded body is decoded on the way. The progress properties of the
+     * Session are updated as the body is written.</p>
+     *
+     * <p>If the connection fails part way through, the download is resumed
+     * with a Range request (guarded by If-Range, so that a resource which
+     * changed in the meantime is fetched again from the start), up to
+     * {@link #MAX_DOWNLOAD_ATTEMPTS} times in all. If <code>resume</code> is
+     * true, the download starts from the end of the existing file, as left by
+     * an earlier download which failed.</p>
+     *
+     * <p>If the server answers with an error, the file is left untouched, and
+     * the body of the error is available from the returned Response.</p>
+     *
+     * @param req the Request to execute. Only GET requests are resumed.
+     * @param file the file to write the body to
+     * @param resume whether to continue from the end of the existing file
+     * @return the Response to the last request made, with an empty body
+     *         (unless it was an error). This is a 206 Partial Content if the
+     *         download was resumed.
+     * @throws Exception if an error occurs while executing the request, or
+     *         writing the file
+     */
+    public Response executeToFile(Request req, Path file, boolean resume) throws Exception {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
         try {
-            // initialize the state and such
-            setTotalBytes(-1);
-            setBytesSoFar(0);
-            setState(State.CONNECTING);
-            
-            // 0. Create the URL
-            StringBuffer surl = new StringBuffer(req.getUrl());
-            if (surl.length() == 0) {
-                setState(State.FAILED);
-                throw new IllegalStateException("Cannot excecute a request that has no URL specified");
-            }
-            
-            char delim = '?';
-            for (Parameter p : req.getParameters()) {
-                surl.append(delim);
-                delim = '&';
-                String name = URLEncoder.encode(p.getName(), "UTF-8");
-                String value = URLEncoder.encode(p.getValue(), "UTF-8");
-                surl.append(name + "=" + value);
-            }
-            
-            // 1. Create the HttpURLConnection
-            URL url = createURL(surl.toString());
-            URLConnection conn = url.openConnection();
-            if (!(conn instanceof HttpURLConnection)) {
-                setState(State.FAILED);
-                throw new IllegalStateException("Must be an HTTP or HTTPS based URL");
+            return download(req, channel, resume ? channel.size() : 0);
+        } finally {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Executes the given {@link Request}, and writes the body of the response
+     * to the given channel, from position 0. The channel is truncated to the
+     * length of the body, and is not closed. See
+     * {@link #executeToFile(Request, Path, boolean)} for details.
+     */
+    public Response executeToChannel(Request req, FileChannel channel) throws Exception {
+        return download(req, channel, 0);
+    }
+    
+    private Response download(Request req, FileChannel out, long offset) throws Exception {
+        String validator = null;
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            Request attempt = req;
+            if (offset > 0) {
+                attempt = new Request(req);
+                attempt.setHeader("Range", "bytes=" + offset + "-");
+                //byte ranges of a gzip encoding cannot be spliced together
+                attempt.setHeader("Accept-Encoding", "identity");
+                if (validator != null) {
+                    attempt.setHeader("If-Range", validator);
+                }
             }
-            HttpURLConnection http = (HttpURLConnection)conn;
-            
-            // 2. Configure the connection
-            http.setRequestMethod(req.getMethod().name());
-            http.setInstanceFollowRedirects(req.getFollowRedirects());
-            
-            //TODO support chunked streaming?
-//            http.setChunkedStreamingMode(req.getChunkSize() > 0 ? req.getChunkSize() : -1);
-            //TODO support connection timeout? (probably a good idea)
-//            http.setConnectTimeout(req.getConnectionTimeout());
-            //TODO fixed length streaming?
-//            http.setFixedLengthStreamingMode(contentLength);
-            
-            for (Header h : req.getHeaders()) {
-                http.setRequestProperty(h.getName(), h.getValue());
+            Response response = execute(attempt, true);
+            int status = response.getStatusCode().getCode();
+            long start = 0;
+            if (offset > 0 && status == 206) {
+                long[] range = contentRange(response);
+                if (range == null || range[0] != offset) {
+                    //not the range asked for, start again
+                    response.close();
+                    offset = 0;
+                    continue;
+                }
+                start = offset;
+                setTotalBytes(range[1] < 0 ? -1 : range[1]);
+                setBytesSoFar(offset);
+            } else if (offset > 0 && status == 416) {
+                long[] range = contentRange(response);
+                response.close();
+                if (range != null && range[1] == offset) {
+                    //the file was already complete
+                    out.truncate(offset);
+                    return response.withoutBody();
+                }
+                offset = 0;
+                if (attempts >= MAX_DOWNLOAD_ATTEMPTS) {
+                    throw new IOException("The server could not resume the download of " + req.getUrl());
+                }
+                continue;
+            } else if (status < 200 || status >= 300) {
+                response.getBodyAsBytes();
+                return response;
             }
             
-            // 3. If I supported a cache, this is where I'd configure it!
-            
-            // 4. Configure the request parameters
-            if (http instanceof HttpsURLConnection) {
-                HttpsURLConnection https = (HttpsURLConnection)http;
-                //set the ssl socket factory such that it respects the security levels
-                https.setSSLSocketFactory(createSocketFactory(url.getHost()));
+            Header etag = response.getHeader("ETag");
+            Header lastModified = response.getHeader("Last-Modified");
+            if (validator == null && etag != null && !etag.getValue().startsWith("W/")) {
+                validator = etag.getValue();
+            } else if (validator == null && lastModified != null) {
+                validator = lastModified.getValue();
             }
-
-            // If the content-length has been specified, then use it
-            // otherwise I won't know the content length until it is too late
-            long contentLength = -1;
-            Header contentLengthHeader = req.getHeader("Content-Length");
-            if (contentLengthHeader != null) {
+            Header contentEncoding = response.getHeader("Content-Encoding");
+            boolean resumable = req.getMethod() == Method.GET &&
+                (contentEncoding == null || "identity".equals(contentEncoding.getValue()));
+            //not every transport notices a connection closed early
+            long expected = -1;
+            Header contentLength = response.getHeader("Content-Length");
+            if (resumable && contentLength != null) {
                 try {
-                    contentLength = Long.parseLong(contentLengthHeader.getValue().trim());
-                } catch (NumberFormatException ex) {
-                    // unexpected, set contentlength to -1
-                    contentLength = -1;
+                    expected = Long.parseLong(contentLength.getValue().trim());
+                } catch (NumberFormatException e) {
+                    expected = -1;
                 }
             }
-            setTotalBytes(contentLength);
             
-            // 5. Set the request body, if any.
-            setState(State.SENDING);
-            OutputStream out = null;
-            InputStream body = req.getBody();
-            if (body != null) {
+            out.truncate(start);
+            long position = start;
+            ReadableByteChannel in = response.getBodyAsChannel();
+            try {
+                long n;
+                while ((n = out.transferFrom(in, position, DOWNLOAD_CHUNK)) > 0) {
+                    position += n;
+                }
+                if (expected >= 0 && position - start < expected) {
+                    throw new EOFException("The connection was closed after " + (position - start) +
+                            " of " + expected + " bytes");
+                }
+                in.close();
+                return response.withoutBody();
+            } catch (IOException e) {
                 try {
-                    http.setDoOutput(true);
-                    out = http.getOutputStream();
-                    byte[] buffer = new byte[8096];
-                    int length = -1;
-                    while ((length = body.read(buffer)) != -1) {
-                        out.write(buffer, 0, length);
-                        setBytesSoFar(bytesSoFar + length);
-                    }
-                } catch (Exception e) {
-                    setState(State.FAILED);
+                    in.close();
+                } catch (IOException ex) {
+                    //the connection is already broken
+                }
+                if (attempts >= MAX_DOWNLOAD_ATTEMPTS) {
                     throw e;
-                } finally {
-                    if (out != null) out.close();
-                    body.close();
                 }
+                Logger.getLogger(Session.class.getName()).log(Level.FINE,
+                        "Download of " + req.getUrl() + " failed at byte " + position + ", retrying", e);
+                offset = resumable ? position : 0;
+            }
+        }
+    }
+    
+    /**
+     * <p>Downloads the resource of the given GET {@link Request} into the given
+     * file, fetching several byte ranges of it at once. Each range is written
+     * at its offset in the file, which is allocated to its full length first.
+     * Ranges are fetched on the {@link #getExecutor() executor} of this
+     * Session, over connections from its {@link ConnectionPool}, so the pool
+     * must allow that many connections per route for them all to proceed at
+     * once. A range whose connection fails is resumed on its own, up to
+     * {@link #MAX_DOWNLOAD_ATTEMPTS} times. The progress properties of this
+     * Session report the progress of all the ranges together.</p>
+     *
+     * <p>The resource is probed with a HEAD request first. If the server does
+     * not advertise <code>Accept-Ranges: bytes</code> and a Content-Length,
+     * or the file is too small to split, or the resource changes while the
+     * ranges are fetched, this falls back to
+     * {@link #executeToFile(Request, Path)}.</p>
+     *
+     * @param req the GET Request to execute
+     * @param file the file to write the resource to
+     * @param segments the number of ranges to fetch at once
+     * @return the Response to the HEAD request, with an empty body, or the
+     *         Response of the fallback download. If the HEAD request fails
+     *         with an error, that is returned, with its body.
+     * @throws Exception if an error occurs while executing the requests, or
+     *         writing the file
+     */
+    public Response executeSegmented(Request req, Path file, int segments) throws Exception {
+        if (segments <= 0) {
+            throw new IllegalArgumentException("segments must be positive");
+        }
+        if (req.getMethod() != Method.GET) {
+            throw new IllegalArgumentException("Only GET requests can be downloaded in segments");
+        }
+        Request probe = new Request(req);
+        probe.setMethod(Method.HEAD);
+        probe.setHeader("Accept-Encoding", "identity");
+        Response head = execute(probe);
+        int status = head.getStatusCode().getCode();
+        if (status < 200 || status >= 300) {
+            return head;
+        }
+        Header acceptRanges = head.getHeader("Accept-Ranges");
+        Header contentLength = head.getHeader("Content-Length");
+        long length = -1;
+        try {
+            length = contentLength == null ? -1 : Long.parseLong(contentLength.getValue().trim());
+        } catch (NumberFormatException e) {
+            length = -1;
+        }
+        segments = (int)Math.min(segments, length / MIN_SEGMENT_SIZE);
+        if (acceptRanges == null || !"bytes".equalsIgnoreCase(acceptRanges.getValue().trim()) || segments < 2) {
+            return executeToFile(req, file);
+        }
+        Header etag = head.getHeader("ETag");
+        Header lastModified = head.getHeader("Last-Modified");
+        String validator = etag != null && !etag.getValue().startsWith("W/") ? etag.getValue() :
+            lastModified == null ? null : lastModified.getValue();
+        
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicBoolean changed = new AtomicBoolean(false);
+        final AtomicLong progress = new AtomicLong(0);
+        FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            //allocate the whole file up front
+            out.truncate(length);
+            if (out.size() < length) {
+                out.write(ByteBuffer.wrap(new byte[1]), length - 1);
             }
-            
-            // 6. Get the response
-            // Read the response headers
-            // TODO Content-Encoding might not be in this set of headers. Need to test.
-            setState(State.SENT);
-            http.connect();
-            setBytesSoFar(0);
-            setTotalBytes(http.getContentLength());
             setState(State.RECEIVING);
-            Set<Header> headers = new HashSet<Header>();
-            Header contentType = null;
-            for (Map.Entry<String, List<String>> entry : http.getHeaderFields().entrySet()) {
-                String headerKey = entry.getKey();
-                String headerValue = http.getHeaderField(headerKey);
-                if (headerKey == null) continue;
-                List<String> values = entry.getValue();
-                Header.Element[] elements = new Header.Element[values.size()];
-                for (int j=0; j<elements.length; j++) {
-                    elements[j] = new Header.Element(new Parameter(values.get(j), values.get(j)));
+            setTotalBytes(length);
+            setBytesSoFar(0);
+            
+            List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+            long size = length / segments;
+            for (int i = 0; i < segments; i++) {
+                final long first = i * size;
+                final long last = i == segments - 1 ? length - 1 : first + size - 1;
+                final Session session = createSegmentSession();
+                final Request segment = new Request(req);
+                segment.setHeader("Accept-Encoding", "identity");
+                segment.setDeadline(Deadline.earliest(req.getDeadline(), Deadline.current()));
+                if (validator != null) {
+                    segment.setHeader("If-Range", validator);
+                }
+                final FileChannel channel = out;
+                try {
+                    tasks.add(CompletableFuture.runAsync(new Runnable() {
+                        public void run() {
+                            try {
+                                downloadSegment(session, segment, channel, first, last, progress, stop, changed);
+                            } catch (Exception e) {
+                                stop.set(true);
+                                throw new CompletionException(e);
+                            }
+                        }
+                    }, getExecutor()));
+                } catch (RejectedExecutionException e) {
+                    //stop the segments already started, and fail with the rejection
+                    stop.set(true);
+                    CompletableFuture<Void> rejected = new CompletableFuture<Void>();
+                    rejected.completeExceptionally(e);
+                    tasks.add(rejected);
+                    break;
                 }
-
-                Header h = new Header(headerKey, headerValue, elements);
-                headers.add(h);
-                if ("Content-Type".equalsIgnoreCase(headerKey)) contentType = h;
             }
             
-            // Read the response, possibly from the error stream. Automatically
-            // unzip the response if it was gzip encoded
-            byte[] responseBody = null;
-            StatusCode responseCode = StatusCode.INTERNAL_SERVER_ERROR;
-            InputStream responseStream = null;
-            try {
-                //connects and returns the stream
-                responseStream = http.getInputStream();
-                responseCode = StatusCode.valueOf(http.getResponseCode());
-                //if this is GZIP encoded, then wrap the input stream
-                String contentEncoding = http.getContentEncoding();
-                if ("gzip".equals(contentEncoding)) {
-                    responseStream = new GZIPInputStream(responseStream);
-                }
-                responseBody = readFully(responseStream);
-            } catch (FileNotFoundException e) {
-                //check for an error stream
-                responseStream = http.getErrorStream();
-                responseBody = readFully(responseStream);
-            } catch (HttpRetryException e) {
-                //TODO not sure what to do on a retry exception
-                setState(State.FAILED);
-                return new Response(StatusCode.NOT_FOUND, "HttpRetryException: " + e.getMessage(), null, null, null, req.getUrl());
-            } catch (UnknownHostException e) {
+            Exception failure = null;
+            for (CompletableFuture<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    stop.set(true);
+                    setState(State.ABORTED);
+                    throw e;
+                } catch (ExecutionException e) {
+                    if (failure == null && e.getCause() instanceof Exception) {
+                        failure = (Exception)e.getCause();
+                    }
+                }
+            }
+            if (changed.get()) {
+                //the resource changed under us, so the ranges don't fit together
+                out.close();
+                return executeToFile(req, file);
+            }
+            if (failure != null) {
                 setState(State.FAILED);
-                return new Response(StatusCode.NOT_FOUND, "Unknown host", null, null, null, req.getUrl());
-            } catch (IOException ex) {
-                String msg = ex.getMessage();
-                if (msg.contains("Server returned HTTP response code:")) {
-                    int startIndex = msg.indexOf("code: ") + 6;
-                    String s = msg.substring(startIndex, startIndex + 3);
-                    responseCode = StatusCode.valueOf(Integer.parseInt(s));
-                    responseStream = http.getErrorStream();
-                    responseBody = readFully(responseStream);
-                } else {
-                    throw ex;
+                throw failure;
+            }
+            setState(State.DONE);
+            return head.withoutBody();
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Creates a Session which shares the transport, pool, executor and
+     * security settings of this one, for fetching one range of a segmented
+     * download while keeping its progress apart.
+     */
+    private Session createSegmentSession() {
+        Session s = new Session(false);
+        s.setSslSecurityLevel(getSslSecurityLevel());
+        s.setMediumSecurityHandler(getMediumSecurityHandler());
+        s.setSSLContextCache(getSSLContextCache());
+        s.setConnectionPool(getConnectionPool());
+        s.setTransport(getTransport());
+        s.setExecutor(executor);
+        s.setConnectTimeout(connectTimeout);
+        s.setReadTimeout(readTimeout);
+        s.setRequestTimeout(requestTimeout);
+        s.setCircuitBreaker(circuitBreaker);
+        s.setConcurrencyLimiter(concurrencyLimiter);
+        s.endpointGroups.putAll(endpointGroups);
+        return s;
+    }
+    
+    /**
+     * Creates a Session for one attempt of a hedged request, so that the
+     * progress and state of the attempts racing each other are kept apart.
+     * Besides what a segment Session shares, it uses the cache and request
+     * compression settings of this one.
+     */
+    private Session createHedgeSession() {
+        Session s = createSegmentSession();
+        s.cache = cache;
+        s.requestCompression = requestCompression;
+        s.compressionThreshold = compressionThreshold;
+        s.uncompressedRoutes = uncompressedRoutes;
+        return s;
+    }
+    
+    /**
+     * Fetches the given range of a segmented download, resuming it if the
+     * connection fails.
+     */
+    private void downloadSegment(Session session, Request req, FileChannel out, long first, long last,
+            AtomicLong progress, AtomicBoolean stop, AtomicBoolean changed) throws Exception {
+        long position = first;
+        int attempts = 0;
+        while (position <= last && !stop.get()) {
+            attempts++;
+            req.setHeader("Range", "bytes=" + position + "-" + last);
+            Response response = session.execute(req, true);
+            ReadableByteChannel in = null;
+            try {
+                long[] range = contentRange(response);
+                if (response.getStatusCode().getCode() == 200) {
+                    changed.set(true);
+                    stop.set(true);
+                    return;
+                } else if (response.getStatusCode().getCode() != 206 || range == null || range[0] != position) {
+                    throw new IOException("Could not fetch bytes " + position + "-" + last + " of " +
+                            req.getUrl() + ": " + response.getStatusCode());
+                }
+                in = response.getBodyAsChannel();
+                long n;
+                while (position <= last && !stop.get() &&
+                        (n = out.transferFrom(in, position, Math.min(SEGMENT_CHUNK, last + 1 - position))) > 0) {
+                    position += n;
+                    synchronized (progress) {
+                        setBytesSoFar(progress.addAndGet(n));
+                    }
+                }
+                if (position <= last && !stop.get()) {
+                    throw new EOFException("The connection was closed at byte " + position + " of " + req.getUrl());
+                }
+            } catch (IOException e) {
+                if (attempts >= MAX_DOWNLOAD_ATTEMPTS) {
+                    throw e;
                 }
+                Logger.getLogger(Session.class.getName()).log(Level.FINE,
+                        "Segment of " + req.getUrl() + " failed at byte " + position + ", retrying", e);
             } finally {
-                if (responseStream != null) responseStream.close();
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        //the connection is already broken
+                    }
+                } else {
+                    response.close();
+                }
             }
-            
-            // figure out the "base url" from which relative urls would be
-            // computed
-            String foo = "foo";
-            URI uri = new URI(req.getUrl());
-            URI uu = uri.resolve(new URI(foo));
-            String baseUrl = uu.toString().substring(0,uu.toString().length()-foo.length());
-
-            // learn what the content type is
-            String charset = null;
-            if (contentType != null) {
-                String tmp = contentType.getValue();
-                //find the ; following the content type (if there is one)
-                int index = tmp.indexOf(";");
-                if (index >= 0) {
-                    index = tmp.indexOf("=", index+1);
-                    if (index > 0) charset = contentType.getValue().substring(index+1);
+        }
+    }
+    
+    /**
+     * Parses the Content-Range header of a response.
+     *
+     * @return the first byte and the complete length (-1 if unknown), or null
+     */
+    private static long[] contentRange(Response response) {
+        Header h = response.getHeader("Content-Range");
+        if (h == null || h.getValue() == null) return null;
+        String value = h.getValue().trim();
+        if (!value.startsWith("bytes")) return null;
+        value = value.substring(5).trim();
+        int slash = value.indexOf('/');
+        if (slash < 0) return null;
+        try {
+            String total = value.substring(slash + 1).trim();
+            long length = "*".equals(total) ? -1 : Long.parseLong(total);
+            String range = value.substring(0, slash).trim();
+            int dash = range.indexOf('-');
+            long first = "*".equals(range) || dash < 0 ? -1 : Long.parseLong(range.substring(0, dash).trim());
+            return new long[] {first, length};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    private Response execute(Request req, boolean streaming) throws Exception {
+        RetryPolicy policy = retryPolicy;
+        if (policy == null) {
+            return attempt(req, streaming);
+        }
+        policy.requestStarted();
+        Deadline deadline = Deadline.earliest(req.getDeadline(), Deadline.current());
+        for (int attempts = 1; ; attempts++) {
+            Response response = null;
+            Exception failure = null;
+            try {
+                response = attempt(req, streaming);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                failure = e;
+            }
+            long delay = policy.retryDelay(req, attempts, response, failure, deadline);
+            if (delay < 0) {
+                if (failure != null) {
+                    throw failure;
                 }
+                return response;
+            }
+            if (response != null) {
+                response.close();
+            }
+            logRetry(req, attempts, response, failure, delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                setState(State.ABORTED);
+                throw e;
+            }
+        }
+    }
+    
+    private static void logRetry(Request req, int attempts, Response response, Exception failure, long delay) {
+        Logger log = Logger.getLogger(Session.class.getName());
+        if (log.isLoggable(Level.FINE)) {
+            log.log(Level.FINE, "Retrying {0} in {1}ms after attempt {2} {3}", new Object[] {req.getUrl(), delay,
+                    attempts, response != null ? "was answered " + response.getStatusCode() : "failed: " + failure});
+        }
+    }
+    
+    /**
+     * Makes one attempt at the given request, racing it against a hedge if
+     * the hedging policy calls for it.
+     */
+    private Response attempt(Request req, boolean streaming) throws Exception {
+        HedgingPolicy policy = hedgingPolicy;
+        if (policy == null || streaming) {
+            return executeOnce(req, streaming, null);
+        }
+        CompletableFuture<Response> hedged = hedge(req, policy);
+        try {
+            return hedged.get();
+        } catch (InterruptedException e) {
+            hedged.cancel(false);
+            setState(State.ABORTED);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof Exception) throw (Exception)t;
+            if (t instanceof Error) throw (Error)t;
+            throw e;
+        }
+    }
+    
+    private Response executeOnce(Request req, boolean streaming, Attempt attempt) throws Exception {
+        Exchange exchange = null;
+        try {
+            exchange = prepare(req);
+            if (attempt != null) {
+                attempt.started(exchange);
+            }
+            if (exchange.cachedResponse != null) {
+                return completeFromCache(exchange);
+            }
+            CompletableFuture<Void> admitted = admit(exchange);
+            try {
+                admitted.get();
+            } catch (InterruptedException e) {
+                exchange.abort();
+                exchange.settle();
+                throw e;
+            } catch (ExecutionException e) {
+                Throwable t = e.getCause();
+                if (t instanceof Exception) throw (Exception)t;
+                if (t instanceof Error) throw (Error)t;
+                throw e;
+            }
+            try {
+                transport.execute(exchange);
+            } catch (Exception e) {
+                return transportFailed(req, timedOut(exchange, e));
+            }
+            if (compressionRejected(exchange)) {
+                return executeOnce(req, streaming, attempt);
+            }
+            Response response = complete(exchange, streaming);
+            if (!response.isStreaming()) {
+                exchange.settle();
             }
-            
-            // construct the response
-            Response response = new Response(responseCode, http.getResponseMessage(),
-                    responseBody, charset, headers, baseUrl);
-            
-            
-            // TODO
-            // 7. Disconnect (as it is unclear how to reuse the HttpURLConnection, for Session anyway)
-            //http.disconnect();
-            setState(State.DONE);
             return response;
         } catch (InterruptedException ex) {
             setState(State.ABORTED);
             throw ex;
+        } catch (Exception ex) {
+            failed(exchange);
+            throw timedOut(exchange, ex);
+        }
+    }
+    
+    /**
+     * Moves to the FAILED state, unless the exchange was aborted because its
+     * response is no longer wanted.
+     */
+    private void failed(Exchange exchange) {
+        if (state != State.FAILED && (exchange == null || !exchange.isAborted())) {
+            setState(State.FAILED);
+        }
+    }
+    
+    /**
+     * <p>Executes the given {@link Request} without blocking, and returns a
+     * future for the {@link Response}. If the {@link Transport} of this Session
+     * is an {@link AsyncTransport} then no thread is tied up while waiting for
+     * the server. Otherwise the request is executed on a background thread.</p>
+     *
+     * <p>The property change events of this Session are fired on whatever
+     * thread the transport completes the exchange on.</p>
+     *
+     * @param req the Request to execute. Must not be null.
+     * @return a future for the Response to the Request. If an error occurs
+     *         while creating or executing the Request, the future completes
+     *         exceptionally.
+     */
+    public CompletableFuture<Response> executeAsync(final Request req) {
+        if (!(transport instanceof AsyncTransport)) {
+            //the deadline of this thread still applies on the other one
+            final Deadline deadline = Deadline.current();
+            return supplyAsync(new Supplier<Response>() {
+                public Response get() {
+                    try {
+                        if (deadline == null) {
+                            return execute(req);
+                        }
+                        return deadline.call(new Callable<Response>() {
+                            public Response call() throws Exception {
+                                return execute(req);
+                            }
+                        });
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            });
+        }
+        
+        RetryPolicy policy = retryPolicy;
+        if (policy == null) {
+            return attemptAsync(req);
+        }
+        policy.requestStarted();
+        CompletableFuture<Response> result = new CompletableFuture<Response>();
+        retryAsync(req, policy, Deadline.current(), 1, result);
+        return result;
+    }
+    
+    /**
+     * Runs the given task on the executor of this Session. If the executor
+     * rejects it, the returned future fails with the rejection.
+     */
+    private CompletableFuture<Response> supplyAsync(Supplier<Response> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, getExecutor());
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<Response> rejected = new CompletableFuture<Response>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+    
+    /**
+     * Makes an attempt at the given request, and completes the result with
+     * the response or failure once the policy has no more retries for it.
+     * Later attempts run on other threads, so the deadline of the calling
+     * thread is carried along.
+     */
+    private void retryAsync(final Request req, final RetryPolicy policy, final Deadline current,
+            final int attempts, final CompletableFuture<Response> result) {
+        CompletableFuture<Response> attempt;
+        if (current == null) {
+            attempt = attemptAsync(req);
+        } else {
+            try {
+                attempt = current.call(new Callable<CompletableFuture<Response>>() {
+                    public CompletableFuture<Response> call() {
+                        return attemptAsync(req);
+                    }
+                });
+            } catch (Exception e) {
+                attempt = new CompletableFuture<Response>();
+                attempt.completeExceptionally(e);
+            }
+        }
+        attempt.whenComplete(new BiConsumer<Response,Throwable>() {
+            public void accept(Response r, Throwable t) {
+                if (t instanceof CompletionException && t.getCause() != null) {
+                    t = t.getCause();
+                }
+                if (t != null && !(t instanceof Exception)) {
+                    result.completeExceptionally(t);
+                    return;
+                }
+                long delay = policy.retryDelay(req, attempts, r, (Exception)t,
+                        Deadline.earliest(req.getDeadline(), current));
+                if (delay < 0) {
+                    if (t == null) {
+                        result.complete(r);
+                    } else {
+                        result.completeExceptionally(t);
+                    }
+                    return;
+                }
+                logRetry(req, attempts, r, (Exception)t, delay);
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(new Runnable() {
+                    public void run() {
+                        try {
+                            getExecutor().execute(new Runnable() {
+                                public void run() {
+                                    retryAsync(req, policy, current, attempts + 1, result);
+                                }
+                            });
+                        } catch (RejectedExecutionException e) {
+                            result.completeExceptionally(e);
+                        }
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Makes one attempt at the given request without blocking, racing it
+     * against a hedge if the hedging policy calls for it.
+     */
+    private CompletableFuture<Response> attemptAsync(Request req) {
+        HedgingPolicy policy = hedgingPolicy;
+        return policy == null ? executeAsyncOnce(req, null) : hedge(req, policy);
+    }
+    
+    private CompletableFuture<Response> executeAsyncOnce(final Request req, final Attempt attempt) {
+        final CompletableFuture<Response> result = new CompletableFuture<Response>();
+        final Exchange exchange;
+        try {
+            exchange = prepare(req);
+        } catch (Exception e) {
+            if (state != State.FAILED) setState(State.FAILED);
+            result.completeExceptionally(e);
+            return result;
+        }
+        if (attempt != null) {
+            attempt.started(exchange);
+        }
+        if (exchange.cachedResponse != null) {
+            result.complete(completeFromCache(exchange));
+            return result;
+        }
+        final BiConsumer<Void,Throwable> done = new BiConsumer<Void,Throwable>() {
+            public void accept(Void ignored, Throwable t) {
+                try {
+                    if (t == null && compressionRejected(exchange)) {
+                        executeAsyncOnce(req, attempt).whenComplete(new BiConsumer<Response,Throwable>() {
+                            public void accept(Response r, Throwable t) {
+                                if (t == null) {
+                                    result.complete(r);
+                                } else {
+                                    result.completeExceptionally(t);
+                                }
+                            }
+                        });
+                    } else if (t == null) {
+                        Response response = complete(exchange, false);
+                        exchange.settle();
+                        result.complete(response);
+                    } else {
+                        if (t instanceof CompletionException && t.getCause() != null) {
+                            t = t.getCause();
+                        }
+                        if (t instanceof Exception) {
+                            result.complete(transportFailed(req, timedOut(exchange, (Exception)t)));
+                        } else {
+                            setState(State.FAILED);
+                            result.completeExceptionally(t);
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    setState(State.ABORTED);
+                    result.completeExceptionally(ex);
+                } catch (Exception ex) {
+                    failed(exchange);
+                    result.completeExceptionally(timedOut(exchange, ex));
+                }
+            }
+        };
+        admit(exchange).whenComplete(new BiConsumer<Void,Throwable>() {
+            public void accept(Void ignored, Throwable t) {
+                if (t != null) {
+                    done.accept(null, t);
+                } else {
+                    ((AsyncTransport)transport).executeAsync(exchange).whenComplete(done);
+                }
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Waits, without blocking, for the concurrency limiter, if any, to let
+     * the given exchange be sent. The returned future fails with a
+     * {@link ConcurrencyLimitException} if it does not, and the exchange must
+     * not be sent.
+     */
+    private CompletableFuture<Void> admit(final Exchange exchange) {
+        final ConcurrencyLimiter limiter = concurrencyLimiter;
+        if (limiter == null) {
+            exchange.sending(null, null);
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<ConcurrencyLimiter.Permit> permit = limiter.acquire(exchange.getRoute());
+        //the deadline or an abort gives up waiting
+        exchange.setCanceller(new Runnable() {
+            public void run() {
+                permit.cancel(false);
+            }
+        });
+        return permit.handle(new BiFunction<ConcurrencyLimiter.Permit,Throwable,Void>() {
+            public Void apply(ConcurrencyLimiter.Permit p, Throwable t) {
+                if (t == null && exchange.sending(limiter, p)) {
+                    return null;
+                }
+                if (t == null) {
+                    limiter.release(p, -1, false);
+                }
+                if (t instanceof CompletionException && t.getCause() != null) {
+                    t = t.getCause();
+                }
+                if (t == null || t instanceof CancellationException) {
+                    t = new SocketTimeoutException("The exchange was aborted while waiting to be sent to "
+                            + exchange.getRoute());
+                }
+                throw new CompletionException(t);
+            }
+        });
+    }
+    
+    /**
+     * Sends the given request, and a hedge after it if it takes longer than
+     * the policy allows. Cancelling the returned future aborts both.
+     */
+    private CompletableFuture<Response> hedge(Request req, HedgingPolicy policy) {
+        String route;
+        try {
+            route = ConnectionPool.route(createURL(req.getUrl()));
+        } catch (MalformedURLException e) {
+            //fails the same way when sent
+            return executeAsyncOnce(req, null);
+        }
+        return new Hedge(req, policy, route).start();
+    }
+    
+    /**
+     * Lets an attempt at a request be aborted from another thread, whether
+     * or not its exchange has started yet.
+     */
+    private static final class Attempt {
+        private Exchange exchange;
+        private boolean aborted = false;
+        
+        void started(Exchange exchange) {
+            boolean abort;
+            synchronized (this) {
+                this.exchange = exchange;
+                abort = aborted;
+            }
+            if (abort) {
+                exchange.abort();
+            }
+        }
+        
+        void abort() {
+            Exchange e;
+            synchronized (this) {
+                aborted = true;
+                e = exchange;
+            }
+            if (e != null) {
+                e.abort();
+            }
+        }
+    }
+    
+    /**
+     * A request raced against a hedge once it has taken longer than its
+     * delay. The first response wins, and the other attempt is aborted. The
+     * request fails only if every attempt fails.
+     *
+     * <p>Each attempt runs on a Session of its own. This Session stays
+     * CONNECTING until the race is over, and then takes on the state and
+     * progress of the winning attempt, or of the last one to fail.</p>
+     */
+    private final class Hedge {
+        private final Request req;
+        private final HedgingPolicy policy;
+        private final String route;
+        /** attempts run on other threads, so carry the deadline along */
+        private final Deadline current = Deadline.current();
+        private final CompletableFuture<Response> result = new CompletableFuture<Response>();
+        private final List<Attempt> attempts = new ArrayList<Attempt>(2);
+        private int outstanding = 0;
+        private boolean decided = false;
+        /** when the first attempt was sent, to time the request as a whole */
+        private long startedAt;
+        
+        private Hedge(Request req, HedgingPolicy policy, String route) {
+            this.req = req;
+            this.policy = policy;
+            this.route = route;
+        }
+        
+        CompletableFuture<Response> start() {
+            setTotalBytes(-1);
+            setBytesSoFar(0);
+            setState(State.CONNECTING);
+            long delay = policy.requestStarted(req, route);
+            result.whenComplete(new BiConsumer<Response,Throwable>() {
+                public void accept(Response r, Throwable t) {
+                    abortAll();
+                }
+            });
+            startedAt = System.nanoTime();
+            launch(false);
+            if (delay >= 0) {
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(new Runnable() {
+                    public void run() {
+                        if (!result.isDone() && policy.tryHedge()) {
+                            launch(true);
+                        }
+                    }
+                });
+            }
+            return result;
+        }
+        
+        private void launch(final boolean hedge) {
+            final Attempt attempt = new Attempt();
+            synchronized (this) {
+                if (result.isDone()) return;
+                attempts.add(attempt);
+                outstanding++;
+            }
+            final Session session = createHedgeSession();
+            send(session, attempt).whenComplete(new BiConsumer<Response,Throwable>() {
+                public void accept(Response r, Throwable t) {
+                    if (t == null) {
+                        if (decide()) {
+                            report(session);
+                            //timed from the first attempt, as a hedge which wins
+                            //is no faster than the wait for it
+                            policy.record(route, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), hedge);
+                            result.complete(r);
+                        }
+                        return;
+                    }
+                    boolean last;
+                    synchronized (Hedge.this) {
+                        last = --outstanding == 0;
+                    }
+                    if (last && decide()) {
+                        report(session);
+                        if (state != State.FAILED && state != State.ABORTED) {
+                            setState(State.FAILED);
+                        }
+                        result.completeExceptionally(t instanceof CompletionException && t.getCause() != null ?
+                                t.getCause() : t);
+                    }
+                }
+            });
+        }
+        
+        /**
+         * @return true for the one attempt whose outcome is that of the
+         *         request, unless the request was cancelled first
+         */
+        private synchronized boolean decide() {
+            if (decided || result.isDone()) return false;
+            decided = true;
+            return true;
+        }
+        
+        /**
+         * Takes on the progress and state of the given attempt.
+         */
+        private void report(Session session) {
+            setTotalBytes(session.totalBytes);
+            setBytesSoFar(session.bytesSoFar);
+            setState(session.state);
+        }
+        
+        private CompletableFuture<Response> send(final Session session, final Attempt attempt) {
+            if (transport instanceof AsyncTransport) {
+                try {
+                    return withDeadline(new Callable<CompletableFuture<Response>>() {
+                        public CompletableFuture<Response> call() {
+                            return session.executeAsyncOnce(req, attempt);
+                        }
+                    });
+                } catch (Exception e) {
+                    CompletableFuture<Response> failed = new CompletableFuture<Response>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                }
+            }
+            return supplyAsync(new Supplier<Response>() {
+                public Response get() {
+                    try {
+                        return withDeadline(new Callable<Response>() {
+                            public Response call() throws Exception {
+                                return session.executeOnce(req, false, attempt);
+                            }
+                        });
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            });
+        }
+        
+        private <T> T withDeadline(Callable<T> task) throws Exception {
+            return current == null ? task.call() : current.call(task);
+        }
+        
+        private void abortAll() {
+            List<Attempt> all;
+            synchronized (this) {
+                all = new ArrayList<Attempt>(attempts);
+            }
+            for (Attempt a : all) {
+                a.abort();
+            }
+        }
+    }
+    
+    /**
+     * Resets the state and progress properties, and builds the {@link Exchange}
+     * to hand to the transport for the given request.
+     */
+    private Exchange prepare(Request req) throws Exception {
+        // initialize the state and such
+        setTotalBytes(-1);
+        setBytesSoFar(0);
+        setState(State.CONNECTING);
+        
+        // 0. Create the URL
+        StringBuffer surl = new StringBuffer(req.getUrl());
+        if (surl.length() == 0) {
+            setState(State.FAILED);
+            throw new IllegalStateException("Cannot excecute a request that has no URL specified");
+        }
+        
+        char delim = '?';
+        for (Parameter p : req.getParameters()) {
+            surl.append(delim);
+            delim = '&';
+            String name = URLEncoder.encode(p.getName(), "UTF-8");
+            String value = URLEncoder.encode(p.getValue(), "UTF-8");
+            surl.append(name + "=" + value);
+        }
+        
+        // 1. Create the URL, and work out the content length. If the
+        // content-length has been specified, then use it otherwise I won't
+        // know the content length until it is too late. A RequestBody
+        // knows its own length
+        URL url = createURL(surl.toString());
+        long contentLength = -1;
+        Header contentLengthHeader = req.getHeader("Content-Length");
+        RequestBody body = req.getRequestBody();
+        if (body != null && body.getContentLength() >= 0) {
+            contentLength = body.getContentLength();
+        } else if (contentLengthHeader != null) {
+            try {
+                contentLength = Long.parseLong(contentLengthHeader.getValue().trim());
+            } catch (NumberFormatException ex) {
+                // unexpected, set contentlength to -1
+                contentLength = -1;
+            }
+        }
+        setTotalBytes(contentLength);
+        
+        // 2. Consult the cache. A fresh response is used as is, a stale one
+        // is revalidated by sending a conditional request in place of req
+        HttpCache c = cache;
+        HttpCache.Lookup lookup = c == null ? null : c.lookup(req, url);
+        if (lookup != null && lookup.fresh != null) {
+            Exchange exchange = new Exchange(this, req, url, contentLength);
+            exchange.cachedResponse = lookup.fresh;
+            exchange.cacheUrl = url;
+            return exchange;
+        }
+        
+        // 3. Work out the timeouts. The earliest of the deadlines of the
+        // request, the calling thread and this Session applies
+        Deadline deadline = Deadline.earliest(req.getDeadline(), Deadline.current());
+        if (requestTimeout > 0) {
+            deadline = Deadline.earliest(deadline, Deadline.after(requestTimeout));
+        }
+        if (deadline != null && deadline.isExpired()) {
+            throw new SocketTimeoutException("The deadline passed before " + url + " was sent");
+        }
+        
+        // 4. If the host names an endpoint group, send the request to one of
+        // its endpoints instead
+        URL cacheUrl = url;
+        EndpointGroup group = endpointGroups.get(url.getHost().toLowerCase(Locale.ROOT));
+        EndpointGroup.Endpoint endpoint = null;
+        if (group != null) {
+            endpoint = group.select();
+            try {
+                url = endpoint.resolve(url);
+            } catch (MalformedURLException e) {
+                group.released(endpoint, false, -1);
+                throw e;
+            }
+        }
+        
+        // 5. Fail at once if the circuit to the host is open
+        CircuitBreaker breaker = circuitBreaker;
+        CircuitBreaker.Permit permit = null;
+        if (breaker != null) {
+            try {
+                permit = breaker.acquire(this, ConnectionPool.route(url));
+            } catch (CircuitOpenException e) {
+                if (endpoint != null) {
+                    endpoint.getGroup().released(endpoint, false, -1);
+                }
+                throw e;
+            }
+        }
+        
+        // 6. Compress the body, if asked to, by sending a copy of the request
+        // in its place
+        Request sent = lookup == null ? req : lookup.conditional;
+        String encoding = requestCompression;
+        boolean compressed = false;
+        if (encoding != null && body != null && body == sent.getRequestBody()
+                && (body.getContentLength() < 0 || body.getContentLength() >= compressionThreshold)
+                && body.getContentEncoding() == null && sent.getHeader("Content-Encoding") == null
+                && !uncompressedRoutes.contains(ConnectionPool.route(url))) {
+            sent = new Request(sent);
+            sent.removeHeader("Content-Length");
+            sent.setBody("gzip".equals(encoding) ? RequestBody.gzip(body) : RequestBody.deflate(body));
+            contentLength = -1;
+            setTotalBytes(-1);
+            compressed = true;
+        }
+        
+        // 7. The exchange is handed to the transport, which sends the request
+        // and reads the response head
+        setState(State.SENDING);
+        Exchange exchange = new Exchange(this, sent, url, contentLength);
+        exchange.connectTimeout = req.getConnectTimeout() >= 0 ? req.getConnectTimeout() : connectTimeout;
+        exchange.readTimeout = req.getReadTimeout() >= 0 ? req.getReadTimeout() : readTimeout;
+        exchange.deadline = deadline;
+        exchange.endpoint = endpoint;
+        exchange.circuitBreaker = breaker;
+        exchange.permit = permit;
+        exchange.armDeadline();
+        exchange.compressed = compressed;
+        exchange.originalRequest = req;
+        exchange.cache = c;
+        exchange.cacheLookup = lookup;
+        exchange.cacheUrl = cacheUrl;
+        exchange.requestTime = System.currentTimeMillis();
+        return exchange;
+    }
+    
+    /**
+     * Checks whether the server refused the compressed body of the given
+     * exchange, and if so remembers not to compress bodies sent to it again.
+     *
+     * @return true if the request should be sent again uncompressed, in which
+     *         case the response has been discarded
+     */
+    private boolean compressionRejected(Exchange exchange) throws IOException {
+        if (!exchange.compressed || exchange.getStatus() != 415) {
+            return false;
+        }
+        String route = exchange.getRoute();
+        if (uncompressedRoutes.add(route)) {
+            Logger.getLogger(Session.class.getName()).log(Level.INFO,
+                    "{0} does not accept compressed requests, sending them uncompressed", route);
+        }
+        if (!exchange.getRequest().getRequestBody().isRepeatable()) {
+            return false;
+        }
+        InputStream in = exchange.getResponseBody();
+        if (in != null) {
+            in.close();
+        }
+        exchange.settle();
+        return true;
+    }
+    
+    /**
+     * Reports a failure of an exchange whose deadline passed as a
+     * <code>SocketTimeoutException</code>, since whatever went wrong was
+     * most likely caused by aborting it. The deadline is no longer watched.
+     */
+    private static Exception timedOut(Exchange exchange, Exception e) {
+        if (exchange == null) {
+            return e;
+        }
+        exchange.settle();
+        if (!exchange.isExpired() || e instanceof SocketTimeoutException) {
+            return e;
+        }
+        SocketTimeoutException timeout = new SocketTimeoutException(
+                "The deadline passed before " + exchange.getUrl() + " was done");
+        timeout.initCause(e);
+        return timeout;
+    }
+    
+    /**
+     * Completes an exchange which was answered by the cache without
+     * contacting the server.
+     */
+    private Response completeFromCache(Exchange exchange) {
+        Response response = exchange.cachedResponse;
+        long length = response.getBodyAsBytes().length;
+        setTotalBytes(length);
+        setBytesSoFar(length);
+        setState(State.DONE);
+        return response;
+    }
+    
+    /**
+     * Turns those failures of the transport which have always been reported
+     * as Responses into Responses. Anything else is rethrown.
+     */
+    private Response transportFailed(Request req, Exception e) throws Exception {
+        if (e instanceof HttpRetryException) {
+            //TODO not sure what to do on a retry exception
+            setState(State.FAILED);
+            return new Response(StatusCode.NOT_FOUND, "HttpRetryException: " + e.getMessage(), null, null, null, req.getUrl());
+        } else if (e instanceof UnknownHostException) {
+            setState(State.FAILED);
+            return new Response(StatusCode.NOT_FOUND, "Unknown host", null, null, null, req.getUrl());
+        }
+        throw e;
+    }
+    
+    /**
+     * Reads the body of the response to the given exchange, and constructs
+     * the {@link Response}. If streaming, the body is left to be read by the
+     * caller instead.
+     */
+    private Response complete(Exchange exchange, boolean streaming) throws Exception {
+        Request req = exchange.getRequest();
+        StatusCode responseCode = StatusCode.valueOf(exchange.getStatus());
+        
+        // figure out the "base url" from which relative urls would be
+        // computed
+        String foo = "foo";
+        URI uri = new URI(req.getUrl());
+        URI uu = uri.resolve(new URI(foo));
+        String baseUrl = uu.toString().substring(0,uu.toString().length()-foo.length());
+
+        // learn what the content type is
+        String charset = null;
+        Header contentType = exchange.getResponseHeader("Content-Type");
+        if (contentType != null) {
+            String tmp = contentType.getValue();
+            //find the ; following the content type (if there is one)
+            int index = tmp.indexOf(";");
+            if (index >= 0) {
+                index = tmp.indexOf("=", index+1);
+                if (index > 0) charset = contentType.getValue().substring(index+1);
+            }
+        }
+        
+        // 4. Read the response. Automatically decode the response if it
+        // was gzip or deflate encoded. Closing the stream releases the
+        // connection.
+        InputStream responseStream = exchange.getResponseBody();
+        Header contentEncoding = exchange.getResponseHeader("Content-Encoding");
+        String encoding = contentEncoding == null ? null : contentEncoding.getValue();
+        if (streaming) {
+            InputStream body = new ByteArrayInputStream(new byte[0]);
+            if (responseStream != null) {
+                try {
+                    body = new StreamingBody(InflatingInputStream.decode(responseStream, encoding), exchange);
+                } catch (IOException e) {
+                    responseStream.close();
+                    throw e;
+                }
+            }
+            Response response = Response.streaming(responseCode, exchange.getStatusText(),
+                    body, charset, exchange.getResponseHeaders(), baseUrl);
+            if (responseStream == null) {
+                setState(State.DONE);
+            }
+            // only revalidations and invalidations reach the cache, storing
+            // would mean buffering the body
+            if (exchange.cache != null && (exchange.getStatus() == 304 || req.getMethod() != Method.GET)) {
+                Response stored = exchange.cache.store(exchange.originalRequest, exchange.cacheUrl,
+                        exchange.cacheLookup, response, exchange.requestTime);
+                if (stored != response) {
+                    response.close();
+                    setState(State.DONE);
+                    return stored;
+                }
+            }
+            return response;
+        }
+        
+        byte[] responseBody = null;
+        try {
+            long expected = totalBytes;
+            if (!hasBody(req.getMethod(), exchange.getStatus())) {
+                //whatever length the server claims, there is nothing to read
+                responseBody = new byte[0];
+            } else {
+                if (responseStream != null) {
+                    InputStream decoded = InflatingInputStream.decode(responseStream, encoding);
+                    if (decoded != responseStream) {
+                        //the length is that of the encoded body
+                        expected = -1;
+                    }
+                    responseStream = decoded;
+                }
+                responseBody = readFully(responseStream, expected);
+            }
         } finally {
+            if (responseStream != null) responseStream.close();
+        }
+        
+        // construct the response
+        Response response = new Response(responseCode, exchange.getStatusText(),
+                responseBody, charset, exchange.getResponseHeaders(), baseUrl);
+        if (exchange.cache != null) {
+            response = exchange.cache.store(exchange.originalRequest, exchange.cacheUrl,
+                    exchange.cacheLookup, response, exchange.requestTime);
         }
+        
+        setState(State.DONE);
+        return response;
     }
     
     /**
@@ -565,10 +2227,55 @@ public class Session extends AbstractBean {
         return new URL(surl.toString());
     }
     
-    private byte[] readFully(InputStream in) throws IOException {
+    /**
+     * @return false if a response to the given method with the given status
+     *         never has a body, whatever its headers say
+     */
+    private static boolean hasBody(Method method, int status) {
+        return method != Method.HEAD && status >= 200 && status != 204 && status != 304;
+    }
+    
+    /**
+     * Reads the stream to the end. If the length is known and small, the body
+     * is read straight into an array of that size, rather than copied out of
+     * a growing buffer. Larger bodies start in a buffer of MAX_PRESIZE bytes
+     * which grows as the data arrives, so that a length claimed by the server
+     * is never allocated up front.
+     *
+     * @param expected the expected length, or -1 if not known
+     */
+    private byte[] readFully(InputStream in, long expected) throws IOException {
         if (in == null) return new byte[0];
         
-        ByteArrayOutputStream out = new ByteArrayOutputStream(8096);
+        byte[] body = null;
+        int read = 0;
+        if (expected >= 0 && expected <= MAX_PRESIZE) {
+            body = new byte[(int)expected];
+            int length;
+            while (read < body.length && (length = in.read(body, read, body.length - read)) != -1) {
+                read += length;
+                setBytesSoFar(bytesSoFar + length);
+            }
+            if (read < body.length) {
+                //the server sent less than it said it would
+                return Arrays.copyOf(body, read);
+            }
+            int b = in.read();
+            if (b == -1) {
+                in.close();
+                return body;
+            }
+            //the server sent more than it said it would, carry on the slow way
+            setBytesSoFar(bytesSoFar + 1);
+            body = Arrays.copyOf(body, read + 1);
+            body[read] = (byte)b;
+        }
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                expected > MAX_PRESIZE ? MAX_PRESIZE : 8096);
+        if (body != null) {
+            out.write(body);
+        }
         byte[] buffer = new byte[8096];
         int length = -1;
 
@@ -579,4 +2286,78 @@ public class Session extends AbstractBean {
         in.close();
         return out.toByteArray();
     }
+    
+    /**
+     * The body of a streaming response. Updates the progress of the Session
+     * as it is read, and moves it to DONE once the body has been read to the
+     * end or closed.
+     */
+    private final class StreamingBody extends FilterInputStream {
+        private final Exchange exchange;
+        private boolean finished = false;
+        
+        private StreamingBody(InputStream in, Exchange exchange) {
+            super(in);
+            this.exchange = exchange;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b;
+            try {
+                b = super.read();
+            } catch (IOException e) {
+                throw failed(e);
+            }
+            if (b == -1) {
+                finish(State.DONE);
+            } else {
+                setBytesSoFar(bytesSoFar + 1);
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n;
+            try {
+                n = super.read(b, off, len);
+            } catch (IOException e) {
+                throw failed(e);
+            }
+            if (n == -1) {
+                finish(State.DONE);
+            } else if (n > 0) {
+                setBytesSoFar(bytesSoFar + n);
+            }
+            return n;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } catch (IOException e) {
+                //an aborted connection has been discarded already
+                if (!exchange.isExpired()) {
+                    throw e;
+                }
+            } finally {
+                finish(State.DONE);
+            }
+        }
+        
+        private IOException failed(IOException e) {
+            finish(State.FAILED);
+            return (IOException)timedOut(exchange, e);
+        }
+        
+        private void finish(State s) {
+            if (!finished) {
+                finished = true;
+                exchange.settle();
+                setState(s);
+            }
+        }
+    }
 }
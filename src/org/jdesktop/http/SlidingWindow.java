@@ -0,0 +1,111 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.util.Arrays;
+
+/**
+ * Counts several series of events in one second buckets over a sliding
+ * window, keeping the total of each series over the window. Not thread safe;
+ * callers synchronize.
+ */
+final class SlidingWindow {
+    private final long[][] buckets;
+    private final long[] totals;
+    private final int size;
+    /** the second of the newest bucket */
+    private long second;
+    
+    /**
+     * @param series the number of series counted
+     * @param seconds the length of the window, in seconds
+     */
+    SlidingWindow(int series, int seconds) {
+        this(series, seconds, currentSecond());
+    }
+    
+    SlidingWindow(int series, int seconds, long now) {
+        this.buckets = new long[series][seconds];
+        this.totals = new long[series];
+        this.size = seconds;
+        this.second = now;
+    }
+    
+    /**
+     * Counts n events of the given series in the current second.
+     */
+    void add(int series, long n) {
+        add(series, n, currentSecond());
+    }
+    
+    void add(int series, long n, long now) {
+        roll(now);
+        //the clock may be negative, so the remainder may be too
+        buckets[series][Math.floorMod(second, size)] += n;
+        totals[series] += n;
+    }
+    
+    /**
+     * @return the number of events of the given series in the window
+     */
+    long total(int series) {
+        return total(series, currentSecond());
+    }
+    
+    long total(int series, long now) {
+        roll(now);
+        return totals[series];
+    }
+    
+    /**
+     * Forgets every event counted.
+     */
+    void clear() {
+        for (int s = 0; s < buckets.length; s++) {
+            Arrays.fill(buckets[s], 0);
+            totals[s] = 0;
+        }
+    }
+    
+    /**
+     * Moves the window up to the given second, emptying the buckets of the
+     * seconds which have fallen out of it.
+     */
+    private void roll(long now) {
+        long passed = Math.min(now - second, size);
+        if (passed <= 0) {
+            return;
+        }
+        for (long i = 1; i <= passed; i++) {
+            int bucket = Math.floorMod(second + i, size);
+            for (int s = 0; s < buckets.length; s++) {
+                totals[s] -= buckets[s][bucket];
+                buckets[s][bucket] = 0;
+            }
+        }
+        second = now;
+    }
+    
+    static long currentSecond() {
+        return System.nanoTime() / 1000000000L;
+    }
+}
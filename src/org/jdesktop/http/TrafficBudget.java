@@ -0,0 +1,79 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+package org.jdesktop.http;
+
+/**
+ * Counts requests, and the extra requests (such as retries or hedges) made
+ * on their behalf, over a sliding window of ten seconds, so that the extra
+ * requests can be held to a share of the traffic.
+ */
+final class TrafficBudget {
+    /** The number of one second buckets in the window */
+    static final int WINDOW = 10;
+    
+    private static final int REQUESTS = 0;
+    private static final int EXTRAS = 1;
+    
+    private final SlidingWindow window;
+    
+    TrafficBudget() {
+        this.window = new SlidingWindow(2, WINDOW);
+    }
+    
+    TrafficBudget(long now) {
+        this.window = new SlidingWindow(2, WINDOW, now);
+    }
+    
+    /**
+     * Counts a request.
+     */
+    void deposit() {
+        deposit(SlidingWindow.currentSecond());
+    }
+    
+    synchronized void deposit(long now) {
+        window.add(REQUESTS, 1, now);
+    }
+    
+    /**
+     * Counts an extra request, if the window allows one.
+     *
+     * @param ratio the share of the requests in the window which may be extra
+     * @param minPerSecond the number of extra requests allowed each second
+     *        regardless of the number of requests
+     * @return true if the extra request may be made
+     */
+    boolean withdraw(double ratio, int minPerSecond) {
+        return withdraw(ratio, minPerSecond, SlidingWindow.currentSecond());
+    }
+    
+    synchronized boolean withdraw(double ratio, int minPerSecond, long now) {
+        long made = window.total(REQUESTS, now);
+        long extra = window.total(EXTRAS, now);
+        if (extra + 1 > (long)minPerSecond * WINDOW + ratio * made) {
+            return false;
+        }
+        window.add(EXTRAS, 1, now);
+        return true;
+    }
+}
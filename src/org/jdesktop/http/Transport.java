@@ -0,0 +1,76 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+/**
+ * <p>Performs the wire level part of a request/response cycle on behalf of a
+ * {@link Session}. The Session takes care of everything that is independent of
+ * the underlying HTTP implementation: building the URL, tracking the
+ * {@link State} and progress properties, decoding the response body, and
+ * constructing the {@link Response}. The Transport only has to send the
+ * request described by an {@link Exchange} and hand back the status line,
+ * headers and body of the response.</p>
+ *
+ * <p>Two implementations are provided. {@link URLConnectionTransport}, the
+ * default, is built on <code>java.net.HttpURLConnection</code>.
+ * {@link HttpClientTransport} is built on <code>java.net.http.HttpClient</code>,
+ * and so supports HTTP/2 and connection multiplexing. The transport of a
+ * Session may be changed with {@link Session#setTransport}.</p>
+ *
+ * <p>Transports must be thread safe, as a single Session may be used to
+ * execute several requests at the same time.</p>
+ */
+public interface Transport {
+    /**
+     * <p>Sends the request described by the given exchange and waits for the
+     * response head. Implementations must:
+     * <ol>
+     *  <li>send the body of the request, if any, taken from exactly one of
+     *      {@link Exchange#getBody()}, {@link Exchange#writeBody} or
+     *      {@link Exchange#getRequestBody()}. It should be sent with a
+     *      Content-Length when {@link Exchange#getContentLength()} is known,
+     *      and chunked otherwise, rather than buffered.</li>
+     *  <li>call {@link Exchange#sent()} once the request has been sent</li>
+     *  <li>call {@link Exchange#setResponse} with the status, headers and body
+     *      of the response. For error responses this is the error body.</li>
+     * </ol></p>
+     *
+     * <p>The response body stream is owned by the Session once handed over, and
+     * closing it must release any connection held by the transport. If this
+     * method throws, it must release the connection itself.</p>
+     *
+     * <p>An <code>UnknownHostException</code> should be thrown if the host
+     * could not be resolved, so that the Session may handle it the same way
+     * regardless of transport.</p>
+     *
+     * <p>Transports should honour {@link Exchange#getConnectTimeout()} and
+     * {@link Exchange#getReadTimeout()}, throwing a
+     * <code>SocketTimeoutException</code> when either runs out. If the
+     * exchange has a {@link Exchange#getDeadline() deadline}, they should
+     * also register a {@link Exchange#setCanceller canceller} which aborts
+     * the exchange, wherever it has got to, when the deadline passes.</p>
+     *
+     * @param exchange the exchange to perform. This will never be null.
+     * @throws Exception if the exchange could not be performed
+     */
+    public void execute(Exchange exchange) throws Exception;
+}
@@ -0,0 +1,324 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A {@link SecurityHandler} which remembers the decisions of another. Each
+ * decision is keyed by host and by the SHA-256 fingerprint of the
+ * certificate, so a host presenting a different certificate is asked about
+ * again. Accepted and rejected certificates are remembered for separate
+ * lengths of time.</p>
+ *
+ * <p>Certificates may also be pinned to a file, so that they stay trusted
+ * across runs. Only certificates which the user chose to always trust are
+ * pinned: those {@link #pin pinned} explicitly, and those for which a
+ * {@link Pinning} delegate decides {@link Trust#ALWAYS}. Each line of the
+ * file holds a host and a fingerprint, separated by whitespace. Lines
+ * starting with # are ignored. Pinned certificates never expire.</p>
+ *
+ * <p>Only one decision is delegated at a time for each host and certificate,
+ * so that concurrent handshakes with the same host ask only once, while
+ * handshakes with other hosts do not wait for it.</p>
+ */
+public class TrustDecisionCache implements SecurityHandler {
+    private static final Logger LOG = Logger.getLogger(TrustDecisionCache.class.getName());
+    
+    /**
+     * A decision about a certificate.
+     */
+    public enum Trust {
+        /** Trust the certificate, and pin it. */
+        ALWAYS,
+        /** Trust the certificate for as long as the decision is remembered. */
+        ONCE,
+        /** Do not trust the certificate. */
+        NEVER
+    }
+    
+    /**
+     * A SecurityHandler which can tell a certificate the user chose to always
+     * trust from one trusted this once. A TrustDecisionCache asks a delegate
+     * which implements this interface with {@link #decide}, and pins the
+     * certificates it decides to always trust.
+     */
+    public interface Pinning extends SecurityHandler {
+        /**
+         * @param host the host being connected to. May be null if not known.
+         * @param cert the self-signed certificate presented by the host
+         * @return the decision. This must not be null.
+         */
+        public Trust decide(String host, X509Certificate cert);
+    }
+    
+    /** The default time an accepted certificate is remembered: one hour. */
+    public static final long DEFAULT_ACCEPT_TTL = 60 * 60 * 1000;
+    /** The default time a rejected certificate is remembered: one minute. */
+    public static final long DEFAULT_REJECT_TTL = 60 * 1000;
+    
+    private final SecurityHandler delegate;
+    private final Map<String,Decision> decisions = new ConcurrentHashMap<String,Decision>();
+    private final Map<String,Boolean> pins = new ConcurrentHashMap<String,Boolean>();
+    /** the locks of the decisions being delegated, by key */
+    private final Map<String,Object> pending = new ConcurrentHashMap<String,Object>();
+    private volatile long acceptTtl = DEFAULT_ACCEPT_TTL;
+    private volatile long rejectTtl = DEFAULT_REJECT_TTL;
+    private File pinFile;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    
+    /**
+     * Creates a new TrustDecisionCache.
+     *
+     * @param delegate makes the decisions which are not cached. Must not be null.
+     */
+    public TrustDecisionCache(SecurityHandler delegate) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate cannot be null");
+        }
+        this.delegate = delegate;
+    }
+    
+    public final SecurityHandler getDelegate() {
+        return delegate;
+    }
+    
+    /**
+     * Sets how long, in milliseconds, an accepted certificate is trusted
+     * before the delegate is asked again. 0 disables caching of accepted
+     * certificates (pinned certificates are still trusted).
+     */
+    public void setAcceptTtl(long millis) {
+        this.acceptTtl = Math.max(0, millis);
+    }
+    
+    public long getAcceptTtl() {
+        return acceptTtl;
+    }
+    
+    /**
+     * Sets how long, in milliseconds, a rejected certificate stays rejected
+     * before the delegate is asked again. 0 disables caching of rejections.
+     */
+    public void setRejectTtl(long millis) {
+        this.rejectTtl = Math.max(0, millis);
+    }
+    
+    public long getRejectTtl() {
+        return rejectTtl;
+    }
+    
+    /**
+     * Sets the file in which certificates are pinned, and loads any pins
+     * already in it. Certificates pinned from now on are appended to the
+     * file.
+     *
+     * @param file the pin file. May be null, in which case nothing is pinned
+     *        from now on. The file need not exist yet.
+     * @throws IOException if the file exists but cannot be read
+     */
+    public synchronized void setPinFile(File file) throws IOException {
+        this.pinFile = file;
+        if (file != null && file.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) continue;
+                    String[] parts = line.split("\\s+");
+                    if (parts.length == 2) {
+                        pins.put(key(parts[0], normalize(parts[1])), Boolean.TRUE);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+    
+    public synchronized File getPinFile() {
+        return pinFile;
+    }
+    
+    /**
+     * Pins the certificate for the host, as though it had been accepted, and
+     * persists it if there is a pin file.
+     */
+    public void pin(String host, X509Certificate cert) {
+        String fingerprint = fingerprint(cert);
+        if (fingerprint != null) {
+            addPin(host, fingerprint);
+        }
+    }
+    
+    /**
+     * Forgets every cached decision. Pinned certificates stay trusted.
+     */
+    public void clear() {
+        decisions.clear();
+    }
+    
+    /** @return the number of decisions answered from the cache or the pins */
+    public long getHitCount() {
+        return hits.get();
+    }
+    
+    /** @return the number of decisions delegated */
+    public long getMissCount() {
+        return misses.get();
+    }
+    
+    public boolean isServerTrusted(String host, X509Certificate cert) {
+        String fingerprint = fingerprint(cert);
+        if (fingerprint == null) {
+            return delegate.isServerTrusted(host, cert);
+        }
+        String key = key(host, fingerprint);
+        Boolean cached = lookup(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        Object lock = new Object();
+        Object existing = pending.putIfAbsent(key, lock);
+        if (existing != null) {
+            lock = existing;
+        }
+        try {
+            synchronized (lock) {
+                //another thread may have decided while this one waited
+                cached = lookup(key);
+                if (cached != null) {
+                    hits.incrementAndGet();
+                    return cached;
+                }
+                misses.incrementAndGet();
+                Trust trust;
+                if (delegate instanceof Pinning) {
+                    trust = ((Pinning)delegate).decide(host, cert);
+                } else {
+                    trust = delegate.isServerTrusted(host, cert) ? Trust.ONCE : Trust.NEVER;
+                }
+                boolean trusted = trust != Trust.NEVER;
+                long ttl = trusted ? acceptTtl : rejectTtl;
+                if (ttl > 0) {
+                    decisions.put(key, new Decision(trusted, System.currentTimeMillis() + ttl));
+                }
+                if (trust == Trust.ALWAYS) {
+                    addPin(host, fingerprint);
+                }
+                return trusted;
+            }
+        } finally {
+            pending.remove(key, lock);
+        }
+    }
+    
+    private Boolean lookup(String key) {
+        if (pins.containsKey(key)) {
+            return Boolean.TRUE;
+        }
+        Decision d = decisions.get(key);
+        if (d == null) {
+            return null;
+        }
+        if (d.expires <= System.currentTimeMillis()) {
+            decisions.remove(key);
+            return null;
+        }
+        return d.trusted;
+    }
+    
+    private synchronized void addPin(String host, String fingerprint) {
+        if (pins.put(key(host, fingerprint), Boolean.TRUE) != null) return;
+        if (pinFile == null) return;
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(pinFile, true), "UTF-8");
+            try {
+                out.write(host + " " + fingerprint + "\n");
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not write to the pin file " + pinFile, e);
+        }
+    }
+    
+    private static String key(String host, String fingerprint) {
+        return (host == null ? "" : host.toLowerCase()) + " " + fingerprint;
+    }
+    
+    /**
+     * @return the SHA-256 fingerprint of the certificate in lower case hex,
+     *         or null if it cannot be computed
+     */
+    static String fingerprint(X509Certificate cert) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+            StringBuilder buf = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+                buf.append(Character.forDigit(b & 0xf, 16));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        } catch (CertificateEncodingException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Normalizes a fingerprint written as hex, with or without colons.
+     */
+    static String normalize(String fingerprint) {
+        return fingerprint.replace(":", "").toLowerCase();
+    }
+    
+    private static final class Decision {
+        private final boolean trusted;
+        private final long expires;
+        
+        private Decision(boolean trusted, long expires) {
+            this.trusted = trusted;
+            this.expires = expires;
+        }
+    }
+}
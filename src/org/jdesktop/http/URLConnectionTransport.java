@@ -0,0 +1,196 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URLConnection;
+import javax.net.ssl.HttpsURLConnection;
+
+/**
+ * <p>The default {@link Transport}, built on <code>java.net.HttpURLConnection</code>.</p>
+ *
+ * <p>HttpURLConnection keeps sockets alive in a JVM wide cache of its own, and
+ * reuses them whenever a response body has been fully read and closed. That
+ * cache is not under the control of the {@link ConnectionPool}: the
+ * connections leased by this transport are only permits, which enforce the
+ * per-route and total limits on concurrent exchanges. The pool can neither
+ * validate the sockets nor see whether they are reused, so it records no
+ * reuse for this transport. When a body is not fully consumed the
+ * HttpURLConnection is disconnected, so that the socket is closed rather than
+ * leaked.</p>
+ */
+public class URLConnectionTransport implements Transport {
+    /** The size of the chunks of a request body whose length is not known */
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
+    private static final ConnectionPool.Factory KEEP_ALIVE_FACTORY = new ConnectionPool.Factory() {
+        public ConnectionPool.Connection create(String route) {
+            return new KeepAliveConnection(route);
+        }
+    };
+    
+    /** Creates a new URLConnectionTransport. */
+    public URLConnectionTransport() {
+    }
+    
+    public void execute(Exchange exchange) throws Exception {
+        Request req = exchange.getRequest();
+        ConnectionPool pool = exchange.getConnectionPool();
+        ConnectionPool.Connection lease = pool.lease(exchange.getRoute(), KEEP_ALIVE_FACTORY);
+        HttpURLConnection http = null;
+        boolean handedOff = false;
+        try {
+            // 1. Create the HttpURLConnection
+            URLConnection conn = exchange.getUrl().openConnection();
+            if (!(conn instanceof HttpURLConnection)) {
+                throw new IllegalStateException("Must be an HTTP or HTTPS based URL");
+            }
+            http = (HttpURLConnection)conn;
+            
+            // 2. Configure the connection. Disconnecting aborts the exchange
+            // wherever it has got to when the deadline passes
+            http.setRequestMethod(req.getMethod().name());
+            http.setInstanceFollowRedirects(req.getFollowRedirects());
+            http.setConnectTimeout(toInt(exchange.getConnectTimeout()));
+            http.setReadTimeout(toInt(exchange.getReadTimeout()));
+            final HttpURLConnection cancelled = http;
+            exchange.setCanceller(new Runnable() {
+                public void run() {
+                    cancelled.disconnect();
+                }
+            });
+            if (exchange.isCancelled()) {
+                throw new SocketTimeoutException("The exchange was aborted before connecting to " + exchange.getRoute());
+            }
+            
+            for (Header h : req.getHeaders()) {
+                http.setRequestProperty(h.getName(), h.getValue());
+            }
+            
+            if (http instanceof HttpsURLConnection) {
+                HttpsURLConnection https = (HttpsURLConnection)http;
+                //set the ssl socket factory such that it respects the security levels
+                https.setSSLSocketFactory(exchange.getSSLSocketFactory());
+            }
+            
+            // 3. Set the request body, if any. It is streamed, with a fixed
+            // length when known and chunked otherwise, rather than buffered
+            // by HttpURLConnection to work out its length
+            if (exchange.hasBody()) {
+                http.setDoOutput(true);
+                if (exchange.getContentLength() >= 0) {
+                    http.setFixedLengthStreamingMode(exchange.getContentLength());
+                } else {
+                    http.setChunkedStreamingMode(CHUNK_SIZE);
+                }
+                OutputStream out = http.getOutputStream();
+                try {
+                    exchange.writeBody(out);
+                } finally {
+                    out.close();
+                }
+            }
+            
+            // 4. Get the response. The status code is read directly rather than
+            // relying on the exception thrown by getInputStream for error codes,
+            // in which case the body is on the error stream instead
+            exchange.sent();
+            int code = http.getResponseCode();
+            InputStream in = code >= 400 ? http.getErrorStream() : http.getInputStream();
+            if (in == null) {
+                in = new ByteArrayInputStream(new byte[0]);
+            }
+            
+            final HttpURLConnection h = http;
+            LeasedInputStream responseBody = new LeasedInputStream(in, pool, lease) {
+                @Override
+                protected void discard() {
+                    h.disconnect();
+                }
+            };
+            String connection = http.getHeaderField("Connection");
+            if (connection != null && connection.trim().equalsIgnoreCase("close")) {
+                responseBody.setReusable(false);
+            } else {
+                lease.setKeepAlive(parseKeepAliveTimeout(http.getHeaderField("Keep-Alive")));
+            }
+            exchange.setResponse(code, http.getResponseMessage(), http.getHeaderFields(), responseBody);
+            handedOff = true;
+        } finally {
+            if (!handedOff) {
+                if (http != null) http.disconnect();
+                pool.release(lease, false);
+            }
+        }
+    }
+    
+    private static int toInt(long millis) {
+        return (int)Math.min(millis, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Parses the timeout from a Keep-Alive header, such as "timeout=5, max=100".
+     *
+     * @return the timeout in milliseconds, or -1 if not specified
+     */
+    static long parseKeepAliveTimeout(String keepAlive) {
+        if (keepAlive == null) return -1;
+        for (String part : keepAlive.split(",")) {
+            part = part.trim();
+            if (part.regionMatches(true, 0, "timeout=", 0, 8)) {
+                try {
+                    return Long.parseLong(part.substring(8).trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * A permit for one exchange in flight on a route. The socket itself is
+     * owned by the keep-alive cache of the JDK, so there is nothing to
+     * validate or close here, and reusing a permit says nothing about whether
+     * the socket was reused.
+     */
+    private static final class KeepAliveConnection extends ConnectionPool.Connection {
+        private KeepAliveConnection(String route) {
+            super(route);
+        }
+        
+        protected boolean isOpen() {
+            return true;
+        }
+        
+        protected void close() {
+        }
+        
+        protected boolean tracksReuse() {
+            return false;
+        }
+    }
+}
@@ -22,22 +22,30 @@
 package org.jdesktop.http.async;
 
 import java.beans.PropertyChangeListener;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import javax.swing.SwingUtilities;
 import javax.swing.event.EventListenerList;
+import org.jdesktop.http.Deadline;
 import org.jdesktop.http.Method;
 import org.jdesktop.http.Parameter;
 import org.jdesktop.http.Request;
+import org.jdesktop.http.RequestExecutors;
 import org.jdesktop.http.Response;
 import org.jdesktop.http.Session;
-import javax.swing.SwingWorker;
 import org.w3c.dom.Document;
 import org.jdesktop.beans.AbstractBean;
 import org.jdesktop.http.Header;
 import org.jdesktop.http.async.event.AsyncRequestListener;
-import org.jdesktop.xpath.XPathUtils;
 
 //attributes?
 //character encoding?
@@ -55,7 +63,6 @@ import org.jdesktop.xpath.XPathUtils;
 # error event and onerror attribute;
 # progress event and onprogress attribute;
 # abort event and onabort attribute;
-# Timers have been suggested, perhaps an ontimeout attribute;
 # Property to disable following redirects;
 # responseXML for text/html documents;
 # property to follow redirects*/
@@ -74,6 +81,13 @@ import org.jdesktop.xpath.XPathUtils;
  * with the server. It is possible to reuse an existing Session. However, if a
  * Session is not specified, a new one is constructed for the request.</p>
  *
+ * <p>Asynchronous requests run on an {@link Executor}. This is the executor
+ * of the request, if one has been set. Otherwise it is the executor of the
+ * Session, which in turn defaults to {@link RequestExecutors#getDefault()}.
+ * If a {@link RequestScheduler} has been set, requests wait in it for their
+ * turn, by priority and deadline, before running on its executor
+ * instead.</p>
+ *
  * @author rbair
  */
 public class AsyncHttpRequest extends AbstractBean {
@@ -83,6 +97,33 @@ public class AsyncHttpRequest extends AbstractBean {
      */
     public enum ReadyState {UNINITIALIZED, OPEN, SENT, RECEIVING, LOADED}
     
+    /**
+     * Dispatches readyState changes on whichever thread the request is
+     * running on.
+     *
+     * @see #setDispatchExecutor
+     */
+    public static final Executor SAME_THREAD_DISPATCH = new Executor() {
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+    
+    /**
+     * Dispatches readyState changes on the event dispatch thread.
+     *
+     * @see #setDispatchExecutor
+     */
+    public static final Executor EDT_DISPATCH = new Executor() {
+        public void execute(Runnable r) {
+            if (SwingUtilities.isEventDispatchThread()) {
+                r.run();
+            } else {
+                SwingUtilities.invokeLater(r);
+            }
+        }
+    };
+    
     // ---------------------------------------------------------- Properties
     /**
      * The ReadyState of this AsyncHttpRequest.
@@ -122,10 +163,19 @@ public class AsyncHttpRequest extends AbstractBean {
      */
     private boolean asyncFlag;
     private Session s;
+    private Executor executor;
+    private RequestScheduler scheduler;
+    private RequestScheduler.Priority priority = RequestScheduler.Priority.NORMAL;
+    private Executor dispatchExecutor;
     private Exception exception;
     private PropertyChangeListener onReadyStateChange;
     private Request req = new Request(); //the request. Reset in reset(). Never null.
-    /*private EventListenerList listenerList = new EventListenerList();*/
+    /**
+     * The time allowed for the request, in milliseconds, or -1 for none.
+     * Reset in reset().
+     */
+    private long timeout = -1;
+    private EventListenerList listenerList = new EventListenerList();
     
     // -------------------------------------------------------- Constructors
     /**
@@ -158,6 +208,112 @@ public class AsyncHttpRequest extends AbstractBean {
     public Session getSession() {
         return s;
     }
+    
+    /**
+     * Sets the Executor on which this request runs when sent asynchronously.
+     *
+     * @param executor the executor to use. This may be null, in which case the
+     *        executor of the Session is used.
+     */
+    public void setExecutor(Executor executor) {
+        Executor old = getExecutor();
+        this.executor = executor;
+        firePropertyChange("executor", old, getExecutor());
+    }
+    
+    /**
+     * Returns the Executor set on this request.
+     *
+     * @return the executor. May be null.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+    
+    /**
+     * Sets the {@link RequestScheduler} which decides when this request runs
+     * when sent asynchronously, among the other requests sharing it. The
+     * request is scheduled by its priority, its host, and the deadline set by
+     * {@link #setTimeout} or by the sender with {@link Deadline#call}. A
+     * request whose deadline passes before its turn comes is not sent, and
+     * times out as described for <code>setTimeout</code>.
+     *
+     * @param scheduler the scheduler to use. May be null, in which case the
+     *        request runs on its executor at once.
+     */
+    public void setScheduler(RequestScheduler scheduler) {
+        RequestScheduler old = getScheduler();
+        this.scheduler = scheduler;
+        firePropertyChange("scheduler", old, getScheduler());
+    }
+    
+    /**
+     * @return the RequestScheduler of this request. May be null.
+     */
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+    
+    /**
+     * Sets the priority with which the {@link RequestScheduler}, if any, runs
+     * this request.
+     *
+     * @param priority the priority. This must not be null. Defaults to NORMAL.
+     */
+    public void setPriority(RequestScheduler.Priority priority) {
+        if (priority == null) {
+            throw new NullPointerException("priority cannot be null");
+        }
+        RequestScheduler.Priority old = getPriority();
+        this.priority = priority;
+        firePropertyChange("priority", old, getPriority());
+    }
+    
+    /**
+     * @return the priority of this request. This will never be null.
+     */
+    public RequestScheduler.Priority getPriority() {
+        return priority;
+    }
+    
+    /**
+     * <p>Sets the Executor used to dispatch readyState changes (and the
+     * property change events which go with them) for requests sent with
+     * {@link #send()}. This is one of:
+     * <ul>
+     *  <li>{@link #EDT_DISPATCH}: events are fired on the event dispatch
+     *      thread, which is convenient for updating a GUI.</li>
+     *  <li>{@link #SAME_THREAD_DISPATCH}: events are fired on the thread
+     *      running the request, which avoids the event dispatch thread
+     *      altogether.</li>
+     *  <li>any other Executor. It should run tasks in the order they are
+     *      submitted, or readyState changes may be seen out of order.</li>
+     * </ul></p>
+     *
+     * <p>By default, SAME_THREAD_DISPATCH is used when the
+     * <code>java.awt.headless</code> system property is true, and EDT_DISPATCH
+     * otherwise.</p>
+     *
+     * @param executor the executor to use. May be null, in which case the
+     *        default is used.
+     */
+    public void setDispatchExecutor(Executor executor) {
+        Executor old = getDispatchExecutor();
+        this.dispatchExecutor = executor;
+        firePropertyChange("dispatchExecutor", old, getDispatchExecutor());
+    }
+    
+    /**
+     * Gets the Executor used to dispatch readyState changes.
+     *
+     * @return the executor. This will never be null.
+     */
+    public Executor getDispatchExecutor() {
+        if (dispatchExecutor != null) {
+            return dispatchExecutor;
+        }
+        return Boolean.getBoolean("java.awt.headless") ? SAME_THREAD_DISPATCH : EDT_DISPATCH;
+    }
         
     // ------------------------------------ Methods as per the specification
     /**
@@ -402,24 +558,80 @@ public class AsyncHttpRequest extends AbstractBean {
      * @param content
      */
     public void send(String content) {
+        send(content, content);
+    }
+    
+    /**
+     * Sends the given document, which is serialized as UTF-8 while the request
+     * is sent rather than converted to a String first.
+     * 
+     * @param dom
+     */
+    public void send(Document dom) {
+        send(null, dom);
+    }
+    
+    private void send(String content, Object body) {
         if (readyState != ReadyState.OPEN) {
             throw new IllegalStateException("AsyncHttpRequest must be in an OPEN state before " +
                     "invokation of the send() method");
         }
         worker = createAsyncWorker(content);
-        worker.sendRequest(getSession(), content);
+        worker.sendRequest(getSession(), body);
     }
     
     /**
-     * @param dom
+     * <p>Sends the request to the server, and returns a CompletionStage for
+     * the Response. If the readyState property has a value other than OPEN,
+     * then an IllegalStateException will be thrown.</p>
+     *
+     * <p>Unlike {@link #send()}, the readyState is updated directly on the
+     * thread running the request rather than on the EDT, without firing
+     * property change events, and the returned stage completes on that same
+     * thread once the readyState is LOADED. A timeout is still reported to
+     * the AsyncRequestListeners through the dispatch executor.
+     * If an exception occurs, the stage completes exceptionally with it.
+     * Cancelling the stage (through <code>toCompletableFuture().cancel()</code>)
+     * aborts the request, as with {@link #abort()}.</p>
+     *
+     * @return the pending Response. This will never be null.
      */
-    public void send(Document dom) {
-        //convert the dom to a String, and send that
-        if (dom == null) {
-            send((String)null);
-        } else {
-            send(XPathUtils.toXML(dom));
+    public CompletionStage<Response> sendAsync() {
+        return sendAsync((String)null);
+    }
+    
+    /**
+     * Sends the given content to the server.
+     *
+     * @param content the request body. May be null.
+     * @return the pending Response. This will never be null.
+     * @see #sendAsync()
+     */
+    public CompletionStage<Response> sendAsync(String content) {
+        return sendAsync(content, content);
+    }
+    
+    /**
+     * Sends the given document to the server.
+     *
+     * @param dom the request body. May be null.
+     * @return the pending Response. This will never be null.
+     * @see #sendAsync()
+     */
+    public CompletionStage<Response> sendAsync(Document dom) {
+        return sendAsync(null, dom);
+    }
+    
+    private CompletionStage<Response> sendAsync(String content, Object body) {
+        if (readyState != ReadyState.OPEN) {
+            throw new IllegalStateException("AsyncHttpRequest must be in an OPEN state before " +
+                    "invokation of the sendAsync() method");
         }
+        worker = createAsyncWorker(content);
+        ResponseFuture future = new ResponseFuture(worker);
+        worker.future = future;
+        worker.sendRequest(getSession(), body);
+        return future;
     }
     
     /**
@@ -427,8 +639,9 @@ public class AsyncHttpRequest extends AbstractBean {
      */
     public void abort() {
         if (worker != null) {
-            worker.cancel(true);
+            AsyncWorker w = worker;
             worker = null;
+            w.cancel(true);
         }
         reset();
     };
@@ -548,18 +761,31 @@ public class AsyncHttpRequest extends AbstractBean {
         return req.getFollowRedirects();
     }
     
-    /*
+    /**
+     * Sets the time allowed for the request, from sending it to loading the
+     * whole response. If it takes longer the request is aborted, the
+     * readyState moves to LOADED with a <code>SocketTimeoutException</code>
+     * as the exception, and the onTimeout method of every
+     * {@link AsyncRequestListener} is called. A shorter deadline set by the
+     * sender with {@link Deadline#call} still applies.
+     *
+     * @param timeout the timeout in milliseconds, or -1 (the default) for none
+     */
     public void setTimeout(long timeout) {
         if (readyState != ReadyState.OPEN) {
             throw new IllegalStateException("The request must be OPEN before setting the timeout");
         }
-        timeout = timeout < 0 ? -1 : timeout;
+        long old = getTimeout();
+        this.timeout = timeout <= 0 ? -1 : timeout;
+        firePropertyChange("timeout", old, this.timeout);
     }
     
+    /**
+     * @return the time allowed for the request in milliseconds, or -1 for none
+     */
     public final long getTimeout() {
         return timeout;
     }
-    */
     
     // ------------------------------------------------- Convenience methods
     /**
@@ -643,7 +869,7 @@ public class AsyncHttpRequest extends AbstractBean {
     public PropertyChangeListener[] getReadyStateChangeListeners() {
         return super.getPropertyChangeListeners("readyState");
     }
-    /*
+    
     public void addAsyncRequestListener(AsyncRequestListener listener) {
         listenerList.add(AsyncRequestListener.class, listener);
     }
@@ -654,7 +880,7 @@ public class AsyncHttpRequest extends AbstractBean {
     
     public AsyncRequestListener[] getAsyncRequestListeners() {
         return listenerList.getListeners(AsyncRequestListener.class);
-    }*/
+    }
     
     // --------------------------------------------------- Protected Methods
     protected AsyncWorker createAsyncWorker(String content) {
@@ -670,8 +896,8 @@ public class AsyncHttpRequest extends AbstractBean {
         /*
         userName = null;
         password = null;
-        timeout = -1;
         */
+        timeout = -1;
         exception = null;
         req = new Request();
         req.setFollowRedirects(false);
@@ -697,7 +923,7 @@ public class AsyncHttpRequest extends AbstractBean {
     /**
      * This is private because readyState is a read only property. This method
      * ensures that the readyState property change event is fired. This MUST
-     * be called on the EDT.
+     * be called through the dispatch executor.
      */
     private void setReadyState(ReadyState state) {
         ReadyState old = this.readyState;
@@ -756,43 +982,114 @@ public class AsyncHttpRequest extends AbstractBean {
         for (AsyncRequestListener l : getAsyncRequestListeners()) {
             l.onAbort();
         }
-    }
+    }*/
     
     private void fireOnTimeout() {
         for (AsyncRequestListener l : getAsyncRequestListeners()) {
             l.onTimeout();
         }
-    }*/
+    }
     
     // -------------- Private impl details
-    protected class AsyncWorker extends SwingWorker {
-        private String data;
+    protected class AsyncWorker extends FutureTask<Object> implements RequestScheduler.Task {
+        /** the body to send, a String or a Document */
+        private Object data;
         private Session s;
         private Response response;
+        /** set if the request ran out of time */
+        private boolean timedOut = false;
+        /** set when sent through sendAsync */
+        private CompletableFuture<Response> future;
+        /** the priority of the request when it was sent */
+        private RequestScheduler.Priority sentPriority;
+        /** the scheduler the request waits on, if any */
+        private RequestScheduler queuedOn;
         
-        private void sendRequest(Session s, String data) {
+        public AsyncWorker() {
+            this(new WorkerCallable());
+        }
+        
+        private AsyncWorker(WorkerCallable callable) {
+            super(callable);
+            callable.worker = this;
+        }
+        
+        private void sendRequest(Session s, Object data) {
             this.s = s == null ? new Session() : s;
             safeSetReadyState(ReadyState.SENT);
             this.data = data;
+            this.sentPriority = priority;
+            //the time starts now, and the deadline of the sender still
+            //applies on the thread which runs the request
+            req.setDeadline(Deadline.earliest(Deadline.current(), timeout > 0 ? Deadline.after(timeout) : null));
             if (asyncFlag) {
                 execute(); //puts on queue, async
             } else {
-                run(); //blocks
-                done();
+                run(); //blocks, and calls done()
+            }
+        }
+        
+        /**
+         * Hands this worker to the scheduler of the request, or failing that
+         * its executor, or failing that the executor of the Session. If the
+         * executor rejects it, the request fails with the rejection.
+         */
+        private void execute() {
+            Executor e = scheduler != null ? scheduler : executor != null ? executor : s.getExecutor();
+            if (e instanceof RequestScheduler) {
+                queuedOn = (RequestScheduler)e;
+            }
+            try {
+                e.execute(this);
+            } catch (RejectedExecutionException ex) {
+                exception = ex;
+                set(null);
+            }
+        }
+        
+        public RequestScheduler.Priority getPriority() {
+            return sentPriority;
+        }
+        
+        public String getHost() {
+            try {
+                return new URL(req.getUrl()).getHost();
+            } catch (MalformedURLException e) {
+                return null;
+            }
+        }
+        
+        public Deadline getDeadline() {
+            return req.getDeadline();
+        }
+        
+        /**
+         * Times the request out without sending it, as its deadline passed
+         * while it waited for the scheduler.
+         */
+        public void expired() {
+            if (isDone()) {
+                return;
             }
+            exception = new SocketTimeoutException("The deadline passed before " + req.getUrl() + " was sent");
+            timedOut = true;
+            set(null);
         }
         
         protected Object doInBackground() throws Exception {
             try {
-                //TODO!!!
-                //connection timeout
-                //another thread is used (java.util.Timer) to keep track of a timeout.
-                //if the timeout occurs, then this thread is cancelled.
-                
                 //k. Bundle any data that needs to be sent
                 response = null;
-                req.setBody(data);
+                if (data instanceof Document) {
+                    req.setBody((Document)data);
+                } else {
+                    req.setBody((String)data);
+                }
                 response = s.execute(req);
+                if (isCancelled()) {
+                    //aborted while waiting on the server
+                    return null;
+                }
                 
                 //TODO!!! Need to see if there is a way to set to RECEIVING when the first bit of data
                 //comes down, instead of waiting until the whole thing is read (which is what I THINK
@@ -806,29 +1103,103 @@ public class AsyncHttpRequest extends AbstractBean {
                 return responseText;
             } catch (Exception e) {
                 exception = e;
+                timedOut = e instanceof SocketTimeoutException;
                 return null;
             }
         }
         
         /**
-         * Helper method which allows me to set the ready state on
-         * the EDT
+         * Helper method which sets the ready state through the dispatch
+         * executor. Requests sent with sendAsync set it directly, without
+         * firing property change events. Either way, nothing is set once the
+         * request has been aborted.
          */
         protected void safeSetReadyState(final ReadyState state) {
-            if (!SwingUtilities.isEventDispatchThread()) {
-                SwingUtilities.invokeLater(new Runnable() {
+            Executor dispatch = getDispatchExecutor();
+            if (future != null) {
+                if (!isCancelled()) {
+                    readyState = state;
+                }
+            } else if (dispatch == SAME_THREAD_DISPATCH) {
+                if (!isCancelled()) {
+                    AsyncHttpRequest.this.setReadyState(state);
+                }
+            } else {
+                dispatch.execute(new Runnable() {
                     public void run() {
-                        AsyncHttpRequest.this.setReadyState(state);
+                        if (!isCancelled()) {
+                            AsyncHttpRequest.this.setReadyState(state);
+                        }
                     }
                 });
-            } else {
-                AsyncHttpRequest.this.setReadyState(state);
             }
         }
         
         @Override
         protected void done() {
-            setReadyState(ReadyState.LOADED);
+            //an aborted request has already been reset
+            if (isCancelled()) {
+                if (future != null) future.cancel(true);
+                if (queuedOn != null) queuedOn.remove(this);
+                return;
+            }
+            if (asyncFlag || future != null) {
+                safeSetReadyState(ReadyState.LOADED);
+                if (timedOut) {
+                    getDispatchExecutor().execute(new Runnable() {
+                        public void run() {
+                            if (!isCancelled()) {
+                                fireOnTimeout();
+                            }
+                        }
+                    });
+                }
+            } else {
+                setReadyState(ReadyState.LOADED);
+                if (timedOut) {
+                    fireOnTimeout();
+                }
+            }
+            if (future != null) {
+                if (exception != null) {
+                    future.completeExceptionally(exception);
+                } else {
+                    future.complete(response);
+                }
+            }
+        }
+    }
+    
+    /**
+     * The future returned by sendAsync. Cancelling it aborts the request,
+     * unless the request has moved on to another worker in the meantime.
+     */
+    private final class ResponseFuture extends CompletableFuture<Response> {
+        private final AsyncWorker owner;
+        
+        private ResponseFuture(AsyncWorker owner) {
+            this.owner = owner;
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && worker == owner) {
+                abort();
+            }
+            return cancelled;
+        }
+    }
+    
+    /**
+     * Runs the background part of an AsyncWorker. The worker is a FutureTask,
+     * which needs its Callable before the worker itself exists.
+     */
+    private static final class WorkerCallable implements Callable<Object> {
+        private AsyncWorker worker;
+        
+        public Object call() throws Exception {
+            return worker.doInBackground();
         }
     }
 }
\ No newline at end of file
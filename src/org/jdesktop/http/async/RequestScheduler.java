@@ -0,0 +1,506 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http.async;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import org.jdesktop.http.Deadline;
+import org.jdesktop.http.RequestExecutors;
+
+/**
+ * <p>Decides the order in which queued requests run, so that latency
+ * sensitive requests are not held up behind bulk work. Set a scheduler on an
+ * {@link AsyncHttpRequest} with {@link AsyncHttpRequest#setScheduler}, and
+ * share it among the requests it should order.</p>
+ *
+ * <p>At most <code>maxConcurrent</code> requests run at once, on the given
+ * executor. When a request finishes, the next to run is taken from the
+ * highest {@link Priority} with requests waiting, so that a lower priority
+ * only runs when no higher one is waiting. Within a priority, the request
+ * with the earliest {@link Deadline} goes first, and requests without one
+ * go after those with one. To be fair to every host, no more than
+ * <code>maxPerHost</code> requests to one host run at once, and between
+ * requests otherwise equal, the host with the fewest running goes first.</p>
+ *
+ * <p>A request whose deadline passes while it waits is dropped without
+ * being sent: it is taken out of the queue and told that it
+ * {@link Task#expired expired}.</p>
+ *
+ * <p>If the executor rejects a request, the request goes back in the queue
+ * in its turn, to be tried again when another request finishes, and the
+ * rejection is thrown to the caller.</p>
+ *
+ * <p>A RequestScheduler is also an {@link Executor}, which may be given to a
+ * Session. Tasks which are not {@link Task}s run with NORMAL priority, no
+ * host and no deadline.</p>
+ */
+public class RequestScheduler implements Executor {
+    /**
+     * The classes of requests, from the most to the least urgent.
+     */
+    public enum Priority {
+        /** Requests someone is waiting on. */
+        INTERACTIVE,
+        /** The default. */
+        NORMAL,
+        /** Background work, such as prefetching or backfilling. */
+        BULK
+    }
+    
+    /**
+     * A request to schedule, with what the scheduler needs to know to order it.
+     */
+    public interface Task extends Runnable {
+        /** @return the priority of the request. This must not be null. */
+        public Priority getPriority();
+        /** @return the host the request is for, or null if not known */
+        public String getHost();
+        /** @return the deadline of the request, or null if it has none */
+        public Deadline getDeadline();
+        /**
+         * Called instead of {@link #run} when the deadline of the request has
+         * passed before it could run.
+         */
+        public void expired();
+    }
+    
+    /** The default number of requests run at once: 16. */
+    public static final int DEFAULT_MAX_CONCURRENT = 16;
+    /** The default number of requests to one host run at once: 6. */
+    public static final int DEFAULT_MAX_PER_HOST = 6;
+    
+    private final Executor executor;
+    private int maxConcurrent;
+    private int maxPerHost = DEFAULT_MAX_PER_HOST;
+    private final Map<Priority,Map<String,PriorityQueue<Entry>>> queues =
+            new EnumMap<Priority,Map<String,PriorityQueue<Entry>>>(Priority.class);
+    private final Map<String,Integer> runningPerHost = new HashMap<String,Integer>();
+    private int running = 0;
+    private int queued = 0;
+    private long sequence = 0;
+    private long expired = 0;
+    
+    /**
+     * Creates a new RequestScheduler which runs up to
+     * {@link #DEFAULT_MAX_CONCURRENT} requests at once on the default
+     * executor, see {@link RequestExecutors#getDefault()}.
+     */
+    public RequestScheduler() {
+        this(DEFAULT_MAX_CONCURRENT, RequestExecutors.getDefault());
+    }
+    
+    /**
+     * Creates a new RequestScheduler.
+     *
+     * @param maxConcurrent the number of requests to run at once, at least 1
+     * @param executor the executor to run them on. This must not be null.
+     */
+    public RequestScheduler(int maxConcurrent, Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor cannot be null");
+        }
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1");
+        }
+        this.executor = executor;
+        this.maxConcurrent = maxConcurrent;
+        for (Priority p : Priority.values()) {
+            queues.put(p, new HashMap<String,PriorityQueue<Entry>>());
+        }
+    }
+    
+    public synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+    
+    /**
+     * @param max the number of requests to run at once, at least 1
+     */
+    public void setMaxConcurrent(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be at least 1");
+        }
+        synchronized (this) {
+            this.maxConcurrent = max;
+        }
+        dispatch();
+    }
+    
+    public synchronized int getMaxPerHost() {
+        return maxPerHost;
+    }
+    
+    /**
+     * @param max the number of requests to one host to run at once, at least 1
+     */
+    public void setMaxPerHost(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be at least 1");
+        }
+        synchronized (this) {
+            this.maxPerHost = max;
+        }
+        dispatch();
+    }
+    
+    /**
+     * @return the number of requests running
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+    
+    /**
+     * @return the number of requests waiting to run. Requests cancelled
+     *         while they wait are not counted.
+     */
+    public synchronized int getQueueDepth() {
+        //cancelled requests are only noticed at the head of their queue
+        for (Map<String,PriorityQueue<Entry>> hosts : queues.values()) {
+            for (PriorityQueue<Entry> q : hosts.values()) {
+                Iterator<Entry> itr = q.iterator();
+                while (itr.hasNext()) {
+                    Entry e = itr.next();
+                    if (e.task instanceof Future && ((Future<?>)e.task).isDone()) {
+                        itr.remove();
+                        queued--;
+                        e.cancelExpiry();
+                    }
+                }
+            }
+        }
+        return queued;
+    }
+    
+    /**
+     * @return the number of requests dropped because their deadline passed
+     *         while they waited
+     */
+    public synchronized long getExpiredCount() {
+        return expired;
+    }
+    
+    /**
+     * Queues the given task, which runs as soon as the scheduler allows.
+     *
+     * @throws RejectedExecutionException if the executor rejected a request
+     *         the scheduler tried to start. The request stays queued.
+     */
+    public void execute(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException("task cannot be null");
+        }
+        Priority priority = Priority.NORMAL;
+        String host = null;
+        Deadline deadline = null;
+        if (task instanceof Task) {
+            Task t = (Task)task;
+            priority = t.getPriority();
+            host = t.getHost();
+            deadline = t.getDeadline();
+        }
+        if (deadline != null && deadline.isExpired()) {
+            drop(task);
+            return;
+        }
+        Entry e = new Entry(task, host == null ? "" : host.toLowerCase(Locale.ROOT), deadline);
+        synchronized (this) {
+            e.sequence = sequence++;
+            e.priority = priority;
+            enqueue(e);
+        }
+        dispatch();
+    }
+    
+    /**
+     * Takes the given task out of the queue, if it is still waiting to run.
+     * Tasks which are {@link Future}s are taken out once they are cancelled
+     * anyway, but calling this frees their place at once.
+     *
+     * @return true if the task was waiting, and will not run
+     */
+    public boolean remove(Runnable task) {
+        synchronized (this) {
+            for (Map<String,PriorityQueue<Entry>> hosts : queues.values()) {
+                for (PriorityQueue<Entry> q : hosts.values()) {
+                    for (Entry e : q) {
+                        if (e.task == task) {
+                            q.remove(e);
+                            queued--;
+                            e.cancelExpiry();
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Puts a request in its queue. Must be called while holding the lock.
+     */
+    private void enqueue(final Entry e) {
+        Map<String,PriorityQueue<Entry>> hosts = queues.get(e.priority);
+        PriorityQueue<Entry> q = hosts.get(e.host);
+        if (q == null) {
+            q = new PriorityQueue<Entry>();
+            hosts.put(e.host, q);
+        }
+        q.add(e);
+        queued++;
+        if (e.deadline != null) {
+            //drop it as soon as the deadline passes, rather than when its
+            //turn comes. The timer is cancelled once it leaves the queue
+            e.expiry = e.deadline.schedule(new Runnable() {
+                public void run() {
+                    if (dequeue(e)) {
+                        expire(e.task);
+                    }
+                }
+            });
+        }
+    }
+    
+    /**
+     * Starts as many waiting requests as the limits allow.
+     */
+    private void dispatch() {
+        List<Entry> started = new ArrayList<Entry>();
+        List<Entry> dropped = new ArrayList<Entry>();
+        synchronized (this) {
+            while (running < maxConcurrent) {
+                Entry next = next(dropped);
+                if (next == null) {
+                    break;
+                }
+                running++;
+                Integer n = runningPerHost.get(next.host);
+                runningPerHost.put(next.host, n == null ? 1 : n + 1);
+                started.add(next);
+            }
+        }
+        for (Entry e : dropped) {
+            drop(e.task);
+        }
+        RuntimeException rejected = null;
+        for (final Entry e : started) {
+            e.cancelExpiry();
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            e.task.run();
+                        } finally {
+                            finished(e);
+                        }
+                    }
+                });
+            } catch (RuntimeException ex) {
+                //give back its place, and put it back in its turn to be tried
+                //again when a request finishes; the others still get started
+                synchronized (this) {
+                    release(e);
+                    enqueue(e);
+                }
+                if (rejected == null) {
+                    rejected = ex;
+                }
+            }
+        }
+        if (rejected != null) {
+            throw rejected;
+        }
+    }
+    
+    /**
+     * Takes the next request to run out of the queues. Must be called while
+     * holding the lock.
+     *
+     * @param dropped collects the requests found to have expired, or to have
+     *        been cancelled, on the way
+     * @return the request, or null if none may run now
+     */
+    private Entry next(List<Entry> dropped) {
+        for (Priority p : Priority.values()) {
+            Map<String,PriorityQueue<Entry>> hosts = queues.get(p);
+            Entry best = null;
+            int bestRunning = 0;
+            Iterator<PriorityQueue<Entry>> itr = hosts.values().iterator();
+            while (itr.hasNext()) {
+                PriorityQueue<Entry> q = itr.next();
+                Entry head = head(q, dropped);
+                if (head == null) {
+                    itr.remove();
+                    continue;
+                }
+                Integer n = runningPerHost.get(head.host);
+                int hostRunning = n == null ? 0 : n;
+                if (head.host.length() > 0 && hostRunning >= maxPerHost) {
+                    continue;
+                }
+                int order = best == null ? -1 : head.compareDeadline(best);
+                if (order == 0) {
+                    order = hostRunning != bestRunning ? hostRunning - bestRunning
+                            : Long.compare(head.sequence, best.sequence);
+                }
+                if (order < 0) {
+                    best = head;
+                    bestRunning = hostRunning;
+                }
+            }
+            if (best != null) {
+                hosts.get(best.host).poll();
+                queued--;
+                return best;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return the first request of the queue which is still wanted, having
+     *         moved those which are not to the dropped list
+     */
+    private Entry head(PriorityQueue<Entry> q, List<Entry> dropped) {
+        Entry head;
+        while ((head = q.peek()) != null) {
+            if (head.task instanceof Future && ((Future<?>)head.task).isDone()) {
+                //cancelled while it waited
+                q.poll();
+                queued--;
+                head.cancelExpiry();
+            } else if (head.deadline != null && head.deadline.isExpired()) {
+                q.poll();
+                queued--;
+                head.cancelExpiry();
+                dropped.add(head);
+            } else {
+                break;
+            }
+        }
+        return head;
+    }
+    
+    private synchronized boolean dequeue(Entry e) {
+        PriorityQueue<Entry> q = queues.get(e.priority).get(e.host);
+        if (q == null || !q.remove(e)) {
+            return false;
+        }
+        queued--;
+        return true;
+    }
+    
+    /**
+     * Drops a request whose deadline timer fired. The timer thread is shared,
+     * so the request is told on the executor.
+     */
+    private void expire(final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    drop(task);
+                }
+            });
+        } catch (RuntimeException ex) {
+            drop(task);
+        }
+    }
+    
+    private void drop(Runnable task) {
+        synchronized (this) {
+            expired++;
+        }
+        if (task instanceof Task) {
+            ((Task)task).expired();
+        }
+    }
+    
+    private void finished(Entry e) {
+        synchronized (this) {
+            release(e);
+        }
+        dispatch();
+    }
+    
+    /**
+     * Gives back the place a request took to run. Must be called while
+     * holding the lock.
+     */
+    private void release(Entry e) {
+        running--;
+        int n = runningPerHost.get(e.host);
+        if (n == 1) {
+            runningPerHost.remove(e.host);
+        } else {
+            runningPerHost.put(e.host, n - 1);
+        }
+    }
+    
+    /**
+     * A queued request. Within a host, requests are ordered by deadline, then
+     * in the order they were queued.
+     */
+    private static final class Entry implements Comparable<Entry> {
+        private final Runnable task;
+        private final String host;
+        private final Deadline deadline;
+        private Priority priority;
+        private long sequence;
+        /** drops the request when its deadline passes, if it has one */
+        private ScheduledFuture<?> expiry;
+        
+        private Entry(Runnable task, String host, Deadline deadline) {
+            this.task = task;
+            this.host = host;
+            this.deadline = deadline;
+        }
+        
+        void cancelExpiry() {
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+        }
+        
+        int compareDeadline(Entry other) {
+            if (deadline == null || other.deadline == null) {
+                return deadline == other.deadline ? 0 : deadline == null ? 1 : -1;
+            }
+            return deadline.compareTo(other.deadline);
+        }
+        
+        public int compareTo(Entry other) {
+            int order = compareDeadline(other);
+            return order != 0 ? order : Long.compare(sequence, other.sequence);
+        }
+    }
+}
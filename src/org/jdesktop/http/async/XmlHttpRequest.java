@@ -25,12 +25,16 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.ByteArrayInputStream;
 import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathFactory;
 import org.jdesktop.http.Method;
+import org.jdesktop.http.Response;
 import org.jdesktop.dom.SimpleDocument;
 import org.jdesktop.dom.SimpleDocumentBuilder;
 import org.jdesktop.http.async.AsyncHttpRequest.ReadyState;
@@ -64,6 +68,65 @@ public class XmlHttpRequest extends AsyncHttpRequest {
         }
     }
     
+    /**
+     * Sends the request, and returns a CompletionStage for the document
+     * parsed from the response. This behaves as {@link #sendAsync()}; the
+     * stage completes exceptionally if the response could not be parsed, and
+     * cancelling it aborts the request.
+     *
+     * @return the pending document. This will never be null.
+     */
+    public CompletionStage<SimpleDocument> sendAsyncXML() {
+        return sendAsyncXML((String)null);
+    }
+    
+    /**
+     * Sends the given content to the server.
+     *
+     * @param content the request body. May be null.
+     * @return the pending document. This will never be null.
+     * @see #sendAsyncXML()
+     */
+    public CompletionStage<SimpleDocument> sendAsyncXML(String content) {
+        return toXML(sendAsync(content));
+    }
+    
+    /**
+     * Sends the given document to the server. It is serialized as UTF-8 while
+     * the request is sent.
+     *
+     * @param dom the request body. May be null.
+     * @return the pending document. This will never be null.
+     * @see #sendAsyncXML()
+     */
+    public CompletionStage<SimpleDocument> sendAsyncXML(Document dom) {
+        return toXML(sendAsync(dom));
+    }
+    
+    /**
+     * Returns a stage for the document parsed from the pending response.
+     */
+    private CompletionStage<SimpleDocument> toXML(CompletionStage<Response> pending) {
+        final CompletableFuture<Response> response = pending.toCompletableFuture();
+        final CompletableFuture<SimpleDocument> result = new CompletableFuture<SimpleDocument>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                response.cancel(mayInterruptIfRunning);
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+        response.whenComplete(new BiConsumer<Response,Throwable>() {
+            public void accept(Response r, Throwable t) {
+                if (t != null) {
+                    result.completeExceptionally(t);
+                } else {
+                    result.complete(responseXML);
+                }
+            }
+        });
+        return result;
+    }
+    
     protected void reset() {
         setResponseXML(null);
         super.reset();
@@ -0,0 +1,179 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Removes the transfer framing from a response body as it arrives from the
+ * channel. Three framings are supported, as per RFC 7230 section 3.3.3: a
+ * fixed Content-Length, chunked transfer coding, and reading until the server
+ * closes the connection.</p>
+ */
+final class BodyDecoder {
+    static final int LENGTH = 0;
+    static final int CHUNKED = 1;
+    static final int UNTIL_CLOSE = 2;
+    
+    // chunked decoding states
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_EXTENSION = 1;
+    private static final int CHUNK_DATA = 2;
+    private static final int CHUNK_DATA_END = 3;
+    private static final int TRAILER = 4;
+    private static final int TRAILER_LINE = 5;
+    
+    private final int framing;
+    private long remaining;
+    private int chunkState = CHUNK_SIZE;
+    private boolean sizeDigits = false;
+    private boolean complete = false;
+    /** true if the reader asked to stop until resumed */
+    private boolean paused = false;
+    
+    /**
+     * @param framing one of LENGTH, CHUNKED or UNTIL_CLOSE
+     * @param length the Content-Length, for LENGTH framing
+     */
+    BodyDecoder(int framing, long length) {
+        this.framing = framing;
+        this.remaining = framing == LENGTH ? length : 0;
+        this.complete = framing == LENGTH && length == 0;
+    }
+    
+    int getFraming() {
+        return framing;
+    }
+    
+    boolean isComplete() {
+        return complete;
+    }
+    
+    /**
+     * Decodes as much of the buffer as possible into the pipe. Bytes
+     * following the end of the body are left in the buffer. Stops early if the
+     * pipe asks the reactor to pause.
+     *
+     * @return true if the pipe asked to pause
+     */
+    boolean decode(ByteBuffer in, BodyPipe out) throws IOException {
+        paused = false;
+        while (!complete && !paused && in.hasRemaining()) {
+            if (framing == LENGTH) {
+                int n = (int)Math.min(remaining, in.remaining());
+                paused = out.write(in, n);
+                remaining -= n;
+                complete = remaining == 0;
+            } else if (framing == UNTIL_CLOSE) {
+                paused = out.write(in, in.remaining());
+            } else {
+                decodeChunked(in, out);
+            }
+        }
+        return paused;
+    }
+    
+    /**
+     * Called when the server closes the connection.
+     *
+     * @throws IOException if the body was not complete
+     */
+    void endOfStream() throws IOException {
+        if (framing == UNTIL_CLOSE) {
+            complete = true;
+        } else if (!complete) {
+            throw new IOException("Connection closed before the end of the response body");
+        }
+    }
+    
+    private void decodeChunked(ByteBuffer in, BodyPipe out) throws IOException {
+        while (!complete && !paused && in.hasRemaining()) {
+            switch (chunkState) {
+                case CHUNK_SIZE: {
+                    byte b = in.get();
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (remaining > (Long.MAX_VALUE >> 4)) {
+                            throw new IOException("Chunk size too large");
+                        }
+                        remaining = (remaining << 4) | digit;
+                        sizeDigits = true;
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        chunkState = CHUNK_EXTENSION;
+                    } else if (b == '\r') {
+                        //wait for the \n
+                    } else if (b == '\n') {
+                        endOfSize();
+                    } else {
+                        throw new IOException("Malformed chunk size");
+                    }
+                    break;
+                }
+                case CHUNK_EXTENSION: {
+                    //chunk extensions are ignored
+                    if (in.get() == '\n') endOfSize();
+                    break;
+                }
+                case CHUNK_DATA: {
+                    int n = (int)Math.min(remaining, in.remaining());
+                    paused = out.write(in, n);
+                    remaining -= n;
+                    if (remaining == 0) chunkState = CHUNK_DATA_END;
+                    break;
+                }
+                case CHUNK_DATA_END: {
+                    byte b = in.get();
+                    if (b == '\n') {
+                        chunkState = CHUNK_SIZE;
+                    } else if (b != '\r') {
+                        throw new IOException("Malformed chunk terminator");
+                    }
+                    break;
+                }
+                case TRAILER: {
+                    //at the start of a trailer line. An empty line ends the body
+                    byte b = in.get();
+                    if (b == '\n') {
+                        complete = true;
+                    } else if (b != '\r') {
+                        chunkState = TRAILER_LINE;
+                    }
+                    break;
+                }
+                case TRAILER_LINE: {
+                    //trailers are ignored
+                    if (in.get() == '\n') chunkState = TRAILER;
+                    break;
+                }
+            }
+        }
+    }
+    
+    private void endOfSize() throws IOException {
+        if (!sizeDigits) {
+            throw new IOException("Missing chunk size");
+        }
+        sizeDigits = false;
+        chunkState = remaining == 0 ? TRAILER : CHUNK_DATA;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>Hands the decoded response body from the reactor thread to whichever
+ * thread reads the response. The reactor writes chunks as they arrive, and
+ * the reader blocks in {@link #read} until data is available.</p>
+ *
+ * <p>When a high water mark is set, {@link #write} reports once that much
+ * data is buffered, and the reactor stops reading from the socket. Reading
+ * resumes (through the <code>resume</code> callback) once the reader has
+ * consumed half of it. Without a high water mark the whole body is buffered,
+ * which is what the asynchronous path wants.</p>
+ */
+final class BodyPipe extends InputStream {
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private final long highWater;
+    private final Runnable resume;
+    private int offset = 0;
+    private long buffered = 0;
+    private boolean paused = false;
+    private boolean finished = false;
+    private boolean closed = false;
+    private boolean discard = false;
+    private IOException failure;
+    /**
+     * Completes once the whole body has been received, or fails with the
+     * error which stopped it.
+     */
+    final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    
+    /**
+     * @param highWater the number of buffered bytes at which the reactor
+     *        should stop reading, or 0 for no limit
+     * @param resume run (on the reading thread) when reading may resume
+     */
+    BodyPipe(long highWater, Runnable resume) {
+        this.highWater = highWater;
+        this.resume = resume;
+    }
+    
+    /**
+     * Copies <code>length</code> bytes from the buffer into the pipe. Called
+     * on the reactor thread.
+     *
+     * @return true if the reactor should stop reading until resumed
+     */
+    synchronized boolean write(ByteBuffer src, int length) {
+        if (closed || discard) {
+            src.position(src.position() + length);
+            return false;
+        }
+        byte[] chunk = new byte[length];
+        src.get(chunk);
+        chunks.addLast(chunk);
+        buffered += length;
+        notifyAll();
+        if (highWater > 0 && buffered >= highWater) {
+            paused = true;
+        }
+        return paused;
+    }
+    
+    /**
+     * Marks the end of the body. Called on the reactor thread.
+     */
+    void finish() {
+        synchronized (this) {
+            finished = true;
+            notifyAll();
+        }
+        done.complete(null);
+    }
+    
+    /**
+     * Fails the body. Any pending and future reads throw the given exception.
+     */
+    void fail(IOException e) {
+        synchronized (this) {
+            if (finished) return;
+            failure = e;
+            notifyAll();
+        }
+        done.completeExceptionally(e);
+    }
+    
+    /**
+     * Throws away whatever is written to the pipe from now on. Used when the
+     * body of a response is not wanted, as with redirects.
+     */
+    void discard() {
+        boolean wake;
+        synchronized (this) {
+            discard = true;
+            chunks.clear();
+            buffered = 0;
+            wake = paused;
+            paused = false;
+        }
+        if (wake && resume != null) {
+            resume.run();
+        }
+    }
+    
+    synchronized boolean isClosed() {
+        return closed;
+    }
+    
+    synchronized boolean isFinished() {
+        return finished;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        boolean wake = false;
+        int n;
+        synchronized (this) {
+            while (chunks.isEmpty()) {
+                if (failure != null) throw failure;
+                if (finished || closed) return -1;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading the response");
+                }
+            }
+            byte[] chunk = chunks.peekFirst();
+            n = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, n);
+            offset += n;
+            if (offset == chunk.length) {
+                chunks.removeFirst();
+                offset = 0;
+            }
+            buffered -= n;
+            if (paused && buffered <= highWater / 2) {
+                paused = false;
+                wake = true;
+            }
+        }
+        if (wake && resume != null) {
+            resume.run();
+        }
+        return n;
+    }
+    
+    @Override
+    public synchronized int available() throws IOException {
+        return (int)Math.min(Integer.MAX_VALUE, buffered);
+    }
+    
+    @Override
+    public void close() {
+        boolean wake;
+        synchronized (this) {
+            closed = true;
+            chunks.clear();
+            buffered = 0;
+            wake = paused;
+            paused = false;
+            notifyAll();
+        }
+        if (wake && resume != null) {
+            resume.run();
+        }
+    }
+}
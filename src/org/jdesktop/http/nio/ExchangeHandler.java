@@ -0,0 +1,446 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.jdesktop.http.Exchange;
+import org.jdesktop.http.RequestBody;
+
+/**
+ * <p>Drives a single request/response over an {@link NioConnection}, on the
+ * reactor thread. The exchange moves through four states: connecting,
+ * writing the request, reading the response head and reading the body.</p>
+ *
+ * <p>The request head is serialized up front by the caller. The request body,
+ * if any, is framed as chunks if its length is not known. Reading from its
+ * stream may block, so the body is read in small pieces on a separate
+ * executor, one piece ahead of the socket, and each piece is handed back to
+ * the reactor thread to be written. While the next piece is not ready the
+ * socket is not watched for writing.</p>
+ */
+final class ExchangeHandler {
+    private static final int CONNECTING = 0;
+    private static final int WRITING = 1;
+    private static final int READING_HEAD = 2;
+    private static final int READING_BODY = 3;
+    private static final int DONE = 4;
+    
+    private static final int BODY_CHUNK = 8192;
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    
+    private final NioConnection conn;
+    private final InputStream body;
+    private final Executor bodyReader;
+    private final RequestBody transfer;
+    private final Exchange exchange;
+    private long transferred = 0;
+    private final long transferLength;
+    private final boolean chunked;
+    private final boolean headRequest;
+    private ByteBuffer out;
+    private boolean bodyDone;
+    /** the next piece of the body, read but not yet written */
+    private ByteBuffer nextPiece;
+    /** whether a piece of the body is being read */
+    private boolean readingBody = false;
+    /** whether the whole body has been read */
+    private boolean bodyRead = false;
+    private BodyDecoder decoder;
+    private boolean paused = false;
+    private int state = CONNECTING;
+    /** the connect or read timeout being watched, if any */
+    private Reactor.Timer timer;
+    private long readTimeout;
+    /** when anything was last received, or reading last resumed */
+    private long lastRead;
+    
+    /** completes with the parsed head, once it has arrived */
+    final CompletableFuture<ResponseHeadParser> head = new CompletableFuture<ResponseHeadParser>();
+    final BodyPipe pipe;
+    /** set once any part of the response has been received */
+    volatile boolean received = false;
+    
+    /**
+     * @param conn the connection to use
+     * @param requestHead the serialized request line and headers
+     * @param body the request body, or null
+     * @param bodyReader the executor on which the body is read
+     * @param transfer a request body of known length, to send with
+     *        transferTo instead of reading it, or null
+     * @param exchange the exchange, to which the progress of a transferred
+     *        body is reported
+     * @param transferLength the length of the transferred body
+     * @param chunked whether to frame the body with chunked transfer coding
+     * @param headRequest whether this is a HEAD request, whose response never
+     *        has a body
+     * @param highWater the number of buffered response bytes at which to stop
+     *        reading from the socket, or 0 to buffer the whole body
+     */
+    ExchangeHandler(NioConnection conn, byte[] requestHead, InputStream body, Executor bodyReader, RequestBody transfer,
+            Exchange exchange, long transferLength, boolean chunked, boolean headRequest, long highWater) {
+        this.conn = conn;
+        this.out = ByteBuffer.wrap(requestHead);
+        this.body = body;
+        this.bodyReader = bodyReader;
+        this.transfer = transfer;
+        this.exchange = exchange;
+        this.transferLength = transferLength;
+        this.chunked = chunked;
+        this.headRequest = headRequest;
+        this.bodyDone = body == null;
+        this.pipe = new BodyPipe(highWater, new Runnable() {
+            public void run() {
+                ExchangeHandler.this.conn.reactor.execute(new Runnable() {
+                    public void run() {
+                        resume();
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Called by the connection on the reactor thread, once the exchange owns it.
+     */
+    void start() throws IOException {
+        conn.parser.reset();
+        readTimeout = exchange.getReadTimeout();
+        //read the first piece of the body while connecting
+        readBody();
+        if (conn.connect()) {
+            state = WRITING;
+            write();
+        } else if (exchange.getConnectTimeout() > 0) {
+            timer = conn.reactor.schedule(new Runnable() {
+                public void run() {
+                    if (state == CONNECTING) {
+                        abort(new SocketTimeoutException("connect timed out"));
+                    }
+                }
+            }, exchange.getConnectTimeout());
+        }
+    }
+    
+    void ready(SelectionKey key) throws IOException {
+        if (state == CONNECTING && key.isConnectable()) {
+            conn.channel.finishConnect();
+            cancelTimer();
+            state = WRITING;
+            write();
+        } else if (state == WRITING && key.isWritable()) {
+            write();
+        } else if (key.isReadable()) {
+            read();
+        }
+    }
+    
+    private void write() throws IOException {
+        while (true) {
+            if (!out.hasRemaining()) {
+                if (transfer != null && transferred < transferLength) {
+                    long n = transfer.transferTo(transferred, transferLength - transferred, conn.channel);
+                    if (n == 0) {
+                        conn.key.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    transferred += n;
+                    exchange.bodySent(n);
+                    continue;
+                }
+                if (bodyDone) break;
+                if (nextPiece == null) {
+                    //wait for the body, see pieceRead
+                    readBody();
+                    conn.key.interestOps(0);
+                    return;
+                }
+                out = nextPiece;
+                nextPiece = null;
+                if (bodyRead) {
+                    bodyDone = true;
+                } else {
+                    readBody();
+                }
+                continue;
+            }
+            if (conn.channel.write(out) == 0) {
+                //the socket buffer is full, wait until it drains
+                conn.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        closeBody();
+        state = READING_HEAD;
+        conn.key.interestOps(SelectionKey.OP_READ);
+        if (readTimeout > 0) {
+            lastRead = System.nanoTime();
+            watchReads(readTimeout);
+        }
+    }
+    
+    /**
+     * Fails the exchange if nothing is received for readTimeout, not counting
+     * the time spent paused waiting for the reader of the body.
+     */
+    private void watchReads(long delay) {
+        timer = conn.reactor.schedule(new Runnable() {
+            public void run() {
+                if (state != READING_HEAD && state != READING_BODY) return;
+                long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRead);
+                if (paused || idle < readTimeout) {
+                    watchReads(paused ? readTimeout : readTimeout - idle);
+                } else {
+                    abort(new SocketTimeoutException("Read timed out"));
+                }
+            }
+        }, delay);
+    }
+    
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+    
+    /**
+     * Aborts the exchange, closing its connection, unless it is already done.
+     * Must be called on the reactor thread.
+     */
+    void abort(IOException e) {
+        if (state != DONE) {
+            conn.failed(e);
+            //in case the exchange has not yet been handed the connection
+            failed(e);
+        }
+    }
+    
+    /**
+     * Reads the next piece of the request body on the bodyReader, unless it
+     * is already being read. Must be called on the reactor thread.
+     */
+    private void readBody() {
+        if (body == null || readingBody || bodyRead || nextPiece != null) return;
+        readingBody = true;
+        try {
+            bodyReader.execute(new Runnable() {
+                public void run() {
+                    final ByteBuffer piece;
+                    try {
+                        piece = fill();
+                    } catch (final Throwable t) {
+                        conn.reactor.execute(new Runnable() {
+                            public void run() {
+                                abort(t instanceof IOException ? (IOException)t : new IOException(t));
+                            }
+                        });
+                        return;
+                    }
+                    conn.reactor.execute(new Runnable() {
+                        public void run() {
+                            pieceRead(piece);
+                        }
+                    });
+                }
+            });
+        } catch (RuntimeException e) {
+            //the executor has been shut down
+            abort(new IOException("Cannot read the request body", e));
+        }
+    }
+    
+    /**
+     * Reads the next piece of the request body from its stream, which may
+     * block. Called on the bodyReader.
+     *
+     * @return the piece, framed as a chunk if need be, or null at the end of
+     *         the body
+     */
+    private ByteBuffer fill() throws IOException {
+        byte[] buffer = new byte[BODY_CHUNK];
+        int n = body.read(buffer);
+        if (n == -1) {
+            return null;
+        } else if (chunked) {
+            byte[] size = (Integer.toHexString(n) + "\r\n").getBytes("ISO-8859-1");
+            ByteBuffer piece = ByteBuffer.allocate(size.length + n + 2);
+            piece.put(size).put(buffer, 0, n).put((byte)'\r').put((byte)'\n');
+            piece.flip();
+            return piece;
+        } else {
+            return ByteBuffer.wrap(buffer, 0, n);
+        }
+    }
+    
+    /**
+     * Called on the reactor thread once a piece of the body has been read,
+     * resuming the write if it was waiting for it.
+     *
+     * @param piece the piece, or null at the end of the body
+     */
+    private void pieceRead(ByteBuffer piece) {
+        readingBody = false;
+        if (state == DONE) return;
+        if (piece == null) {
+            bodyRead = true;
+            piece = ByteBuffer.wrap(chunked ? LAST_CHUNK : new byte[0]);
+        }
+        nextPiece = piece;
+        if (state == WRITING && !out.hasRemaining()) {
+            try {
+                write();
+            } catch (Throwable t) {
+                conn.failed(t);
+            }
+        }
+    }
+    
+    private void read() throws IOException {
+        if (paused) return;
+        int n = conn.channel.read(conn.readBuffer);
+        if (n > 0) {
+            received = true;
+            lastRead = System.nanoTime();
+        }
+        process();
+        if (n == -1 && state != DONE) {
+            if (state == READING_BODY) {
+                decoder.endOfStream();
+                complete(false);
+            } else {
+                throw new IOException("Connection closed by server");
+            }
+        }
+    }
+    
+    /**
+     * Processes whatever is in the read buffer.
+     */
+    private void process() throws IOException {
+        ByteBuffer buffer = conn.readBuffer;
+        buffer.flip();
+        try {
+            if (state == READING_HEAD) {
+                readHead(buffer);
+            }
+            if (state == READING_BODY) {
+                if (!decoder.isComplete() && decoder.decode(buffer, pipe)) {
+                    paused = true;
+                    conn.key.interestOps(0);
+                }
+                if (decoder.isComplete()) {
+                    complete(!buffer.hasRemaining());
+                }
+            }
+        } finally {
+            if (state != DONE) {
+                buffer.compact();
+            }
+        }
+    }
+    
+    private void readHead(ByteBuffer buffer) throws IOException {
+        ResponseHeadParser parser = conn.parser;
+        while (parser.parse(buffer)) {
+            int status = parser.getStatus();
+            if (status >= 100 && status < 200 && status != 101) {
+                //skip interim responses such as 100 Continue
+                parser.reset();
+                continue;
+            }
+            if (headRequest || status == 204 || status == 304 || status == 101) {
+                decoder = new BodyDecoder(BodyDecoder.LENGTH, 0);
+            } else if (parser.isChunked()) {
+                decoder = new BodyDecoder(BodyDecoder.CHUNKED, 0);
+            } else if (parser.getContentLength() >= 0) {
+                decoder = new BodyDecoder(BodyDecoder.LENGTH, parser.getContentLength());
+            } else {
+                decoder = new BodyDecoder(BodyDecoder.UNTIL_CLOSE, 0);
+            }
+            conn.setKeepAlive(parser.getKeepAliveTimeout());
+            state = READING_BODY;
+            head.complete(parser);
+            return;
+        }
+    }
+    
+    /**
+     * Called on the reactor thread when the reader has consumed enough of the
+     * buffered body.
+     */
+    private void resume() {
+        if (!paused || state != READING_BODY) return;
+        paused = false;
+        lastRead = System.nanoTime();
+        try {
+            process();
+            if (!paused && state == READING_BODY) {
+                conn.key.interestOps(SelectionKey.OP_READ);
+            }
+        } catch (Throwable t) {
+            conn.failed(t);
+        }
+    }
+    
+    /**
+     * @param clean whether the connection is positioned at the end of the
+     *        response, with nothing unexpected following it
+     */
+    private void complete(boolean clean) {
+        state = DONE;
+        cancelTimer();
+        boolean reusable = clean && conn.parser.isKeepAlive() &&
+                decoder.getFraming() != BodyDecoder.UNTIL_CLOSE && conn.parser.getStatus() != 101;
+        conn.finished(reusable);
+        pipe.finish();
+    }
+    
+    /**
+     * Fails the exchange. Safe to call more than once.
+     */
+    void failed(Throwable t) {
+        if (state == DONE) return;
+        state = DONE;
+        cancelTimer();
+        closeBody();
+        IOException e = t instanceof IOException ? (IOException)t : new IOException(t);
+        if (!head.completeExceptionally(e)) {
+            pipe.fail(e);
+        }
+    }
+    
+    private void closeBody() {
+        try {
+            if (body != null) body.close();
+            if (transfer != null) transfer.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import org.jdesktop.http.ConnectionPool;
+
+/**
+ * <p>A non-blocking socket to a single host, owned by one {@link Reactor}.
+ * Apart from {@link #isOpen} and {@link #close}, every method must be called
+ * on the reactor thread.</p>
+ *
+ * <p>While a connection sits idle in the pool it stays registered for reads.
+ * A server which closes the connection (or sends anything at all) while no
+ * request is outstanding makes the connection stale, and it is closed
+ * straight away so that it will not be handed out again.</p>
+ */
+final class NioConnection extends ConnectionPool.Connection implements Reactor.Handler {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    
+    final Reactor reactor;
+    final String host;
+    final int port;
+    /** the resolved address, set before the first exchange */
+    volatile InetSocketAddress address;
+    
+    SocketChannel channel;
+    SelectionKey key;
+    /** kept in write mode (ready to be filled from the channel) between events */
+    final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    final ResponseHeadParser parser = new ResponseHeadParser();
+    ExchangeHandler current;
+    private volatile boolean closed = false;
+    
+    NioConnection(String route, Reactor reactor, String host, int port) {
+        super(route);
+        this.reactor = reactor;
+        this.host = host;
+        this.port = port;
+    }
+    
+    boolean isConnected() {
+        return channel != null && channel.isConnected();
+    }
+    
+    /**
+     * Starts connecting, unless already connected. Returns true if the
+     * connection is established and the exchange may start writing.
+     */
+    boolean connect() throws IOException {
+        if (channel != null) {
+            return channel.isConnected();
+        }
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.TRUE);
+        boolean connected = channel.connect(address);
+        key = reactor.register(channel, connected ? 0 : SelectionKey.OP_CONNECT, this);
+        return connected;
+    }
+    
+    /**
+     * Hands the connection over to the given exchange.
+     */
+    void start(ExchangeHandler handler) {
+        if (closed) {
+            handler.failed(new IOException("Connection closed"));
+            return;
+        }
+        current = handler;
+        try {
+            handler.start();
+        } catch (Throwable t) {
+            handler.failed(t);
+        }
+    }
+    
+    /**
+     * Called by the exchange once the response has been fully received.
+     */
+    void finished(boolean reusable) {
+        current = null;
+        readBuffer.clear();
+        if (!reusable) {
+            closeNow();
+        } else if (key != null && key.isValid()) {
+            //listen for the server closing the idle connection
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+    
+    public void ready(SelectionKey key) throws IOException {
+        if (current != null) {
+            current.ready(key);
+            return;
+        }
+        //idle. Anything readable means the connection can no longer be used
+        readBuffer.clear();
+        channel.read(readBuffer);
+        readBuffer.clear();
+        closeNow();
+    }
+    
+    public void failed(Throwable t) {
+        ExchangeHandler handler = current;
+        current = null;
+        closeNow();
+        if (handler != null) {
+            handler.failed(t);
+        }
+    }
+    
+    /**
+     * Closes the socket. Must be called on the reactor thread.
+     */
+    void closeNow() {
+        closed = true;
+        ExchangeHandler handler = current;
+        current = null;
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+        if (handler != null) {
+            handler.failed(new IOException("Connection closed"));
+        }
+    }
+    
+    protected boolean isOpen() {
+        return !closed;
+    }
+    
+    protected void close() {
+        if (closed) return;
+        closed = true;
+        if (reactor.inReactorThread()) {
+            closeNow();
+        } else {
+            reactor.execute(new Runnable() {
+                public void run() {
+                    closeNow();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,563 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.CookieHandler;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.jdesktop.http.AsyncTransport;
+import org.jdesktop.http.ConnectionPool;
+import org.jdesktop.http.Exchange;
+import org.jdesktop.http.Header;
+import org.jdesktop.http.LeasedInputStream;
+import org.jdesktop.http.Method;
+import org.jdesktop.http.Request;
+import org.jdesktop.http.RequestBody;
+import org.jdesktop.http.Transport;
+import org.jdesktop.http.URLConnectionTransport;
+
+/**
+ * <p>An {@link AsyncTransport} which speaks HTTP/1.1 over non-blocking
+ * sockets. A small, fixed number of reactor threads multiplex every
+ * connection, so a large number of requests may be outstanding without a
+ * thread waiting on each of them.</p>
+ *
+ * <p>Connections are leased from the {@link ConnectionPool} of the Session
+ * without blocking, and are kept alive between requests as the server
+ * allows. Redirects are followed within the same scheme, and a request
+ * without a body is retried on a new connection if a reused one turns out to
+ * have been closed by the server.</p>
+ *
+ * <p>https urls are handed to a fallback transport, by default a
+ * {@link URLConnectionTransport}.</p>
+ *
+ * <pre><code>
+ *  Session s = new Session();
+ *  s.setTransport(new NioTransport());
+ *  CompletableFuture&lt;Response&gt; r = s.executeAsync(new Request("http://example.com"));
+ * </code></pre>
+ */
+public class NioTransport implements AsyncTransport {
+    /** The most redirects followed for a single request, as for HttpURLConnection. */
+    private static final int MAX_REDIRECTS = 20;
+    /** The number of times a request is retried after a stale connection. */
+    private static final int MAX_RETRIES = 3;
+    /** The amount of response body buffered ahead of a blocking reader. */
+    private static final long HIGH_WATER = 256 * 1024;
+    
+    private static final AtomicInteger TRANSPORT_COUNT = new AtomicInteger();
+    
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+    private final Executor completionExecutor;
+    private final Transport secureTransport;
+    
+    /**
+     * Creates a new NioTransport with one reactor per processor (up to 4),
+     * which completes exchanges on a pool of daemon threads and hands https
+     * urls to a {@link URLConnectionTransport}.
+     */
+    public NioTransport() throws IOException {
+        this(Math.min(4, Runtime.getRuntime().availableProcessors()), null, new URLConnectionTransport());
+    }
+    
+    /**
+     * Creates a new NioTransport.
+     *
+     * @param reactors the number of selector threads. Must be at least 1.
+     * @param completionExecutor runs the work which may block or take time,
+     *        such as resolving host names, reading request bodies and
+     *        completing futures. If null, a
+     *        pool of daemon threads is used.
+     * @param secureTransport the transport used for https urls. If null, https
+     *        urls are not supported.
+     */
+    public NioTransport(int reactors, Executor completionExecutor, Transport secureTransport) throws IOException {
+        if (reactors < 1) {
+            throw new IllegalArgumentException("reactors must be at least 1");
+        }
+        int id = TRANSPORT_COUNT.incrementAndGet();
+        this.reactors = new Reactor[reactors];
+        for (int i=0; i<reactors; i++) {
+            this.reactors[i] = new Reactor("NioTransport-" + id + "-reactor-" + i);
+        }
+        if (completionExecutor == null) {
+            completionExecutor = createDefaultExecutor(id);
+        }
+        this.completionExecutor = completionExecutor;
+        this.secureTransport = secureTransport;
+    }
+    
+    private static ExecutorService createDefaultExecutor(final int id) {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "NioTransport-" + id + "-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+    
+    /**
+     * Stops the reactor threads. Any exchange still in flight fails.
+     * Connections from this transport which are idle in a pool are closed the
+     * next time the pool tries to use them.
+     */
+    public void shutdown() {
+        for (Reactor r : reactors) {
+            r.shutdown();
+        }
+        if (completionExecutor instanceof ExecutorService) {
+            ((ExecutorService)completionExecutor).shutdown();
+        }
+    }
+    
+    public void execute(Exchange exchange) throws Exception {
+        if (isSecure(exchange.getUrl())) {
+            secure().execute(exchange);
+            return;
+        }
+        
+        final ConnectionPool pool = exchange.getConnectionPool();
+        CompletableFuture<Attempt> future = follow(exchange, firstHop(exchange), HIGH_WATER, 0);
+        Attempt attempt;
+        try {
+            attempt = future.get();
+        } catch (InterruptedException e) {
+            //give up on the exchange, and the connection with it
+            future.whenComplete(new BiConsumer<Attempt,Throwable>() {
+                public void accept(Attempt a, Throwable t) {
+                    if (a != null) {
+                        a.conn.close();
+                        pool.release(a.conn, false);
+                    }
+                }
+            });
+            throw e;
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+        
+        exchange.sent();
+        deliver(exchange, attempt);
+    }
+    
+    public CompletableFuture<Void> executeAsync(final Exchange exchange) {
+        if (isSecure(exchange.getUrl())) {
+            return CompletableFuture.runAsync(new Runnable() {
+                public void run() {
+                    try {
+                        secure().execute(exchange);
+                    } catch (Exception e) {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, completionExecutor);
+        }
+        
+        final ConnectionPool pool = exchange.getConnectionPool();
+        Hop hop;
+        try {
+            hop = firstHop(exchange);
+        } catch (Exception e) {
+            CompletableFuture<Void> failed = new CompletableFuture<Void>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        
+        //the whole body is buffered before the future completes
+        return follow(exchange, hop, 0, 0).thenCompose(new Function<Attempt,CompletionStage<Attempt>>() {
+            public CompletionStage<Attempt> apply(final Attempt a) {
+                return a.handler.pipe.done.handle(new BiFunction<Void,Throwable,Attempt>() {
+                    public Attempt apply(Void ignored, Throwable t) {
+                        if (t != null) {
+                            pool.release(a.conn, false);
+                            throw t instanceof CompletionException ?
+                                    (CompletionException)t : new CompletionException(t);
+                        }
+                        return a;
+                    }
+                });
+            }
+        }).thenAcceptAsync(new Consumer<Attempt>() {
+            public void accept(Attempt a) {
+                exchange.sent();
+                deliver(exchange, a);
+            }
+        }, completionExecutor);
+    }
+    
+    private Transport secure() throws IOException {
+        if (secureTransport == null) {
+            throw new IOException("https is not supported by this transport");
+        }
+        return secureTransport;
+    }
+    
+    private static boolean isSecure(URL url) {
+        return "https".equalsIgnoreCase(url.getProtocol());
+    }
+    
+    private static Exception unwrap(ExecutionException e) {
+        Throwable t = e.getCause();
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        if (t instanceof Exception) return (Exception)t;
+        if (t instanceof Error) throw (Error)t;
+        return e;
+    }
+    
+    private Hop firstHop(Exchange exchange) throws Exception {
+        Request req = exchange.getRequest();
+        if (exchange.getContentLength() >= 0 && exchange.canTransferBody()) {
+            //a file backed body of known length goes straight from the file
+            //to the socket
+            return new Hop(exchange.getUrl(), req.getMethod(), null, exchange.getRequestBody(), exchange.getContentLength());
+        }
+        return new Hop(exchange.getUrl(), req.getMethod(), exchange.getBody(), null, exchange.getContentLength());
+    }
+    
+    /**
+     * Hands the response, whose head has arrived, to the exchange. The
+     * connection is released when the body is closed.
+     */
+    private void deliver(Exchange exchange, final Attempt a) {
+        LeasedInputStream body = new LeasedInputStream(a.handler.pipe, exchange.getConnectionPool(), a.conn) {
+            @Override
+            protected void discard() {
+                a.conn.close();
+            }
+        };
+        if (!a.head.isKeepAlive()) {
+            body.setReusable(false);
+        }
+        exchange.setResponse(a.head.getStatus(), a.head.getReason(), a.head.getHeaders(), body);
+    }
+    
+    /**
+     * Sends the hop, following any redirect in the response.
+     */
+    private CompletableFuture<Attempt> follow(final Exchange exchange, final Hop hop,
+            final long highWater, final int redirects) {
+        return attempt(exchange, hop, highWater, 0).thenCompose(new Function<Attempt,CompletionStage<Attempt>>() {
+            public CompletionStage<Attempt> apply(final Attempt a) {
+                Hop next = redirects < MAX_REDIRECTS && exchange.getRequest().getFollowRedirects() ?
+                    redirect(hop, a.head) : null;
+                if (next == null) {
+                    return CompletableFuture.completedFuture(a);
+                }
+                
+                //throw away the body of the redirect, then give the connection back
+                final ConnectionPool pool = exchange.getConnectionPool();
+                a.handler.pipe.discard();
+                a.handler.pipe.done.whenComplete(new BiConsumer<Void,Throwable>() {
+                    public void accept(Void ignored, Throwable t) {
+                        pool.release(a.conn, t == null);
+                    }
+                });
+                return follow(exchange, next, highWater, redirects + 1);
+            }
+        });
+    }
+    
+    /**
+     * @return the hop to follow the given response with, or null if it is not
+     *         a redirect which can be followed
+     */
+    private static Hop redirect(Hop hop, ResponseHeadParser head) {
+        int status = head.getStatus();
+        if (status != 301 && status != 302 && status != 303 && status != 307 && status != 308) {
+            return null;
+        }
+        String location = head.getHeader("Location");
+        if (location == null) return null;
+        URL url;
+        try {
+            url = new URL(hop.url, location);
+        } catch (IOException e) {
+            return null;
+        }
+        //like HttpURLConnection, never switch protocols
+        if (!url.getProtocol().equalsIgnoreCase(hop.url.getProtocol())) {
+            return null;
+        }
+        if (status == 307 || status == 308) {
+            //the method and body must be repeated, which is not possible
+            //once the body has been sent
+            return hop.hadBody ? null : new Hop(url, hop.method, null, null, -1);
+        }
+        Method method = hop.method == Method.HEAD ? Method.HEAD : Method.GET;
+        return new Hop(url, method, null, null, -1);
+    }
+    
+    /**
+     * Leases a connection and sends the hop over it. The returned future
+     * completes once the head of the response has arrived.
+     */
+    private CompletableFuture<Attempt> attempt(final Exchange exchange, final Hop hop,
+            final long highWater, final int retries) {
+        final CompletableFuture<Attempt> result = new CompletableFuture<Attempt>();
+        final ConnectionPool pool = exchange.getConnectionPool();
+        final String host = hop.url.getHost();
+        final int port = hop.url.getPort() == -1 ? hop.url.getDefaultPort() : hop.url.getPort();
+        ConnectionPool.Factory factory = new ConnectionPool.Factory() {
+            public ConnectionPool.Connection create(String route) {
+                Reactor r = reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE) % reactors.length];
+                return new NioConnection(route, r, host, port);
+            }
+        };
+        
+        //cancelling the lease gives up waiting for a connection
+        final CompletableFuture<ConnectionPool.Connection> lease = pool.leaseAsync(ConnectionPool.route(hop.url), factory);
+        exchange.setCanceller(new Runnable() {
+            public void run() {
+                lease.cancel(false);
+            }
+        });
+        lease.whenComplete(new BiConsumer<ConnectionPool.Connection,Throwable>() {
+            public void accept(final ConnectionPool.Connection c, Throwable t) {
+                if (t != null) {
+                    result.completeExceptionally(t);
+                    return;
+                }
+                //resolving the host may block, so is done off the reactor
+                completionExecutor.execute(new Runnable() {
+                    public void run() {
+                        send(exchange, hop, (NioConnection)c, highWater, retries, result);
+                    }
+                });
+            }
+        });
+        return result;
+    }
+    
+    private void send(final Exchange exchange, final Hop hop, final NioConnection conn,
+            final long highWater, final int retries, final CompletableFuture<Attempt> result) {
+        final ConnectionPool pool = exchange.getConnectionPool();
+        final ExchangeHandler handler;
+        try {
+            if (conn.address == null) {
+                InetSocketAddress address = new InetSocketAddress(conn.host, conn.port);
+                if (address.isUnresolved()) {
+                    throw new UnknownHostException(conn.host);
+                }
+                conn.address = address;
+            }
+            handler = new ExchangeHandler(conn, requestHead(exchange.getRequest(), hop),
+                    hop.body, completionExecutor, hop.transfer, exchange, hop.contentLength,
+                    hop.body != null && hop.contentLength < 0,
+                    hop.method == Method.HEAD, highWater);
+        } catch (Throwable t) {
+            hop.closeBody();
+            pool.release(conn, false);
+            result.completeExceptionally(t);
+            return;
+        }
+        
+        handler.head.whenComplete(new BiConsumer<ResponseHeadParser,Throwable>() {
+            public void accept(ResponseHeadParser head, Throwable t) {
+                if (t == null) {
+                    storeCookies(hop.url, head);
+                    result.complete(new Attempt(conn, handler, head));
+                    return;
+                }
+                pool.release(conn, false);
+                if (conn.isReused() && !handler.received && !hop.hadBody && retries < MAX_RETRIES
+                        && !(t instanceof SocketTimeoutException) && !exchange.isExpired()) {
+                    //the server closed the kept alive connection before it saw
+                    //the request. It is safe to try again on another one
+                    attempt(exchange, hop, highWater, retries + 1).whenComplete(new BiConsumer<Attempt,Throwable>() {
+                        public void accept(Attempt a, Throwable t) {
+                            if (t == null) {
+                                result.complete(a);
+                            } else {
+                                result.completeExceptionally(t);
+                            }
+                        }
+                    });
+                } else {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+        conn.reactor.execute(new Runnable() {
+            public void run() {
+                conn.start(handler);
+            }
+        });
+        exchange.setCanceller(new Runnable() {
+            public void run() {
+                conn.reactor.execute(new Runnable() {
+                    public void run() {
+                        handler.abort(new SocketTimeoutException("The deadline passed before " + hop.url + " was done"));
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Serializes the request line and headers.
+     */
+    private static byte[] requestHead(Request req, Hop hop) throws IOException {
+        URL url = hop.url;
+        StringBuilder buf = new StringBuilder(256);
+        String file = url.getFile();
+        buf.append(hop.method.name()).append(' ')
+           .append(file.length() == 0 ? "/" : file)
+           .append(" HTTP/1.1\r\n");
+        buf.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            buf.append(':').append(url.getPort());
+        }
+        buf.append("\r\n");
+        
+        Map<String,List<String>> headers = new LinkedHashMap<String,List<String>>();
+        for (Header h : req.getHeaders()) {
+            String name = h.getName();
+            if (name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Content-Length") ||
+                    name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Connection")) {
+                continue;
+            }
+            if (!hop.hadBody && name.equalsIgnoreCase("Content-Type")) {
+                continue;
+            }
+            List<String> values = new ArrayList<String>(1);
+            values.add(h.getValue());
+            headers.put(name, values);
+        }
+        addCookies(url, headers);
+        for (Map.Entry<String,List<String>> entry : headers.entrySet()) {
+            for (String value : entry.getValue()) {
+                buf.append(entry.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        
+        if (hop.hadBody) {
+            if (hop.contentLength >= 0) {
+                buf.append("Content-Length: ").append(hop.contentLength).append("\r\n");
+            } else {
+                buf.append("Transfer-Encoding: chunked\r\n");
+            }
+        } else if (hop.method == Method.POST || hop.method == Method.PUT) {
+            buf.append("Content-Length: 0\r\n");
+        }
+        buf.append("\r\n");
+        return buf.toString().getBytes("ISO-8859-1");
+    }
+    
+    private static void addCookies(URL url, Map<String,List<String>> headers) throws IOException {
+        CookieHandler cookies = CookieHandler.getDefault();
+        if (cookies == null) return;
+        try {
+            for (Map.Entry<String,List<String>> entry : cookies.get(url.toURI(), headers).entrySet()) {
+                if (!entry.getValue().isEmpty()) {
+                    headers.put(entry.getKey(), entry.getValue());
+                }
+            }
+        } catch (java.net.URISyntaxException e) {
+            //no cookies for a url which is not a valid uri
+        }
+    }
+    
+    private static void storeCookies(URL url, ResponseHeadParser head) {
+        CookieHandler cookies = CookieHandler.getDefault();
+        if (cookies == null) return;
+        try {
+            URI uri = url.toURI();
+            cookies.put(uri, head.getHeaders());
+        } catch (Exception e) {
+            //cookies are best effort
+        }
+    }
+    
+    /**
+     * One request of the exchange. There is more than one when redirects are
+     * followed.
+     */
+    private static final class Hop {
+        private final URL url;
+        private final Method method;
+        private final InputStream body;
+        /** a body to send with transferTo instead of reading it */
+        private final RequestBody transfer;
+        private final long contentLength;
+        private final boolean hadBody;
+        
+        private Hop(URL url, Method method, InputStream body, RequestBody transfer, long contentLength) {
+            this.url = url;
+            this.method = method;
+            this.body = body;
+            this.transfer = transfer;
+            this.contentLength = contentLength;
+            this.hadBody = body != null || transfer != null;
+        }
+        
+        private void closeBody() {
+            try {
+                if (body != null) body.close();
+                if (transfer != null) transfer.close();
+            } catch (IOException e) {
+                //ignore
+            }
+        }
+    }
+    
+    /**
+     * A connection whose response head has arrived.
+     */
+    private static final class Attempt {
+        private final NioConnection conn;
+        private final ExchangeHandler handler;
+        private final ResponseHeadParser head;
+        
+        private Attempt(NioConnection conn, ExchangeHandler handler, ResponseHeadParser head) {
+            this.conn = conn;
+            this.handler = handler;
+            this.head = head;
+        }
+    }
+}
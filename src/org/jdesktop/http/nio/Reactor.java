@@ -0,0 +1,207 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http.nio;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single selector thread. Every channel registered with a Reactor is only
+ * ever touched from its thread; other threads hand work to it through
+ * {@link #execute}.
+ */
+final class Reactor implements Runnable {
+    private static final Logger LOG = Logger.getLogger(Reactor.class.getName());
+    
+    /**
+     * Receives readiness events for a registered channel.
+     */
+    interface Handler {
+        void ready(SelectionKey key) throws IOException;
+        void failed(Throwable t);
+    }
+    
+    /**
+     * A task to run on the reactor thread at a given time.
+     */
+    static final class Timer implements Comparable<Timer> {
+        private final long due;
+        private final Runnable task;
+        private boolean cancelled = false;
+        
+        private Timer(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+        
+        /**
+         * Stops the task from running. Must be called on the reactor thread.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+        
+        public int compareTo(Timer other) {
+            long diff = due - other.due;
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+    }
+    
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    /** only touched on the reactor thread */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    
+    Reactor(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Runs the given task on the reactor thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+    
+    boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+    
+    /**
+     * Registers the channel. Must be called on the reactor thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+    
+    /**
+     * Runs the given task on the reactor thread after the given delay. Must be
+     * called on the reactor thread.
+     */
+    Timer schedule(Runnable task, long delayMillis) {
+        Timer timer = new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), task);
+        timers.add(timer);
+        return timer;
+    }
+    
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+    
+    public void run() {
+        while (running) {
+            try {
+                selector.select(untilNextTimer());
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Selector failed", e);
+                continue;
+            }
+            
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, "Reactor task failed", t);
+                }
+            }
+            
+            runTimers();
+            
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Handler handler = (Handler)key.attachment();
+                if (!key.isValid() || handler == null) continue;
+                try {
+                    handler.ready(key);
+                } catch (Throwable t) {
+                    handler.failed(t);
+                }
+            }
+        }
+        
+        //fail whatever is still registered
+        for (SelectionKey key : selector.keys()) {
+            Handler handler = (Handler)key.attachment();
+            if (handler != null) {
+                handler.failed(new IOException("Transport shut down"));
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            //ignore
+        }
+    }
+    
+    /**
+     * @return how long to select for, in milliseconds, before the next timer
+     *         is due
+     */
+    private long untilNextTimer() {
+        Timer next;
+        while ((next = timers.peek()) != null && next.cancelled) {
+            timers.poll();
+        }
+        if (next == null) {
+            return 1000;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(next.due - System.nanoTime() + 999999);
+        //0 would mean forever
+        return Math.max(1, Math.min(1000, millis));
+    }
+    
+    private void runTimers() {
+        long now = System.nanoTime();
+        Timer next;
+        while ((next = timers.peek()) != null && next.due - now <= 0) {
+            timers.poll();
+            if (next.cancelled) continue;
+            try {
+                next.task.run();
+            } catch (Throwable t) {
+                LOG.log(Level.WARNING, "Reactor timer failed", t);
+            }
+        }
+    }
+}
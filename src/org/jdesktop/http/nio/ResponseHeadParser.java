@@ -0,0 +1,317 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>An incremental parser for the status line and headers of an HTTP/1.x
+ * response. Bytes are fed in as they arrive from the channel, and
+ * {@link #parse} returns true once the blank line ending the head has been
+ * seen.</p>
+ *
+ * <p>The parser works directly on bytes and keeps a single line buffer, which
+ * is reused for every line and every response on the connection. The status
+ * code and Content-Length are parsed without creating Strings, and the names
+ * of common headers resolve to shared constants rather than new Strings.</p>
+ */
+final class ResponseHeadParser {
+    /** The largest response head accepted, to guard against runaway servers. */
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    
+    private static final String[] KNOWN_HEADERS = {
+        "Accept-Ranges", "Age", "Cache-Control", "Connection", "Content-Encoding",
+        "Content-Length", "Content-Range", "Content-Type", "Date", "ETag", "Expires",
+        "Keep-Alive", "Last-Modified", "Location", "Retry-After", "Server",
+        "Set-Cookie", "Transfer-Encoding", "Vary"
+    };
+    private static final byte[][] KNOWN_HEADER_BYTES = new byte[KNOWN_HEADERS.length][];
+    static {
+        for (int i=0; i<KNOWN_HEADERS.length; i++) {
+            KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].toLowerCase().getBytes();
+        }
+    }
+    
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private int headSize = 0;
+    private boolean statusLineDone = false;
+    
+    private int minorVersion;
+    private int status;
+    private String reason;
+    private Map<String,List<String>> headers;
+    private String lastName;
+    
+    private long contentLength;
+    private boolean chunked;
+    private boolean connectionClose;
+    private boolean connectionKeepAlive;
+    private String keepAlive;
+    
+    ResponseHeadParser() {
+        reset();
+    }
+    
+    /**
+     * Prepares the parser for the next response.
+     */
+    void reset() {
+        lineLength = 0;
+        headSize = 0;
+        statusLineDone = false;
+        minorVersion = 1;
+        status = -1;
+        reason = null;
+        headers = new LinkedHashMap<String,List<String>>();
+        lastName = null;
+        contentLength = -1;
+        chunked = false;
+        connectionClose = false;
+        connectionKeepAlive = false;
+        keepAlive = null;
+    }
+    
+    /**
+     * Consumes bytes from the buffer until the head is complete, or the buffer
+     * is exhausted. Bytes following the head are left in the buffer.
+     *
+     * @return true if the head is complete
+     */
+    boolean parse(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (++headSize > MAX_HEAD_SIZE) {
+                throw new IOException("Response head exceeds " + MAX_HEAD_SIZE + " bytes");
+            }
+            if (b != '\n') {
+                if (lineLength == line.length) {
+                    byte[] tmp = new byte[line.length * 2];
+                    System.arraycopy(line, 0, tmp, 0, lineLength);
+                    line = tmp;
+                }
+                line[lineLength++] = b;
+                continue;
+            }
+            
+            int length = lineLength;
+            if (length > 0 && line[length - 1] == '\r') length--;
+            lineLength = 0;
+            if (!statusLineDone) {
+                //tolerate blank lines before the status line
+                if (length > 0) {
+                    parseStatusLine(length);
+                    statusLineDone = true;
+                }
+            } else if (length == 0) {
+                return true;
+            } else {
+                parseHeaderLine(length);
+            }
+        }
+        return false;
+    }
+    
+    private void parseStatusLine(int length) throws IOException {
+        // HTTP/1.x SSS reason
+        if (length < 12 || line[0] != 'H' || line[1] != 'T' || line[2] != 'T' ||
+                line[3] != 'P' || line[4] != '/' || line[5] != '1' || line[6] != '.' ||
+                line[8] != ' ') {
+            throw new IOException("Malformed status line: " + new String(line, 0, length, "ISO-8859-1"));
+        }
+        minorVersion = line[7] - '0';
+        int code = 0;
+        for (int i=9; i<12; i++) {
+            int d = line[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new IOException("Malformed status code: " + new String(line, 0, length, "ISO-8859-1"));
+            }
+            code = code * 10 + d;
+        }
+        status = code;
+        if (length > 13) {
+            reason = length == 15 && line[13] == 'O' && line[14] == 'K' ?
+                "OK" : new String(line, 13, length - 13, "ISO-8859-1");
+        } else {
+            reason = "";
+        }
+    }
+    
+    private void parseHeaderLine(int length) throws IOException {
+        //obsolete line folding: a continuation of the previous header value
+        if ((line[0] == ' ' || line[0] == '\t') && lastName != null) {
+            List<String> values = headers.get(lastName);
+            int last = values.size() - 1;
+            values.set(last, values.get(last) + " " + trimmed(0, length));
+            return;
+        }
+        
+        int colon = -1;
+        for (int i=0; i<length; i++) {
+            if (line[i] == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon <= 0) {
+            throw new IOException("Malformed header: " + new String(line, 0, length, "ISO-8859-1"));
+        }
+        
+        String name = knownName(colon);
+        if (name == null) {
+            name = new String(line, 0, colon, "ISO-8859-1");
+        }
+        lastName = name;
+        
+        //the names of known headers are shared constants, so comparing
+        //identity is enough here
+        if (name == "Content-Length") {
+            contentLength = parseLong(colon + 1, length);
+        }
+        String value = trimmed(colon + 1, length);
+        if (name == "Transfer-Encoding") {
+            chunked = value.toLowerCase().contains("chunked");
+        } else if (name == "Connection") {
+            String v = value.toLowerCase();
+            connectionClose |= v.contains("close");
+            connectionKeepAlive |= v.contains("keep-alive");
+        } else if (name == "Keep-Alive") {
+            keepAlive = value;
+        }
+        
+        List<String> values = headers.get(name);
+        if (values == null) {
+            values = new ArrayList<String>(1);
+            headers.put(name, values);
+        }
+        values.add(value);
+    }
+    
+    /**
+     * @return the shared constant for the header name in line[0..length), or
+     *         null if it is not one of the common headers
+     */
+    private String knownName(int length) {
+        outer:
+        for (int i=0; i<KNOWN_HEADER_BYTES.length; i++) {
+            byte[] known = KNOWN_HEADER_BYTES[i];
+            if (known.length != length) continue;
+            for (int j=0; j<length; j++) {
+                int b = line[j];
+                if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+                if (b != known[j]) continue outer;
+            }
+            return KNOWN_HEADERS[i];
+        }
+        return null;
+    }
+    
+    private long parseLong(int from, int to) throws IOException {
+        long value = 0;
+        boolean digits = false;
+        for (int i=from; i<to; i++) {
+            byte b = line[i];
+            if (b == ' ' || b == '\t') {
+                if (digits) break;
+                continue;
+            }
+            if (b < '0' || b > '9') {
+                throw new IOException("Malformed Content-Length");
+            }
+            value = value * 10 + (b - '0');
+            digits = true;
+        }
+        return digits ? value : -1;
+    }
+    
+    private String trimmed(int from, int to) throws IOException {
+        while (from < to && (line[from] == ' ' || line[from] == '\t')) from++;
+        while (to > from && (line[to - 1] == ' ' || line[to - 1] == '\t')) to--;
+        return new String(line, from, to - from, "ISO-8859-1");
+    }
+    
+    int getStatus() {
+        return status;
+    }
+    
+    String getReason() {
+        return reason;
+    }
+    
+    Map<String,List<String>> getHeaders() {
+        return headers;
+    }
+    
+    /**
+     * @return the declared Content-Length, or -1
+     */
+    long getContentLength() {
+        return contentLength;
+    }
+    
+    boolean isChunked() {
+        return chunked;
+    }
+    
+    /**
+     * @return the timeout from a Keep-Alive header such as "timeout=5,
+     *         max=100", in milliseconds, or -1 if not specified
+     */
+    long getKeepAliveTimeout() {
+        if (keepAlive == null) return -1;
+        for (String part : keepAlive.split(",")) {
+            part = part.trim();
+            if (part.regionMatches(true, 0, "timeout=", 0, 8)) {
+                try {
+                    return Long.parseLong(part.substring(8).trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    String getHeader(String name) {
+        for (Map.Entry<String,List<String>> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                List<String> values = entry.getValue();
+                return values.get(values.size() - 1);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @return whether the server intends to keep the connection open after
+     *         this response
+     */
+    boolean isKeepAlive() {
+        if (connectionClose) return false;
+        return minorVersion >= 1 || connectionKeepAlive;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests how the outcomes counted over the window of a {@link CircuitBreaker}
+ * move its circuits.
+ */
+public class CircuitBreakerTest {
+    private static final String ROUTE = "http://example.com:80";
+    
+    private CircuitBreaker breaker;
+    private Session session;
+    
+    @Before
+    public void setUp() {
+        breaker = new CircuitBreaker();
+        breaker.setMinimumCalls(4);
+        breaker.setFailureRateThreshold(0.5);
+        breaker.setSlowCallRateThreshold(0.5);
+        breaker.setSlowCallDuration(1000);
+        breaker.setOpenDuration(60 * 1000);
+        session = new Session(false);
+    }
+    
+    @Test
+    public void circuitStaysClosedBelowTheMinimumCalls() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            call(true, 10);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ROUTE));
+    }
+    
+    @Test
+    public void circuitOpensAtTheFailureRate() throws Exception {
+        call(false, 10);
+        call(true, 10);
+        call(false, 10);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ROUTE));
+        call(true, 10);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ROUTE));
+        try {
+            breaker.acquire(session, ROUTE);
+            fail("an open circuit let a request through");
+        } catch (CircuitOpenException e) {
+            assertEquals(1, breaker.getRejectedCount());
+        }
+    }
+    
+    @Test
+    public void circuitOpensAtTheSlowCallRate() throws Exception {
+        call(false, 10);
+        call(false, 5000);
+        call(false, 10);
+        call(false, 5000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ROUTE));
+    }
+    
+    @Test
+    public void abortedCallsAreNotCounted() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            CircuitBreaker.Permit permit = breaker.acquire(session, ROUTE);
+            breaker.record(session, permit, true, -1, true);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ROUTE));
+    }
+    
+    @Test
+    public void resetClosesEveryCircuit() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            call(true, 10);
+        }
+        breaker.reset();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ROUTE));
+        //the counts went with the circuit
+        call(true, 10);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ROUTE));
+    }
+    
+    private void call(boolean failed, long millis) throws Exception {
+        CircuitBreaker.Permit permit = breaker.acquire(session, ROUTE);
+        breaker.record(session, permit, failed, millis, false);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the index of {@link DiskCache}: lookups, replacement, eviction and
+ * recovery from a damaged index or segment.
+ */
+public class DiskCacheTest {
+    private File dir;
+    private DiskCache cache;
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("diskcache").toFile();
+        cache = new DiskCache(dir, 1024 * 1024);
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        cache.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+    
+    @Test
+    public void storedDataIsReadBack() throws Exception {
+        cache.put("a", bytes("alpha"));
+        cache.put("b", bytes("beta"));
+        assertArrayEquals(bytes("alpha"), cache.get("a"));
+        assertArrayEquals(bytes("beta"), cache.get("b"));
+        assertNull(cache.get("c"));
+        
+        DiskCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.getEntryCount());
+        assertEquals(2, stats.getHitCount());
+        assertEquals(1, stats.getMissCount());
+    }
+    
+    @Test
+    public void putReplacesTheEntry() throws Exception {
+        cache.put("a", bytes("alpha"));
+        long size = cache.getStats().getSize();
+        cache.put("a", bytes("alpha, again"));
+        assertArrayEquals(bytes("alpha, again"), cache.get("a"));
+        assertEquals(1, cache.getStats().getEntryCount());
+        assertEquals(size + 7, cache.getStats().getSize());
+    }
+    
+    @Test
+    public void removedEntriesAreGone() throws Exception {
+        cache.put("a", bytes("alpha"));
+        cache.put("b", bytes("beta"));
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertArrayEquals(bytes("beta"), cache.get("b"));
+        assertEquals(1, cache.getStats().getEntryCount());
+        
+        cache.clear();
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.getStats().getEntryCount());
+        assertEquals(0, cache.getStats().getSize());
+    }
+    
+    @Test
+    public void entriesSurviveReopening() throws Exception {
+        cache.put("a", bytes("alpha"));
+        cache.close();
+        cache = new DiskCache(dir, 1024 * 1024);
+        assertArrayEquals(bytes("alpha"), cache.get("a"));
+        assertEquals(1, cache.getStats().getEntryCount());
+    }
+    
+    @Test
+    public void cachesOnTheSameDirectoryShareEntries() throws Exception {
+        DiskCache other = new DiskCache(dir, 1024 * 1024);
+        try {
+            cache.put("a", bytes("alpha"));
+            assertArrayEquals(bytes("alpha"), other.get("a"));
+            other.remove("a");
+            assertNull(cache.get("a"));
+        } finally {
+            other.close();
+        }
+    }
+    
+    @Test
+    public void damagedIndexIsRebuiltFromTheSegments() throws Exception {
+        cache.put("a", bytes("alpha"));
+        cache.put("b", bytes("beta"));
+        cache.close();
+        RandomAccessFile index = new RandomAccessFile(new File(dir, "index"), "rw");
+        try {
+            index.writeInt(0xdeadbeef);
+        } finally {
+            index.close();
+        }
+        
+        cache = new DiskCache(dir, 1024 * 1024);
+        assertArrayEquals(bytes("alpha"), cache.get("a"));
+        assertArrayEquals(bytes("beta"), cache.get("b"));
+        assertEquals(2, cache.getStats().getEntryCount());
+    }
+    
+    @Test
+    public void damagedEntryIsIgnored() throws Exception {
+        cache.put("a", bytes("alpha"));
+        File segment = null;
+        for (File f : dir.listFiles()) {
+            if (f.getName().startsWith("seg-")) {
+                segment = f;
+            }
+        }
+        assertNotNull(segment);
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            //flip a byte of the data, which the checksum covers
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.getStats().getCorruptCount());
+    }
+    
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+        cache.close();
+        cache = new DiskCache(dir, 64 * 1024);
+        byte[] data = new byte[1000];
+        cache.put("first", data);
+        for (int i = 0; i < 100; i++) {
+            cache.put("key" + i, data);
+            //keep the first entry in use
+            assertNotNull(cache.get("first"));
+        }
+        DiskCache.Stats stats = cache.getStats();
+        assertTrue(stats.getSize() <= 64 * 1024);
+        assertTrue(stats.getEvictionCount() > 0);
+        assertNull(cache.get("key0"));
+        assertNotNull(cache.get("key99"));
+        assertNotNull(cache.get("first"));
+    }
+    
+    @Test
+    public void fullIndexMakesRoomForNewEntries() throws Exception {
+        //many more entries than the smallest index has slots
+        for (int i = 0; i < 3000; i++) {
+            cache.put("key" + i, bytes("value" + i));
+        }
+        DiskCache.Stats stats = cache.getStats();
+        assertTrue(stats.getEntryCount() < 3000);
+        assertTrue(stats.getEvictionCount() > 0);
+        assertArrayEquals(bytes("value2999"), cache.get("key2999"));
+    }
+    
+    @Test
+    public void dataLargerThanTheCacheIsNotStored() throws Exception {
+        cache.put("a", bytes("alpha"));
+        cache.put("a", new byte[2 * 1024 * 1024]);
+        assertNull(cache.get("a"));
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void closedCacheCannotBeUsed() throws Exception {
+        cache.close();
+        cache.get("a");
+    }
+    
+    private static byte[] bytes(String s) throws IOException {
+        return s.getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the freshness and revalidation rules of {@link HttpCache}.
+ */
+public class HttpCacheTest {
+    private static final String URL = "http://example.com/a";
+    
+    private HttpCache cache;
+    private URL url;
+    
+    @Before
+    public void setUp() throws Exception {
+        cache = new HttpCache();
+        url = new URL(URL);
+    }
+    
+    @Test
+    public void freshResponseIsServedFromTheCache() {
+        store(get(), response("hello", "Cache-Control", "max-age=60"));
+        
+        HttpCache.Lookup lookup = cache.lookup(get(), url);
+        assertNotNull(lookup);
+        assertNotNull(lookup.fresh);
+        assertNull(lookup.conditional);
+        assertEquals("hello", lookup.fresh.getBody());
+        assertEquals("0", lookup.fresh.getHeader("Age").getValue());
+        assertEquals(1, cache.getStats().getHitCount());
+        assertEquals(1, cache.getStats().getStoreCount());
+    }
+    
+    @Test
+    public void staleResponseIsRevalidatedWithItsValidators() {
+        store(get(), response("hello", "Cache-Control", "max-age=0", "ETag", "\"v1\"",
+                "Last-Modified", "Mon, 01 Jan 2024 00:00:00 GMT"));
+        
+        HttpCache.Lookup lookup = cache.lookup(get(), url);
+        assertNotNull(lookup);
+        assertNull(lookup.fresh);
+        assertNotNull(lookup.stale);
+        assertEquals("\"v1\"", lookup.conditional.getHeader("If-None-Match").getValue());
+        assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", lookup.conditional.getHeader("If-Modified-Since").getValue());
+    }
+    
+    @Test
+    public void notModifiedIsTurnedIntoTheStoredResponse() {
+        store(get(), response("hello", "Cache-Control", "max-age=0", "ETag", "\"v1\""));
+        HttpCache.Lookup lookup = cache.lookup(get(), url);
+        
+        Response notModified = new Response(StatusCode.NOT_MODIFIED, "Not Modified", null, null,
+                headers("Cache-Control", "max-age=60", "ETag", "\"v1\""), URL);
+        Response r = cache.store(lookup.conditional, url, lookup, notModified, System.currentTimeMillis());
+        assertEquals(StatusCode.OK, r.getStatusCode());
+        assertEquals("hello", r.getBody());
+        assertEquals(1, cache.getStats().getRevalidationCount());
+        
+        //the headers of the 304 make the stored response fresh again
+        HttpCache.Lookup again = cache.lookup(get(), url);
+        assertNotNull(again.fresh);
+        assertEquals("hello", again.fresh.getBody());
+    }
+    
+    @Test
+    public void changedResponseReplacesTheStoredOne() {
+        store(get(), response("hello", "Cache-Control", "max-age=0", "ETag", "\"v1\""));
+        HttpCache.Lookup lookup = cache.lookup(get(), url);
+        
+        cache.store(lookup.conditional, url, lookup, response("bye", "Cache-Control", "max-age=60", "ETag", "\"v2\""),
+                System.currentTimeMillis());
+        HttpCache.Lookup again = cache.lookup(get(), url);
+        assertEquals("bye", again.fresh.getBody());
+    }
+    
+    @Test
+    public void staleResponseWithoutValidatorsIsNotStored() {
+        store(get(), response("hello", "Cache-Control", "max-age=0"));
+        assertNull(cache.lookup(get(), url));
+        assertEquals(0, cache.getStats().getEntryCount());
+    }
+    
+    @Test
+    public void noStoreIsHonoured() {
+        store(get(), response("hello", "Cache-Control", "no-store, max-age=60"));
+        assertNull(cache.lookup(get(), url));
+        
+        Request req = get();
+        req.setHeader("Cache-Control", "no-store");
+        store(req, response("hello", "Cache-Control", "max-age=60"));
+        assertNull(cache.lookup(get(), url));
+    }
+    
+    @Test
+    public void requestNoCacheForcesRevalidation() {
+        store(get(), response("hello", "Cache-Control", "max-age=60", "ETag", "\"v1\""));
+        Request req = get();
+        req.setHeader("Cache-Control", "no-cache");
+        
+        HttpCache.Lookup lookup = cache.lookup(req, url);
+        assertNull(lookup.fresh);
+        assertEquals("\"v1\"", lookup.conditional.getHeader("If-None-Match").getValue());
+    }
+    
+    @Test
+    public void requestMaxAgeShortensTheLifetime() {
+        Response r = response("hello", "Cache-Control", "max-age=60", "ETag", "\"v1\"", "Age", "30");
+        store(get(), r);
+        Request req = get();
+        req.setHeader("Cache-Control", "max-age=10");
+        
+        assertNull(cache.lookup(req, url).fresh);
+        assertNotNull(cache.lookup(get(), url).fresh);
+    }
+    
+    @Test
+    public void ageBeyondTheLifetimeIsStale() {
+        store(get(), response("hello", "Cache-Control", "max-age=60", "ETag", "\"v1\"", "Age", "61"));
+        assertNull(cache.lookup(get(), url).fresh);
+    }
+    
+    @Test
+    public void expiresIsMeasuredFromDate() {
+        store(get(), response("hello", "Date", "Mon, 01 Jan 2024 00:00:00 GMT",
+                "Expires", "Mon, 01 Jan 2024 00:01:00 GMT", "ETag", "\"v1\""));
+        //the Date is long past, so the response is older than its one minute lifetime
+        assertNull(cache.lookup(get(), url).fresh);
+    }
+    
+    @Test
+    public void lastModifiedGivesAHeuristicLifetime() {
+        long now = System.currentTimeMillis();
+        store(get(), response("hello", "Last-Modified", httpDate(now - 10 * 24 * 60 * 60 * 1000L)));
+        //a tenth of the ten days since the last modification
+        assertNotNull(cache.lookup(get(), url).fresh);
+    }
+    
+    @Test
+    public void varyMustMatch() {
+        Request en = get();
+        en.setHeader("Accept-Language", "en");
+        store(en, response("hello", "Cache-Control", "max-age=60", "Vary", "Accept-Language"));
+        
+        Request fr = get();
+        fr.setHeader("Accept-Language", "fr");
+        assertNull(cache.lookup(fr, url));
+        
+        Request en2 = get();
+        en2.setHeader("Accept-Language", "en");
+        assertEquals("hello", cache.lookup(en2, url).fresh.getBody());
+    }
+    
+    @Test
+    public void unsafeMethodInvalidates() {
+        store(get(), response("hello", "Cache-Control", "max-age=60"));
+        Request post = new Request(Method.POST, URL);
+        cache.store(post, url, null, response("done"), System.currentTimeMillis());
+        assertNull(cache.lookup(get(), url));
+    }
+    
+    @Test
+    public void onlyIfCachedMissIsAGatewayTimeout() {
+        Request req = get();
+        req.setHeader("Cache-Control", "only-if-cached");
+        HttpCache.Lookup lookup = cache.lookup(req, url);
+        assertEquals(StatusCode.GATEWAY_TIMEOUT, lookup.fresh.getStatusCode());
+    }
+    
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() throws Exception {
+        cache.setMaxSize(4096);
+        byte[] big = new byte[1500];
+        for (int i = 0; i < 5; i++) {
+            URL u = new URL(URL + i);
+            Request req = new Request(Method.GET, u.toString());
+            Response r = new Response(StatusCode.OK, "OK", big, null, headers("Cache-Control", "max-age=60"), u.toString());
+            cache.store(req, u, null, r, System.currentTimeMillis());
+        }
+        assertTrue(cache.getSize() <= 4096);
+        assertTrue(cache.getStats().getEvictionCount() > 0);
+        assertNull(cache.lookup(get(), new URL(URL + 0)));
+        assertNotNull(cache.lookup(new Request(Method.GET, URL + 4), new URL(URL + 4)));
+    }
+    
+    private Request get() {
+        return new Request(Method.GET, URL);
+    }
+    
+    private void store(Request req, Response response) {
+        cache.store(req, url, null, response, System.currentTimeMillis());
+    }
+    
+    private static Response response(String body, String... headers) {
+        return new Response(StatusCode.OK, "OK", body.getBytes(), null, headers(headers), URL);
+    }
+    
+    private static Set<Header> headers(String... namesAndValues) {
+        Set<Header> headers = new HashSet<Header>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            headers.add(new Header(namesAndValues[i], namesAndValues[i + 1]));
+        }
+        return headers;
+    }
+    
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the bucket arithmetic of {@link SlidingWindow}, which counts the
+ * calls of a {@link CircuitBreaker} and the requests of a {@link TrafficBudget}.
+ */
+public class SlidingWindowTest {
+    
+    @Test
+    public void eventsAreTotalledPerSeries() {
+        SlidingWindow w = new SlidingWindow(2, 10, 0);
+        w.add(0, 3, 0);
+        w.add(1, 1, 0);
+        w.add(0, 2, 5);
+        assertEquals(5, w.total(0, 5));
+        assertEquals(1, w.total(1, 5));
+    }
+    
+    @Test
+    public void oldSecondsFallOutOfTheWindow() {
+        SlidingWindow w = new SlidingWindow(1, 10, 0);
+        for (long second = 0; second < 10; second++) {
+            w.add(0, 1, second);
+        }
+        assertEquals(10, w.total(0, 9));
+        assertEquals(9, w.total(0, 10));
+        assertEquals(5, w.total(0, 14));
+        assertEquals(1, w.total(0, 18));
+        assertEquals(0, w.total(0, 19));
+    }
+    
+    @Test
+    public void gapLongerThanTheWindowEmptiesIt() {
+        SlidingWindow w = new SlidingWindow(1, 10, 0);
+        w.add(0, 7, 3);
+        assertEquals(0, w.total(0, 1000));
+        w.add(0, 1, 1000);
+        assertEquals(1, w.total(0, 1000));
+    }
+    
+    @Test
+    public void negativeSecondsUseTheRightBuckets() {
+        SlidingWindow w = new SlidingWindow(1, 10, -25);
+        for (long second = -25; second < -15; second++) {
+            w.add(0, 1, second);
+        }
+        assertEquals(10, w.total(0, -16));
+        assertEquals(8, w.total(0, -14));
+        //across zero, only the seconds from -9 on remain
+        w.add(0, 4, -1);
+        assertEquals(4, w.total(0, 0));
+        assertEquals(0, w.total(0, 9));
+    }
+    
+    @Test
+    public void earlierSecondCountsInTheNewestBucket() {
+        SlidingWindow w = new SlidingWindow(1, 10, 5);
+        w.add(0, 1, 5);
+        w.add(0, 1, 4);
+        assertEquals(2, w.total(0, 5));
+        assertEquals(0, w.total(0, 15));
+    }
+    
+    @Test
+    public void clearForgetsEverything() {
+        SlidingWindow w = new SlidingWindow(2, 10, 0);
+        w.add(0, 3, 0);
+        w.add(1, 3, 1);
+        w.clear();
+        assertEquals(0, w.total(0, 1));
+        assertEquals(0, w.total(1, 1));
+        w.add(1, 1, 2);
+        assertEquals(1, w.total(1, 2));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the window arithmetic of {@link TrafficBudget}.
+ */
+public class TrafficBudgetTest {
+    
+    @Test
+    public void extraRequestsAreHeldToTheirShare() {
+        TrafficBudget budget = new TrafficBudget(100);
+        for (int i = 0; i < 10; i++) {
+            budget.deposit(100);
+        }
+        //a fifth of ten requests
+        assertTrue(budget.withdraw(0.2, 0, 100));
+        assertTrue(budget.withdraw(0.2, 0, 100));
+        assertFalse(budget.withdraw(0.2, 0, 100));
+    }
+    
+    @Test
+    public void minimumAllowsExtraRequestsWithoutTraffic() {
+        TrafficBudget budget = new TrafficBudget(100);
+        //one a second over the ten second window
+        for (int i = 0; i < TrafficBudget.WINDOW; i++) {
+            assertTrue(budget.withdraw(0.2, 1, 100));
+        }
+        assertFalse(budget.withdraw(0.2, 1, 100));
+    }
+    
+    @Test
+    public void requestsFallOutOfTheWindow() {
+        TrafficBudget budget = new TrafficBudget(100);
+        for (int i = 0; i < 10; i++) {
+            budget.deposit(100);
+        }
+        assertTrue(budget.withdraw(0.1, 0, 100));
+        assertFalse(budget.withdraw(0.1, 0, 100));
+        
+        //the extra request made at 100 is still in the window at 109
+        budget.deposit(109);
+        assertFalse(budget.withdraw(0.1, 0, 109));
+        //at 110 the first second has gone, and with it the requests made then
+        for (int i = 0; i < 10; i++) {
+            budget.deposit(110);
+        }
+        assertTrue(budget.withdraw(0.1, 0, 110));
+    }
+    
+    @Test
+    public void negativeClockIsCountedLikeAnyOther() {
+        TrafficBudget budget = new TrafficBudget(-7);
+        for (int i = 0; i < 10; i++) {
+            budget.deposit(-7);
+        }
+        assertTrue(budget.withdraw(0.1, 0, -5));
+        assertFalse(budget.withdraw(0.1, 0, -5));
+        //both seconds have left the window, crossing zero
+        for (int i = 0; i < 10; i++) {
+            budget.deposit(6);
+        }
+        assertTrue(budget.withdraw(0.1, 0, 6));
+        assertFalse(budget.withdraw(0.1, 0, 6));
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * $Id$
+ *
+ * Copyright 2004 Sun Microsystems, Inc., 4150 Network Circle,
+ * Santa Clara, California 95054, U.S.A. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package org.jdesktop.http.async;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import org.jdesktop.http.Deadline;
+import org.jdesktop.http.async.RequestScheduler.Priority;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the ordering and the accounting of {@link RequestScheduler}. The
+ * executor only runs what it is given when the test says so.
+ */
+public class RequestSchedulerTest {
+    private ManualExecutor executor;
+    private RequestScheduler scheduler;
+    private List<String> ran;
+    
+    @Before
+    public void setUp() {
+        executor = new ManualExecutor();
+        scheduler = new RequestScheduler(2, executor);
+        ran = new ArrayList<String>();
+    }
+    
+    @Test
+    public void requestsBeyondTheLimitWait() {
+        for (int i = 0; i < 5; i++) {
+            scheduler.execute(task("r" + i, Priority.NORMAL, null, null));
+        }
+        assertEquals(2, scheduler.getRunningCount());
+        assertEquals(3, scheduler.getQueueDepth());
+        
+        executor.runNext();
+        assertEquals(2, scheduler.getRunningCount());
+        assertEquals(2, scheduler.getQueueDepth());
+        
+        executor.runAll();
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(5, ran.size());
+    }
+    
+    @Test
+    public void higherPriorityGoesFirst() {
+        scheduler.setMaxConcurrent(1);
+        scheduler.execute(task("first", Priority.NORMAL, null, null));
+        scheduler.execute(task("bulk", Priority.BULK, null, null));
+        scheduler.execute(task("normal", Priority.NORMAL, null, null));
+        scheduler.execute(task("interactive", Priority.INTERACTIVE, null, null));
+        executor.runAll();
+        assertEquals(list("first", "interactive", "normal", "bulk"), ran);
+    }
+    
+    @Test
+    public void earlierDeadlineGoesFirst() {
+        scheduler.setMaxConcurrent(1);
+        scheduler.execute(task("first", Priority.NORMAL, null, null));
+        scheduler.execute(task("none", Priority.NORMAL, null, null));
+        scheduler.execute(task("late", Priority.NORMAL, null, Deadline.after(60000)));
+        scheduler.execute(task("soon", Priority.NORMAL, null, Deadline.after(30000)));
+        executor.runAll();
+        assertEquals(list("first", "soon", "late", "none"), ran);
+    }
+    
+    @Test
+    public void hostsAreLimitedAndTakeTurns() {
+        scheduler.setMaxConcurrent(3);
+        scheduler.setMaxPerHost(2);
+        scheduler.execute(task("a1", Priority.NORMAL, "a", null));
+        scheduler.execute(task("a2", Priority.NORMAL, "a", null));
+        scheduler.execute(task("a3", Priority.NORMAL, "a", null));
+        scheduler.execute(task("b1", Priority.NORMAL, "B", null));
+        //a3 waits for a slot of its host, even though b1 came later
+        assertEquals(3, scheduler.getRunningCount());
+        assertEquals(1, scheduler.getQueueDepth());
+        executor.runAll();
+        assertEquals(list("a1", "a2", "b1", "a3"), ran);
+    }
+    
+    @Test
+    public void expiredRequestsAreDroppedWithoutRunning() throws Exception {
+        TestTask expired = task("expired", Priority.NORMAL, null, Deadline.after(0));
+        scheduler.execute(expired);
+        assertTrue(expired.expired);
+        assertEquals(1, scheduler.getExpiredCount());
+        assertEquals(0, scheduler.getQueueDepth());
+        
+        scheduler.setMaxConcurrent(1);
+        scheduler.execute(task("first", Priority.NORMAL, null, null));
+        TestTask waiting = task("waiting", Priority.NORMAL, null, Deadline.after(50));
+        scheduler.execute(waiting);
+        Thread.sleep(200);
+        //dropped by its timer, on the executor, without waiting for its turn
+        executor.runAll();
+        assertTrue(waiting.expired);
+        assertEquals(2, scheduler.getExpiredCount());
+        assertEquals(list("first"), ran);
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+    
+    @Test
+    public void cancelledRequestsAreNotCounted() {
+        scheduler.setMaxConcurrent(1);
+        scheduler.execute(task("first", Priority.NORMAL, null, null));
+        FutureTask<Object> cancelled = new FutureTask<Object>(task("cancelled", Priority.NORMAL, null, null), null);
+        scheduler.execute(cancelled);
+        scheduler.execute(task("last", Priority.NORMAL, null, null));
+        assertEquals(2, scheduler.getQueueDepth());
+        
+        cancelled.cancel(false);
+        assertEquals(1, scheduler.getQueueDepth());
+        executor.runAll();
+        assertEquals(list("first", "last"), ran);
+        assertEquals(0, scheduler.getRunningCount());
+    }
+    
+    @Test
+    public void removedRequestsDoNotRun() {
+        scheduler.setMaxConcurrent(1);
+        scheduler.execute(task("first", Priority.NORMAL, null, null));
+        TestTask removed = task("removed", Priority.NORMAL, null, null);
+        scheduler.execute(removed);
+        assertTrue(scheduler.remove(removed));
+        assertFalse(scheduler.remove(removed));
+        assertEquals(0, scheduler.getQueueDepth());
+        executor.runAll();
+        assertEquals(list("first"), ran);
+    }
+    
+    @Test
+    public void rejectedRequestsGiveBackTheirPlaceAndWait() {
+        executor.reject = true;
+        for (int i = 0; i < 3; i++) {
+            try {
+                scheduler.execute(task("r" + i, Priority.NORMAL, "a", null));
+                fail("the rejection was not thrown");
+            } catch (RejectedExecutionException e) {
+                //expected
+            }
+        }
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(3, scheduler.getQueueDepth());
+        
+        executor.reject = false;
+        scheduler.execute(task("r3", Priority.NORMAL, "a", null));
+        assertEquals(2, scheduler.getRunningCount());
+        executor.runAll();
+        assertEquals(list("r0", "r1", "r2", "r3"), ran);
+        assertEquals(0, scheduler.getRunningCount());
+        assertEquals(0, scheduler.getQueueDepth());
+    }
+    
+    private TestTask task(String name, Priority priority, String host, Deadline deadline) {
+        return new TestTask(name, priority, host, deadline);
+    }
+    
+    private static List<String> list(String... names) {
+        List<String> list = new ArrayList<String>();
+        for (String name : names) {
+            list.add(name);
+        }
+        return list;
+    }
+    
+    private final class TestTask implements RequestScheduler.Task {
+        private final String name;
+        private final Priority priority;
+        private final String host;
+        private final Deadline deadline;
+        private volatile boolean expired = false;
+        
+        private TestTask(String name, Priority priority, String host, Deadline deadline) {
+            this.name = name;
+            this.priority = priority;
+            this.host = host;
+            this.deadline = deadline;
+        }
+        
+        public void run() {
+            ran.add(name);
+        }
+        
+        public Priority getPriority() {
+            return priority;
+        }
+        
+        public String getHost() {
+            return host;
+        }
+        
+        public Deadline getDeadline() {
+            return deadline;
+        }
+        
+        public void expired() {
+            expired = true;
+        }
+    }
+    
+    /**
+     * Holds what it is given until the test runs it, in order.
+     */
+    private static final class ManualExecutor implements Executor {
+        private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+        private volatile boolean reject = false;
+        
+        public synchronized void execute(Runnable task) {
+            if (reject) {
+                throw new RejectedExecutionException("rejected for the test");
+            }
+            tasks.add(task);
+        }
+        
+        void runNext() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+            }
+            task.run();
+        }
+        
+        void runAll() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                }
+                if (task == null) {
+                    return;
+                }
+                task.run();
+            }
+        }
+    }
+}